@@ -5,21 +5,33 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 
+import org.quark.dr.ecu.CanBroadcastCollector;
+import org.quark.dr.ecu.CanFrameRing;
 import org.quark.dr.ecu.EcuDatabase;
-import org.quark.dr.ecu.IsoTPDecode;
-import org.quark.dr.ecu.IsoTPEncode;
+import org.quark.dr.ecu.EcuLatencyTracker;
+import org.quark.dr.ecu.ElmCommandQueue;
+import org.quark.dr.ecu.ElmMonitorParser;
+import org.quark.dr.ecu.ElmPipeline;
+import org.quark.dr.ecu.ElmState;
+import org.quark.dr.ecu.HexCodec;
+import org.quark.dr.ecu.IsoTpCodec;
+import org.quark.dr.ecu.IsoTpException;
+import org.quark.dr.ecu.IsoTpLink;
+import org.quark.dr.ecu.IsoTpReassembler;
+import org.quark.dr.ecu.IsoTpReceiver;
+import org.quark.dr.ecu.IsoTpSender;
+import org.quark.dr.ecu.LogArchive;
+import org.quark.dr.ecu.SessionLogWriter;
+import org.quark.dr.ecu.SessionRecorder;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
-
-import static java.lang.Math.min;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public abstract class ElmBase {
     // Constants that indicate the current connection state
@@ -31,41 +43,122 @@ public abstract class ElmBase {
     public static final int MODE_WIFI = 0;
     public static final int MODE_BT = 1;
     public static final int MODE_USB = 2;
+    public static final int MODE_REPLAY = 3;
+
+    // Session keep alive period (tester present)
+    private static final long TESTER_PRESENT_PERIOD = 1500;
+    // ELM default AT ST (200 ms)
+    private static final int DEFAULT_ELM_TIMEOUT = 0x32;
+    // Queued functional request, "BROADCAST:7DF:3E00"
+    private static final String BROADCAST_PREFIX = "BROADCAST:";
+    // Queued monitor start, "MONITOR:7E8:7FF"
+    private static final String MONITOR_PREFIX = "MONITOR:";
+    private static final int MONITOR_BUFFER_SIZE = 4096;
+    private static final long MONITOR_READ_TIMEOUT = 100;
+    private static final long LOG_FLUSH_TIMEOUT = 2000;
+    // Commands joining a pipelined run
+    private static final ElmCommandQueue.Filter PIPELINABLE = new ElmCommandQueue.Filter() {
+        @Override
+        public boolean accept(String command) {
+            return ElmPipeline.isPipelinable(command);
+        }
+    };
 
-    protected ArrayList<String> mMessages;
+    protected final ElmCommandQueue mMessages = new ElmCommandQueue();
     protected int mRxa, mTxa;
     protected HashMap<String, String> mEcuErrorCodeMap;
     protected volatile Handler mConnectionHandler;
-    protected OutputStreamWriter mLogFile;
+    protected SessionLogWriter mLogFile;
     protected String mLogDir;
     protected volatile boolean mRunningStatus;
     static protected ElmBase mSingleton = null;
+    static private final HashMap<String, LogArchive> mLogArchives = new HashMap<>();
     protected boolean mConnecting = false;
     private int mState;
     protected boolean mSessionActive;
     private EcuDatabase mEcuDatabase;
     private boolean mCFC0;
+    private final IsoTpReassembler mCanReassembler = new IsoTpReassembler();
+    private final ElmPipeline mPipeline = new ElmPipeline(new ElmPipeline.Link() {
+        @Override
+        public String exchange(String command) {
+            return sendRaw(command);
+        }
+
+        @Override
+        public void write(String command) {
+            sendCommand(command);
+        }
+
+        @Override
+        public String read(long timeoutMs) {
+            return receiveReply(timeoutMs);
+        }
+    });
     private String mProtocol;
+    // Response times per ECU (protocol and address)
+    private final HashMap<String, EcuLatencyTracker> mLatencyTrackers = new HashMap<>();
+    private volatile EcuLatencyTracker mLatencyTracker;
+    // Last AT ST queued by the application, adaptive values stay below
+    private int mTimeOutCeiling = DEFAULT_ELM_TIMEOUT;
+    // Adapter settings, used by the worker thread only
+    private final ElmState mElmState = new ElmState();
+    private boolean mStnAdapter;
+    // Monitor mode capture, kept between captures
+    private final CanFrameRing mMonitorRing = new CanFrameRing(CanFrameRing.DEFAULT_CAPACITY);
+    private volatile boolean mMonitoring;
+    // Binary recording of the adapter exchanges, for ElmReplay
+    private volatile SessionRecorder mRecorder;
 
     static public ElmBase getSingleton() {
         return mSingleton;
     }
 
+    /*
+     * One writer on the log of a directory : two would rotate and compress
+     * the same segments
+     */
+    static private void closeSingleton(){
+        if (mSingleton != null)
+            mSingleton.closeLogFile();
+    }
+
+    /*
+     * Shared by the writers and the exports of a directory
+     */
+    static public synchronized LogArchive getLogArchive(String logDir){
+        LogArchive archive = mLogArchives.get(logDir);
+        if (archive == null){
+            archive = new LogArchive(new File(logDir));
+            mLogArchives.put(logDir, archive);
+        }
+        return archive;
+    }
+
     static public ElmBase createBluetoothSingleton(Context context, Handler handler, String logDir){
+        closeSingleton();
         mSingleton = new ElmBluetooth(context, handler, logDir);
         return mSingleton;
     }
 
     static public ElmBase createWifiSingleton(Context context, Handler handler, String logDir){
+        closeSingleton();
         mSingleton = new ElmWifi(context, handler, logDir);
         return mSingleton;
     }
 
     static public ElmBase createSerialSingleton(Context context, Handler handler, String logDir){
+        closeSingleton();
         mSingleton = new ElmUsbSerial(context, handler, logDir);
         return mSingleton;
     }
 
+    static public ElmBase createReplaySingleton(Handler handler, String logDir){
+        closeSingleton();
+        mSingleton = new ElmReplay(handler, logDir);
+        return mSingleton;
+    }
+
     EcuDatabase getDB(){
         return mEcuDatabase;
     }
@@ -134,6 +227,58 @@ public abstract class ElmBase {
     public abstract int getMode();
 
     protected abstract String writeRaw(String raw_buffer);
+    /*
+     * Pipelining : writeCommand does not wait for the reply, readReply
+     * returns the next one (same format as writeRaw), null after timeoutMs
+     */
+    protected abstract void writeCommand(String raw_buffer);
+    protected abstract String readReply(long timeoutMs);
+    protected abstract int readBytes(byte[] buffer, long timeoutMs);
+
+    /*
+     * Adapter calls of the worker thread, recorded while a recording runs
+     */
+    private String sendRaw(String command) {
+        SessionRecorder recorder = mRecorder;
+        if (recorder == null)
+            return writeRaw(command);
+        long start = System.nanoTime();
+        String reply = writeRaw(command);
+        recorder.exchange(command, reply, start, System.nanoTime());
+        return reply;
+    }
+
+    private void sendCommand(String command) {
+        SessionRecorder recorder = mRecorder;
+        if (recorder == null) {
+            writeCommand(command);
+            return;
+        }
+        long start = System.nanoTime();
+        writeCommand(command);
+        recorder.write(command, start, System.nanoTime());
+    }
+
+    private String receiveReply(long timeoutMs) {
+        SessionRecorder recorder = mRecorder;
+        if (recorder == null)
+            return readReply(timeoutMs);
+        long start = System.nanoTime();
+        String reply = readReply(timeoutMs);
+        recorder.read(reply, start, System.nanoTime());
+        return reply;
+    }
+
+    private int receiveBytes(byte[] buffer, long timeoutMs) {
+        SessionRecorder recorder = mRecorder;
+        if (recorder == null)
+            return readBytes(buffer, timeoutMs);
+        long start = System.nanoTime();
+        int count = readBytes(buffer, timeoutMs);
+        recorder.readBytes(buffer, count, start, System.nanoTime());
+        return count;
+    }
+
     public boolean hasDevicePermission(){
         return true;
     }
@@ -143,7 +288,6 @@ public abstract class ElmBase {
 
     public ElmBase(Handler handler, String logDir) {
         mProtocol = "UNDEFINED";
-        mMessages = new ArrayList<>();
         mConnectionHandler = handler;
         mLogFile = null;
         mLogDir = logDir;
@@ -212,77 +356,89 @@ public abstract class ElmBase {
         }
     }
 
+    /*
+     * log.txt, rotated and archived by LogArchive
+     */
     protected void createLogFile() {
-        File file = new File(mLogDir + "/log.txt");
-        if (!file.exists()) {
-            try {
-                boolean ok = file.createNewFile();
-                if(!ok){
-                    logInfo("Log file create error");
-                }
-            } catch (IOException e) {
-                logInfo("Log file create error : " + e.getMessage());
-                e.printStackTrace();
-            }
-        }
         try {
-            FileOutputStream fileOutputStream = new FileOutputStream(file, true);
-            mLogFile = new OutputStreamWriter(fileOutputStream);
-        } catch (FileNotFoundException e) {
+            mLogFile = new SessionLogWriter(getLogArchive(mLogDir).openWriter());
+            mLogFile.start();
+            mLogFile.log("", " Log file created");
+        } catch (IOException e) {
             logInfo("Log file output stream error : " + e.getMessage());
             e.printStackTrace();
         }
+    }
+
+    /*
+     * Waits for the log writer, before copying the log file
+     */
+    public void flushLogs() {
+        SessionRecorder recorder = mRecorder;
+        if (recorder != null)
+            recorder.flush();
+        if (mLogFile != null && !mLogFile.flush(LOG_FLUSH_TIMEOUT))
+            logInfo("Log flush timeout, " + mLogFile.getPendingCount() + " records pending");
+    }
+
+    /*
+     * Records every adapter exchange to file until stopRecording,
+     * to be played back by ElmReplay
+     */
+    public boolean startRecording(File file) {
+        stopRecording();
         try {
-            mLogFile.append(getTimeStamp()).append(" Log file created\n");
-            mLogFile.flush();
-        } catch (Exception e){
-            logInfo("Log file write error : " + e.getMessage());
+            mRecorder = new SessionRecorder(new FileOutputStream(file));
+            logInfo("Recording session to " + file.getName());
+            return true;
+        } catch (IOException e) {
+            logInfo("Session recording error : " + e.getMessage());
             e.printStackTrace();
+            return false;
         }
     }
 
-    public void flushLogs() {
-        if (mLogFile != null) {
-            try {
-                mLogFile.flush();
-            } catch (IOException e){
-                e.printStackTrace();
-            }
-        }
+    public void stopRecording() {
+        SessionRecorder recorder = mRecorder;
+        if (recorder == null)
+            return;
+        mRecorder = null;
+        recorder.close();
+        logInfo("Session recorded : " + recorder.getRecordCount() + " exchanges, "
+                + recorder.getByteCount() + " bytes");
+    }
+
+    public boolean isRecording() {
+        return mRecorder != null;
     }
 
     public void closeLogFile(){
+        stopRecording();
         if (mLogFile != null){
-            flushLogs();
-            try {
-                mLogFile.close();
-            } catch (IOException e){
-                e.printStackTrace();
-            }
+            if (mLogFile.getDroppedCount() > 0 || mLogFile.getTruncatedCount() > 0)
+                logInfo("Log : " + mLogFile.getDroppedCount() + " records dropped, "
+                        + mLogFile.getTruncatedCount() + " truncated");
+            mLogFile.close(LOG_FLUSH_TIMEOUT);
         }
     }
 
-    protected String getTimeStamp() {
-        return "[" + new SimpleDateFormat("dd-MM-hh:mm:ss")
-                .format(new Date()) + "] ";
-    }
-
     public void initElm() {
         mProtocol = "UNDEFINED";
         logInfo("Re-intializing ELM...");
+        mPipeline.setDepth(1);
         write("AT Z");        // reset ELM
+        write("STI");         // STN identification, pipelining if supported
     }
 
     public void initCan(String rxa, String txa, Integer canline, boolean brp) {
         logInfo("Intializing CAN protocol...");
-        mProtocol = "CAN";
         // Based on https://github.com/cedricp/ddt4all/blob/master/elm.py#L1201
         if (canline == -1) {
             // TODO : Uses 1 this need review
             // canline = 0;
             canline = 1;
         }
-        write("AT WS");
+        warmStart("CAN");
         write("AT E1");
         write("AT S0");
         write("AT H0");
@@ -347,10 +503,11 @@ public abstract class ElmBase {
         }
         mRxa = Integer.parseInt(rxa, 16);
         mTxa = Integer.parseInt(txa, 16);
+        selectLatencyTracker();
     }
 
-    private void initIso(){
-        write("AT WS");
+    private void initIso(String protocol){
+        warmStart(protocol);
         write("AT E1");
         write("AT L0");
         write("AT D1");
@@ -361,11 +518,10 @@ public abstract class ElmBase {
 
     public void initKwp(String addr, boolean fastInit) {
         logInfo("Intializing KPW2000 protocol...");
-        mProtocol = "KWP2000";
+        initIso("KWP2000");
         mRxa = 0xF1;
         mTxa = Integer.parseInt(addr, 16);
-
-        initIso();
+        selectLatencyTracker();
 
         write("AT SH 81 " + addr + " F1");
         write("AT SW 96");
@@ -388,11 +544,10 @@ public abstract class ElmBase {
 
     public void initIso8(String addr) {
         logInfo("Intializing ISO8 protocol...");
-        mProtocol = "ISO8";
+        initIso("ISO8");
         mRxa = 0xF1;
         mTxa = Integer.parseInt(addr, 16);
-
-        initIso();
+        selectLatencyTracker();
 
         write("AT SH 81 " + addr + " F1");
         write("AT SW 96");
@@ -405,6 +560,63 @@ public abstract class ElmBase {
         write("AT AT 1");
     }
 
+    /*
+     * Warm start only when the protocol changes, on the same bus the
+     * settings that follow replace the previous ECU ones and the
+     * unchanged ones are not sent again
+     */
+    private void warmStart(String protocol) {
+        if (!protocol.equals(mProtocol))
+            write("AT WS");
+        mProtocol = protocol;
+    }
+
+    private void selectLatencyTracker() {
+        String key = mProtocol + ":" + Integer.toHexString(mTxa);
+        synchronized (mLatencyTrackers) {
+            EcuLatencyTracker tracker = mLatencyTrackers.get(key);
+            if (tracker == null) {
+                tracker = new EcuLatencyTracker();
+                mLatencyTrackers.put(key, tracker);
+            }
+            mLatencyTracker = tracker;
+        }
+    }
+
+    /*
+     * Sends request (single frame) to the functional CAN header, every ECU
+     * answering is reported with MESSAGE_BROADCAST : "7E8" -> "5003..."
+     * The ECU headers are restored afterwards
+     */
+    public void broadcast(String header, String request) {
+        write(BROADCAST_PREFIX + header.replace(" ", "").toUpperCase() + ":" + request);
+    }
+
+    /*
+     * Passive capture of the CAN frames whose ID matches filter on the mask
+     * bits (mask 0 : every frame) into getMonitorRing, until stopMonitor.
+     * The queued commands wait meanwhile.
+     */
+    public void startMonitor(int filter, int mask) {
+        mMonitoring = true;
+        write(String.format("%s%X:%X", MONITOR_PREFIX, filter, mask));
+    }
+
+    public void stopMonitor() {
+        mMonitoring = false;
+    }
+
+    public boolean isMonitoring() {
+        return mMonitoring;
+    }
+
+    /*
+     * Subscribe with CanFrameRing.addListener, called by the worker thread
+     */
+    public CanFrameRing getMonitorRing() {
+        return mMonitorRing;
+    }
+
     public void setTimeOut(int timeOut) {
         int timeout = (timeOut / 4);
         if (timeout > 255)
@@ -426,107 +638,97 @@ public abstract class ElmBase {
     }
 
     public boolean isHexadecimal(String text) {
-        char[] hexDigits = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
-                'a', 'b', 'c', 'd', 'e', 'f', 'A', 'B', 'C', 'D', 'E', 'F'};
-
-        for (char symbol : text.toCharArray()) {
-            boolean found = false;
-            for (char hexDigit : hexDigits) {
-                if (symbol == hexDigit) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found)
-                return false;
-        }
-        return true;
+        return HexCodec.isHexadecimal(text);
     }
 
-    public synchronized void clearMessages(){
+    public void clearMessages(){
         mMessages.clear();
     }
 
+    public void clearMessages(int lane){
+        mMessages.clear(lane);
+    }
+
+    /*
+     * Stops connectedThreadMainLoop, even if it is waiting for a command
+     */
+    protected void stopRunning(){
+        mRunningStatus = false;
+        mMessages.wakeUp();
+    }
+
     protected void connectedThreadMainLoop() {
         long timer = System.currentTimeMillis();
         mRunningStatus = true;
+        // New connection, maybe another adapter
+        mElmState.invalidate();
 
         /*
-         * Keep listening to the InputStream while connected
-         * Thread can be stopped by switching the running status member
+         * Wait for commands while connected, the tester present period
+         * bounds the wait. Thread can be stopped by stopRunning.
          */
         while (mRunningStatus) {
-            String message = "";
-            int num_queue = 0;
-            boolean messagePresent = false;
-
-            // Synchronized message extraction
-            synchronized (this) {
-                if ( ! ElmBase.this.mMessages.isEmpty() ) {
-                    message = mMessages.get(0);
-                    mMessages.remove(0);
-                    num_queue = mMessages.size();
-                    messagePresent = true;
-                }
-            }
-
-            if (messagePresent){
-                int message_len = message.length();
-                if ((message_len > 6) && message.substring(0, 6).equalsIgnoreCase("DELAY:")) {
-                    int delay = Integer.parseInt(message.substring(6));
-                    try {
-                        Thread.sleep(delay);
-                    } catch (InterruptedException e) {
-                        break;
-                    }
-                } else if ((message_len > 2) && message.substring(0, 2).equalsIgnoreCase("AT")) {
-                    String result = writeRaw(message);
-                    result = message + ";" + result;
-
-                    int result_length = result.length();
-                    byte[] tmpbuf = new byte[result_length];
-                    System.arraycopy(result.getBytes(), 0, tmpbuf, 0, result_length);
-                    synchronized (this) {
-                        if (mConnectionHandler != null) {
-                            mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_READ,
-                                    result_length, mTxa, tmpbuf).sendToTarget();
-                            mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_QUEUE_STATE,
-                                    num_queue, -1, null).sendToTarget();
-                        }
-                    }
-                } else {
-                    if (mProtocol.equals("CAN")) {
-                        if (mCFC0)
-                            sendCanCFC0(message);
-                        else
-                            sendCan(message);
-                    } else {
-                        // KWP / ISO8
-                        sendISO(message);
-                    }
-
-                    synchronized (this) {
-                        if (mConnectionHandler != null) {
-                            mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_QUEUE_STATE,
-                                    num_queue, -1, null).sendToTarget();
-                        }
-                    }
-                    // Reset tester_present timer
-                    // This can speed up things
+            long testerPresentDelay = timer + TESTER_PRESENT_PERIOD - System.currentTimeMillis();
+            if (testerPresentDelay <= 0) {
+                // Keep session alive
+                if (mProtocol.equals("CAN") && mSessionActive && mRxa > 0) {
                     timer = System.currentTimeMillis();
+                    sendRaw("013E");
+                    continue;
                 }
+                testerPresentDelay = TESTER_PRESENT_PERIOD;
             }
 
+            String message;
             try {
-                Thread.sleep(10);
+                message = mMessages.poll(testerPresentDelay);
             } catch (InterruptedException e) {
                 break;
             }
+            if (message == null)
+                continue;
 
-            // Keep session alive
-            if (mProtocol.equals("CAN") && mSessionActive && ((System.currentTimeMillis() - timer) > 1500) && mRxa > 0) {
+            int num_queue = mMessages.size();
+            int num_interactive = mMessages.size(ElmCommandQueue.LANE_INTERACTIVE);
+            int message_len = message.length();
+            if ((message_len > 6) && message.substring(0, 6).equalsIgnoreCase("DELAY:")) {
+                int delay = Integer.parseInt(message.substring(6));
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            } else if (message.startsWith(MONITOR_PREFIX)) {
+                String[] monitor = message.substring(MONITOR_PREFIX.length()).split(":");
+                if (monitor.length == 2)
+                    runMonitor(Integer.parseInt(monitor[0], 16), Integer.parseInt(monitor[1], 16));
+                mMonitoring = false;
+                timer = System.currentTimeMillis();
+            } else if (message.startsWith(BROADCAST_PREFIX)) {
+                String[] broadcast = message.substring(BROADCAST_PREFIX.length()).split(":");
+                if (broadcast.length == 2)
+                    sendBroadcast(broadcast[0], broadcast[1]);
+            } else if (ElmCommandQueue.defaultLane(message) == ElmCommandQueue.LANE_CONFIGURATION) {
+                sendConfiguration(message);
+                synchronized (this) {
+                    if (mConnectionHandler != null) {
+                        mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_QUEUE_STATE,
+                                mMessages.size(), mMessages.size(ElmCommandQueue.LANE_INTERACTIVE),
+                                null).sendToTarget();
+                    }
+                }
+            } else {
+                sendRequest(message);
+
+                synchronized (this) {
+                    if (mConnectionHandler != null) {
+                        mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_QUEUE_STATE,
+                                num_queue, num_interactive, null).sendToTarget();
+                    }
+                }
+                // Reset tester_present timer
+                // This can speed up things
                 timer = System.currentTimeMillis();
-                writeRaw("013E");
             }
         }
         mRunningStatus = false;
@@ -537,34 +739,105 @@ public abstract class ElmBase {
         mSessionActive = active;
     }
 
-    protected void sendISO(String message){
-        String messageResult = writeRaw(message);
+    private String sendBusRequest(String message) {
+        if (mProtocol.equals("CAN")) {
+            if (mCFC0)
+                return sendCanCFC0(message);
+            return sendCan(message);
+        }
+        // KWP / ISO8
+        return sendISO(message);
+    }
 
-        // Parse response
-        StringBuilder resultMess = new StringBuilder();
-        for (String s : messageResult.split("\n")){
-            // Remove useless whitespaces
-            String cleanedMessage = s.replace(" ", "");
-            if (cleanedMessage.equals(message)){
-                // Echo cancellation
-                continue;
+    /*
+     * Sends a bus request with the ELM timeout tuned from the response
+     * times of the ECU, one value for all its requests, ELM adaptive timing
+     * kept. A read getting NO DATA under a shortened timeout is sent again
+     * with the configured one, the screen never sees a timeout the former
+     * setting would not give. Writes and routines are never sent twice.
+     */
+    private void sendRequest(String message) {
+        EcuLatencyTracker tracker = mLatencyTracker;
+        boolean read = ElmCommandQueue.isCoalescable(message);
+        int timeout = tracker != null ? tracker.getTimeout(mTimeOutCeiling) : mTimeOutCeiling;
+        int tuned = timeout;
+
+        for (int attempt = 0; ; ++attempt) {
+            setElmTimeout(timeout);
+            long start = System.currentTimeMillis();
+            String result = sendBusRequest(message);
+            long elapsed = System.currentTimeMillis() - start;
+            mElmState.checkResponse(result);
+            if (tracker != null && result != null) {
+                if (result.contains("NO DATA")) {
+                    if (read && attempt == 0 && timeout < mTimeOutCeiling) {
+                        // Slow ECU or lost frame, the retry tells
+                        timeout = mTimeOutCeiling;
+                        continue;
+                    }
+                    tracker.recordTimeout();
+                } else if (!result.startsWith("ERROR")) {
+                    if (attempt > 0)
+                        tracker.recordRetryResponse(getLatency(elapsed), tuned);
+                    else
+                        tracker.recordResponse(getLatency(elapsed));
+                }
             }
-            resultMess.append(cleanedMessage);
+            postResult(message, result);
+            return;
         }
+    }
 
-        String result = resultMess.toString();
+    /*
+     * AT ST value, the ELM adaptive timing stays on (AT AT 1 unless the
+     * application chose AT AT 2). Nothing is sent while they do not change.
+     */
+    private void setElmTimeout(int timeout) {
+        writeSetting(String.format("AT ST %02X", timeout));
+        if ("0".equals(mElmState.getValue("AT")))
+            writeSetting("AT AT 1");
+    }
 
-        try {
-            if (mLogFile != null) {
-                mLogFile.append("ISO SENT: ").append(getTimeStamp()).append(message).append("\n");
-                mLogFile.append("ISO RECV: ").append(getTimeStamp()).append(result).append("\n");
+    /*
+     * Without adaptive timing, the ELM waits the whole timeout after the response
+     */
+    private long getLatency(long elapsed) {
+        String timeout = mElmState.getValue("ST");
+        if (!"0".equals(mElmState.getValue("AT")) || timeout == null)
+            return elapsed;
+        return elapsed - Integer.parseInt(timeout, 16) * 4L;
+    }
+
+    /*
+     * Sends a setting unless the adapter already has it
+     */
+    private void writeSetting(String command) {
+        if (mElmState.isRedundant(command))
+            return;
+        mElmState.update(command, sendRaw(command));
+    }
+
+    /*
+     * Follows the timeout commands queued by the application
+     */
+    private void trackTimeoutCommand(String command) {
+        String c = command.replace(" ", "").toUpperCase();
+        if (c.startsWith("ATST") && c.length() > 4) {
+            try {
+                int value = Integer.parseInt(c.substring(4), 16);
+                mTimeOutCeiling = value == 0 ? DEFAULT_ELM_TIMEOUT : value;
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
             }
-        } catch (IOException e) {
-            logInfo("Log error : " + e.getMessage());
+        } else if (c.equals("ATZ") || c.equals("ATWS") || c.equals("ATD")) {
+            mTimeOutCeiling = DEFAULT_ELM_TIMEOUT;
         }
+    }
 
+    private void postResult(String message, String result) {
+        if (result == null)
+            return;
         result = message + ";" + result;
-
         int result_length = result.length();
         byte[] tmpbuf = new byte[result_length];
         //Make copy for not to rewrite in other thread
@@ -576,251 +849,225 @@ public abstract class ElmBase {
         }
     }
 
-    protected void sendCanCFC0(String message){
-        if (!isHexadecimal(message))
+    /*
+     * Sends message and the configuration commands queued after it, in one
+     * pipelined run when the adapter supports it. The settings the adapter
+     * already has are skipped, without reply.
+     */
+    private void sendConfiguration(String message){
+        ArrayList<String> commands = new ArrayList<>();
+        addConfiguration(commands, message);
+        if (mPipeline.isPipelining() && ElmPipeline.isPipelinable(message)) {
+            String next;
+            while (commands.size() < ElmPipeline.DEFAULT_DEPTH * 4
+                    && (next = mMessages.pollIf(PIPELINABLE)) != null)
+                addConfiguration(commands, next);
+        }
+        if (commands.isEmpty())
             return;
 
-        IsoTPEncode isotpm = new IsoTPEncode(message);
-        // Encode ISO_TP data
-        ArrayList<String> raw_command = isotpm.getFormattedArray();
-        ArrayList<String> responses = new ArrayList<>();
-        boolean noerrors = true;
-        String errorMsg = "";
-        boolean ATR1 = true;
-
-        int BS = 1; // Burst size
-        int ST = 0; // Frame interval
-        int Fc = 0; // Current frame
-        int Fn = raw_command.size();
-
-        // Set ELM timeout to 300ms for first frame response
-        if (Fn > 1 && raw_command.get(0).length() > 15){
-            writeRaw("ATST4B");
-        }
-
-        while(Fc < Fn){
-            String frsp;
-            if (!ATR1){
-                writeRaw("ATR1");
-                ATR1 = true;
+        String[] replies = mPipeline.exchange(commands);
+        for (int i = 0; i < replies.length; ++i) {
+            String command = commands.get(i);
+            mElmState.update(command, replies[i]);
+            trackTimeoutCommand(command);
+            if (command.equalsIgnoreCase("STI")) {
+                boolean capable = ElmPipeline.isPipelineCapable(replies[i]);
+                mStnAdapter = capable;
+                mPipeline.setDepth(capable ? ElmPipeline.DEFAULT_DEPTH : 1);
+                logInfo("Adapter " + (capable ? replies[i].trim() + ", pipelining on" : "without pipelining"));
             }
-            long tb = System.currentTimeMillis();
 
-            if (Fn > 1 && Fc == (Fn - 1)){
-                writeRaw("ATSTFF");
-                writeRaw("ATAT1");
+            String result = command + ";" + replies[i];
+            int result_length = result.length();
+            byte[] tmpbuf = new byte[result_length];
+            System.arraycopy(result.getBytes(), 0, tmpbuf, 0, result_length);
+            synchronized (this) {
+                if (mConnectionHandler != null) {
+                    mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_READ,
+                            result_length, mTxa, tmpbuf).sendToTarget();
+                }
             }
+        }
+    }
 
-            String currentRawCommand = raw_command.get(Fc);
-            if (Fc == 0 || Fc == (Fn-1) && currentRawCommand.length() < 16){
-                // We'll get only 1 frame: nr, fc, ff or sf
-                frsp = writeRaw(currentRawCommand + '1');
-            } else {
-                frsp = writeRaw(currentRawCommand );
-            }
+    private void addConfiguration(ArrayList<String> commands, String command){
+        // The timeout ceiling follows the application even when not sent
+        if (mElmState.isRedundant(command)) {
+            trackTimeoutCommand(command);
+            return;
+        }
+        // Assumed accepted, corrected with the reply
+        mElmState.update(command, "OK");
+        commands.add(command);
+    }
 
-            ++Fc;
+    protected String sendISO(String message){
+        String messageResult = sendRaw(message);
 
-            ArrayList<String> s0 = new ArrayList<>();
-            for (String s: frsp.split("\n")){
+        // Parse response
+        StringBuilder resultMess = new StringBuilder();
+        for (String s : messageResult.split("\n")){
+            // Remove useless whitespaces
+            String cleanedMessage = s.replace(" ", "");
+            if (cleanedMessage.equals(message)){
                 // Echo cancellation
-                int raw_cmd_len = raw_command.get(Fc-1).length();
-                String subs = s ;
-                if (subs.length() > raw_cmd_len)
-                    subs = s.substring(0, raw_cmd_len);
-                if (subs.equals(raw_command.get(Fc-1)))
-                    continue;
+                continue;
+            }
+            resultMess.append(cleanedMessage);
+        }
 
-                s = s.replace(" ", "");
-                if(s.isEmpty())
-                    continue;
+        String result = resultMess.toString();
 
-                if (isHexadecimal(s))
-                    s0.add(s);
-            }
+        if (mLogFile != null) {
+            mLogFile.log("ISO SENT: ", message);
+            mLogFile.log("ISO RECV: ", result);
+        }
+        return result;
+    }
 
-            for (String s: s0){
-                // Some data
-                if (s.charAt(0) == '3'){
-                    // Flow control frame
+    /*
+     * IsoTpLink over the ELM327 with automatic flow control disabled (CFC0)
+     * Frames received in reply to a command are queued for receiveFrame
+     */
+    private class ElmIsoTpLink implements IsoTpLink {
+        private final ArrayDeque<byte[]> mPendingFrames = new ArrayDeque<>();
+        private final StringBuilder mAdapterErrors = new StringBuilder();
+        private boolean mResponsesOn = true;
+
+        @Override
+        public void sendFrame(byte[] frame, int expectedFrames){
+            String line = IsoTpCodec.formatFrame(frame);
+            if (expectedFrames == 0){
+                // Do not wait for any frame
+                if (mResponsesOn){
+                    writeSetting("ATR0");
+                    mResponsesOn = false;
+                }
+                sendRaw(line);
+                return;
+            }
 
-                    // Extract burst size
-                    String bs;
-                    if (s.length() >= 3)
-                        bs = s.substring(2, 4);
-                    else
-                        bs = "03";
+            if (!mResponsesOn){
+                writeSetting("ATR1");
+                mResponsesOn = true;
+            }
 
-                    BS = Integer.parseInt(bs, 16);
+            // The ELM returns as soon as the given number of frames is received
+            String command = line;
+            if (expectedFrames > 0 && expectedFrames <= 0xF)
+                command += Integer.toHexString(expectedFrames).toUpperCase();
 
-                    // Extract frame interval
-                    String frameInterval;
-                    if (s.length() >= 5)
-                        frameInterval = s.substring(4, 6);
-                    else
-                        frameInterval = "EF";
-                    if (frameInterval.toUpperCase().charAt(0) == 'F'){
-                        ST = Integer.parseInt(frameInterval.substring(1,2), 16) * 100;
-                    } else {
-                        ST = Integer.parseInt(frameInterval, 16);
-                    }
-                    break;
-                } else if (s.startsWith("037F") && s.startsWith("78", 6)) {
-                    if (s0.size() > 0 && s.equals(s0.get(s0.size()-1))){
-                        noerrors = false;
-                        errorMsg = "Cannot handle 037F78 yet !";
-                        break;
-                        // Heavy method here !!
-                    } else {
-                        continue;
-                    }
-                } else {
-                    responses.add(s);
+            String frsp = sendRaw(command);
+            for (String s: frsp.split("\n")){
+                // Echo cancellation
+                if (s.startsWith(line))
                     continue;
-                }
-            }
 
-            // Number of frames to send without response
-            int cf = min(BS - 1, (Fn - Fc) - 1);
+                s = s.replace(" ", "");
+                if (s.isEmpty())
+                    continue;
 
-            if (cf > 0){
-                writeRaw("ATR0");
-                ATR1 = false;
+                byte[] rxframe = IsoTpCodec.parseFrame(s);
+                if (rxframe != null)
+                    mPendingFrames.add(rxframe);
+                else
+                    mAdapterErrors.append(s);
             }
+        }
 
-            while (cf > 0){
-                --cf;
+        @Override
+        public byte[] receiveFrame(long timeoutMs){
+            // The ELM already waited for the frames (ATST timeout)
+            return mPendingFrames.poll();
+        }
 
-                long tc = System.currentTimeMillis();
-                if ((tc - tb) < ST){
-                    try {
-                        Thread.sleep(ST - (tc - tb));
-                    } catch (InterruptedException ie){
-                        return;
-                    }
-                }
-                tb = tc;
+        boolean hasPendingFrames(){
+            return !mPendingFrames.isEmpty();
+        }
 
-                frsp = writeRaw(raw_command.get(Fc));
-                ++Fc;
-            }
+        String getAdapterErrors(){
+            return mAdapterErrors.toString();
         }
 
-        StringBuilder result = new StringBuilder();
-        if (responses.size() != 1){
-            noerrors = false;
-            errorMsg = "Cannot send CAN frame with software flow control";
-        } else {
-            int nbytes = 0;
-            String response0 = responses.get(0);
-            if (response0.charAt(0) == '0'){
-                // Single frame
-                nbytes = Integer.parseInt(response0.substring(1,2), 16);
-                result = new StringBuilder(responses.get(0).substring(2, 2 + (nbytes * 2)));
-            } else if (response0.charAt(0) == '1') {
-                nbytes = Integer.parseInt(response0.substring(1, 4), 16);
-                // We assume that it should be more than 7
-                nbytes -= 6;
-                int nframes = 1 + nbytes / 7 + ((nbytes%7) > 0 ? 1 : 0);
-                int cframe = 1;
-                result = new StringBuilder(response0.substring(4, 16));
-
-                while (cframe < nframes){
-                    String sBS =  String.format("%x", min(nframes - responses.size(), 0xf));
-                    String frsp = writeRaw("300" + sBS + "00" + sBS);
-
-                    // Analyse response
-                    boolean nodataflag = false;
-                    for (String s: frsp.split("\n")){
-                        // Echo cancel
-                        if (s.startsWith(raw_command.get(Fc - 1))){
-                            continue;
-                        }
-
-                        if (s.contains("NO DATA")){
-                            nodataflag = true;
-                            break;
-                        }
-
-                        s = s.replace(" ", "");
-                        if (s.isEmpty()){
-                            continue;
-                        }
-
-                        if (isHexadecimal(s)){
-                            responses.add(s);
-                            if (s.charAt(0) == '2'){
-                                // Consecutive frame
-                                int tmp_fn = Integer.parseInt(s.substring(1,2), 16);
-                                if (tmp_fn != (cframe % 16)){
-                                    noerrors = false;
-                                    errorMsg = "Multiline software flow control lost frame";
-                                    continue;
-                                }
-                                ++cframe;
-                                result.append(s, 2, 16);
-                            }
-                            continue;
-                        }
-
-                        if (nodataflag){
-                            break;
-                        }
-                    }
-                }
-            } else {
-                noerrors = false;
-                errorMsg = "CFC0 first frame omitted";
+        void restoreResponses(){
+            if (!mResponsesOn){
+                writeSetting("ATR1");
+                mResponsesOn = true;
             }
         }
+    }
 
-        if (!noerrors){
-            message = "ERROR : " + errorMsg;
-        } else {
-            // Decode received ISO_TP data
-            IsoTPDecode isotpdec = new IsoTPDecode(responses);
-            result = new StringBuilder(isotpdec.decodeCan());
-        }
+    private static boolean isResponsePending(byte[] response){
+        return response.length == 3 && (response[0] & 0xFF) == 0x7F && (response[2] & 0xFF) == 0x78;
+    }
 
+    protected String sendCanCFC0(String message){
+        if (!isHexadecimal(message))
+            return null;
+
+        ElmIsoTpLink link = new ElmIsoTpLink();
+        IsoTpSender sender = new IsoTpSender(link);
+        IsoTpReceiver receiver = new IsoTpReceiver(link);
+        // Block size limited to what the ELM can count (one hex digit)
+        receiver.setFlowControl(0xF, 0);
+
+        String result;
         try {
-            if (mLogFile != null) {
-                mLogFile.append("CAN CFC SENT: ").append(getTimeStamp()).append(message).append("\n");
-                mLogFile.append("CAN CFC RECV: ").append(getTimeStamp()).append(result.toString()).append("\n");
+            byte[] request = IsoTpCodec.parseFrame(message);
+            if (request == null)
+                throw new IsoTpException(IsoTpException.Error.NON_HEXA);
+
+            if (request.length > IsoTpCodec.MAX_SINGLE_FRAME_LENGTH){
+                // Longest ELM timeout for a flow controlled request
+                writeSetting("ATSTFF");
+                writeSetting("ATAT1");
             }
-        } catch (IOException e) {
-            logInfo("Log error : " + e.getMessage());
-            e.printStackTrace();
+
+            sender.send(request);
+            byte[] response = receiver.receive();
+            // Skip "response pending" if the final response came with it
+            while (isResponsePending(response) && link.hasPendingFrames())
+                response = receiver.receive();
+
+            if (isResponsePending(response))
+                result = "ERROR : Cannot handle 037F78 yet !";
+            else
+                result = IsoTpCodec.formatFrame(response);
+        } catch (IsoTpException e) {
+            String adapterErrors = link.getAdapterErrors();
+            result = "ERROR : " + (adapterErrors.isEmpty() ? e.getMessage() : adapterErrors);
+        } finally {
+            link.restoreResponses();
         }
 
-        result.insert(0, message + ";");
-        int result_length = result.length();
-        byte[] tmpbuf = new byte[result_length];
-        //Make copy for not to rewrite in other thread
-        System.arraycopy(result.toString().getBytes(), 0, tmpbuf, 0, result_length);
-        synchronized (this) {
-            if (mConnectionHandler != null) {
-                mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_READ, result_length, -1, tmpbuf).sendToTarget();
-            }
+        if (mLogFile != null) {
+            mLogFile.log("CAN CFC SENT: ", message);
+            mLogFile.log("CAN CFC RECV: ", result);
         }
+        return result;
     }
 
-    protected void sendCan(String message){
-        IsoTPEncode isotpm = new IsoTPEncode(message);
-        // Encode ISO_TP data
-        ArrayList<String> raw_command = isotpm.getFormattedArray();
-        ArrayList<String> responses = new ArrayList<>();
-        boolean error = false;
-        StringBuilder errorMsg = new StringBuilder();
-
-        // Send data
-        for (String frame: raw_command) {
-            String frsp = writeRaw(frame);
+    /*
+     * Send an ISO-TP encoded request and reassemble the response frames
+     * as they are parsed. Hex is only produced/parsed here, at the ELM
+     * line level. Adapter messages (NO DATA, CAN ERROR...) are appended
+     * to errorMsg
+     */
+    private byte[] exchangeCan(String message, StringBuilder errorMsg) throws IsoTpException {
+        byte[] request = IsoTpCodec.parseFrame(message);
+        if (request == null)
+            throw new IsoTpException(IsoTpException.Error.NON_HEXA);
+
+        mCanReassembler.reset();
+        byte[] response = null;
+        for (byte[] frame: IsoTpCodec.encode(request)) {
+            String line = IsoTpCodec.formatFrame(frame);
+            String frsp = sendRaw(line);
 
-            for(String s: frsp.split("\n")){
-                // Remove unwanted characters
-                s = s.replace("\n", "");
+            for (String s: frsp.split("\n")){
                 // Echo cancellation
-                if (s.equals(frame))
+                if (s.equals(line))
                     continue;
 
                 // Remove whitespaces
@@ -828,60 +1075,205 @@ public abstract class ElmBase {
                 if (s.length() == 0)
                     continue;
 
-                if (isHexadecimal(s)){
-                    // Filter out frame control (FC) response
-                    if (s.charAt(0) == '3')
-                        continue;
-                    responses.add(s);
+                byte[] rxframe = IsoTpCodec.parseFrame(s);
+                if (rxframe != null){
+                    // Flow control frames are skipped by the reassembler
+                    // The last complete message wins (after response pending)
+                    byte[] payload = mCanReassembler.push(mRxa, rxframe);
+                    if (payload != null)
+                        response = payload;
                 } else {
                     errorMsg.append(frsp);
-                    error = true;
                 }
             }
         }
 
+        if (response == null){
+            if (mCanReassembler.isReceiving(mRxa))
+                throw new IsoTpException(IsoTpException.Error.RESPONSE_TOO_SHORT);
+            throw new IsoTpException(IsoTpException.Error.NO_DATA);
+        }
+        return response;
+    }
+
+    protected String sendCan(String message){
         String result;
-        if (error){
+        StringBuilder errorMsg = new StringBuilder();
+        try {
+            result = IsoTpCodec.formatFrame(exchangeCan(message, errorMsg));
+        } catch (IsoTpException e) {
+            result = "ERROR : " + e.getMessage();
+        }
+        if (errorMsg.length() > 0)
             result = "ERROR : " + errorMsg;
+
+        if (mLogFile != null) {
+            mLogFile.log("CAN SENT: ", message);
+            mLogFile.log("CAN RECV: ", result);
+        }
+        return result;
+    }
+
+    /*
+     * Headers on, receive filter open to every ECU, the whole timeout is
+     * waited for the late answers
+     */
+    private void sendBroadcast(String header, String request) {
+        LinkedHashMap<String, String> responses = new LinkedHashMap<>();
+        byte[] payload = IsoTpCodec.parseFrame(request);
+        boolean extended = header.length() == 8;
+        if (!mProtocol.equals("CAN") || payload == null || payload.length > IsoTpCodec.MAX_SINGLE_FRAME_LENGTH
+                || !isHexadecimal(header) || (header.length() != 3 && !extended)) {
+            responses.put(header, "ERROR : BAD BROADCAST REQUEST");
+            postBroadcast(request, responses);
+            return;
+        }
+
+        String cp = mElmState.getValue("CP");
+        String sh = mElmState.getValue("SH");
+        String cra = mElmState.getValue("CRA");
+        // Unknown ECU headers are rebuilt from its addresses
+        if (sh == null)
+            sh = extended ? String.format("%08X", mTxa).substring(2) : String.format("%03X", mTxa);
+        if (cra == null)
+            cra = String.format(extended ? "%08X" : "%03X", mRxa);
+        if (cp == null && extended)
+            cp = String.format("%08X", mTxa).substring(0, 2);
+
+        writeSetting("AT H1");
+        if (extended) {
+            writeSetting("AT CP " + header.substring(0, 2));
+            writeSetting("AT SH " + header.substring(2));
+            // Physical responses to the tester : 18 DA <tester> <ECU>
+            writeSetting("AT CRA 18DA" + header.substring(6) + "XX");
         } else {
-            // Decode received ISO_TP data
-            IsoTPDecode isotpdec = new IsoTPDecode(responses);
-            result = isotpdec.decodeCan();
+            writeSetting("AT SH " + header);
+            writeSetting("AT CRA 7XX");
         }
+        writeSetting(String.format("AT ST %02X", mTimeOutCeiling));
+        writeSetting("AT AT 0");
 
+        String line;
         try {
-            if (mLogFile != null) {
-                mLogFile.append("CAN SENT: ").append(getTimeStamp()).append(message).append("\n");
-                mLogFile.append("CAN RECV: ").append(getTimeStamp()).append(result).append("\n");
+            line = IsoTpCodec.formatFrame(IsoTpCodec.encode(payload).get(0));
+        } catch (IsoTpException e) {
+            responses.put(header, "ERROR : " + e.getMessage());
+            postBroadcast(request, responses);
+            return;
+        }
+
+        String reply = sendRaw(line);
+        mElmState.checkResponse(reply);
+        CanBroadcastCollector collector = new CanBroadcastCollector(extended);
+        collector.pushReply(line, reply);
+        for (Map.Entry<Integer, byte[]> response : collector.getResponses().entrySet())
+            responses.put(String.format(extended ? "%08X" : "%03X", response.getKey()),
+                    IsoTpCodec.formatFrame(response.getValue()));
+        for (Map.Entry<Integer, String> error : collector.getErrors().entrySet())
+            responses.put(String.format(extended ? "%08X" : "%03X", error.getKey()),
+                    "ERROR : " + error.getValue());
+        if (responses.isEmpty()) {
+            String errors = collector.getAdapterErrors();
+            responses.put(header, "ERROR : " + (errors.isEmpty() ? "NO DATA" : errors));
+        }
+
+        writeSetting("AT H0");
+        if (cp != null)
+            writeSetting("AT CP " + cp);
+        writeSetting("AT SH " + sh);
+        writeSetting("AT CRA " + cra);
+
+        if (mLogFile != null) {
+            mLogFile.log("CAN BROADCAST SENT: ", header + " " + request);
+            for (Map.Entry<String, String> response : responses.entrySet())
+                mLogFile.log("CAN BROADCAST RECV: ", response.getKey() + " " + response.getValue());
+        }
+        postBroadcast(request, responses);
+    }
+
+    /*
+     * Headers on, monitor (STN filters or AT CF/CM), frames parsed as they
+     * are read. An adapter stopping on buffer full is started again.
+     */
+    private void runMonitor(int filter, int mask) {
+        if (!mProtocol.equals("CAN") || !mMonitoring)
+            return;
+        boolean extended = filter > 0x7FF || mask > 0x7FF || mRxa > 0x7FF;
+        String format = extended ? "%08X" : "%03X";
+        String cra = mElmState.getValue("CRA");
+
+        writeSetting("AT H1");
+        writeSetting("AT D0");
+        String start;
+        if (mStnAdapter) {
+            sendRaw("STFCP");
+            if (mask != 0) {
+                sendRaw("STFAP " + String.format(format, filter) + "," + String.format(format, mask));
+                start = "STM";
+            } else {
+                start = "STMA";
             }
-        } catch (IOException e) {
-            logInfo("Log error : " + e.getMessage());
-            e.printStackTrace();
+        } else {
+            writeSetting("AT CF " + String.format(format, filter));
+            writeSetting("AT CM " + String.format(format, mask));
+            start = "AT MA";
         }
 
-        result = message + ";" + result;
-        int result_length = result.length();
-        byte[] tmpbuf = new byte[result_length];
-        //Make copy for not to rewrite in other thread
-        System.arraycopy(result.getBytes(), 0, tmpbuf, 0, result_length);
+        ElmMonitorParser parser = new ElmMonitorParser(mMonitorRing, extended);
+        byte[] buffer = new byte[MONITOR_BUFFER_SIZE];
+        int restarts = 0;
+        sendCommand(start);
+        while (mMonitoring && mRunningStatus) {
+            int count = receiveBytes(buffer, MONITOR_READ_TIMEOUT);
+            if (count < 0)
+                break;
+            if (count > 0 && parser.feed(buffer, 0, count, System.currentTimeMillis())) {
+                // BUFFER FULL, too much traffic for the link
+                ++restarts;
+                parser.reset();
+                sendCommand(start);
+            }
+            mMonitorRing.publish();
+        }
+        // Any character stops the monitoring
+        sendCommand("");
+        mElmState.checkResponse(receiveReply(ElmPipeline.DEFAULT_READ_TIMEOUT));
+        mMonitorRing.publish();
+
+        // Receive filter of the ECU back
+        String command = cra != null ? "AT CRA " + cra
+                : mRxa > 0 ? "AT CRA " + String.format(format, mRxa) : "AT AR";
+        mElmState.update(command, sendRaw(command));
+        writeSetting("AT H0");
+        logInfo("Monitor : " + parser.getFrameCount() + " frames, " + parser.getErrorCount()
+                + " bad lines, " + restarts + " restarts");
+    }
+
+    private void postBroadcast(String request, HashMap<String, String> responses) {
         synchronized (this) {
             if (mConnectionHandler != null) {
-                mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_READ, result_length, -1, tmpbuf).sendToTarget();
+                Message msg = mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_BROADCAST, responses);
+                Bundle bundle = new Bundle();
+                bundle.putString(ScreenActivity.BROADCAST_REQUEST, request);
+                msg.setData(bundle);
+                mConnectionHandler.sendMessage(msg);
             }
         }
     }
 
-    public synchronized void write(String out) {
+    public void write(String out) {
         mMessages.add(out);
     }
 
+    /*
+     * Queues out in a lane of ElmCommandQueue
+     */
+    public void write(String out, int lane) {
+        mMessages.add(out, lane);
+    }
+
     public void setEcuName(String name){
-        if (mLogFile != null){
-            try {
-                mLogFile.append("New session with ECU ").append(name).append("\n");
-            } catch (IOException e){
-                e.printStackTrace();
-            }
-        }
+        if (mLogFile != null)
+            mLogFile.logRaw("New session with ECU ", name);
     }
 }
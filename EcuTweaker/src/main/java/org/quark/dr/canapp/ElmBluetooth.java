@@ -133,13 +133,29 @@ public class ElmBluetooth extends ElmBase {
         return mConnectedThread.write(raw_buffer);
     }
 
+    @Override
+    protected void writeCommand(String raw_buffer) {
+        raw_buffer += "\r";
+        mConnectedThread.writeToElm(raw_buffer);
+    }
+
+    @Override
+    protected String readReply(long timeoutMs) {
+        return mConnectedThread.readFromElm(timeoutMs);
+    }
+
+    @Override
+    protected int readBytes(byte[] buffer, long timeoutMs) {
+        return mConnectedThread.readBytes(buffer, timeoutMs);
+    }
+
     private void connectionFailed() {
         logInfo("Bluetooth connection failed");
         setState(STATE_NONE);
     }
 
     private void connectionLost() {
-        mRunningStatus = false;
+        stopRunning();
         logInfo("Bluetooth connection lost");
         setState(STATE_DISCONNECTED);
     }
@@ -254,7 +270,7 @@ public class ElmBluetooth extends ElmBase {
         }
 
         public void cancel() {
-            mRunningStatus = false;
+            stopRunning();
             interrupt();
             mMessages.clear();
             try {
@@ -273,7 +289,13 @@ public class ElmBluetooth extends ElmBase {
         }
 
         private String write(String raw_buffer) {
-            byte[] reply_buffer = new byte[4096];
+            if (!writeToElm(raw_buffer))
+                return "ERROR : DISCONNECTED";
+            String reply = readFromElm(0);
+            return reply == null ? "ERROR : UNKNOWN" : reply;
+        }
+
+        private boolean writeToElm(String raw_buffer) {
             try {
                 mmOutStream.write(raw_buffer.getBytes());
             } catch (IOException e) {
@@ -284,13 +306,54 @@ public class ElmBluetooth extends ElmBase {
                 } catch (IOException ioe){
 
                 }
-                return "ERROR : DISCONNECTED";
+                return false;
             }
+            return true;
+        }
+
+        /*
+         * Monitor mode, what the adapter sent, 0 after timeoutMs, -1 if lost
+         */
+        private int readBytes(byte[] buffer, long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            try {
+                // Bluetooth streams have no read timeout
+                while (mmInStream.available() == 0) {
+                    if (System.currentTimeMillis() > deadline)
+                        return 0;
+                    Thread.sleep(2);
+                }
+                int count = mmInStream.read(buffer, 0, Math.min(buffer.length, mmInStream.available()));
+                if (count < 0)
+                    connectionLost();
+                return count;
+            } catch (IOException e) {
+                connectionLost();
+                return -1;
+            } catch (InterruptedException e) {
+                return -1;
+            }
+        }
+
+        /*
+         * Null if no prompt after timeoutMs, 0 waits forever
+         */
+        private String readFromElm(long timeoutMs) {
+            byte[] reply_buffer = new byte[4096];
+            long deadline = System.currentTimeMillis() + timeoutMs;
 
             // Wait ELM response
             int u = -1;
             while (true) {
                 try {
+                    // Bluetooth streams have no read timeout
+                    if (timeoutMs > 0 && mmInStream.available() == 0) {
+                        if (System.currentTimeMillis() > deadline)
+                            return null;
+                        Thread.sleep(2);
+                        continue;
+                    }
+
                     // Read from the InputStream
                     u = u + 1;
                     int bytes = mmInStream.read(reply_buffer, u, 1);
@@ -309,9 +372,11 @@ public class ElmBluetooth extends ElmBase {
                 } catch (IOException e) {
                     connectionLost();
                     break;
+                } catch (InterruptedException e) {
+                    break;
                 }
             }
-            return "ERROR : UNKNOWN";
+            return null;
         }
     }
 }
@@ -0,0 +1,195 @@
+package org.quark.dr.canapp;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+import org.quark.dr.ecu.SessionReplay;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Adapter played back from a session recording (ElmBase.startRecording),
+ * no car or adapter needed. connect takes the recording path.
+ * In real time the replies come with their recorded delays, otherwise as
+ * fast as possible, to profile the decoding and the screens.
+ */
+public class ElmReplay extends ElmBase {
+    private String mRecordingPath = "";
+    private volatile boolean mRealTime = true;
+    private volatile SessionReplay mReplay;
+    private boolean mFinishReported;
+    private ConnectThread mConnectThread;
+    private Thread mConnectedThread;
+
+    protected ElmReplay(Handler handler, String logDir) {
+        super(handler, logDir);
+    }
+
+    @Override
+    public int getMode() {
+        return MODE_REPLAY;
+    }
+
+    /*
+     * False : replies at once
+     */
+    public void setRealTime(boolean realTime) {
+        mRealTime = realTime;
+        SessionReplay replay = mReplay;
+        if (replay != null)
+            replay.setRealTime(realTime);
+    }
+
+    @Override
+    public boolean connect(String address) {
+        if (!address.isEmpty())
+            mRecordingPath = address;
+
+        disconnect();
+        File file = new File(mRecordingPath);
+        if (!file.exists()) {
+            logInfo("Session recording not found : " + mRecordingPath);
+            setState(STATE_DISCONNECTED);
+            return false;
+        }
+
+        setState(STATE_CONNECTING);
+        mConnecting = true;
+        mConnectThread = new ConnectThread(file);
+        mConnectThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean reconnect() {
+        return connect(mRecordingPath);
+    }
+
+    @Override
+    public void disconnect() {
+        if (mConnectThread != null) {
+            joinThread(mConnectThread);
+            mConnectThread = null;
+        }
+
+        stopRunning();
+        if (mConnectedThread != null) {
+            mConnectedThread.interrupt();
+            joinThread(mConnectedThread);
+            mConnectedThread = null;
+        }
+        mReplay = null;
+
+        clearMessages();
+        synchronized (this) {
+            if (mConnectionHandler != null) {
+                mConnectionHandler.removeCallbacksAndMessages(null);
+            }
+        }
+        mConnecting = false;
+        setState(STATE_NONE);
+    }
+
+    private static void joinThread(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkFinished(SessionReplay replay) {
+        if (!mFinishReported && replay.isFinished()) {
+            mFinishReported = true;
+            logInfo("Replay finished : " + replay.getRecordCount() + " records, "
+                    + replay.getSkippedCount() + " skipped, " + replay.getUnmatchedCount() + " not recorded");
+        }
+    }
+
+    @Override
+    protected String writeRaw(String raw_buffer) {
+        SessionReplay replay = mReplay;
+        if (replay == null)
+            return "";
+        String reply = replay.exchange(raw_buffer);
+        checkFinished(replay);
+        return reply;
+    }
+
+    @Override
+    protected void writeCommand(String raw_buffer) {
+        SessionReplay replay = mReplay;
+        if (replay != null)
+            replay.write(raw_buffer);
+    }
+
+    @Override
+    protected String readReply(long timeoutMs) {
+        SessionReplay replay = mReplay;
+        if (replay == null)
+            return null;
+        String reply = replay.read(timeoutMs);
+        checkFinished(replay);
+        return reply;
+    }
+
+    @Override
+    protected int readBytes(byte[] buffer, long timeoutMs) {
+        SessionReplay replay = mReplay;
+        if (replay == null)
+            return -1;
+        return replay.readBytes(buffer, timeoutMs);
+    }
+
+    /*
+     * Loads the recording, then runs the worker loop
+     */
+    private class ConnectThread extends Thread {
+        private final File mFile;
+
+        ConnectThread(File file) {
+            mFile = file;
+        }
+
+        public void run() {
+            SessionReplay replay;
+            try (InputStream in = new FileInputStream(mFile)) {
+                replay = new SessionReplay(SessionReplay.read(in));
+            } catch (IOException e) {
+                logInfo("Session recording error : " + e.getMessage());
+                e.printStackTrace();
+                mConnecting = false;
+                setState(STATE_DISCONNECTED);
+                return;
+            }
+            replay.setRealTime(mRealTime);
+            mReplay = replay;
+            mFinishReported = false;
+            logInfo("Replaying " + mFile.getName() + " : " + replay.getRecordCount() + " records");
+
+            synchronized (ElmReplay.this) {
+                if (mConnectionHandler != null) {
+                    Message msg = mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_DEVICE_NAME);
+                    Bundle bundle = new Bundle();
+                    bundle.putString(ScreenActivity.DEVICE_NAME, "Replay " + mFile.getName());
+                    msg.setData(bundle);
+                    mConnectionHandler.sendMessage(msg);
+                }
+            }
+
+            clearMessages();
+            mConnectedThread = new Thread() {
+                public void run() {
+                    connectedThreadMainLoop();
+                }
+            };
+            mConnectedThread.start();
+            mConnecting = false;
+            setState(STATE_CONNECTED);
+        }
+    }
+}
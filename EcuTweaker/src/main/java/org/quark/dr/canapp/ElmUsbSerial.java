@@ -133,10 +133,26 @@ public class ElmUsbSerial extends ElmBase {
         return mConnectedThread.write(raw_buffer.getBytes());
     }
 
+    @Override
+    protected void writeCommand(String raw_buffer) {
+        raw_buffer += "\r";
+        mConnectedThread.writeToElm(raw_buffer.getBytes());
+    }
+
+    @Override
+    protected String readReply(long timeoutMs) {
+        return mConnectedThread.readFromElm(timeoutMs);
+    }
+
+    @Override
+    protected int readBytes(byte[] buffer, long timeoutMs) {
+        return mConnectedThread.readBytes(buffer, timeoutMs);
+    }
+
     private void connectionLost(String message) {
         // Send a failure message back to the Activity;
         logInfo("USB device connection was lost : " + message);
-        mRunningStatus = false;
+        stopRunning();
         setState(STATE_DISCONNECTED);
     }
 
@@ -147,6 +163,8 @@ public class ElmUsbSerial extends ElmBase {
      */
     private class ConnectedThread extends Thread {
         private final UsbSerialPort mUsbSerialPort;
+        // Received after the last prompt
+        private final StringBuilder mPending = new StringBuilder();
 
         public ConnectedThread(UsbSerialPort usbSerialPort) {
             mUsbSerialPort = usbSerialPort;
@@ -178,16 +196,58 @@ public class ElmUsbSerial extends ElmBase {
             }
         }
 
+        /*
+         * Monitor mode, what the adapter sent, 0 after timeoutMs, -1 if lost
+         */
+        public int readBytes(byte[] buffer, long timeoutMs) {
+            if (mPending.length() > 0) {
+                int count = Math.min(buffer.length, mPending.length());
+                for (int i = 0; i < count; ++i)
+                    buffer[i] = (byte) mPending.charAt(i);
+                mPending.delete(0, count);
+                return count;
+            }
+            if (mUsbSerialPort == null)
+                return -1;
+            try {
+                return Math.max(0, mUsbSerialPort.read(buffer, (int) Math.max(1, timeoutMs)));
+            } catch (IOException e) {
+                logInfo("USB read IO exception : " + e.getMessage());
+                return 0;
+            } catch (Exception e) {
+                connectionLost("USB read exception (closing) : " + e.getMessage());
+                return -1;
+            }
+        }
+
         public String readFromElm() {
-            StringBuilder final_res = new StringBuilder();
+            String reply = readFromElm(0);
+            return reply == null ? "" : reply;
+        }
+
+        /*
+         * Null if no prompt after timeoutMs, 0 waits (connection lost
+         * after 4 s of silence). Pipelined replies can come in the same
+         * USB packet, what follows the prompt is kept for the next call.
+         */
+        public String readFromElm(long timeoutMs) {
+            long start = System.currentTimeMillis();
+            byte[] bytes = new byte[2048];
             while (true) {
-                byte[] bytes = new byte[2048];
+                // Only break when ELM has sent termination char
+                int prompt = mPending.indexOf(">");
+                if (prompt >= 0) {
+                    String res = prompt > 1 ? mPending.substring(0, prompt - 1) : "";
+                    mPending.delete(0, prompt + 1);
+                    return res.replaceAll("\r", "\n");
+                }
+
                 int bytes_count = 0;
                 long millis =System.currentTimeMillis();
                 if(mUsbSerialPort != null)
                 {
                     try {
-                        bytes_count = mUsbSerialPort.read(bytes, 1500);
+                        bytes_count = mUsbSerialPort.read(bytes, timeoutMs > 0 ? (int) timeoutMs : 1500);
                     } catch (IOException e){
                         logInfo("USB read IO exception : " + e.getMessage());
                         bytes_count = 0;
@@ -199,24 +259,8 @@ public class ElmUsbSerial extends ElmBase {
                     }
 
                     if (bytes_count > 0){
-                        boolean eof = false;
-                        String res = new String(bytes, 0, bytes_count);
-                        res = res.substring(0, bytes_count);
-
-                        if(res.length() > 0) {
-                            // Only break when ELM has sent termination char
-                            if (res.charAt(res.length() - 1) == '>') {
-                                if (res.length() > 2)
-                                    res = res.substring(0, res.length() - 2);
-                                else
-                                    res = "";
-                                eof = true;
-                            }
-                            res = res.replaceAll("\r", "\n");
-                            final_res.append(res);
-                            if (eof)
-                                break;
-                        }
+                        mPending.append(new String(bytes, 0, bytes_count));
+                        continue;
                     } else {
                         try {
                             Thread.sleep(5);
@@ -224,6 +268,8 @@ public class ElmUsbSerial extends ElmBase {
 
                         }
                     }
+                    if (timeoutMs > 0 && (System.currentTimeMillis() - start) > timeoutMs)
+                        return null;
                     if ((System.currentTimeMillis() - millis) > 4000){
                         connectionLost("USB read : Timeout");
                         break;
@@ -231,11 +277,13 @@ public class ElmUsbSerial extends ElmBase {
 
                 }
             }
-            return final_res.toString();
+            String res = mPending.toString().replaceAll("\r", "\n");
+            mPending.setLength(0);
+            return res;
         }
 
         public void cancel() {
-            mRunningStatus = false;
+            stopRunning();
             interrupt();
 
             try {
@@ -8,9 +8,9 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import org.quark.dr.ecu.ElmSocket;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 
@@ -34,7 +34,7 @@ public class ElmWifi extends ElmBase{
     private void connectionLost(String message) {
         // Send a failure message back to the Activity;
         logInfo("Wifi device connection was lost : " + message);
-        mRunningStatus = false;
+        stopRunning();
         setState(STATE_DISCONNECTED);
     }
 
@@ -136,54 +136,62 @@ public class ElmWifi extends ElmBase{
 
     @Override
     protected String writeRaw(String raw_buffer) {
-        raw_buffer += "\r";
-        return mConnectedThread.write(raw_buffer.getBytes());
+        return mConnectedThread.write(raw_buffer);
+    }
+
+    @Override
+    protected void writeCommand(String raw_buffer) {
+        mConnectedThread.writeToElm(raw_buffer);
+    }
+
+    @Override
+    protected String readReply(long timeoutMs) {
+        return mConnectedThread.readFromElm(timeoutMs);
+    }
+
+    @Override
+    protected int readBytes(byte[] buffer, long timeoutMs) {
+        return mConnectedThread.readBytes(buffer, timeoutMs);
     }
 
 
     /*
      * Connected thread class
-     * Asynchronously manage ELM connection
+     * Asynchronously manage ELM connection, the exchanges are done by
+     * ElmSocket
      *
      */
     private class ConnectedThread extends Thread {
         private final Socket mmSocket;
-        private final OutputStream mOutStream;
-        private final InputStream mInStream;
+        private final ElmSocket mElmSocket;
 
         public ConnectedThread(Socket socket) {
             mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+            ElmSocket tmpElmSocket = null;
 
             // Get the Wifi input and output streams
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpElmSocket = new ElmSocket(socket);
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
-            mInStream = tmpIn;
-            mOutStream = tmpOut;
+            mElmSocket = tmpElmSocket;
         }
 
         public void run() {
             connectedThreadMainLoop();
         }
 
-        public String write(byte[] buffer) {
-            writeToElm(buffer);
+        public String write(String command) {
+            writeToElm(command);
             return readFromElm();
         }
 
-        public void writeToElm(byte[] buffer) {
+        public void writeToElm(String command) {
             try {
-                if(mmSocket != null)
-                {
-                    mOutStream.write(buffer);
-                    mOutStream.flush();
-                }
+                if (mElmSocket != null)
+                    mElmSocket.writeCommand(command);
             } catch (Exception localIOException1) {
                 connectionLost(localIOException1.getMessage());
                 try {
@@ -194,44 +202,43 @@ public class ElmWifi extends ElmBase{
             }
         }
 
+        /*
+         * Monitor mode, what the adapter sent, 0 after timeoutMs, -1 if lost
+         */
+        public int readBytes(byte[] buffer, long timeoutMs) {
+            try {
+                if (mElmSocket == null)
+                    return -1;
+                int count = mElmSocket.readBytes(buffer, timeoutMs);
+                if (count < 0)
+                    connectionLost("WiFi socket closed");
+                return count;
+            } catch (IOException e) {
+                connectionLost(e.getMessage());
+                return -1;
+            }
+        }
+
         public String readFromElm() {
-            while (true) {
-                try {
-                    if(mmSocket != null)
-                    {
-                        byte b;
-                        StringBuilder res = new StringBuilder();
-                        int charCount = 0;
-                        while ((char) (b = (byte) mInStream.read()) != '>') {
-                            if (++charCount > 32768){
-                                try {
-                                    mmSocket.close();
-                                } catch (IOException e){
-
-                                }
-                                connectionLost("WiFi Socket overflow");
-                                return "";
-                            }
-                            if (b == 0x0d)
-                                b = 0x0a;
-                            res.append((char) b);
-                        }
-                        return res.toString();
-                    }
+            String reply = readFromElm(0);
+            return reply == null ? "" : reply;
+        }
 
-                } catch (IOException localIOException) {
-                    connectionLost(localIOException.getMessage());
-                    break;
-                } catch (Exception e) {
-                    connectionLost(e.getMessage());
-                    break;
-                }
+        /*
+         * Null if the adapter is silent for timeoutMs, 0 waits forever
+         */
+        public String readFromElm(long timeoutMs) {
+            try {
+                if (mElmSocket != null)
+                    return mElmSocket.read(timeoutMs);
+            } catch (Exception e) {
+                connectionLost(e.getMessage());
             }
             return "";
         }
 
         public void cancel() {
-            mRunningStatus = false;
+            stopRunning();
             interrupt();
 
             try {
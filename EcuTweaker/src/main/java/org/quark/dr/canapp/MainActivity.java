@@ -20,6 +20,8 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.provider.Settings;
+import android.text.Editable;
+import android.text.TextWatcher;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
@@ -35,14 +37,20 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import org.quark.dr.ecu.AndroidEcuDatabase;
 import org.quark.dr.ecu.Ecu;
 import org.quark.dr.ecu.EcuDatabase;
+import org.quark.dr.ecu.EcuSearchIndex;
+import org.quark.dr.ecu.ElmCommandQueue;
+import org.quark.dr.ecu.LogArchive;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -50,17 +58,21 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import static org.quark.dr.canapp.ElmBase.MODE_BT;
+import static org.quark.dr.canapp.ElmBase.MODE_REPLAY;
 import static org.quark.dr.canapp.ElmBase.MODE_USB;
 import static org.quark.dr.canapp.ElmBase.MODE_WIFI;
 import static org.quark.dr.canapp.ElmBluetooth.STATE_CONNECTED;
@@ -104,9 +116,12 @@ public class MainActivity extends AppCompatActivity {
 
     public static String mLastLog;
     private EcuDatabase mEcuDatabase;
+    private EcuSearchIndex mEcuSearchIndex;
+    private BuildSearchIndexTask mBuildSearchIndexTask;
     private TextView mStatusView;
     private Button mBtButton;
     private ImageButton mLinkChooser;
+    private Button mRecordButton;
     private ImageView mBtIconImage;
     private ListView mEcuListView, mSpecificEcuListView;
     private ArrayList<EcuDatabase.EcuInfo> mCurrentEcuInfoList;
@@ -251,6 +266,17 @@ public class MainActivity extends AppCompatActivity {
             return true;
         });
 
+        Button copyLogButton = findViewById(R.id.copyLogButton);
+        copyLogButton.setOnClickListener(v -> copyLogs());
+
+        // Long press : replay a recording instead of the adapter
+        mRecordButton = findViewById(R.id.recordButton);
+        mRecordButton.setOnClickListener(v -> toggleRecording());
+        mRecordButton.setOnLongClickListener(v -> {
+            chooseRecording();
+            return true;
+        });
+
         mScanButton.setOnClickListener(v -> onScanBus());
 
         mBtButton.setOnClickListener(v -> selectDevice());
@@ -283,6 +309,9 @@ public class MainActivity extends AppCompatActivity {
 
         mChooseProjectButton.setOnClickListener(v -> chooseProject());
 
+        ImageButton searchButton = findViewById(R.id.searchButton);
+        searchButton.setOnClickListener(v -> search());
+
         mLinkChooser.setOnClickListener(v -> {
             if (mLinkMode == LINK_WIFI) {
                 mLinkMode = LINK_BLUETOOTH;
@@ -298,7 +327,7 @@ public class MainActivity extends AppCompatActivity {
         mBtDeviceAddress = defaultPrefs.getString(PREF_DEVICE_ADDRESS, "");
         mUsbSerialNumber = defaultPrefs.getString(PREF_DEVICE_USBSERIAL, "");
 
-        mEcuDatabase = new EcuDatabase();
+        mEcuDatabase = new AndroidEcuDatabase();
         mEcuIdentifierNew = mEcuDatabase.new EcuIdentifierNew();
 
         askStorageReadPermission();
@@ -311,8 +340,12 @@ public class MainActivity extends AppCompatActivity {
         /*
          * First disconnect chat
          */
-        if (mObdDevice != null)
+        if (mObdDevice != null) {
             mObdDevice.disconnect();
+            // Back to the adapter of the link
+            if (mObdDevice.getMode() == MODE_REPLAY)
+                mObdDevice = null;
+        }
 
         SharedPreferences defaultPrefs = this.getSharedPreferences(DEFAULT_PREF_TAG, MODE_PRIVATE);
         SharedPreferences.Editor edit = defaultPrefs.edit();
@@ -374,6 +407,10 @@ public class MainActivity extends AppCompatActivity {
 
     private void connectDevice() {
         if (mObdDevice != null){
+            // A replay is only started by the user
+            if (mObdDevice.getMode() == MODE_REPLAY)
+                return;
+
             if ((mObdDevice.getMode() == MODE_BT) && (mLinkMode == LINK_BLUETOOTH)){
                 if (mBtDeviceAddress.isEmpty())
                     return;
@@ -420,6 +457,8 @@ public class MainActivity extends AppCompatActivity {
             mObdDevice = ElmBase.createSerialSingleton(getApplicationContext(), mHandler, filesDir);
             mObdDevice.connect(mUsbSerialNumber);
         }
+        // The recording of the previous singleton is stopped
+        runOnUiThread(this::updateRecordButton);
 
         try {
             if (!mObdDevice.hasDevicePermission()) {
@@ -626,6 +665,10 @@ public class MainActivity extends AppCompatActivity {
     }
 
     void startScreen(String ecuFile, String ecuHREFName){
+        startScreen(ecuFile, ecuHREFName, null);
+    }
+
+    void startScreen(String ecuFile, String ecuHREFName, String screenName){
         stopConnectionTimer();
 
         if (mEcuDatabase == null){
@@ -644,6 +687,8 @@ public class MainActivity extends AppCompatActivity {
             b.putString("deviceAddress", mBtDeviceAddress);
             b.putBoolean("licenseOk", mLicenseLock.isLicenseOk());
             b.putInt("linkMode", mLinkMode);
+            if (screenName != null)
+                b.putString("screenName", screenName);
             serverIntent.putExtras(b);
             startActivityForResult(serverIntent, REQUEST_SCREEN);
         } catch (android.content.ActivityNotFoundException e) {
@@ -776,6 +821,7 @@ public class MainActivity extends AppCompatActivity {
     {
         super.onDestroy();
         stopConnectionTimer();
+        stopSearchIndex();
         if (mObdDevice != null) {
             mObdDevice.disconnect();
             mObdDevice.closeLogFile();
@@ -798,6 +844,7 @@ public class MainActivity extends AppCompatActivity {
             mObdDevice.changeHandler(mHandler);
             mObdDevice.setSessionActive(false);
         }
+        updateRecordButton();
         startConnectionTimer();
     }
 
@@ -856,6 +903,8 @@ public class MainActivity extends AppCompatActivity {
             ecuFile = defaultPrefs.getString(PREF_ECUZIPFILE, "");
         }
         mStatusView.setText(getResources().getString(R.string.INDEXING_DB));
+        // Rebuilt once the database is loaded, the tasks run one at a time
+        stopSearchIndex();
         new LoadDbTask().execute(ecuFile);
     }
 
@@ -920,8 +969,123 @@ public class MainActivity extends AppCompatActivity {
                 title = "ECU-TWEAKER v" + BuildConfig.VERSION_NAME + "\nCode: " + code;
                 mStatusView.setText(title);
                 mLogView.append("Loaded vehicle Code : " + code + " Name: " + name +"\n");
+                String appDir = getApplicationContext().getFilesDir().getAbsolutePath();
+                mEcuSearchIndex = new EcuSearchIndex(mEcuDatabase, appDir);
+                mBuildSearchIndexTask = new BuildSearchIndexTask(this, mEcuSearchIndex);
+                mBuildSearchIndexTask.execute();
+            }
+        }
+    }
+
+    /*
+     * Stops the index build, what is built so far is saved
+     */
+    private void stopSearchIndex() {
+        if (mBuildSearchIndexTask != null) {
+            mBuildSearchIndexTask.cancel(false);
+            mBuildSearchIndexTask = null;
+        }
+        mEcuSearchIndex = null;
+    }
+
+    /*
+     * Build the search index in background, a few ECUs at a time
+     * The index is saved periodically, when complete and when cancelled,
+     * so the work resumes at next start
+     * Static, the activity may be destroyed before the end
+     */
+    private static class BuildSearchIndexTask extends AsyncTask<Void, Void, Integer> {
+        private final WeakReference<MainActivity> mActivity;
+        private final EcuSearchIndex mIndex;
+
+        BuildSearchIndexTask(MainActivity activity, EcuSearchIndex index) {
+            mActivity = new WeakReference<>(activity);
+            mIndex = index;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            mIndex.load();
+            while (!isCancelled() && mIndex.indexNext(20) > 0) {
+                // Continue until all ECUs are indexed
+            }
+            if (isCancelled())
+                mIndex.save();
+            return mIndex.getDocumentCount();
+        }
+
+        @Override
+        protected void onPostExecute(Integer documentCount) {
+            MainActivity activity = mActivity.get();
+            if (activity != null && !activity.isFinishing())
+                activity.mLogView.append("Search index ready (" + documentCount + " entries)\n");
+        }
+    }
+
+    private void search(){
+        if (mEcuSearchIndex == null || mEcuFilePath == null)
+            return;
+        // The database may be reloaded while the dialog is open
+        final EcuSearchIndex index = mEcuSearchIndex;
+
+        final ArrayList<EcuSearchIndex.SearchHit> hits = new ArrayList<>();
+        final ArrayList<String> hitNames = new ArrayList<>();
+        final ArrayAdapter<String> adapter = new ArrayAdapter<>(this,
+                android.R.layout.simple_list_item_1, hitNames);
+
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        EditText searchText = new EditText(this);
+        searchText.setSingleLine();
+        searchText.setHint(getResources().getString(R.string.SEARCH));
+        ListView resultView = new ListView(this);
+        resultView.setAdapter(adapter);
+        layout.addView(searchText);
+        layout.addView(resultView);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getResources().getString(R.string.SEARCH));
+        builder.setView(layout);
+        final AlertDialog dialog = builder.create();
+
+        searchText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                List<EcuSearchIndex.SearchHit> result = index.search(s.toString(), 100);
+                hits.clear();
+                hits.addAll(result);
+                hitNames.clear();
+                for (EcuSearchIndex.SearchHit hit : result) {
+                    hitNames.add(hit.toString());
+                }
+                if (hits.isEmpty() && s.length() > 1) {
+                    hitNames.add(getResources().getString(R.string.SEARCH_NO_RESULT));
+                }
+                adapter.notifyDataSetChanged();
             }
+        });
+
+        resultView.setOnItemClickListener((parent, view, position, id) -> {
+            if (position >= hits.size())
+                return;
+            EcuSearchIndex.SearchHit hit = hits.get(position);
+            dialog.dismiss();
+            startScreen(mEcuFilePath, hit.ecuHref, hit.screen);
+        });
+
+        if (!index.isComplete()) {
+            Toast.makeText(this, getResources().getString(R.string.SEARCH_INDEXING),
+                    Toast.LENGTH_SHORT).show();
         }
+        dialog.show();
     }
 
     private void displayHelp(){
@@ -978,7 +1142,8 @@ public class MainActivity extends AppCompatActivity {
         if (results.length < 2){
             return;
         }
-        if (results[1].isEmpty() || results[0].substring(0,2).equalsIgnoreCase("AT")){
+        if (results[1].isEmpty()
+                || ElmCommandQueue.defaultLane(results[0]) == ElmCommandQueue.LANE_CONFIGURATION){
             return;
         }
 
@@ -1182,37 +1347,130 @@ public class MainActivity extends AppCompatActivity {
         return "[" + new SimpleDateFormat("dd-MM-hh:mm:ss").format(new Date()) + "] ";
     }
 
-    public void copyLogs() throws IOException {
-        if (mObdDevice != null)
-            mObdDevice.flushLogs();
-
+    public void copyLogs() {
         if (ContextCompat.checkSelfPermission(this,
                 Manifest.permission.WRITE_EXTERNAL_STORAGE)
                 == PackageManager.PERMISSION_GRANTED) {
-            String logSrc = getApplicationContext().getFilesDir().getAbsolutePath() + "/log.txt";
-            String logFilename = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS) + "/logs_" + getTimeStamp() + ".txt";
-            File src = new File(logSrc);
-            File dst = new File(logFilename);
-            try (InputStream in = new FileInputStream(src)) {
-                try (OutputStream out = new FileOutputStream(dst)) {
-                    // Transfer bytes from in to out
-                    byte[] buf = new byte[1024];
-                    int len;
-                    while ((len = in.read(buf)) > 0) {
-                        out.write(buf, 0, len);
+            new CopyLogsTask().execute();
+        } else {
+            Toast.makeText(this,
+                    "You need write storage permission",
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /*
+     * Flushes the log writer and exports the logs in background,
+     * both wait for the disk
+     */
+    public class CopyLogsTask extends AsyncTask<Void, Void, String> {
+        @Override
+        protected String doInBackground(Void... params) {
+            if (mObdDevice != null)
+                mObdDevice.flushLogs();
+
+            // Newest archived segments and the active log, one gzip file
+            LogArchive archive = ElmBase.getLogArchive(getApplicationContext().getFilesDir().getAbsolutePath());
+            String logFilename = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS) + "/logs_" + getTimeStamp() + ".txt.gz";
+            try {
+                archive.export(new File(logFilename), LogArchive.DEFAULT_EXPORT_BYTES);
+                // Session recordings, as is
+                File[] recordings = getRecordingDir().listFiles();
+                if (recordings != null) {
+                    File downloads = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+                    for (File recording : recordings) {
+                        File copy = new File(downloads, recording.getName());
+                        if (copy.length() != recording.length())
+                            copyFile(recording, copy);
                     }
                 }
-                Toast.makeText(this,
+            } catch (IOException e) {
+                return e.getMessage();
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(String error) {
+            if (error == null) {
+                Toast.makeText(MainActivity.this,
                         "Logs copied to your Download directory",
                         Toast.LENGTH_SHORT).show();
-            } catch (IOException e) {
-                mLogView.append("Error copying logs : " + e.getMessage() + "\n");
+            } else {
+                mLogView.append("Error copying logs : " + error + "\n");
             }
+        }
+    }
+
+    private static void copyFile(File source, File destination) throws IOException {
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new FileOutputStream(destination)) {
+            byte[] buffer = new byte[65536];
+            int count;
+            while ((count = in.read(buffer)) > 0)
+                out.write(buffer, 0, count);
+        }
+    }
+
+    /*
+     * Session recordings (ElmBase.startRecording), played back by ElmReplay
+     */
+    private File getRecordingDir() {
+        return new File(getApplicationContext().getFilesDir(), "recordings");
+    }
+
+    private void updateRecordButton() {
+        boolean recording = mObdDevice != null && mObdDevice.isRecording();
+        mRecordButton.setText(recording ? R.string.STOP_RECORD : R.string.RECORD);
+    }
+
+    private void toggleRecording() {
+        if (mObdDevice == null)
+            return;
+        if (mObdDevice.isRecording()) {
+            mObdDevice.stopRecording();
         } else {
-            Toast.makeText(this,
-                    "You need write storage permission",
+            File directory = getRecordingDir();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                mLogView.append("Cannot create " + directory + "\n");
+                return;
+            }
+            String name = "session-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                    .format(new Date()) + ".rec";
+            mObdDevice.startRecording(new File(directory, name));
+        }
+        updateRecordButton();
+    }
+
+    private void chooseRecording() {
+        File[] files = getRecordingDir().listFiles();
+        if (files == null || files.length == 0) {
+            Toast.makeText(this, getResources().getString(R.string.NO_RECORDING),
                     Toast.LENGTH_SHORT).show();
+            return;
         }
+        // Newest first
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        final String[] names = new String[files.length];
+        for (int i = 0; i < files.length; ++i)
+            names[i] = files[i].getName();
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getResources().getString(R.string.REPLAY));
+        builder.setItems(names, (dialog, which) -> startReplay(files[which]));
+        builder.create().show();
+    }
+
+    /*
+     * Replaces the adapter by the recording, until the link is changed
+     */
+    private void startReplay(File recording) {
+        if (mObdDevice != null)
+            mObdDevice.disconnect();
+        String filesDir = getApplicationContext().getFilesDir().getAbsolutePath();
+        mObdDevice = ElmBase.createReplaySingleton(mHandler, filesDir);
+        mObdDevice.connect(recording.getAbsolutePath());
+        updateRecordButton();
     }
 
     @Override
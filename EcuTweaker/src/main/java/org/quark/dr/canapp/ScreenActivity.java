@@ -14,7 +14,6 @@ import android.os.Message;
 import android.text.Html;
 import android.text.Spanned;
 import android.text.method.ScrollingMovementMethod;
-import android.util.Pair;
 import androidx.appcompat.app.AppCompatActivity;
 import android.util.Log;
 import android.util.TypedValue;
@@ -40,16 +39,20 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import org.quark.dr.ecu.AndroidEcuDatabase;
 import org.quark.dr.ecu.Ecu;
 import org.quark.dr.ecu.EcuDatabase;
+import org.quark.dr.ecu.ElmCommandQueue;
 import org.quark.dr.ecu.IsoTPDecode;
 import org.quark.dr.ecu.Layout;
+import org.quark.dr.ecu.Pair;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
@@ -103,8 +106,10 @@ public class ScreenActivity extends AppCompatActivity {
     public static final int     MESSAGE_TOAST           = 5;
     public static final int     MESSAGE_QUEUE_STATE     = 6;
     public static final int     MESSAGE_LOG             = 7;
+    public static final int     MESSAGE_BROADCAST       = 8;
     public static final String  DEVICE_NAME = "device_name";
     public static final String  TOAST       = "toast";
+    public static final String  BROADCAST_REQUEST = "broadcast_request";
     private String              mConnectedDeviceName = null;
     private float               mGlobalScale;
     private long                mLastSDSTime;
@@ -131,6 +136,7 @@ public class ScreenActivity extends AppCompatActivity {
         mDemoMode = false;
         String ecuFile = "";
         String ecuHref = "";
+        String screenName = null;
         m_autoReload = false;
         SharedPreferences defaultPrefs = this.getSharedPreferences(MainActivity.DEFAULT_PREF_TAG,
                 MODE_PRIVATE);
@@ -152,6 +158,8 @@ public class ScreenActivity extends AppCompatActivity {
             }
             //mDemoMode =  ! b.getBoolean("licenseOk");
             linkMode = b.getInt("linkMode", MainActivity.LINK_WIFI);
+            // Set when coming from the search dialog
+            screenName = b.getString("screenName");
         } else if (savedInstanceState != null && savedInstanceState.containsKey("ecu_name")){
             ecuFile = savedInstanceState.getString("ecu_name");
         }
@@ -319,7 +327,7 @@ public class ScreenActivity extends AppCompatActivity {
         if (mChatService != null && mChatService.getDB() != null) {
             m_ecuDatabase = mChatService.getDB();
         } else {
-            m_ecuDatabase = new EcuDatabase();
+            m_ecuDatabase = new AndroidEcuDatabase();
             Log.e(TAG, "?? No singleton database, continuing safely");
         }
 
@@ -347,6 +355,10 @@ public class ScreenActivity extends AppCompatActivity {
         if (savedInstanceState != null && savedInstanceState.containsKey("screen_name")){
             m_currentScreenName = savedInstanceState.getString("screen_name");
             drawScreen(m_currentScreenName);
+        } else if (screenName != null && m_currentLayoutData != null
+                && m_currentLayoutData.getScreen(screenName) != null) {
+            m_currentScreenName = screenName;
+            drawScreen(m_currentScreenName);
         } else {
             chooseCategory();
         }
@@ -397,8 +409,8 @@ public class ScreenActivity extends AppCompatActivity {
     void drawScreen(String screenName)
     {
         // In case the user clicked multiple times on zoom button
-        // and there are messages pending
-        mChatService.clearMessages();
+        // and there are display requests pending
+        mChatService.clearMessages(ElmCommandQueue.LANE_POLLING);
 
         m_displayViews = new HashMap<>();
         m_editTextViews = new HashMap<>();
@@ -529,7 +541,7 @@ public class ScreenActivity extends AppCompatActivity {
                 m_layoutView.addView(textView);
             }
 
-            if (m_ecu.getData(inputdata.text).items.size() == 0) {
+            if (m_ecu.getData(inputdata.text).lists.isEmpty()) {
                 EditText textEdit = new EditText(this);
                 textEdit.setX(convertToPixel(inputdata.rect.x + inputdata.width));
                 textEdit.setY(convertToPixel(inputdata.rect.y));
@@ -545,11 +557,7 @@ public class ScreenActivity extends AppCompatActivity {
                 m_editTextViews.put(inputdata.text, textEdit);
                 m_layoutView.addView(textEdit);
             } else {
-                String[] items = new String[m_ecu.getData(inputdata.text).items.size()];
-                int i = 0;
-                for (String item : m_ecu.getData(inputdata.text).items.keySet()){
-                    items[i++] = item;
-                }
+                String[] items = m_ecu.getData(inputdata.text).lists.getNames();
                 Arrays.sort(items);
                 CustomAdapter dataAdapter = new CustomAdapter(this,
                         android.R.layout.simple_spinner_item, items);
@@ -651,7 +659,7 @@ public class ScreenActivity extends AppCompatActivity {
 
         // If autoupdate, we don't want to send diag session every time
         if (System.currentTimeMillis() - mLastSDSTime > 3000) {
-            sendCmd(m_ecu.getDefaultSDS());
+            sendCmd(m_ecu.getDefaultSDS(), ElmCommandQueue.LANE_POLLING);
             mLastSDSTime = System.currentTimeMillis();
         }
 
@@ -661,9 +669,9 @@ public class ScreenActivity extends AppCompatActivity {
         // screen pre-send data
         for (Pair<Integer, String> pair : m_currentScreenData.getPreSendData()){
             if (pair.first > 0)
-                sendDelay(pair.first);
+                sendDelay(pair.first, ElmCommandQueue.LANE_POLLING);
             Ecu.EcuRequest request = m_ecu.getRequest(pair.second);
-            sendCmd(request.sentbytes);
+            sendCmd(request.sentbytes, ElmCommandQueue.LANE_POLLING);
         }
 
         if (m_displaysRequestSet == null)
@@ -681,7 +689,7 @@ public class ScreenActivity extends AppCompatActivity {
             if (BuildConfig.DEBUG)
                 Log.i(TAG, "Send bytes " + Objects.requireNonNull(request).sentbytes);
 
-            sendCmd(Objects.requireNonNull(request).sentbytes);
+            sendCmd(Objects.requireNonNull(request).sentbytes, ElmCommandQueue.LANE_POLLING);
         }
     }
 
@@ -847,10 +855,11 @@ public class ScreenActivity extends AppCompatActivity {
             commands.add(new Pair<>(delay, Ecu.byteArrayToHex(builtStream)));
         }
 
+        // User action, served before the display requests
         for (Pair<Integer, String> command : commands){
             if (command.first > 0)
-                sendDelay(command.first);
-            sendCmd(command.second);
+                sendDelay(command.first, ElmCommandQueue.LANE_INTERACTIVE);
+            sendCmd(command.second, ElmCommandQueue.LANE_INTERACTIVE);
         }
     }
 
@@ -1016,7 +1025,7 @@ public class ScreenActivity extends AppCompatActivity {
         }
     }
 
-    private void sendCmd(String cmd) {
+    private void sendCmd(String cmd, int lane) {
         // Check that we're actually connected before trying anything
         if (!isChatConnected()) {
             m_logView.append(getResources().getString(R.string.FRAME_NOT_SENT) + " : " + cmd + "\n");
@@ -1024,32 +1033,30 @@ public class ScreenActivity extends AppCompatActivity {
         }
 
         // Send command
-        mChatService.write(cmd);
+        mChatService.write(cmd, lane);
     }
 
-    private void sendDelay(int delay) {
+    private void sendDelay(int delay, int lane) {
         if (!isChatConnected()) {
             m_logView.append(getResources().getString(R.string.NO_CHAT_SESSION) + "\n");
             return;
         }
 
         // Send command
-        mChatService.write("DELAY:" + delay);
+        mChatService.write("DELAY:" + delay, lane);
     }
 
-    private void setElMWorking(boolean isQueueEmpty){
+    private void setElMWorking(boolean isQueueEmpty, boolean isInteractiveEmpty){
         if (m_currentScreenData == null)
             return;
         if (!isQueueEmpty) {
             m_btCommStatus.setColorFilter(Color.GREEN);
-            for (View button : m_buttonsViews.values()){
-                button.setEnabled(false);
-            }
         } else {
             m_btCommStatus.clearColorFilter();
-            for (View button : m_buttonsViews.values()){
-                button.setEnabled(true);
-            }
+        }
+        // Display requests do not delay the buttons, only pending button commands do
+        for (View button : m_buttonsViews.values()){
+            button.setEnabled(isInteractiveEmpty);
         }
         if (isQueueEmpty && m_autoReload){
             updateDisplays();
@@ -1066,8 +1073,8 @@ public class ScreenActivity extends AppCompatActivity {
         String requestCode = results[0];
         String replyCode = results[1];
 
-        if (requestCode.length() >= 2 && requestCode.substring(0,2).equalsIgnoreCase("AT")){
-            // Don't worry about ELM configuration
+        if (ElmCommandQueue.defaultLane(requestCode) == ElmCommandQueue.LANE_CONFIGURATION){
+            // Don't worry about ELM/STN configuration
             return;
         }
 
@@ -1123,8 +1130,8 @@ public class ScreenActivity extends AppCompatActivity {
         }
         m_currentDtcRequestName = dtcRequest.name;
         m_currentDtcRequestBytes = dtcRequest.sentbytes;
-        sendCmd(m_ecu.getDefaultSDS());
-        sendCmd(m_currentDtcRequestBytes);
+        sendCmd(m_ecu.getDefaultSDS(), ElmCommandQueue.LANE_INTERACTIVE);
+        sendCmd(m_currentDtcRequestBytes, ElmCommandQueue.LANE_INTERACTIVE);
     }
 
     void clearDTC(){
@@ -1146,10 +1153,11 @@ public class ScreenActivity extends AppCompatActivity {
         DialogInterface.OnClickListener dialogClickListener = (dialog, which) -> {
             switch (which){
                 case DialogInterface.BUTTON_POSITIVE:
-                    sendCmd("AT ST FF");
-                    sendCmd(m_ecu.getDefaultSDS());
-                    sendCmd(m_clearDTCCommand);
-                    sendCmd("AT ST 00");
+                    // Same lane for the AT commands, they frame the clear request
+                    sendCmd("AT ST FF", ElmCommandQueue.LANE_INTERACTIVE);
+                    sendCmd(m_ecu.getDefaultSDS(), ElmCommandQueue.LANE_INTERACTIVE);
+                    sendCmd(m_clearDTCCommand, ElmCommandQueue.LANE_INTERACTIVE);
+                    sendCmd("AT ST 00", ElmCommandQueue.LANE_INTERACTIVE);
                     break;
 
                 case DialogInterface.BUTTON_NEGATIVE:
@@ -1243,9 +1251,18 @@ public class ScreenActivity extends AppCompatActivity {
                             .getString(R.string.BT_MANAGER_MESSAGE) + " : " +
                             msg.getData().getString(TOAST) + "\n");
                     break;
+                case MESSAGE_BROADCAST:
+                    String request = msg.getData().getString(BROADCAST_REQUEST);
+                    @SuppressWarnings("unchecked")
+                    Map<String, String> responses = (Map<String, String>) msg.obj;
+                    for (Map.Entry<String, String> response : responses.entrySet())
+                        activity.m_logView.append("> " + request + " [" + response.getKey() + "] : "
+                                + response.getValue() + "\n");
+                    break;
                 case MESSAGE_QUEUE_STATE:
                     int queue_len = msg.arg1;
-                    activity.setElMWorking(queue_len == 0);
+                    int interactive_len = msg.arg2;
+                    activity.setElMWorking(queue_len == 0, interactive_len <= 0);
                     break;
             }
         }
@@ -0,0 +1,59 @@
+package org.quark.dr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.quark.dr.ecu.CanFrameRing;
+import org.quark.dr.ecu.ElmMonitorParser;
+import org.quark.dr.ecu.HexCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Monitor output of a busy 500 kbit/s bus (8 bytes frames, spaces on),
+ * read 4 KB at a time. "ring" parses into the CanFrameRing, "strings"
+ * is the former way : a String per line, decoded to a byte array.
+ * Run with -prof gc for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CanMonitorBenchmark {
+    private byte[] m_buffer;
+    private CanFrameRing m_ring;
+    private ElmMonitorParser m_parser;
+
+    @Setup
+    public void setup(){
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; output.length() < 4096 - 32; ++i)
+            output.append(String.format("%03X 11 22 33 44 55 66 77 %02X\r", 0x100 + (i & 0x3FF), i & 0xFF));
+        m_buffer = output.toString().getBytes();
+        m_ring = new CanFrameRing(CanFrameRing.DEFAULT_CAPACITY);
+        m_parser = new ElmMonitorParser(m_ring, false);
+    }
+
+    @Benchmark
+    public long ring(){
+        m_parser.feed(m_buffer, 0, m_buffer.length, System.currentTimeMillis());
+        m_ring.publish();
+        return m_ring.getEnd();
+    }
+
+    @Benchmark
+    public int strings(){
+        List<byte[]> frames = new ArrayList<>();
+        for (String line : new String(m_buffer).split("\r")){
+            String s = line.replace(" ", "");
+            if (s.length() > 3 && HexCodec.isHexadecimal(s))
+                frames.add(HexCodec.decode(s.substring(3)));
+        }
+        return frames.size();
+    }
+}
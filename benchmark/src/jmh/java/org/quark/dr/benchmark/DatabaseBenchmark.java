@@ -0,0 +1,140 @@
+package org.quark.dr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.json.JSONException;
+import org.quark.dr.ecu.Ecu;
+import org.quark.dr.ecu.EcuDatabase;
+import org.quark.dr.ecu.Layout;
+import org.quark.dr.ecu.ZipFileSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cold start : zip indexing, database loading and ECU/layout parsing on a
+ * synthetic ecu.zip (see SyntheticDatabase). The archives are cached in
+ * java.io.tmpdir/ecutweaker-benchmark between runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DatabaseBenchmark {
+    @Param({"1000", "4000"})
+    public int ecuCount;
+
+    private File m_directory;
+    private String m_zipPath;
+    private String m_indexedAppDir;
+    private ZipFileSystem m_zipFileSystem;
+    private String m_definitionName;
+    private String m_layoutName;
+    private String m_definitionJson;
+    private String m_layoutJson;
+    private int m_entry;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, JSONException {
+        m_directory = new File(System.getProperty("java.io.tmpdir"), "ecutweaker-benchmark/" + ecuCount);
+        File zip = SyntheticDatabase.create(m_directory, ecuCount);
+        m_zipPath = zip.getAbsolutePath();
+
+        // The index must be newer than the archive to be used
+        File indexedAppDir = new File(m_directory, "indexed");
+        indexedAppDir.mkdirs();
+        m_indexedAppDir = indexedAppDir.getAbsolutePath();
+        zip.setLastModified(System.currentTimeMillis() - 60000);
+
+        m_zipFileSystem = new ZipFileSystem(m_zipPath, m_indexedAppDir);
+        m_zipFileSystem.getZipEntries();
+        m_zipFileSystem.exportZipEntries();
+
+        // UCH_LE, the largest definition
+        m_definitionName = SyntheticDatabase.definitionName(0);
+        m_layoutName = SyntheticDatabase.layoutName(0);
+        m_definitionJson = m_zipFileSystem.getZipFile(m_definitionName);
+        m_layoutJson = m_zipFileSystem.getZipFile(m_layoutName);
+    }
+
+    /*
+     * Application directory without index, the archive is scanned each time
+     */
+    @State(Scope.Benchmark)
+    public static class ScanState {
+        String appDir;
+
+        @Setup(Level.Trial)
+        public void setup(DatabaseBenchmark benchmark){
+            File directory = new File(benchmark.m_directory, "scan");
+            directory.mkdirs();
+            appDir = directory.getAbsolutePath();
+        }
+
+        @Setup(Level.Invocation)
+        public void removeIndex(){
+            new File(appDir, "ecu.idx").delete();
+        }
+    }
+
+    @Benchmark
+    public ZipFileSystem getZipEntries(){
+        ZipFileSystem zipFileSystem = new ZipFileSystem(m_zipPath, m_indexedAppDir);
+        zipFileSystem.getZipEntries();
+        return zipFileSystem;
+    }
+
+    @Benchmark
+    public ZipFileSystem importZipEntries(){
+        ZipFileSystem zipFileSystem = new ZipFileSystem(m_zipPath, m_indexedAppDir);
+        if (!zipFileSystem.importZipEntries())
+            throw new IllegalStateException("Index import failed");
+        return zipFileSystem;
+    }
+
+    @Benchmark
+    public byte[] getZipFileAsBytes(){
+        // Walk the archive, not always the same cached pages
+        m_entry = (m_entry + 97) % ecuCount;
+        return m_zipFileSystem.getZipFileAsBytes(SyntheticDatabase.definitionName(m_entry));
+    }
+
+    @Benchmark
+    public EcuDatabase loadDatabaseIndexed() throws EcuDatabase.DatabaseException {
+        EcuDatabase database = new EcuDatabase();
+        database.loadDatabase(m_zipPath, m_indexedAppDir);
+        return database;
+    }
+
+    @Benchmark
+    public EcuDatabase loadDatabaseScan(ScanState scan) throws EcuDatabase.DatabaseException {
+        EcuDatabase database = new EcuDatabase();
+        database.loadDatabase(m_zipPath, scan.appDir);
+        return database;
+    }
+
+    @Benchmark
+    public Ecu newEcu(){
+        return new Ecu(m_definitionJson);
+    }
+
+    @Benchmark
+    public Layout newLayout(){
+        return new Layout(m_layoutJson);
+    }
+
+    @Benchmark
+    public Ecu openEcu(){
+        // What ScreenActivity.openEcu does once the database is loaded
+        Ecu ecu = new Ecu(m_zipFileSystem.getZipFile(m_definitionName));
+        new Layout(m_zipFileSystem.getZipFile(m_layoutName));
+        return ecu;
+    }
+}
@@ -0,0 +1,97 @@
+package org.quark.dr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.quark.dr.ecu.Ecu;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Request decoding/encoding of real ECU definitions with recorded responses
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EcuBenchmark {
+    static final String UCH_REQUEST = "Trame 11 : Etats des entrées";
+    static final String UCH_RESPONSE = "61112110010104001400000000DCE9";
+    static final String UCH_WRITE_REQUEST = "ACCEDER AU MODE APRES-VENTE";
+    static final String DDCR_REQUEST = "Frame 1 : parameters";
+    static final String DDCR_RESPONSE = "61A100000000940C0000840CAC30F7FFA00F43000000000A00000000";
+    static final String TEST_REQUEST = "ReadDataByLocalIdentifier: misc timings and values";
+    static final String TEST_WRITE_REQUEST = "WriteDataByLocalIdentifier: misc timings and val.";
+    static final String TEST_RESPONSE = "610A163232025800B43C3C1E3C0A0A0A0A012C5C6167B5BBC10A";
+    static final String ACU_DTC_REQUEST = "ReadDTC";
+    static final String ACU_DTC_RESPONSE = "5706903161900161901461900b61";
+
+    private Ecu m_uch;
+    private Ecu m_ddcr;
+    private Ecu m_test;
+    private Ecu m_acu;
+    private byte[] m_uchResponse;
+    private byte[] m_ddcrResponse;
+    private byte[] m_testResponse;
+    private HashMap<String, Object> m_uchWriteValues;
+    private HashMap<String, Object> m_testWriteValues;
+
+    static Ecu loadEcu(String name){
+        InputStream is = EcuBenchmark.class.getClassLoader().getResourceAsStream(name);
+        if (is == null)
+            throw new IllegalStateException("Missing benchmark resource " + name);
+        return new Ecu(is);
+    }
+
+    @Setup
+    public void setup(){
+        m_uch = loadEcu("UCH_LE.json");
+        m_ddcr = loadEcu("DDCR_-_BEB2_a_BEB4_-_v5.0.json");
+        m_test = loadEcu("test.json");
+        m_acu = loadEcu("acu.json");
+        m_uchResponse = Ecu.hexStringToByteArray(UCH_RESPONSE);
+        m_ddcrResponse = Ecu.hexStringToByteArray(DDCR_RESPONSE);
+        m_testResponse = Ecu.hexStringToByteArray(TEST_RESPONSE);
+
+        m_uchWriteValues = new HashMap<>();
+        m_uchWriteValues.put("Code APV", "001122334455");
+        // Write back what was read, as the screens do
+        m_testWriteValues = new HashMap<String, Object>(m_test.getRequestValues(m_testResponse, TEST_REQUEST, false));
+    }
+
+    @Benchmark
+    public HashMap<String, String> getRequestValuesUch(){
+        return m_uch.getRequestValues(m_uchResponse, UCH_REQUEST, false);
+    }
+
+    @Benchmark
+    public HashMap<String, String> getRequestValuesDdcr(){
+        return m_ddcr.getRequestValues(m_ddcrResponse, DDCR_REQUEST, false);
+    }
+
+    @Benchmark
+    public HashMap<String, String> getRequestValuesDdcrWithUnits(){
+        return m_ddcr.getRequestValues(m_ddcrResponse, DDCR_REQUEST, true);
+    }
+
+    @Benchmark
+    public byte[] setRequestValuesUch(){
+        return m_uch.setRequestValues(UCH_WRITE_REQUEST, m_uchWriteValues);
+    }
+
+    @Benchmark
+    public byte[] setRequestValuesTest(){
+        return m_test.setRequestValues(TEST_WRITE_REQUEST, m_testWriteValues);
+    }
+
+    @Benchmark
+    public List<List<String>> decodeDtcAcu(){
+        return m_acu.decodeDTC(ACU_DTC_REQUEST, ACU_DTC_RESPONSE);
+    }
+}
@@ -0,0 +1,84 @@
+package org.quark.dr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.quark.dr.ecu.ElmCommandQueue;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Latency of a button command while an auto reloaded screen keeps
+ * screenRequests display requests queued, adapterMicros per exchange.
+ * "fifo" queues the button behind the display requests (former
+ * behavior), "lanes" in the interactive lane.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ElmLaneBenchmark {
+    private static final String BUTTON = "3B01";
+
+    @Param({"fifo", "lanes"})
+    public String queueing;
+
+    @Param({"30"})
+    public int screenRequests;
+
+    @Param({"2000"})
+    public int adapterMicros;
+
+    private final Semaphore m_done = new Semaphore(0);
+    private final ElmCommandQueue m_queue = new ElmCommandQueue();
+    private volatile boolean m_running;
+    private Thread m_thread;
+
+    @Setup
+    public void setup(){
+        for (int i = 0; i < screenRequests; ++i)
+            m_queue.add(String.format("21%02X", i), ElmCommandQueue.LANE_POLLING);
+        m_running = true;
+        m_thread = new Thread(this::workerLoop, "elm-worker");
+        m_thread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        m_running = false;
+        m_queue.wakeUp();
+        m_thread.join();
+    }
+
+    @Benchmark
+    public void buttonCommand() throws InterruptedException {
+        m_queue.add(BUTTON, queueing.equals("lanes") ? ElmCommandQueue.LANE_INTERACTIVE
+                : ElmCommandQueue.LANE_POLLING);
+        m_done.acquire();
+    }
+
+    private void workerLoop(){
+        while (m_running){
+            try {
+                String message = m_queue.poll(1500);
+                if (message == null)
+                    continue;
+                LockSupport.parkNanos(adapterMicros * 1000L);
+                if (message.equals(BUTTON))
+                    m_done.release();
+                else
+                    // Auto reload : the screen queues the request again
+                    m_queue.add(message, ElmCommandQueue.LANE_POLLING);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.quark.dr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.quark.dr.ecu.ElmPipeline;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Time to send the CAN configuration of ElmBase.initCan (after AT WS) to
+ * an adapter linkMicros of round trip away (Bluetooth ~30 ms, WiFi ~5 ms),
+ * 200 us of processing per command.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ElmPipelineBenchmark {
+    private static final long PROCESSING_NANOS = 200000;
+    private static final List<String> INIT_CAN = Arrays.asList("AT E1", "AT S0", "AT H0", "AT L0",
+            "AT AL", "AT CAF0", "AT SH 7E0", "AT CRA 7E8", "AT FC SH 7E0", "AT FC SD 30 00 00",
+            "AT FC SM 1", "AT SP 6", "AT ST 19");
+
+    @Param({"5000", "30000"})
+    public int linkMicros;
+
+    @Param({"1", "8"})
+    public int depth;
+
+    private ElmPipeline m_pipeline;
+
+    /*
+     * Replies available one round trip after the write, one after the other
+     */
+    private class SimulatedAdapter implements ElmPipeline.Link {
+        private final ArrayDeque<long[]> m_inFlight = new ArrayDeque<>();
+        private long m_lastReady;
+
+        @Override
+        public String exchange(String command){
+            write(command);
+            return read(0);
+        }
+
+        @Override
+        public void write(String command){
+            long ready = Math.max(System.nanoTime() + linkMicros * 1000L, m_lastReady + PROCESSING_NANOS);
+            m_lastReady = ready;
+            m_inFlight.add(new long[] {ready});
+        }
+
+        @Override
+        public String read(long timeoutMs){
+            long[] next = m_inFlight.poll();
+            if (next == null)
+                return null;
+            long wait;
+            while ((wait = next[0] - System.nanoTime()) > 0)
+                LockSupport.parkNanos(wait);
+            return "OK\n";
+        }
+    }
+
+    @Setup
+    public void setup(){
+        m_pipeline = new ElmPipeline(new SimulatedAdapter());
+        m_pipeline.setDepth(depth);
+    }
+
+    @Benchmark
+    public String[] initCan(){
+        return m_pipeline.exchange(new ArrayList<>(INIT_CAN));
+    }
+}
@@ -0,0 +1,105 @@
+package org.quark.dr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.quark.dr.ecu.ElmCommandQueue;
+
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Commands per second through the ELM worker thread, a screen sending a
+ * request and waiting for its response. adapterMicros simulates the
+ * adapter/ECU round trip.
+ * "polling" is the former ElmBase loop (list under lock, 10 ms sleep per
+ * iteration), "queue" the ElmCommandQueue one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ElmQueueBenchmark {
+    @Param({"polling", "queue"})
+    public String worker;
+
+    @Param({"0", "20000"})
+    public int adapterMicros;
+
+    private final Semaphore m_done = new Semaphore(0);
+    private volatile boolean m_running;
+    private Thread m_thread;
+    // Former ElmBase.mMessages
+    private final ArrayList<String> m_messages = new ArrayList<>();
+    private final ElmCommandQueue m_queue = new ElmCommandQueue();
+
+    @Setup
+    public void setup(){
+        m_running = true;
+        m_thread = new Thread(worker.equals("polling") ? this::pollingLoop : this::queueLoop, "elm-worker");
+        m_thread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        m_running = false;
+        m_queue.wakeUp();
+        m_thread.join();
+    }
+
+    @Benchmark
+    public void command() throws InterruptedException {
+        if (worker.equals("polling")){
+            synchronized (this){
+                m_messages.add("2180");
+            }
+        } else {
+            m_queue.add("2180");
+        }
+        m_done.acquire();
+    }
+
+    private void exchange(String message){
+        if (adapterMicros > 0)
+            LockSupport.parkNanos(adapterMicros * 1000L);
+        m_done.release();
+    }
+
+    private void pollingLoop(){
+        while (m_running){
+            String message = null;
+            synchronized (this){
+                if (!m_messages.isEmpty()){
+                    message = m_messages.get(0);
+                    m_messages.remove(0);
+                }
+            }
+            if (message != null)
+                exchange(message);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void queueLoop(){
+        while (m_running){
+            try {
+                String message = m_queue.poll(1500);
+                if (message != null)
+                    exchange(message);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.quark.dr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.quark.dr.ecu.HexCodec;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Hex conversions done for every ELM line
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HexCodecBenchmark {
+    private byte[] m_response;
+    private String m_responseHex;
+    private String m_spacedLine;
+    private final byte[] m_buffer = new byte[64];
+    private final char[] m_chars = new char[128];
+
+    @Setup
+    public void setup(){
+        m_response = HexCodec.decode(EcuBenchmark.DDCR_RESPONSE);
+        m_responseHex = EcuBenchmark.DDCR_RESPONSE;
+        // ELM line with AT S1
+        m_spacedLine = "10 14 62 F1 90 56 46 31";
+    }
+
+    @Benchmark
+    public String encode(){
+        return HexCodec.encode(m_response);
+    }
+
+    @Benchmark
+    public int encodeToBuffer(){
+        return HexCodec.encode(m_response, 0, m_response.length, m_chars, 0);
+    }
+
+    @Benchmark
+    public byte[] decode(){
+        return HexCodec.decode(m_responseHex);
+    }
+
+    @Benchmark
+    public int decodeSpacedLineToBuffer(){
+        return HexCodec.decode(m_spacedLine, m_buffer, 0);
+    }
+
+    @Benchmark
+    public boolean isHexadecimal(){
+        return HexCodec.isHexadecimal(m_responseHex);
+    }
+}
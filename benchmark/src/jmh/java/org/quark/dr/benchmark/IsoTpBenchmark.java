@@ -0,0 +1,60 @@
+package org.quark.dr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.quark.dr.ecu.IsoTPDecode;
+import org.quark.dr.ecu.IsoTPEncode;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ISO-TP hex framing of the ELM lines, single and multi frame
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IsoTpBenchmark {
+    static final String SINGLE_FRAME_REQUEST = "21 11";
+
+    private ArrayList<String> m_singleFrameLines;
+    private ArrayList<String> m_uchLines;
+    private ArrayList<String> m_ddcrLines;
+
+    @Setup
+    public void setup(){
+        m_singleFrameLines = new IsoTPEncode(SINGLE_FRAME_REQUEST).getFormattedArray();
+        m_uchLines = new IsoTPEncode(EcuBenchmark.UCH_RESPONSE).getFormattedArray();
+        m_ddcrLines = new IsoTPEncode(EcuBenchmark.DDCR_RESPONSE).getFormattedArray();
+    }
+
+    @Benchmark
+    public ArrayList<String> encodeSingleFrame(){
+        return new IsoTPEncode(SINGLE_FRAME_REQUEST).getFormattedArray();
+    }
+
+    @Benchmark
+    public ArrayList<String> encodeMultiFrame(){
+        return new IsoTPEncode(EcuBenchmark.TEST_RESPONSE).getFormattedArray();
+    }
+
+    @Benchmark
+    public String decodeSingleFrame(){
+        return new IsoTPDecode(m_singleFrameLines).decodeCan();
+    }
+
+    @Benchmark
+    public String decodeUchResponse(){
+        return new IsoTPDecode(m_uchLines).decodeCan();
+    }
+
+    @Benchmark
+    public String decodeDdcrResponse(){
+        return new IsoTPDecode(m_ddcrLines).decodeCan();
+    }
+}
@@ -0,0 +1,48 @@
+package org.quark.dr.benchmark;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collection;
+import java.util.Collections;
+
+/*
+ * Peak heap used during each iteration, sum of the heap pools peaks
+ * (-prof org.quark.dr.benchmark.PeakHeapProfiler)
+ */
+public class PeakHeapProfiler implements InternalProfiler {
+    @Override
+    public String getDescription(){
+        return "Peak heap usage per iteration";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams){
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+                                                       IterationParams iterationParams,
+                                                       IterationResult result){
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return Collections.singletonList(
+                new ScalarResult("heap.peak", peak / (1024. * 1024.), "MB", AggregationPolicy.MAX));
+    }
+}
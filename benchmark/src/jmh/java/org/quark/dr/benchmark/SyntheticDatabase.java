@@ -0,0 +1,225 @@
+package org.quark.dr.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Builds an ecu.zip shaped like the real database from the test resources :
+ * a db.json index plus one definition and one layout per ECU, the four
+ * known definitions being repeated under different names.
+ * Every distinct content is deflated once and the zip is written by hand,
+ * so thousands of entries take seconds. Like the real archive, the local
+ * headers hold the sizes (no data descriptor), ZipFileSystem relies on it.
+ */
+public final class SyntheticDatabase {
+    static final String[] DEFINITIONS = {"UCH_LE.json", "DDCR_-_BEB2_a_BEB4_-_v5.0.json",
+            "acu.json", "test.json"};
+    static final String LAYOUT = "test.json.layout";
+    static final String[] ADDRESSES = {"26", "7A", "04", "01", "51", "2C", "0D", "E8"};
+    static final String[] PROJECTS = {"X10", "X52", "X61", "X87", "X95", "X98"};
+
+    private static class Content {
+        final byte[] compressed;
+        final long crc;
+        final int size;
+
+        Content(byte[] data){
+            CRC32 crc32 = new CRC32();
+            crc32.update(data);
+            crc = crc32.getValue();
+            size = data.length;
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished())
+                bos.write(buffer, 0, deflater.deflate(buffer));
+            deflater.end();
+            compressed = bos.toByteArray();
+        }
+    }
+
+    private SyntheticDatabase(){
+    }
+
+    public static String definitionName(int index){
+        String base = DEFINITIONS[index % DEFINITIONS.length];
+        return base.substring(0, base.length() - 5) + "_" + index + ".json";
+    }
+
+    public static String layoutName(int index){
+        return definitionName(index) + ".layout";
+    }
+
+    /*
+     * Writes <directory>/ecu.zip with ecuCount ECUs, reused if already there
+     */
+    public static File create(File directory, int ecuCount) throws IOException, JSONException {
+        File zip = new File(directory, "ecu.zip");
+        if (zip.exists())
+            return zip;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        Content[] definitions = new Content[DEFINITIONS.length];
+        for (int i = 0; i < DEFINITIONS.length; ++i)
+            definitions[i] = new Content(readResource(DEFINITIONS[i]));
+        Content layout = new Content(readResource(LAYOUT));
+
+        File temporary = new File(directory, "ecu.zip.tmp");
+        ZipWriter writer = new ZipWriter(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+        try {
+            writer.add("db.json", new Content(buildIndex(ecuCount).getBytes(StandardCharsets.UTF_8)));
+            for (int i = 0; i < ecuCount; ++i){
+                writer.add(definitionName(i), definitions[i % definitions.length]);
+                writer.add(layoutName(i), layout);
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        if (!temporary.renameTo(zip))
+            throw new IOException("Cannot rename " + temporary);
+        return zip;
+    }
+
+    static String buildIndex(int ecuCount) throws JSONException {
+        JSONObject root = new JSONObject();
+        for (int i = 0; i < ecuCount; ++i){
+            JSONObject ecu = new JSONObject();
+            JSONArray projects = new JSONArray();
+            projects.put(PROJECTS[i % PROJECTS.length]);
+            projects.put(PROJECTS[(i / PROJECTS.length) % PROJECTS.length]);
+            ecu.put("projects", projects);
+            ecu.put("address", ADDRESSES[i % ADDRESSES.length]);
+            ecu.put("ecuname", "ECU " + i);
+            ecu.put("protocol", "CAN");
+            JSONArray idents = new JSONArray();
+            for (int j = 0; j < 1 + i % 3; ++j){
+                JSONObject ident = new JSONObject();
+                ident.put("soft_version", String.format("%04X", i * 3 + j));
+                ident.put("supplier_code", "B5" + (i % 10) + j);
+                ident.put("version", String.format("%04X", i));
+                ident.put("diagnostic_version", String.valueOf(j + 4));
+                idents.put(ident);
+            }
+            ecu.put("autoidents", idents);
+            root.put(definitionName(i), ecu);
+        }
+        return root.toString();
+    }
+
+    static byte[] readResource(String name) throws IOException {
+        InputStream is = SyntheticDatabase.class.getClassLoader().getResourceAsStream(name);
+        if (is == null)
+            throw new IOException("Missing benchmark resource " + name);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = is.read(buffer)) > 0)
+                bos.write(buffer, 0, count);
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /*
+     * Minimal zip writer for already deflated entries (no zip64)
+     */
+    private static class ZipWriter {
+        private final OutputStream m_out;
+        private final ByteArrayOutputStream m_centralDirectory = new ByteArrayOutputStream();
+        private long m_position;
+        private int m_count;
+
+        ZipWriter(OutputStream out){
+            m_out = out;
+        }
+
+        void add(String name, Content content) throws IOException {
+            if (m_count == 0xFFFF)
+                throw new IOException("Too many entries");
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            long offset = m_position;
+
+            writeInt(m_out, 0x04034b50);
+            writeShort(m_out, 20);
+            writeShort(m_out, 0x800);
+            writeShort(m_out, 8);
+            writeShort(m_out, 0);
+            writeShort(m_out, 0x21);
+            writeInt(m_out, (int)content.crc);
+            writeInt(m_out, content.compressed.length);
+            writeInt(m_out, content.size);
+            writeShort(m_out, nameBytes.length);
+            writeShort(m_out, 0);
+            m_out.write(nameBytes);
+            m_out.write(content.compressed);
+            m_position += 30 + nameBytes.length + content.compressed.length;
+            if (m_position > 0xFFFFFFFFL)
+                throw new IOException("Archive over 4 GB");
+
+            OutputStream cd = m_centralDirectory;
+            writeInt(cd, 0x02014b50);
+            writeShort(cd, 20);
+            writeShort(cd, 20);
+            writeShort(cd, 0x800);
+            writeShort(cd, 8);
+            writeShort(cd, 0);
+            writeShort(cd, 0x21);
+            writeInt(cd, (int)content.crc);
+            writeInt(cd, content.compressed.length);
+            writeInt(cd, content.size);
+            writeShort(cd, nameBytes.length);
+            writeShort(cd, 0);
+            writeShort(cd, 0);
+            writeShort(cd, 0);
+            writeShort(cd, 0);
+            writeInt(cd, 0);
+            writeInt(cd, (int)offset);
+            cd.write(nameBytes);
+            ++m_count;
+        }
+
+        void finish() throws IOException {
+            m_centralDirectory.writeTo(m_out);
+            writeInt(m_out, 0x06054b50);
+            writeShort(m_out, 0);
+            writeShort(m_out, 0);
+            writeShort(m_out, m_count);
+            writeShort(m_out, m_count);
+            writeInt(m_out, m_centralDirectory.size());
+            writeInt(m_out, (int)m_position);
+            writeShort(m_out, 0);
+        }
+
+        void close() throws IOException {
+            m_out.close();
+        }
+
+        private static void writeShort(OutputStream out, int value) throws IOException {
+            out.write(value & 0xFF);
+            out.write((value >> 8) & 0xFF);
+        }
+
+        private static void writeInt(OutputStream out, int value) throws IOException {
+            writeShort(out, value);
+            writeShort(out, value >>> 16);
+        }
+    }
+}
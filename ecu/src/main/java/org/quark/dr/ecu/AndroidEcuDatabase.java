@@ -0,0 +1,25 @@
+package org.quark.dr.ecu;
+
+import android.os.Environment;
+
+import java.io.File;
+
+/*
+ * EcuDatabase searching ecu.zip in the Android storages, the core
+ * library log goes to logcat once it is used
+ */
+public class AndroidEcuDatabase extends EcuDatabase {
+    static {
+        AndroidLogger.install();
+    }
+
+    @Override
+    protected File[] getStorageDirectories() {
+        return new File[] {
+                Environment.getExternalStorageDirectory(),
+                Environment.getDataDirectory(),
+                new File("/storage"),
+                new File("/mnt")
+        };
+    }
+}
@@ -0,0 +1,27 @@
+package org.quark.dr.ecu;
+
+import android.util.Log;
+
+/*
+ * Routes the core library log to logcat
+ */
+public class AndroidLogger implements EcuLog.Logger {
+    public static final AndroidLogger INSTANCE = new AndroidLogger();
+
+    public static void install(){
+        EcuLog.setLogger(INSTANCE);
+    }
+
+    @Override
+    public void info(String tag, String message){
+        Log.i(tag, message);
+    }
+
+    @Override
+    public void error(String tag, String message, Throwable throwable){
+        if (throwable != null)
+            Log.e(tag, message, throwable);
+        else
+            Log.e(tag, message);
+    }
+}
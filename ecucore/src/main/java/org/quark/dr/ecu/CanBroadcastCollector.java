@@ -0,0 +1,98 @@
+package org.quark.dr.ecu;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/*
+ * Responses to a functional (broadcast) CAN request, adapter headers on
+ * (AT H1, AT CAF0) : each line starts with the CAN ID of the sender, the
+ * frames are routed by ID to the ISO-TP reassembler, so interleaved
+ * answers of several ECUs are rebuilt side by side.
+ * The last complete message of each ECU wins (after response pending).
+ * Only the ECU the adapter sends flow control to can complete a multi
+ * frame response, the others are reported incomplete.
+ */
+public class CanBroadcastCollector {
+    private final IsoTpReassembler m_reassembler = new IsoTpReassembler();
+    private final LinkedHashMap<Integer, byte[]> m_responses = new LinkedHashMap<>();
+    private final LinkedHashMap<Integer, String> m_errors = new LinkedHashMap<>();
+    private final LinkedHashSet<Integer> m_senders = new LinkedHashSet<>();
+    private final StringBuilder m_adapterErrors = new StringBuilder();
+    // Hex digits of the CAN ID : 3 (11 bits) or 8 (29 bits)
+    private final int m_idLength;
+
+    public CanBroadcastCollector(boolean extended){
+        m_idLength = extended ? 8 : 3;
+    }
+
+    public void reset(){
+        m_reassembler.reset();
+        m_responses.clear();
+        m_errors.clear();
+        m_senders.clear();
+        m_adapterErrors.setLength(0);
+    }
+
+    /*
+     * Feed one adapter line, "7E8 06 50 03 00 32 01 F4" or without spaces
+     * Echo and adapter messages (NO DATA, CAN ERROR...) are not frames
+     */
+    public void pushLine(String line){
+        String s = line.replace(" ", "");
+        if (s.isEmpty())
+            return;
+        if (s.length() < m_idLength + 2 || !HexCodec.isHexadecimal(s)){
+            if (m_adapterErrors.length() > 0)
+                m_adapterErrors.append(' ');
+            m_adapterErrors.append(line.trim());
+            return;
+        }
+        int canId = (int) Long.parseLong(s.substring(0, m_idLength), 16);
+        byte[] frame = IsoTpCodec.parseFrame(s.substring(m_idLength));
+        if (frame == null)
+            return;
+        m_senders.add(canId);
+        try {
+            byte[] payload = m_reassembler.push(canId, frame);
+            if (payload != null){
+                m_responses.put(canId, payload);
+                m_errors.remove(canId);
+            }
+        } catch (IsoTpException e) {
+            m_errors.put(canId, e.getMessage());
+        }
+    }
+
+    /*
+     * Feed a whole adapter reply, echo line skipped
+     */
+    public void pushReply(String echo, String reply){
+        for (String line : reply.split("\n")){
+            if (!line.replace(" ", "").equalsIgnoreCase(echo.replace(" ", "")))
+                pushLine(line);
+        }
+    }
+
+    /*
+     * Complete responses by CAN ID, in arrival order
+     */
+    public Map<Integer, byte[]> getResponses(){
+        return m_responses;
+    }
+
+    /*
+     * Errors by CAN ID, the responses still being received included
+     */
+    public Map<Integer, String> getErrors(){
+        for (int canId : m_senders){
+            if (m_reassembler.isReceiving(canId) && !m_errors.containsKey(canId))
+                m_errors.put(canId, IsoTpException.Error.RESPONSE_TOO_SHORT.getText());
+        }
+        return m_errors;
+    }
+
+    public String getAdapterErrors(){
+        return m_adapterErrors.toString();
+    }
+}
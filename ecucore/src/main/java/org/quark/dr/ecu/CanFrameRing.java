@@ -0,0 +1,166 @@
+package org.quark.dr.ecu;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Captured CAN frames (timestamp, id, dlc, payload) in preallocated
+ * primitive arrays, the oldest frames are overwritten when full : no
+ * object per frame, the bus can be watched for hours.
+ * Frames are numbered from 0 in capture order. One writer (the ELM
+ * worker thread) adds frames then publishes them to the listeners, any
+ * thread can read a frame while it is still in the ring : a read racing
+ * with the writer is detected by isAvailable afterwards. The ring has one
+ * slot more than its capacity, the one being written holds no available
+ * frame.
+ */
+public class CanFrameRing {
+    public static final int MAX_DLC = 8;
+    public static final int DEFAULT_CAPACITY = 16384;
+
+    /*
+     * Frames first (included) to end (excluded) were added, called by the
+     * writer thread, the listener must not block it
+     */
+    public interface Listener {
+        void onFrames(CanFrameRing ring, long first, long end);
+    }
+
+    private final int m_capacity;
+    // m_capacity + 1
+    private final int m_slots;
+    private final long[] m_timestamps;
+    private final int[] m_ids;
+    private final byte[] m_dlcs;
+    private final byte[] m_data;
+    private final CopyOnWriteArrayList<Listener> m_listeners = new CopyOnWriteArrayList<>();
+    private volatile long m_end;
+    private long m_published;
+
+    public CanFrameRing(int capacity){
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Bad capacity " + capacity);
+        m_capacity = capacity;
+        m_slots = capacity + 1;
+        m_timestamps = new long[m_slots];
+        m_ids = new int[m_slots];
+        m_dlcs = new byte[m_slots];
+        m_data = new byte[m_slots * MAX_DLC];
+    }
+
+    public int getCapacity(){
+        return m_capacity;
+    }
+
+    /*
+     * Adds a frame, data[offset..offset + dlc[ (dlc truncated to 8)
+     */
+    public void add(long timestamp, int id, byte[] data, int offset, int dlc){
+        // The slot of frame sequence - m_capacity - 1, already unavailable
+        long sequence = m_end;
+        int slot = slot(sequence);
+        int length = Math.min(Math.max(dlc, 0), MAX_DLC);
+        m_timestamps[slot] = timestamp;
+        m_ids[slot] = id;
+        m_dlcs[slot] = (byte) length;
+        System.arraycopy(data, offset, m_data, slot * MAX_DLC, length);
+        m_end = sequence + 1;
+    }
+
+    /*
+     * Notifies the listeners of the frames added since the last call
+     */
+    public void publish(){
+        long end = m_end;
+        if (end == m_published)
+            return;
+        long first = Math.max(m_published, end - m_capacity);
+        m_published = end;
+        for (Listener listener : m_listeners)
+            listener.onFrames(this, first, end);
+    }
+
+    public void addListener(Listener listener){
+        m_listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener){
+        m_listeners.remove(listener);
+    }
+
+    /*
+     * Number of the next frame, also the count of frames ever added
+     */
+    public long getEnd(){
+        return m_end;
+    }
+
+    /*
+     * Number of the oldest frame still in the ring
+     */
+    public long getFirst(){
+        return Math.max(0, m_end - m_capacity);
+    }
+
+    /*
+     * False if frame was overwritten (or not added yet)
+     */
+    public boolean isAvailable(long frame){
+        long end = m_end;
+        return frame < end && frame >= end - m_capacity && frame >= 0;
+    }
+
+    public long getTimestamp(long frame){
+        return m_timestamps[slot(frame)];
+    }
+
+    public int getId(long frame){
+        return m_ids[slot(frame)];
+    }
+
+    public int getDlc(long frame){
+        return m_dlcs[slot(frame)];
+    }
+
+    public int getByte(long frame, int index){
+        return m_data[slot(frame) * MAX_DLC + index] & 0xFF;
+    }
+
+    /*
+     * Copies the payload of frame to destination, returns the dlc
+     */
+    public int getData(long frame, byte[] destination, int offset){
+        int slot = slot(frame);
+        int dlc = m_dlcs[slot];
+        System.arraycopy(m_data, slot * MAX_DLC, destination, offset, dlc);
+        return dlc;
+    }
+
+    /*
+     * Export line : "timestamp id dlc data", "1700000000123 7E8 8 0211223344556677"
+     */
+    public void appendFrame(long frame, StringBuilder out){
+        int slot = slot(frame);
+        int id = m_ids[slot];
+        out.append(m_timestamps[slot]).append(' ');
+        appendHex(out, id, id > 0x7FF ? 8 : 3);
+        out.append(' ').append(m_dlcs[slot]).append(' ');
+        HexCodec.encode(m_data, slot * MAX_DLC, m_dlcs[slot], out);
+    }
+
+    private static void appendHex(StringBuilder out, int value, int digits){
+        // Odd digit count (11 bits ID) : high nibble first
+        if ((digits & 1) != 0)
+            out.append(Character.forDigit((value >>> ((digits - 1) * 4)) & 0xF, 16));
+        for (int shift = (digits & ~1) * 4 - 8; shift >= 0; shift -= 8)
+            HexCodec.append(out, (byte) (value >>> shift));
+    }
+
+    public void clear(){
+        m_end = 0;
+        m_published = 0;
+    }
+
+    private int slot(long frame){
+        return (int) (frame % m_slots);
+    }
+}
@@ -1,7 +1,5 @@
 package org.quark.dr.ecu;
 
-import android.util.Log;
-import android.util.Pair;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import java.io.BufferedReader;
@@ -30,8 +28,9 @@ public class Ecu {
     private String kw1, kw2, ecu_send_id, ecu_recv_id;
     private boolean fastinit;
     private String m_defaultSDS;
+    private EcuDefinitionPool m_pool;
 
-    private class EcuDataItem{
+    class EcuDataItem{
         public int firstbyte;
         public int bitoffset;
         public boolean ref;
@@ -49,14 +48,20 @@ public class Ecu {
             } catch (Exception e){
                 e.printStackTrace();
             }
+            if (m_pool != null){
+                this.name = m_pool.intern(this.name);
+                endian = m_pool.intern(endian);
+            }
         }
     }
 
     public HashMap<String, String> getSdsrequests(){
+        discoverSds();
         return sdsrequests;
     }
 
     public void setDefautSDS(String sdsname){
+        discoverSds();
         if (sdsrequests.containsKey(sdsname))
             m_defaultSDS = sdsrequests.get(sdsname);
     }
@@ -86,7 +91,12 @@ public class Ecu {
         }
     }
 
-    public class EcuData {
+    /*
+     * Data definitions do not depend on the owning ECU (the global endianness
+     * is carried by each EcuDataItem), so they can be shared between ECUs
+     * through an EcuDefinitionPool. Do not modify them once loaded.
+     */
+    public static class EcuData {
         public int bitscount = 8;
         public boolean scaled = false;
         public boolean signed = false;
@@ -98,8 +108,7 @@ public class Ecu {
         public float offset = 0.0f;
         public float divideby = 1.0f;
         public String format = "";
-        public HashMap<Integer, String> lists;
-        public HashMap<String, Integer> items;
+        public EcuDataList lists = EcuDataList.EMPTY;
         public String description;
         public String unit = "";
         public String comment = "";
@@ -107,8 +116,6 @@ public class Ecu {
         EcuData(JSONObject json, String name) {
             this.name = name;
             try {
-                lists = new HashMap<>();
-                items = new HashMap<>();
                 if(json.has("bitscount"))
                     bitscount = json.getInt("bitscount");
 
@@ -152,12 +159,16 @@ public class Ecu {
 
                 if (json.has("lists")) {
                     JSONObject listobj = json.getJSONObject("lists");
+                    int[] listkeys = new int[listobj.length()];
+                    String[] listvalues = new String[listobj.length()];
+                    int count = 0;
                     Iterator<String> keys = listobj.keys();
                     while (keys.hasNext()) {
                         String key = keys.next();
-                        lists.put(Integer.parseInt(key), listobj.getString(key));
-                        items.put(listobj.getString(key), Integer.parseInt(key));
+                        listkeys[count] = Integer.parseInt(key);
+                        listvalues[count++] = listobj.getString(key);
                     }
+                    lists = EcuDataList.create(listkeys, listvalues, count);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -171,7 +182,7 @@ public class Ecu {
 
             int requiredDataBytesLen = (int)(Math.ceil(((float)bitscount + (float)startBit) / 8.0f));
 
-            if (global_endian.equals("Little"))
+            if ("Little".equals(dataitem.req_endian))
                 little_endian = true;
 
             if (dataitem.endian.equals("Little"))
@@ -288,14 +299,42 @@ public class Ecu {
             String str16 = padLeft(valueashex.toString(16), bytescount*2, "0");
 
             for (int i = 0; i < bytescount; ++i){
-                String hexpart = str16.substring(i*2, i*2 + 2);
-                byte[] b = hexStringToByteArray(hexpart);
-                byte_list[i + start_byte] = b[0];
+                byte_list[i + start_byte] = (byte)((HexCodec.digit(str16.charAt(i*2)) << 4)
+                        | HexCodec.digit(str16.charAt(i*2 + 1)));
             }
 
             return byte_list;
         }
 
+        /*
+         * Fast path for raw integer values (enum keys), writes the bits
+         * directly into byte_list. Falls back to setValue for the cases
+         * the string encoder handles differently (scaled, ascii, values
+         * wider than the field or spanning more bytes than bytescount)
+         */
+        public byte[] setIntValue(int value, byte[] byte_list, EcuDataItem dataitem){
+            int start_byte = dataitem.firstbyte - 1;
+            int startBit = dataitem.bitoffset;
+            int numreqbytes = (bitscount + startBit + 7) / 8;
+
+            if (scaled || bytesascii || value < 0 || bitscount <= 0 || bitscount > 31
+                    || (value >>> bitscount) != 0 || numreqbytes != bytescount
+                    || start_byte < 0 || start_byte + numreqbytes > byte_list.length) {
+                return setValue(Integer.toHexString(value), byte_list, dataitem);
+            }
+
+            for (int i = 0; i < bitscount; ++i){
+                int bitpos = startBit + i;
+                int mask = 0x80 >> (bitpos & 7);
+                int index = start_byte + (bitpos >> 3);
+                if (((value >> (bitscount - 1 - i)) & 1) != 0)
+                    byte_list[index] |= mask;
+                else
+                    byte_list[index] &= ~mask;
+            }
+            return byte_list;
+        }
+
         public String getHexValue(byte[] resp, EcuDataItem dataitem){
             int startByte = dataitem.firstbyte;
             int startBit = dataitem.bitoffset;
@@ -303,7 +342,7 @@ public class Ecu {
 
             boolean little_endian = false;
 
-            if (global_endian.equals("Little"))
+            if ("Little".equals(dataitem.req_endian))
                 little_endian = true;
 
             if (dataitem.endian.equals("Little"))
@@ -378,8 +417,9 @@ public class Ecu {
                      } // 32 bits are already signed
                  }
 
-                 if (lists.containsKey(val))
-                     return lists.get(val);
+                 String listvalue = lists.get(val);
+                 if (listvalue != null)
+                     return listvalue;
 
                  return hexval;
              }
@@ -422,7 +462,7 @@ public class Ecu {
         return padLeft(Integer.toBinaryString(b & 0xFF), padding, "0");
     }
 
-    public String hexToBinary(String Hex)
+    public static String hexToBinary(String Hex)
     {
         BigInteger i = new BigInteger(Hex, 16);
         String Bin = i.toString(2);
@@ -438,6 +478,11 @@ public class Ecu {
     }
 
     public static byte[] hexStringToByteArray(String s) {
+        byte[] bytes = HexCodec.decode(s);
+        if (bytes != null)
+            return bytes;
+
+        // Malformed string (odd length, non hex digits), legacy decoding
         s = s.replace(" ", "");
         int len = s.length();
         byte[] data = new byte[len / 2];
@@ -449,9 +494,13 @@ public class Ecu {
     }
 
     public static String stringToHex(String string) {
-        StringBuilder buf = new StringBuilder(1024);
-        for (char ch: string.toCharArray()) {
-            buf.append(String.format("%02x", (int) ch));
+        StringBuilder buf = new StringBuilder(string.length() * 2);
+        for (int i = 0; i < string.length(); ++i) {
+            char ch = string.charAt(i);
+            if (ch <= 0xFF)
+                HexCodec.append(buf, (byte)ch);
+            else
+                buf.append(Integer.toHexString(ch));
         }
         return buf.toString();
     }
@@ -539,32 +588,42 @@ public class Ecu {
     }
 
     public Ecu(InputStream is){
-        String line;
-        BufferedReader br;
-        StringBuilder sb = new StringBuilder();
+        this(readStream(is), null);
+    }
 
-        try {
-            br = new BufferedReader(new InputStreamReader(is));
-            while ((line = br.readLine()) != null) {
-                sb.append(line + "\n");
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    public Ecu(String json){
+        this(json, null);
+    }
 
+    /*
+     * Build the ECU model sharing identical data definitions and strings
+     * with the other ECUs loaded through the same pool
+     */
+    public Ecu(InputStream is, EcuDefinitionPool pool){
+        this(readStream(is), pool);
+    }
+
+    public Ecu(String json, EcuDefinitionPool pool){
+        m_pool = pool;
         try {
-            init(new JSONObject(sb.toString()));
+            init(new JSONObject(json));
         } catch (Exception e){
             e.printStackTrace();
         }
     }
 
-    public Ecu(String json){
+    private static String readStream(InputStream is){
+        String line;
+        StringBuilder sb = new StringBuilder();
         try {
-            init(new JSONObject(json));
-        } catch (Exception e){
+            BufferedReader br = new BufferedReader(new InputStreamReader(is));
+            while ((line = br.readLine()) != null) {
+                sb.append(line + "\n");
+            }
+        } catch (Exception e) {
             e.printStackTrace();
         }
+        return sb.toString();
     }
 
     public EcuData getData(String dataname){
@@ -575,6 +634,10 @@ public class Ecu {
         return requests.get(req_name);
     }
 
+    public Set<String> getRequestNames(){
+        return requests.keySet();
+    }
+
     public String getRequestData(byte[] bytes, String requestname, String dataname){
         EcuDataItem dataitem = getRequest(requestname).recvbyte_dataitems.get(dataname);
         EcuData ecudata = getData(dataname);
@@ -639,29 +702,27 @@ public class Ecu {
     }
 
     public static String byteArrayToHex(byte[] a) {
-        StringBuilder sb = new StringBuilder(a.length * 2);
-        for(byte b: a)
-            sb.append(String.format("%02x", b));
-        return sb.toString().toUpperCase();
+        return HexCodec.encode(a);
     }
 
     public byte[] setRequestValues(String requestname, HashMap<String, Object> hash){
         EcuRequest req = getRequest(requestname);
         byte[] barray = hexStringToByteArray(req.sentbytes);
-        Log.i("canapp", "Sentbytes : " + req.sentbytes);
+        EcuLog.i("canapp", "Sentbytes : " + req.sentbytes);
         for (Map.Entry<String, Object> entry: hash.entrySet()){
             EcuDataItem item = req.getSendDataItem(entry.getKey());
             EcuData data = getData(entry.getKey());
 
-            Log.i("canapp", "set key " + entry.getKey());
-            if (!data.items.isEmpty() && (entry.getValue() instanceof String == true)){
+            EcuLog.i("canapp", "set key " + entry.getKey());
+            if (!data.lists.isEmpty() && (entry.getValue() instanceof String == true)){
                 String val = (String)entry.getValue();
-                if (data.items.containsKey(val)){
-                    Log.i("canapp", "set key " + val + " with " + data.items.get(val));
-                    barray = data.setValue(Integer.toHexString(data.items.get(val)), barray, item);
+                if (data.lists.containsName(val)){
+                    int key = data.lists.getKey(val);
+                    EcuLog.i("canapp", "set key " + val + " with " + key);
+                    barray = data.setValue(Integer.toHexString(key), barray, item);
                     continue;
                 } else {
-                    Log.i("canapp", "key not found : " + val);
+                    EcuLog.i("canapp", "key not found : " + val);
                 }
             }
             barray = data.setValue(entry.getValue(), barray, item);
@@ -670,6 +731,7 @@ public class Ecu {
     }
 
     public String getDefaultSDS(){
+        discoverSds();
         return m_defaultSDS;
     }
 
@@ -720,8 +782,6 @@ public class Ecu {
         requests = new HashMap<>();
         HashMap<String, EcuDevice> devices = new HashMap<>();
         data = new HashMap<>();
-        sdsrequests = new HashMap<>();
-        m_defaultSDS = "10C0";
 
         try {
             if (ecudef.has("endian")) global_endian = ecudef.getString("endian");
@@ -763,44 +823,62 @@ public class Ecu {
                 String key = keys.next();
                 JSONObject dataobj = dataobjs.getJSONObject(key);
                 EcuData ecudata = new EcuData(dataobj, key);
-                data.put(key, ecudata);
+                if (m_pool != null)
+                    ecudata = m_pool.intern(ecudata);
+                data.put(ecudata.name, ecudata);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
+    }
+
+    /*
+     * Gather StartDiagnosticSession requests
+     * Done on first use only, most screens never need them
+     */
+    private synchronized void discoverSds(){
+        if (sdsrequests != null)
+            return;
 
-        // Gather StartDiagnosticSession requests
+        HashMap<String, String> sds = new HashMap<>();
+        String defaultSds = "10C0";
         for (String requestName : requests.keySet()){
             String upperReqName = requestName.toUpperCase();
-            if (upperReqName.contains("START")
-                    && upperReqName.contains("DIAG")
-                    && upperReqName.contains("SESSION")){
-                // Case StartDiagnosticSession.Extended
-                EcuRequest request = requests.get(requestName);
-                if (upperReqName.contains("EXTENDED") && !request.sentbytes.isEmpty()){
-                    m_defaultSDS = request.sentbytes;
-                }
-                for (String sdsDataItemName : request.sendbyte_dataitems.keySet()){
-
-                    EcuDataItem ecuDataItem = request.sendbyte_dataitems.get(sdsDataItemName);
-                    String upperSdsDataItemName = sdsDataItemName.toUpperCase();
-
-                    if (upperSdsDataItemName.contains("SESSION") && upperSdsDataItemName.contains("NAME")){
-                        for (String dataItemName: data.get(sdsDataItemName).items.keySet()) {
-                            HashMap sdsBuildValues = new HashMap();
-                            sdsBuildValues.put(ecuDataItem.name, dataItemName);
-                            byte[] dataStream = setRequestValues(requestName, sdsBuildValues);
-                            sdsrequests.put(dataItemName, byteArrayToHex(dataStream).toUpperCase());
-                            if (ecuDataItem.name.toUpperCase().contains("EXTENDED")){
-                                m_defaultSDS = byteArrayToHex(dataStream).toUpperCase();
-                            }
-                        }
+            if (!upperReqName.contains("START")
+                    || !upperReqName.contains("DIAG")
+                    || !upperReqName.contains("SESSION"))
+                continue;
+
+            EcuRequest request = requests.get(requestName);
+            // Case StartDiagnosticSession.Extended
+            if (upperReqName.contains("EXTENDED") && request.sentbytes != null && !request.sentbytes.isEmpty()){
+                defaultSds = request.sentbytes;
+            }
+            for (String sdsDataItemName : request.sendbyte_dataitems.keySet()){
+                String upperSdsDataItemName = sdsDataItemName.toUpperCase();
+                if (!upperSdsDataItemName.contains("SESSION") || !upperSdsDataItemName.contains("NAME"))
+                    continue;
+
+                EcuDataItem ecuDataItem = request.sendbyte_dataitems.get(sdsDataItemName);
+                EcuData sessionData = data.get(sdsDataItemName);
+                if (sessionData == null)
+                    continue;
+                boolean extended = ecuDataItem.name.toUpperCase().contains("EXTENDED");
+                for (String sessionName : sessionData.lists.getNames()) {
+                    byte[] dataStream = hexStringToByteArray(request.sentbytes);
+                    dataStream = sessionData.setIntValue(sessionData.lists.getKey(sessionName), dataStream, ecuDataItem);
+                    String hex = byteArrayToHex(dataStream);
+                    sds.put(sessionName, hex);
+                    if (extended){
+                        defaultSds = hex;
                     }
                 }
-                if (request.sendbyte_dataitems.keySet().size() == 0){
-                    sdsrequests.put(requestName, request.sentbytes);
-                }
+            }
+            if (request.sendbyte_dataitems.isEmpty()){
+                sds.put(requestName, request.sentbytes);
             }
         }
+        m_defaultSDS = defaultSds;
+        sdsrequests = sds;
     }
 }
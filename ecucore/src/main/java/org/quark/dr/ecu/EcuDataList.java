@@ -0,0 +1,145 @@
+package org.quark.dr.ecu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/*
+ * Immutable int -> String table used for EcuData enum lists.
+ * Keys are either stored densely (values indexed by key - min) when the
+ * range is small, or as sorted int keys with parallel values.
+ * Lookups do not box the raw value.
+ */
+public final class EcuDataList {
+    public static final EcuDataList EMPTY = new EcuDataList(null, new String[0], 0, 0);
+
+    // Sparse storage when m_keys is not null, dense otherwise
+    private final int[] m_keys;
+    final String[] m_values;
+    private final int m_min;
+    private final int m_size;
+
+    private EcuDataList(int[] keys, String[] values, int min, int size){
+        m_keys = keys;
+        m_values = values;
+        m_min = min;
+        m_size = size;
+    }
+
+    /*
+     * Build a table from count unsorted key/value pairs
+     * Duplicate keys keep the last value
+     */
+    public static EcuDataList create(int[] keys, String[] values, int count){
+        if (count == 0)
+            return EMPTY;
+
+        // Sort (key, position) pairs packed in longs, the position keeps
+        // the sort stable so that the last duplicate wins
+        long[] order = new long[count];
+        for (int i = 0; i < count; ++i)
+            order[i] = ((long)keys[i] << 32) | i;
+        Arrays.sort(order);
+
+        int[] sortedKeys = new int[count];
+        String[] sortedValues = new String[count];
+        int size = 0;
+        for (int i = 0; i < count; ++i){
+            int k = (int)(order[i] >> 32);
+            String v = values[(int)order[i]];
+            if (size > 0 && sortedKeys[size - 1] == k){
+                sortedValues[size - 1] = v;
+                continue;
+            }
+            sortedKeys[size] = k;
+            sortedValues[size] = v;
+            ++size;
+        }
+
+        int min = sortedKeys[0];
+        long span = (long)sortedKeys[size - 1] - min + 1;
+        if (span <= 2L * size){
+            String[] dense = new String[(int)span];
+            for (int i = 0; i < size; ++i)
+                dense[sortedKeys[i] - min] = sortedValues[i];
+            return new EcuDataList(null, dense, min, size);
+        }
+        return new EcuDataList(Arrays.copyOf(sortedKeys, size), Arrays.copyOf(sortedValues, size), 0, size);
+    }
+
+    public int size(){
+        return m_size;
+    }
+
+    public boolean isEmpty(){
+        return m_size == 0;
+    }
+
+    public String get(int key){
+        if (m_keys == null){
+            long index = (long)key - m_min;
+            if (index < 0 || index >= m_values.length)
+                return null;
+            return m_values[(int)index];
+        }
+        int index = Arrays.binarySearch(m_keys, key);
+        return index < 0 ? null : m_values[index];
+    }
+
+    public boolean containsKey(int key){
+        return get(key) != null;
+    }
+
+    /*
+     * Reverse lookup, returns the key of the given name or -1 if not found
+     * Use containsName to check for a name mapped to -1
+     */
+    public int getKey(String name){
+        int index = indexOfName(name);
+        if (index < 0)
+            return -1;
+        return m_keys == null ? m_min + index : m_keys[index];
+    }
+
+    public boolean containsName(String name){
+        return indexOfName(name) >= 0;
+    }
+
+    private int indexOfName(String name){
+        for (int i = 0; i < m_values.length; ++i){
+            if (m_values[i] != null && m_values[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /*
+     * Distinct names, in key order
+     */
+    public String[] getNames(){
+        ArrayList<String> names = new ArrayList<>(m_size);
+        HashSet<String> seen = new HashSet<>();
+        for (String value : m_values){
+            if (value != null && seen.add(value))
+                names.add(value);
+        }
+        return names.toArray(new String[0]);
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (this == o)
+            return true;
+        if (!(o instanceof EcuDataList))
+            return false;
+        EcuDataList other = (EcuDataList)o;
+        return m_size == other.m_size && m_min == other.m_min
+                && Arrays.equals(m_keys, other.m_keys)
+                && Arrays.equals(m_values, other.m_values);
+    }
+
+    @Override
+    public int hashCode(){
+        return 31 * (31 * m_min + Arrays.hashCode(m_keys)) + Arrays.hashCode(m_values);
+    }
+}
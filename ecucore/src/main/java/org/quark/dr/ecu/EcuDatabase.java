@@ -1,9 +1,5 @@
 package org.quark.dr.ecu;
 
-import android.os.Environment;
-import androidx.annotation.Nullable;
-import android.util.Log;
-
 import com.google.gson.Gson;
 
 import org.json.JSONArray;
@@ -58,6 +54,14 @@ public class EcuDatabase {
         return m_ecuInfo.get(addr);
     }
 
+    public ArrayList<EcuInfo> getEcuInfos() {
+        ArrayList<EcuInfo> list = new ArrayList<>();
+        for (ArrayList<EcuInfo> ecuArray : m_ecuInfo.values()) {
+            list.addAll(ecuArray);
+        }
+        return list;
+    }
+
     public ArrayList<String> getEcuByFunctions() {
         ArrayList<String> list = new ArrayList<>();
         Iterator<String> valueIterator = m_ecuAddressing.values().iterator();
@@ -82,7 +86,9 @@ public class EcuDatabase {
         }
     }
 
-    @Nullable
+    /*
+     * Null if no ECU matches
+     */
     public EcuInfo identifyOldEcu(int addressId, String supplier, String soft_version, String version, int diag_version) {
         ArrayList<EcuInfo> ecuInfos = m_ecuInfo.get(addressId);
         if (ecuInfos == null)
@@ -296,26 +302,27 @@ public class EcuDatabase {
         Projects = gson.fromJson(projects, ProjectData.Projects.class);
     }
 
+    /*
+     * Directories searched for ecu.zip when the given file does not exist,
+     * the Android module adds the external storage and data directories
+     */
+    protected File[] getStorageDirectories() {
+        return new File[] {new File(System.getProperty("user.home", "/")), new File("/storage"), new File("/mnt")};
+    }
+
     public String loadDatabase(String ecuFilename, String appDir) throws DatabaseException {
         if (m_loaded) {
-            Log.e("EcuDatabase", "Database already loaded");
+            EcuLog.e("EcuDatabase", "Database already loaded");
             return m_ecuFilePath;
         }
         File checkEcuFile = new File(ecuFilename);
         if (!checkEcuFile.exists())
             ecuFilename = "";
 
-        if (ecuFilename.isEmpty()) {
-            ecuFilename = searchEcuFile(new File(Environment.getExternalStorageDirectory().getPath()));
-        }
-        if (ecuFilename.isEmpty()) {
-            ecuFilename = searchEcuFile(new File(Environment.getDataDirectory().getPath()));
-        }
-        if (ecuFilename.isEmpty()) {
-            ecuFilename = searchEcuFile(new File("/storage"));
-        }
-        if (ecuFilename.isEmpty()) {
-            ecuFilename = searchEcuFile(new File("/mnt"));
+        for (File directory : getStorageDirectories()) {
+            if (!ecuFilename.isEmpty())
+                break;
+            ecuFilename = searchEcuFile(directory);
         }
         if (ecuFilename.isEmpty()) {
             throw new DatabaseException("Ecu file (ecu.zip) not found");
@@ -458,6 +465,10 @@ public class EcuDatabase {
         return TXADDRMAP.get(id);
     }
 
+    public String getEcuFilePath(){
+        return m_ecuFilePath;
+    }
+
     public ZipFileSystem getZipFileSystem(){
         return m_zipFileSystem;
     }
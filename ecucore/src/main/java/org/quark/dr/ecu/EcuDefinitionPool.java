@@ -0,0 +1,155 @@
+package org.quark.dr.ecu;
+
+import java.util.HashMap;
+
+/*
+ * Canonicalizing pool used while building Ecu models.
+ * ECU variants share most of their data definitions (names, units, formats,
+ * enum lists), keeping a single instance of each saves a lot of heap when
+ * many ECUs are loaded at the same time.
+ * Pooled objects are shared, they must be considered read-only.
+ */
+public class EcuDefinitionPool {
+    private final HashMap<String, String> m_strings = new HashMap<>();
+    private final HashMap<EcuDataList, EcuDataList> m_lists = new HashMap<>();
+    private final HashMap<DefinitionKey, Ecu.EcuData> m_definitions = new HashMap<>();
+    private int m_definitionRequests;
+
+    /*
+     * Wraps a definition to give it a value based equality
+     * Strings and tables are already interned when the key is built
+     */
+    private static class DefinitionKey {
+        private final Ecu.EcuData m_data;
+        private final int m_hash;
+
+        DefinitionKey(Ecu.EcuData data){
+            m_data = data;
+            int h = hashOf(data.name);
+            h = 31 * h + data.bitscount;
+            h = 31 * h + data.bytescount;
+            h = 31 * h + Float.floatToIntBits(data.step);
+            h = 31 * h + Float.floatToIntBits(data.offset);
+            h = 31 * h + Float.floatToIntBits(data.divideby);
+            h = 31 * h + (data.scaled ? 1 : 0);
+            h = 31 * h + (data.signed ? 2 : 0) + (data.isbyte ? 4 : 0);
+            h = 31 * h + (data.binary ? 8 : 0) + (data.bytesascii ? 16 : 0);
+            h = 31 * h + hashOf(data.format);
+            h = 31 * h + hashOf(data.description);
+            h = 31 * h + hashOf(data.unit);
+            h = 31 * h + hashOf(data.comment);
+            h = 31 * h + System.identityHashCode(data.lists);
+            m_hash = h;
+        }
+
+        private static int hashOf(String s){
+            return s == null ? 0 : s.hashCode();
+        }
+
+        private static boolean same(String a, String b){
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public int hashCode(){
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof DefinitionKey))
+                return false;
+            Ecu.EcuData a = m_data;
+            Ecu.EcuData b = ((DefinitionKey)o).m_data;
+            return a.bitscount == b.bitscount
+                    && a.bytescount == b.bytescount
+                    && a.scaled == b.scaled
+                    && a.signed == b.signed
+                    && a.isbyte == b.isbyte
+                    && a.binary == b.binary
+                    && a.bytesascii == b.bytesascii
+                    && Float.floatToIntBits(a.step) == Float.floatToIntBits(b.step)
+                    && Float.floatToIntBits(a.offset) == Float.floatToIntBits(b.offset)
+                    && Float.floatToIntBits(a.divideby) == Float.floatToIntBits(b.divideby)
+                    && a.lists == b.lists
+                    && same(a.name, b.name)
+                    && same(a.format, b.format)
+                    && same(a.description, b.description)
+                    && same(a.unit, b.unit)
+                    && same(a.comment, b.comment);
+        }
+    }
+
+    public synchronized String intern(String s){
+        if (s == null)
+            return null;
+        String pooled = m_strings.get(s);
+        if (pooled == null){
+            m_strings.put(s, s);
+            return s;
+        }
+        return pooled;
+    }
+
+    /*
+     * Returns the pooled definition equal to data, data itself becomes
+     * the pooled instance if none was found
+     */
+    public synchronized Ecu.EcuData intern(Ecu.EcuData data){
+        ++m_definitionRequests;
+        data.name = intern(data.name);
+        data.format = intern(data.format);
+        data.description = intern(data.description);
+        data.unit = intern(data.unit);
+        data.comment = intern(data.comment);
+        data.lists = internList(data.lists);
+
+        DefinitionKey key = new DefinitionKey(data);
+        Ecu.EcuData pooled = m_definitions.get(key);
+        if (pooled == null){
+            m_definitions.put(key, data);
+            return data;
+        }
+        return pooled;
+    }
+
+    private EcuDataList internList(EcuDataList list){
+        if (list == null || list.isEmpty())
+            return EcuDataList.EMPTY;
+        EcuDataList pooled = m_lists.get(list);
+        if (pooled == null){
+            // Not published yet, its names can still be replaced
+            for (int i = 0; i < list.m_values.length; ++i)
+                list.m_values[i] = intern(list.m_values[i]);
+            m_lists.put(list, list);
+            return list;
+        }
+        return pooled;
+    }
+
+    public synchronized int getStringCount(){
+        return m_strings.size();
+    }
+
+    public synchronized int getListCount(){
+        return m_lists.size();
+    }
+
+    public synchronized int getDefinitionCount(){
+        return m_definitions.size();
+    }
+
+    /*
+     * Number of definitions that were replaced by an already pooled one
+     */
+    public synchronized int getSharedDefinitionCount(){
+        return m_definitionRequests - m_definitions.size();
+    }
+
+    public synchronized void clear(){
+        m_strings.clear();
+        m_lists.clear();
+        m_definitions.clear();
+        m_definitionRequests = 0;
+    }
+}
@@ -0,0 +1,109 @@
+package org.quark.dr.ecu;
+
+/*
+ * Response times of one ECU, to tune its ELM timeout (AT ST, 4 ms units).
+ * A histogram of the last WINDOW samples in 4 ms buckets gives a high
+ * percentile, the timeout is that percentile plus a margin, doubled on
+ * each NO DATA (quick backoff) and slowly restored once the ECU answers
+ * again. Until MIN_SAMPLES responses are known the configured timeout
+ * (ceiling) is used, and never exceeded.
+ * One value for every request of the ECU, which only moves up at once, or
+ * down by more than a quarter : the adapter is not reconfigured between
+ * requests.
+ * Not thread safe, used by the ELM worker thread.
+ */
+public class EcuLatencyTracker {
+    public static final int BUCKET_MS = 4;
+    public static final int BUCKETS = 256;
+    public static final int WINDOW = 64;
+    public static final int MIN_SAMPLES = 16;
+    public static final int PERCENTILE = 99;
+    // Timeout = percentile * 3 / 2 + MARGIN_MS
+    public static final int MARGIN_MS = 16;
+    public static final int MIN_TIMEOUT = 5;
+    private static final int MAX_BACKOFF = 16;
+    // Successes needed to halve the backoff
+    private static final int BACKOFF_RECOVERY = 8;
+
+    private final int[] m_histogram = new int[BUCKETS];
+    private final int[] m_window = new int[WINDOW];
+    private int m_count;
+    private int m_next;
+    private int m_backoff = 1;
+    private int m_successes;
+    // Last value returned by getTimeout, 0 before
+    private int m_timeout;
+
+    public void recordResponse(long elapsedMs){
+        int bucket = (int) Math.min(BUCKETS - 1, Math.max(0, elapsedMs) / BUCKET_MS);
+        if (m_count == WINDOW)
+            --m_histogram[m_window[m_next]];
+        else
+            ++m_count;
+        m_window[m_next] = bucket;
+        m_next = (m_next + 1) % WINDOW;
+        ++m_histogram[bucket];
+
+        if (m_backoff > 1 && ++m_successes >= BACKOFF_RECOVERY){
+            m_backoff /= 2;
+            m_successes = 0;
+        }
+    }
+
+    /*
+     * NO DATA : the ECU may be slower than measured
+     */
+    public void recordTimeout(){
+        m_backoff = Math.min(MAX_BACKOFF, m_backoff * 2);
+        m_successes = 0;
+    }
+
+    /*
+     * Response to the retry, under the configured timeout, of a request
+     * that got NO DATA under timeout : a slow ECU backs off, a lost frame
+     * does not
+     */
+    public void recordRetryResponse(long elapsedMs, int timeout){
+        if (elapsedMs >= timeout * BUCKET_MS)
+            recordTimeout();
+        recordResponse(elapsedMs);
+    }
+
+    public int getSampleCount(){
+        return m_count;
+    }
+
+    /*
+     * Response time (upper bound of the bucket) under which percent of
+     * the samples are, -1 without sample
+     */
+    public int getPercentile(int percent){
+        if (m_count == 0)
+            return -1;
+        int rank = (m_count * percent + 99) / 100;
+        int seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; ++bucket){
+            seen += m_histogram[bucket];
+            if (seen >= rank)
+                return (bucket + 1) * BUCKET_MS;
+        }
+        return BUCKETS * BUCKET_MS;
+    }
+
+    /*
+     * AT ST value for the requests of the ECU, ceiling is the configured one
+     */
+    public int getTimeout(int ceiling){
+        int timeout = ceiling;
+        if (m_count >= MIN_SAMPLES){
+            int ms = getPercentile(PERCENTILE) * 3 / 2 + MARGIN_MS;
+            timeout = (ms + BUCKET_MS - 1) / BUCKET_MS * m_backoff;
+            timeout = Math.max(Math.min(MIN_TIMEOUT, ceiling), Math.min(timeout, ceiling));
+        }
+        // Hysteresis : keep the current value unless it is well above
+        if (m_timeout > 0 && timeout < m_timeout && timeout * 4 >= m_timeout * 3 && m_timeout <= ceiling)
+            timeout = m_timeout;
+        m_timeout = timeout;
+        return timeout;
+    }
+}
@@ -0,0 +1,60 @@
+package org.quark.dr.ecu;
+
+/*
+ * Logging of the core library, routed to logcat by the Android module
+ * (AndroidLogger). By default errors go to stderr and infos are dropped.
+ */
+public final class EcuLog {
+    public interface Logger {
+        void info(String tag, String message);
+        void error(String tag, String message, Throwable throwable);
+    }
+
+    public static final Logger CONSOLE = new Logger() {
+        @Override
+        public void info(String tag, String message){
+        }
+
+        @Override
+        public void error(String tag, String message, Throwable throwable){
+            System.err.println(tag + " : " + message);
+            if (throwable != null)
+                throwable.printStackTrace();
+        }
+    };
+
+    public static final Logger SILENT = new Logger() {
+        @Override
+        public void info(String tag, String message){
+        }
+
+        @Override
+        public void error(String tag, String message, Throwable throwable){
+        }
+    };
+
+    private static volatile Logger s_logger = CONSOLE;
+
+    private EcuLog(){
+    }
+
+    public static void setLogger(Logger logger){
+        s_logger = logger == null ? SILENT : logger;
+    }
+
+    public static Logger getLogger(){
+        return s_logger;
+    }
+
+    public static void i(String tag, String message){
+        s_logger.info(tag, message);
+    }
+
+    public static void e(String tag, String message){
+        s_logger.error(tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable throwable){
+        s_logger.error(tag, message, throwable);
+    }
+}
@@ -0,0 +1,529 @@
+package org.quark.dr.ecu;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+ * Persistent inverted index over the ECU database
+ * Indexes ECU names (db.json), request names, data item names/descriptions
+ * (ECU definitions) and screen names (layouts) so a technician can type
+ * "injector" and jump straight to the right screen.
+ *
+ * The index is built incrementally (a few ECUs at a time) and saved to
+ * ecu.sidx in the application directory every SAVE_INTERVAL_MS and when
+ * complete, so building can be interrupted and resumed.
+ * Queries are answered from a sorted term array (prefix = binary search)
+ * and bitsets, which keeps them in the millisecond range.
+ */
+
+public class EcuSearchIndex {
+    public static final int TYPE_ECU = 0;
+    public static final int TYPE_SCREEN = 1;
+    public static final int TYPE_DATA = 2;
+    public static final int TYPE_REQUEST = 3;
+
+    private static final int INDEX_VERSION = 1;
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final long SAVE_INTERVAL_MS = 30000;
+
+    public static class SearchHit {
+        public int type;
+        public String ecuHref, ecuName, name, screen;
+
+        @Override
+        public String toString() {
+            String typeName;
+            switch (type) {
+                case TYPE_ECU: typeName = "ECU"; break;
+                case TYPE_SCREEN: typeName = "SCREEN"; break;
+                case TYPE_DATA: typeName = "DATA"; break;
+                default: typeName = "REQUEST"; break;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append('[').append(typeName).append("] ").append(name);
+            if (type != TYPE_ECU)
+                sb.append(" - ").append(ecuName);
+            if (screen != null && type != TYPE_SCREEN)
+                sb.append(" / ").append(screen);
+            return sb.toString();
+        }
+    }
+
+    /*
+     * Growable int array, avoids boxing postings
+     */
+    private static class IntArray {
+        int[] data = new int[4];
+        int size;
+
+        void add(int v) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+    }
+
+    private final String m_indexFile;
+    private final EcuDatabase m_ecuDatabase;
+    private long m_databaseTimeStamp;
+
+    // String table, documents reference names by id
+    private final ArrayList<String> m_strings;
+    private final HashMap<String, Integer> m_stringIds;
+    // Documents : type, ecu href id, ecu name id, name id, screen id (-1 if none)
+    private IntArray m_docs;
+    private final HashMap<String, IntArray> m_postings;
+    private final Set<String> m_indexedEcus;
+    // Sorted term snapshot, rebuilt lazily after a batch
+    private String[] m_sortedTerms;
+    // Serializes the writers of the index file, not the queries
+    private final Object m_saveLock = new Object();
+    private long m_lastSave;
+
+    public EcuSearchIndex(EcuDatabase ecuDatabase, String applicationDirectory) {
+        m_ecuDatabase = ecuDatabase;
+        m_indexFile = applicationDirectory + "/ecu.sidx";
+        m_strings = new ArrayList<>();
+        m_stringIds = new HashMap<>();
+        m_docs = new IntArray();
+        m_postings = new HashMap<>();
+        m_indexedEcus = new HashSet<>();
+        m_databaseTimeStamp = 0;
+    }
+
+    /*
+     * Load a previously saved (maybe partial) index
+     * Returns false (and starts from scratch) if the database changed
+     */
+    public synchronized boolean load() {
+        long timeStamp = getDatabaseTimeStamp();
+        clear();
+        m_databaseTimeStamp = timeStamp;
+        m_lastSave = System.currentTimeMillis();
+        File file = new File(m_indexFile);
+        if (!file.exists())
+            return false;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != INDEX_VERSION || in.readLong() != timeStamp)
+                return false;
+
+            int stringCount = in.readInt();
+            for (int i = 0; i < stringCount; ++i) {
+                String s = in.readUTF();
+                m_stringIds.put(s, m_strings.size());
+                m_strings.add(s);
+            }
+
+            int ecuCount = in.readInt();
+            for (int i = 0; i < ecuCount; ++i) {
+                m_indexedEcus.add(m_strings.get(in.readInt()));
+            }
+
+            int docIntCount = in.readInt();
+            m_docs = new IntArray();
+            m_docs.data = new int[Math.max(docIntCount, 4)];
+            for (int i = 0; i < docIntCount; ++i) {
+                m_docs.data[i] = in.readInt();
+            }
+            m_docs.size = docIntCount;
+
+            int termCount = in.readInt();
+            for (int i = 0; i < termCount; ++i) {
+                String term = in.readUTF();
+                IntArray postings = new IntArray();
+                int count = in.readInt();
+                postings.data = new int[Math.max(count, 4)];
+                int doc = 0;
+                for (int j = 0; j < count; ++j) {
+                    // Postings are delta encoded
+                    doc += in.readInt();
+                    postings.data[j] = doc;
+                }
+                postings.size = count;
+                m_postings.put(term, postings);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        clear();
+        m_databaseTimeStamp = timeStamp;
+        return false;
+    }
+
+    /*
+     * The index is append only : a snapshot of the arrays and their sizes is
+     * taken under the lock and written outside it, queries are not blocked
+     * by the disk
+     */
+    public void save() {
+        long timeStamp;
+        String[] strings;
+        int[] ecuIds;
+        int[] docs;
+        int docCount;
+        String[] terms;
+        int[][] postingsData;
+        int[] postingsSizes;
+        synchronized (this) {
+            timeStamp = m_databaseTimeStamp;
+            strings = m_strings.toArray(new String[0]);
+            ecuIds = new int[m_indexedEcus.size()];
+            int i = 0;
+            for (String href : m_indexedEcus) {
+                ecuIds[i++] = m_stringIds.get(href);
+            }
+            docs = m_docs.data;
+            docCount = m_docs.size;
+            terms = new String[m_postings.size()];
+            postingsData = new int[terms.length][];
+            postingsSizes = new int[terms.length];
+            i = 0;
+            for (HashMap.Entry<String, IntArray> entry : m_postings.entrySet()) {
+                terms[i] = entry.getKey();
+                postingsData[i] = entry.getValue().data;
+                postingsSizes[i] = entry.getValue().size;
+                ++i;
+            }
+            m_lastSave = System.currentTimeMillis();
+        }
+
+        synchronized (m_saveLock) {
+            File tmpFile = new File(m_indexFile + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile), 65536))) {
+                out.writeInt(INDEX_VERSION);
+                out.writeLong(timeStamp);
+
+                out.writeInt(strings.length);
+                for (String s : strings) {
+                    out.writeUTF(s);
+                }
+
+                out.writeInt(ecuIds.length);
+                for (int id : ecuIds) {
+                    out.writeInt(id);
+                }
+
+                out.writeInt(docCount);
+                for (int i = 0; i < docCount; ++i) {
+                    out.writeInt(docs[i]);
+                }
+
+                out.writeInt(terms.length);
+                for (int i = 0; i < terms.length; ++i) {
+                    out.writeUTF(terms[i]);
+                    out.writeInt(postingsSizes[i]);
+                    int previous = 0;
+                    for (int j = 0; j < postingsSizes[i]; ++j) {
+                        out.writeInt(postingsData[i][j] - previous);
+                        previous = postingsData[i][j];
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (!tmpFile.renameTo(new File(m_indexFile))) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return getRemainingCount() == 0;
+    }
+
+    public synchronized int getRemainingCount() {
+        int remaining = 0;
+        for (EcuDatabase.EcuInfo info : m_ecuDatabase.getEcuInfos()) {
+            if (!m_indexedEcus.contains(info.href))
+                ++remaining;
+        }
+        return remaining;
+    }
+
+    public synchronized int getDocumentCount() {
+        return m_docs.size / 5;
+    }
+
+    /*
+     * Index at most maxEcus not yet indexed ECUs, saved when complete or
+     * SAVE_INTERVAL_MS after the last save
+     * Call it repeatedly from a background thread until it returns 0
+     * Returns the number of ECUs still to index
+     */
+    public int indexNext(int maxEcus) {
+        ArrayList<EcuDatabase.EcuInfo> todo = new ArrayList<>();
+        synchronized (this) {
+            for (EcuDatabase.EcuInfo info : m_ecuDatabase.getEcuInfos()) {
+                if (todo.size() >= maxEcus)
+                    break;
+                if (!m_indexedEcus.contains(info.href))
+                    todo.add(info);
+            }
+        }
+
+        for (EcuDatabase.EcuInfo info : todo) {
+            // Heavy JSON parsing is done outside the lock, queries stay responsive
+            String ecuJson = "";
+            String layoutJson = "";
+            ZipFileSystem zipFileSystem = m_ecuDatabase.getZipFileSystem();
+            if (zipFileSystem.fileExists(info.href))
+                ecuJson = zipFileSystem.getZipFile(info.href);
+            if (zipFileSystem.fileExists(info.href + ".layout"))
+                layoutJson = zipFileSystem.getZipFile(info.href + ".layout");
+            indexEcu(info.href, info.ecuName, ecuJson, layoutJson);
+        }
+
+        int remaining;
+        boolean saveDue;
+        synchronized (this) {
+            remaining = getRemainingCount();
+            saveDue = remaining == 0 || System.currentTimeMillis() - m_lastSave >= SAVE_INTERVAL_MS;
+        }
+        if (!todo.isEmpty() && saveDue)
+            save();
+        return remaining;
+    }
+
+    /*
+     * Index one ECU definition and its layout
+     */
+    void indexEcu(String href, String ecuName, String ecuJson, String layoutJson) {
+        HashMap<String, String> dataScreens = new HashMap<>();
+        HashMap<String, String> requestScreens = new HashMap<>();
+        ArrayList<String> screens = new ArrayList<>();
+
+        if (layoutJson != null && !layoutJson.isEmpty()) {
+            try {
+                JSONObject layout = new JSONObject(layoutJson);
+                if (layout.has("screens")) {
+                    JSONObject screensObject = layout.getJSONObject("screens");
+                    Iterator<String> keys = screensObject.keys();
+                    while (keys.hasNext()) {
+                        String screenName = keys.next();
+                        screens.add(screenName);
+                        JSONObject screen = screensObject.getJSONObject(screenName);
+                        mapScreenItems(screen, "displays", screenName, dataScreens, requestScreens);
+                        mapScreenItems(screen, "inputs", screenName, dataScreens, requestScreens);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        ArrayList<String[]> requestNames = new ArrayList<>();
+        ArrayList<String[]> dataNames = new ArrayList<>();
+        if (ecuJson != null && !ecuJson.isEmpty()) {
+            try {
+                JSONObject ecuDef = new JSONObject(ecuJson);
+                if (ecuDef.has("requests")) {
+                    JSONArray requests = ecuDef.getJSONArray("requests");
+                    for (int i = 0; i < requests.length(); ++i) {
+                        JSONObject request = requests.getJSONObject(i);
+                        if (request.has("name"))
+                            requestNames.add(new String[]{request.getString("name"), ""});
+                    }
+                }
+                if (ecuDef.has("data")) {
+                    JSONObject data = ecuDef.getJSONObject("data");
+                    Iterator<String> keys = data.keys();
+                    while (keys.hasNext()) {
+                        String dataName = keys.next();
+                        JSONObject dataObject = data.getJSONObject(dataName);
+                        String description = dataObject.has("description") ?
+                                dataObject.getString("description") : "";
+                        dataNames.add(new String[]{dataName, description});
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        synchronized (this) {
+            if (m_indexedEcus.contains(href))
+                return;
+            addDocument(TYPE_ECU, href, ecuName, ecuName, null, href);
+            for (String screen : screens) {
+                addDocument(TYPE_SCREEN, href, ecuName, screen, screen, "");
+            }
+            for (String[] request : requestNames) {
+                addDocument(TYPE_REQUEST, href, ecuName, request[0],
+                        requestScreens.get(request[0]), request[1]);
+            }
+            for (String[] data : dataNames) {
+                addDocument(TYPE_DATA, href, ecuName, data[0], dataScreens.get(data[0]), data[1]);
+            }
+            m_indexedEcus.add(href);
+            intern(href);
+            m_sortedTerms = null;
+        }
+    }
+
+    private static void mapScreenItems(JSONObject screen, String tag, String screenName,
+                                       HashMap<String, String> dataScreens,
+                                       HashMap<String, String> requestScreens) throws Exception {
+        if (!screen.has(tag))
+            return;
+        JSONArray items = screen.getJSONArray(tag);
+        for (int i = 0; i < items.length(); ++i) {
+            JSONObject item = items.getJSONObject(i);
+            if (item.has("text") && !dataScreens.containsKey(item.getString("text")))
+                dataScreens.put(item.getString("text"), screenName);
+            if (item.has("request") && !requestScreens.containsKey(item.getString("request")))
+                requestScreens.put(item.getString("request"), screenName);
+        }
+    }
+
+    private int intern(String s) {
+        Integer id = m_stringIds.get(s);
+        if (id != null)
+            return id;
+        m_stringIds.put(s, m_strings.size());
+        m_strings.add(s);
+        return m_strings.size() - 1;
+    }
+
+    private void addDocument(int type, String href, String ecuName, String name,
+                             String screen, String extraText) {
+        int docId = m_docs.size / 5;
+        m_docs.add(type);
+        m_docs.add(intern(href));
+        m_docs.add(intern(ecuName));
+        m_docs.add(intern(name));
+        m_docs.add(screen == null ? -1 : intern(screen));
+
+        Set<String> terms = new HashSet<>();
+        tokenize(name, terms);
+        tokenize(extraText, terms);
+        for (String term : terms) {
+            IntArray postings = m_postings.get(term);
+            if (postings == null) {
+                postings = new IntArray();
+                m_postings.put(term, postings);
+            }
+            postings.add(docId);
+        }
+    }
+
+    /*
+     * Lower case, accent free alphanumeric tokens
+     */
+    static void tokenize(String text, Set<String> tokens) {
+        if (text == null || text.isEmpty())
+            return;
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .toLowerCase(Locale.US);
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i <= normalized.length(); ++i) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK)
+                continue;
+            if (Character.isLetterOrDigit(c)) {
+                current.append(c);
+            } else if (current.length() > 0) {
+                if (current.length() >= MIN_TOKEN_LENGTH)
+                    tokens.add(current.toString());
+                current.setLength(0);
+            }
+        }
+    }
+
+    /*
+     * Every query token must match (as a prefix) a term of the document
+     * Results are sorted by type : ECUs, screens, data items, then requests
+     */
+    public synchronized List<SearchHit> search(String query, int maxHits) {
+        ArrayList<SearchHit> hits = new ArrayList<>();
+        ArrayList<String> queryTokens = new ArrayList<>();
+        HashSet<String> tokenSet = new HashSet<>();
+        tokenize(query, tokenSet);
+        queryTokens.addAll(tokenSet);
+        if (queryTokens.isEmpty())
+            return hits;
+
+        if (m_sortedTerms == null) {
+            m_sortedTerms = m_postings.keySet().toArray(new String[0]);
+            Arrays.sort(m_sortedTerms);
+        }
+
+        int docCount = m_docs.size / 5;
+        BitSet result = null;
+        for (String token : queryTokens) {
+            BitSet tokenDocs = new BitSet(docCount);
+            int index = Arrays.binarySearch(m_sortedTerms, token);
+            if (index < 0)
+                index = -index - 1;
+            for (; index < m_sortedTerms.length && m_sortedTerms[index].startsWith(token); ++index) {
+                IntArray postings = m_postings.get(m_sortedTerms[index]);
+                for (int i = 0; i < postings.size; ++i) {
+                    tokenDocs.set(postings.data[i]);
+                }
+            }
+            if (result == null) {
+                result = tokenDocs;
+            } else {
+                result.and(tokenDocs);
+            }
+            if (result.isEmpty())
+                return hits;
+        }
+
+        for (int type = TYPE_ECU; type <= TYPE_REQUEST && hits.size() < maxHits; ++type) {
+            for (int doc = result.nextSetBit(0); doc >= 0 && hits.size() < maxHits;
+                 doc = result.nextSetBit(doc + 1)) {
+                if (m_docs.data[doc * 5] != type)
+                    continue;
+                SearchHit hit = new SearchHit();
+                hit.type = type;
+                hit.ecuHref = m_strings.get(m_docs.data[doc * 5 + 1]);
+                hit.ecuName = m_strings.get(m_docs.data[doc * 5 + 2]);
+                hit.name = m_strings.get(m_docs.data[doc * 5 + 3]);
+                int screenId = m_docs.data[doc * 5 + 4];
+                hit.screen = screenId < 0 ? null : m_strings.get(screenId);
+                hits.add(hit);
+            }
+        }
+        return hits;
+    }
+
+    private void clear() {
+        m_strings.clear();
+        m_stringIds.clear();
+        m_docs = new IntArray();
+        m_postings.clear();
+        m_indexedEcus.clear();
+        m_sortedTerms = null;
+    }
+
+    private long getDatabaseTimeStamp() {
+        String path = m_ecuDatabase.getEcuFilePath();
+        if (path == null)
+            return 0;
+        return new File(path).lastModified();
+    }
+}
@@ -0,0 +1,310 @@
+package org.quark.dr.ecu;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Commands waiting for the ELM worker thread
+ * The worker blocks in poll until a command is queued, so it starts as soon
+ * as the command arrives. The timeout lets it wake up for the tester present.
+ *
+ * Commands are queued in lanes, the first non empty lane is served :
+ *   interactive > configuration > polling > background
+ * An interactive command (button, DTC) goes out on the next bus slot. A
+ * configuration command changes the ELM state (headers, protocol), it is a
+ * barrier : what was queued before goes out before it, what is queued
+ * after goes out after it, whatever the lane. A polling or background
+ * command skipped MAX_SKIPS times is served before the upper lanes, except
+ * interactive. Order is kept inside a lane, a DELAY: goes in the lane of
+ * its command.
+ * A read request already pending in the same lane, with no other command
+ * than a read queued since in any lane (same protocol, header, timeout and
+ * ECU state), is not queued again : the response of the pending one is
+ * broadcast to the screen, which updates every view of the request from
+ * it. Session control, writes, routines, security access and AT/ST
+ * commands are never merged, and reads queued after them are not merged
+ * with reads queued before.
+ */
+public class ElmCommandQueue {
+    public static final int LANE_INTERACTIVE = 0;
+    public static final int LANE_CONFIGURATION = 1;
+    public static final int LANE_POLLING = 2;
+    public static final int LANE_BACKGROUND = 3;
+    public static final int LANE_COUNT = 4;
+
+    // Starvation protection of the polling and background lanes
+    public static final int MAX_SKIPS = 8;
+
+    private static class Entry {
+        final String command;
+        final long sequence;
+
+        Entry(String command, long sequence){
+            this.command = command;
+            this.sequence = sequence;
+        }
+    }
+
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private final Condition m_notEmpty = m_lock.newCondition();
+    private final List<ArrayDeque<Entry>> m_lanes = new ArrayList<>(LANE_COUNT);
+    private final int[] m_skips = new int[LANE_COUNT];
+    // Pending read requests of each lane, by bytes
+    private final List<HashMap<String, Entry>> m_reads = new ArrayList<>(LANE_COUNT);
+    private long m_sequence;
+    // Last command which is not a read, reads are not merged across it
+    private long m_mergeBarrier = -1;
+    private long m_coalesced;
+    private int m_size;
+    private boolean m_wakeUp;
+
+    public ElmCommandQueue(){
+        for (int i = 0; i < LANE_COUNT; ++i){
+            m_lanes.add(new ArrayDeque<>());
+            m_reads.add(new HashMap<>());
+        }
+    }
+
+    /*
+     * ELM (AT) and STN (ST) commands are configuration, the rest is polling
+     */
+    public static int defaultLane(String command){
+        if (command.length() >= 2){
+            char c0 = Character.toUpperCase(command.charAt(0));
+            char c1 = Character.toUpperCase(command.charAt(1));
+            if ((c0 == 'A' || c0 == 'S') && c1 == 'T')
+                return LANE_CONFIGURATION;
+        }
+        return LANE_POLLING;
+    }
+
+    /*
+     * Requests without side effect, safe to merge : read DTC, read
+     * identification, read data by local/common identifier
+     */
+    public static boolean isCoalescable(String command){
+        if (command.length() < 2 || (command.length() & 1) != 0 || !HexCodec.isHexadecimal(command))
+            return false;
+        switch (command.substring(0, 2).toUpperCase()){
+            case "17":
+            case "18":
+            case "19":
+            case "1A":
+            case "21":
+            case "22":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public boolean add(String command){
+        return add(command, defaultLane(command));
+    }
+
+    /*
+     * False if the command was merged with a pending identical read
+     */
+    public boolean add(String command, int lane){
+        if (lane < 0 || lane >= LANE_COUNT)
+            throw new IllegalArgumentException("Bad lane " + lane);
+        boolean configuration = defaultLane(command) == LANE_CONFIGURATION;
+        boolean coalescable = !configuration && isCoalescable(command);
+        m_lock.lock();
+        try {
+            if (coalescable){
+                Entry pending = m_reads.get(lane).get(command);
+                if (pending != null && pending.sequence > m_mergeBarrier){
+                    ++m_coalesced;
+                    return false;
+                }
+            }
+            Entry entry = new Entry(command, m_sequence++);
+            m_lanes.get(lane).addLast(entry);
+            // Whatever its lane, a write, a session change or an AT/ST
+            // command changes what a read returns
+            if (coalescable)
+                m_reads.get(lane).put(command, entry);
+            else
+                m_mergeBarrier = entry.sequence;
+            ++m_size;
+            m_notEmpty.signal();
+            return true;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /*
+     * Next command, null if none
+     */
+    public String poll(){
+        m_lock.lock();
+        try {
+            return next();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    public interface Filter {
+        boolean accept(String command);
+    }
+
+    /*
+     * Next command if filter accepts it, null otherwise (left queued)
+     */
+    public String pollIf(Filter filter){
+        m_lock.lock();
+        try {
+            if (m_size == 0)
+                return null;
+            Entry entry = m_lanes.get(selectLane()).peekFirst();
+            if (!filter.accept(entry.command))
+                return null;
+            return next();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /*
+     * Next command, waiting up to timeoutMs for one
+     * Null on timeout or if wakeUp was called
+     */
+    public String poll(long timeoutMs) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        m_lock.lockInterruptibly();
+        try {
+            while (m_size == 0){
+                if (m_wakeUp || nanos <= 0){
+                    m_wakeUp = false;
+                    return null;
+                }
+                nanos = m_notEmpty.awaitNanos(nanos);
+            }
+            return next();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /*
+     * Lane to serve, m_lock held
+     */
+    private int selectLane(){
+        Entry configuration = m_lanes.get(LANE_CONFIGURATION).peekFirst();
+        long barrier = configuration == null ? Long.MAX_VALUE : configuration.sequence;
+        if (isBefore(LANE_INTERACTIVE, barrier))
+            return LANE_INTERACTIVE;
+        for (int lane = LANE_BACKGROUND; lane > LANE_CONFIGURATION; --lane){
+            if (m_skips[lane] >= MAX_SKIPS && isBefore(lane, barrier))
+                return lane;
+        }
+        for (int lane = LANE_POLLING; lane < LANE_COUNT; ++lane){
+            if (isBefore(lane, barrier))
+                return lane;
+        }
+        return LANE_CONFIGURATION;
+    }
+
+    private boolean isBefore(int lane, long sequence){
+        Entry entry = m_lanes.get(lane).peekFirst();
+        return entry != null && entry.sequence < sequence;
+    }
+
+    private String next(){
+        if (m_size == 0)
+            return null;
+        int lane = selectLane();
+        for (int i = 0; i < LANE_COUNT; ++i){
+            if (i == lane || m_lanes.get(i).isEmpty())
+                m_skips[i] = 0;
+            else if (i > lane)
+                ++m_skips[i];
+        }
+        --m_size;
+        Entry entry = m_lanes.get(lane).pollFirst();
+        if (m_reads.get(lane).get(entry.command) == entry)
+            m_reads.get(lane).remove(entry.command);
+        return entry.command;
+    }
+
+    /*
+     * Makes the waiting poll return now (state change, stop request)
+     */
+    public void wakeUp(){
+        m_lock.lock();
+        try {
+            m_wakeUp = true;
+            m_notEmpty.signalAll();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    public void clear(){
+        m_lock.lock();
+        try {
+            for (int i = 0; i < LANE_COUNT; ++i){
+                m_lanes.get(i).clear();
+                m_reads.get(i).clear();
+                m_skips[i] = 0;
+            }
+            m_size = 0;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    public void clear(int lane){
+        m_lock.lock();
+        try {
+            m_size -= m_lanes.get(lane).size();
+            m_lanes.get(lane).clear();
+            m_reads.get(lane).clear();
+            m_skips[lane] = 0;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    public int size(){
+        m_lock.lock();
+        try {
+            return m_size;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    public int size(int lane){
+        m_lock.lock();
+        try {
+            return m_lanes.get(lane).size();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /*
+     * Number of requests merged with a pending one
+     */
+    public long getCoalescedCount(){
+        m_lock.lock();
+        try {
+            return m_coalesced;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+}
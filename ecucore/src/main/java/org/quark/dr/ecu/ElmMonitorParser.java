@@ -0,0 +1,94 @@
+package org.quark.dr.ecu;
+
+/*
+ * Parses the output of the ELM/STN monitor commands (AT MA, STMA, STM),
+ * headers on, DLC off : "7E8 02 10 C0" or "18DAF17A0210C0" (29 bits),
+ * straight from the bytes read, into a CanFrameRing. Nothing is
+ * allocated per frame.
+ * Lines that are not frames (BUFFER FULL, <DATA ERROR, <RX ERROR...)
+ * are counted and dropped. The prompt ends the monitoring : adapter
+ * stopped (buffer full) or answered our stop.
+ */
+public class ElmMonitorParser {
+    private final CanFrameRing m_ring;
+    private final int m_idDigits;
+    private final byte[] m_data = new byte[CanFrameRing.MAX_DLC];
+    // Current line
+    private int m_id;
+    private int m_digits;
+    private int m_length;
+    private int m_high;
+    private boolean m_bad;
+    private long m_frames;
+    private long m_errors;
+
+    public ElmMonitorParser(CanFrameRing ring, boolean extended){
+        m_ring = ring;
+        m_idDigits = extended ? 8 : 3;
+    }
+
+    /*
+     * Feeds bytes received at timestamp, returns true at the prompt
+     */
+    public boolean feed(byte[] buffer, int offset, int length, long timestamp){
+        boolean prompt = false;
+        for (int i = offset; i < offset + length; ++i){
+            char c = (char) (buffer[i] & 0xFF);
+            if (c == '\r' || c == '\n'){
+                endLine(timestamp);
+            } else if (c == '>'){
+                endLine(timestamp);
+                prompt = true;
+            } else if (c != ' ' && !m_bad){
+                int digit = HexCodec.digit(c);
+                if (digit < 0){
+                    m_bad = true;
+                } else if (m_digits < m_idDigits){
+                    m_id = (m_id << 4) | digit;
+                    ++m_digits;
+                } else if (m_length == CanFrameRing.MAX_DLC){
+                    m_bad = true;
+                } else if (((m_digits++ - m_idDigits) & 1) == 0){
+                    m_high = digit;
+                } else {
+                    m_data[m_length++] = (byte) ((m_high << 4) | digit);
+                }
+            }
+        }
+        return prompt;
+    }
+
+    private void endLine(long timestamp){
+        if (m_digits > 0 || m_bad){
+            // ID and whole bytes only
+            if (m_bad || m_digits < m_idDigits || ((m_digits - m_idDigits) & 1) != 0)
+                ++m_errors;
+            else {
+                m_ring.add(timestamp, m_id, m_data, 0, m_length);
+                ++m_frames;
+            }
+        }
+        m_id = 0;
+        m_digits = 0;
+        m_length = 0;
+        m_bad = false;
+    }
+
+    /*
+     * Forgets a partial line (monitoring restarted)
+     */
+    public void reset(){
+        m_id = 0;
+        m_digits = 0;
+        m_length = 0;
+        m_bad = false;
+    }
+
+    public long getFrameCount(){
+        return m_frames;
+    }
+
+    public long getErrorCount(){
+        return m_errors;
+    }
+}
@@ -0,0 +1,160 @@
+package org.quark.dr.ecu;
+
+import java.util.List;
+
+/*
+ * Sends runs of ELM/STN configuration commands back to back instead of
+ * waiting for the prompt of each one, the replies ('>' delimited) come
+ * back in order. Over Bluetooth or WiFi a run costs one link round trip
+ * instead of one per command.
+ * Only AT/ST commands that do not reset the adapter or talk to the bus
+ * are pipelined : an ELM aborts a pending bus request ("STOPPED") when
+ * input arrives. Pipelining is off (depth 1) until the adapter is known
+ * to buffer its input (STN). If a reply is missing or mangled (clone
+ * dropping input), the pipeline falls back to stop and wait for good and
+ * the commands not answered yet are sent again, one by one. AT commands
+ * can be repeated without harm.
+ */
+public class ElmPipeline {
+    public static final int DEFAULT_DEPTH = 8;
+    public static final long DEFAULT_READ_TIMEOUT = 1000;
+    // Left over replies after a failure
+    private static final long RESYNC_TIMEOUT = 200;
+
+    public interface Link {
+        /*
+         * Writes command and waits for its reply, stop and wait
+         */
+        String exchange(String command);
+
+        /*
+         * Writes command, does not wait
+         */
+        void write(String command);
+
+        /*
+         * Next reply, up to the prompt, null after timeoutMs
+         */
+        String read(long timeoutMs);
+    }
+
+    private final Link m_link;
+    private volatile int m_depth = 1;
+    private long m_readTimeout = DEFAULT_READ_TIMEOUT;
+    private int m_fallbacks;
+
+    public ElmPipeline(Link link){
+        m_link = link;
+    }
+
+    /*
+     * Adapters known to buffer commands, from the STI reply
+     */
+    public static boolean isPipelineCapable(String identification){
+        return identification != null && identification.toUpperCase().contains("STN");
+    }
+
+    /*
+     * Configuration commands without reset, protocol search or bus traffic
+     */
+    public static boolean isPipelinable(String command){
+        if (ElmCommandQueue.defaultLane(command) != ElmCommandQueue.LANE_CONFIGURATION)
+            return false;
+        String c = command.replace(" ", "").toUpperCase();
+        if (c.startsWith("AT")){
+            c = c.substring(2);
+            // Reset, defaults, slow inits, monitoring, baud rate, bus
+            return !(c.equals("Z") || c.equals("WS") || c.equals("D") || c.equals("FI") || c.equals("SI")
+                    || c.startsWith("M") || c.startsWith("BR") || c.startsWith("DP") || c.equals("RV")
+                    || c.equals("BD") || c.equals("LP"));
+        }
+        // STN : only protocol setup
+        return c.startsWith("STP") && !c.startsWith("STPX");
+    }
+
+    public void setDepth(int depth){
+        m_depth = Math.max(1, depth);
+    }
+
+    public int getDepth(){
+        return m_depth;
+    }
+
+    public boolean isPipelining(){
+        return m_depth > 1;
+    }
+
+    public void setReadTimeout(long timeoutMs){
+        m_readTimeout = timeoutMs;
+    }
+
+    public int getFallbackCount(){
+        return m_fallbacks;
+    }
+
+    /*
+     * Replies of commands, in order, "" if none
+     */
+    public String[] exchange(List<String> commands){
+        int count = commands.size();
+        String[] replies = new String[count];
+        int sent = 0;
+        int received = 0;
+        while (received < count){
+            int depth = m_depth;
+            if (depth <= 1 || (sent == received && count - received == 1)){
+                String reply = m_link.exchange(commands.get(received));
+                replies[received++] = reply == null ? "" : reply;
+                continue;
+            }
+            while (sent < count && sent - received < depth)
+                m_link.write(commands.get(sent++));
+            String command = commands.get(received);
+            String reply = m_link.read(m_readTimeout);
+            if (isValidReply(command, reply)){
+                replies[received++] = reply;
+                continue;
+            }
+            // Input dropped or merged : drain, then stop and wait
+            m_depth = 1;
+            ++m_fallbacks;
+            EcuLog.e("ElmPipeline", "ERROR : bad pipelined reply to " + command + " : " + reply
+                    + ", pipelining disabled");
+            while (sent > received + 1 && m_link.read(RESYNC_TIMEOUT) != null)
+                --sent;
+            sent = received;
+        }
+        return replies;
+    }
+
+    /*
+     * Reply with our echo (E1) or without echo, nothing unknown to the adapter
+     */
+    static boolean isValidReply(String command, String reply){
+        if (reply == null)
+            return false;
+        String expected = command.replace(" ", "");
+        boolean first = true;
+        for (String line : reply.split("\n")){
+            String trimmed = line.trim();
+            if (trimmed.isEmpty())
+                continue;
+            if (trimmed.equals("?") || trimmed.contains("STOPPED") || trimmed.contains("BUFFER FULL"))
+                return false;
+            if (first){
+                String echo = trimmed.replace(" ", "");
+                // Another command echoed first : replies out of step
+                if (ElmCommandQueue.defaultLane(echo) == ElmCommandQueue.LANE_CONFIGURATION
+                        && !echo.equalsIgnoreCase(expected) && !isIdentification(echo))
+                    return false;
+                first = false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIdentification(String line){
+        String upper = line.toUpperCase();
+        return upper.startsWith("STN") || upper.startsWith("ELM");
+    }
+}
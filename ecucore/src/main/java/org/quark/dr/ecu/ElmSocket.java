@@ -0,0 +1,87 @@
+package org.quark.dr.ecu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * ELM327 over a TCP socket (WiFi adapters, the emulator) : commands end
+ * with CR, replies with the '>' prompt. CR are turned into LF.
+ * Errors, end of stream and overflowing replies throw IOException, the
+ * caller reports the lost link.
+ */
+public class ElmSocket {
+    // A reply without prompt beyond this is garbage, the socket is closed
+    public static final int MAX_REPLY = 32768;
+
+    private final Socket m_socket;
+    private final InputStream m_in;
+    private final OutputStream m_out;
+
+    public ElmSocket(Socket socket) throws IOException {
+        m_socket = socket;
+        m_in = socket.getInputStream();
+        m_out = socket.getOutputStream();
+    }
+
+    public void write(byte[] buffer) throws IOException {
+        m_out.write(buffer);
+        m_out.flush();
+    }
+
+    public void writeCommand(String command) throws IOException {
+        write((command + "\r").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /*
+     * Reply up to the prompt, null if the adapter is silent for timeoutMs,
+     * 0 waits forever
+     */
+    public String read(long timeoutMs) throws IOException {
+        m_socket.setSoTimeout((int) timeoutMs);
+        StringBuilder res = new StringBuilder();
+        try {
+            int b;
+            while ((b = m_in.read()) != '>') {
+                if (b < 0)
+                    throw new IOException("Socket closed");
+                if (res.length() >= MAX_REPLY) {
+                    close();
+                    throw new IOException("Socket overflow");
+                }
+                res.append(b == 0x0d ? '\n' : (char) b);
+            }
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+        return res.toString();
+    }
+
+    /*
+     * Command and its reply, null after timeoutMs
+     */
+    public String exchange(String command, long timeoutMs) throws IOException {
+        writeCommand(command);
+        return read(timeoutMs);
+    }
+
+    /*
+     * Monitor mode, what the adapter sent, 0 after timeoutMs, -1 at the end
+     * of the stream
+     */
+    public int readBytes(byte[] buffer, long timeoutMs) throws IOException {
+        m_socket.setSoTimeout((int) timeoutMs);
+        try {
+            return m_in.read(buffer);
+        } catch (SocketTimeoutException e) {
+            return 0;
+        }
+    }
+
+    public void close() throws IOException {
+        m_socket.close();
+    }
+}
@@ -0,0 +1,176 @@
+package org.quark.dr.ecu;
+
+import java.util.HashMap;
+
+/*
+ * Known configuration of the ELM/STN adapter (protocol, headers, filters,
+ * flow control, timeouts...), to skip the AT commands that would not
+ * change anything. A setting is only known once the adapter answered OK
+ * to it. Everything is forgotten on reset, reconnection, or when the
+ * adapter reports an error, the next commands are then sent again.
+ * AT Z is skipped while the adapter is known to be reset and configured.
+ * Not thread safe, used by the ELM worker thread.
+ */
+public class ElmState {
+    // Longest first, the rest of the command is the value
+    private static final String[] AT_SETTINGS = {"FCSH", "FCSD", "FCSM", "CAF", "CFC", "CRA", "IIA",
+            "CP", "CF", "CM", "SH", "SP", "ST", "SW", "WM", "IB", "KW", "AT", "AL", "NL", "E", "S", "H", "L", "R", "D"};
+    private static final String[] ST_SETTINGS = {"STPBR", "STP"};
+    // Adapter reset or lost, bus in an unknown state
+    private static final String BANNER = "ELM327";
+    private static final String[] ERRORS = {"LV RESET", BANNER, "BUS ERROR", "CAN ERROR", "FB ERROR",
+            "BUS INIT: ...ERROR", "UNABLE TO CONNECT", "DISCONNECTED"};
+
+    private final HashMap<String, String> m_values = new HashMap<>();
+    private boolean m_reset;
+
+    /*
+     * "ATSH7E0" -> {"SH", "7E0"}, null for an action (AT Z, AT SI, STI...)
+     */
+    static String[] parseSetting(String command){
+        String c = command.replace(" ", "").toUpperCase();
+        String[] settings;
+        String prefix;
+        if (c.startsWith("AT")){
+            settings = AT_SETTINGS;
+            prefix = "AT";
+        } else if (c.startsWith("ST")){
+            settings = ST_SETTINGS;
+            prefix = "";
+        } else {
+            return null;
+        }
+        String body = c.substring(prefix.length());
+        for (String key : settings){
+            if (!body.startsWith(key))
+                continue;
+            String value = body.substring(key.length());
+            if (key.equals("AL") || key.equals("NL")){
+                if (value.isEmpty())
+                    return new String[] {"LEN", key};
+                continue;
+            }
+            if (value.isEmpty())
+                continue;
+            if (key.length() == 1 || key.equals("CAF") || key.equals("CFC") || key.equals("KW")){
+                if (value.equals("0") || value.equals("1"))
+                    return new String[] {key, value};
+                continue;
+            }
+            if (key.equals("AT") && !(value.equals("0") || value.equals("1") || value.equals("2")))
+                continue;
+            if (key.startsWith("STP") && !isDigits(value))
+                continue;
+            if (key.equals("ST") && isHex(value)){
+                // AT ST 00 restores the default 200 ms
+                int timeout = Integer.parseInt(value, 16);
+                value = String.format("%02X", timeout == 0 ? 0x32 : timeout);
+            }
+            return new String[] {key, value};
+        }
+        return null;
+    }
+
+    private static boolean isDigits(String value){
+        for (int i = 0; i < value.length(); ++i){
+            if (!Character.isDigit(value.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isHex(String value){
+        return value.length() <= 2 && HexCodec.isHexadecimal(value);
+    }
+
+    private static boolean isResetCommand(String command){
+        String c = command.replace(" ", "").toUpperCase();
+        return c.equals("ATZ") || c.equals("ATWS") || c.equals("ATD");
+    }
+
+    /*
+     * True if sending command would not change the adapter
+     */
+    public boolean isRedundant(String command){
+        String c = command.replace(" ", "").toUpperCase();
+        if (c.equals("ATZ"))
+            return m_reset;
+        String[] setting = parseSetting(command);
+        return setting != null && setting[1].equals(m_values.get(setting[0]));
+    }
+
+    /*
+     * Adapter answered reply to command
+     */
+    public void update(String command, String reply){
+        boolean failed = reply == null || reply.contains("?");
+        if (isResetCommand(command)){
+            m_values.clear();
+            m_reset = !failed;
+            if (m_reset){
+                // Power on defaults the timeout handling relies on
+                m_values.put("ST", "32");
+                m_values.put("AT", "1");
+            }
+            return;
+        }
+        String[] setting = parseSetting(command);
+        if (command.replace(" ", "").equalsIgnoreCase("ATAR"))
+            forgetReceiveFilter();
+        if (setting == null){
+            // Identification replies (AT I, STI) carry the banner
+            if (reply != null && containsError(reply, false))
+                invalidate();
+            return;
+        }
+        // AT CRA replaces AT CF/CM and the other way round
+        if (setting[0].equals("CRA")){
+            m_values.remove("CF");
+            m_values.remove("CM");
+        } else if (setting[0].equals("CF") || setting[0].equals("CM")){
+            m_values.remove("CRA");
+        }
+        if (!failed && reply.contains("OK"))
+            m_values.put(setting[0], setting[1]);
+        else
+            m_values.remove(setting[0]);
+    }
+
+    private void forgetReceiveFilter(){
+        m_values.remove("CRA");
+        m_values.remove("CF");
+        m_values.remove("CM");
+    }
+
+    /*
+     * Forgets everything if the reply tells the adapter was reset or lost
+     */
+    public void checkResponse(String reply){
+        if (reply != null && containsError(reply, true))
+            invalidate();
+    }
+
+    private static boolean containsError(String reply, boolean banner){
+        for (String error : ERRORS){
+            if ((banner || !error.equals(BANNER)) && reply.contains(error))
+                return true;
+        }
+        return false;
+    }
+
+    public void invalidate(){
+        m_values.clear();
+        m_reset = false;
+    }
+
+    /*
+     * Value of a setting ("SH", "ST", "AT"...), null if unknown
+     */
+    public String getValue(String key){
+        return m_values.get(key);
+    }
+
+    public boolean isReset(){
+        return m_reset;
+    }
+}
@@ -0,0 +1,139 @@
+package org.quark.dr.ecu;
+
+import java.util.Arrays;
+
+/*
+ * Table driven hexadecimal codec
+ * Encodes to upper case, decodes both cases. Spaces between bytes are
+ * skipped when decoding (ELM lines with AT S1), any other character is invalid.
+ * The buffer variants do not allocate.
+ */
+public final class HexCodec {
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; ++i)
+            VALUES[i] = -1;
+        for (int i = 0; i < 10; ++i)
+            VALUES['0' + i] = (byte)i;
+        for (int i = 0; i < 6; ++i){
+            VALUES['A' + i] = (byte)(10 + i);
+            VALUES['a' + i] = (byte)(10 + i);
+        }
+    }
+
+    private HexCodec(){
+    }
+
+    /*
+     * Value of an hex digit, -1 if c is not one
+     */
+    public static int digit(char c){
+        return c < 128 ? VALUES[c] : -1;
+    }
+
+    /*
+     * True if every character is an hex digit (no spaces allowed)
+     */
+    public static boolean isHexadecimal(CharSequence text){
+        for (int i = 0; i < text.length(); ++i){
+            char c = text.charAt(i);
+            if (c >= 128 || VALUES[c] < 0)
+                return false;
+        }
+        return true;
+    }
+
+    public static String encode(byte[] src){
+        return encode(src, 0, src.length);
+    }
+
+    public static String encode(byte[] src, int offset, int length){
+        char[] chars = new char[length * 2];
+        encode(src, offset, length, chars, 0);
+        return new String(chars);
+    }
+
+    /*
+     * Writes 2 * length characters to dst, returns that count
+     */
+    public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset){
+        for (int i = 0; i < length; ++i){
+            int b = src[offset + i] & 0xFF;
+            dst[dstOffset++] = DIGITS[b >> 4];
+            dst[dstOffset++] = DIGITS[b & 0x0F];
+        }
+        return length * 2;
+    }
+
+    public static void encode(byte[] src, int offset, int length, StringBuilder dst){
+        for (int i = 0; i < length; ++i)
+            append(dst, src[offset + i]);
+    }
+
+    public static void append(StringBuilder dst, byte b){
+        dst.append(DIGITS[(b >> 4) & 0x0F]);
+        dst.append(DIGITS[b & 0x0F]);
+    }
+
+    /*
+     * Number of bytes text decodes to, spaces between bytes skipped
+     * -1 if it holds a non hex character or an odd number of digits
+     */
+    public static int decodedLength(CharSequence text){
+        int digits = 0;
+        for (int i = 0; i < text.length(); ++i){
+            char c = text.charAt(i);
+            if (c == ' '){
+                if ((digits & 1) != 0)
+                    return -1;
+                continue;
+            }
+            if (c >= 128 || VALUES[c] < 0)
+                return -1;
+            ++digits;
+        }
+        return (digits & 1) == 0 ? digits / 2 : -1;
+    }
+
+    /*
+     * Decodes text into dst, spaces between bytes skipped. Returns the number of bytes
+     * written or -1 if text is not valid (dst may then be partially written)
+     */
+    public static int decode(CharSequence text, byte[] dst, int dstOffset){
+        int position = dstOffset;
+        int length = text.length();
+        int i = 0;
+        while (i < length){
+            char high = text.charAt(i++);
+            if (high == ' ')
+                continue;
+            if (i == length)
+                return -1;
+            char low = text.charAt(i++);
+            if (low == ' ')
+                // Digits of a byte are never split
+                return -1;
+            if ((high | low) >= 128)
+                return -1;
+            int value = (VALUES[high] << 4) | VALUES[low];
+            if (value < 0)
+                return -1;
+            dst[position++] = (byte)value;
+        }
+        return position - dstOffset;
+    }
+
+    /*
+     * Decoded bytes, null if text is not valid
+     */
+    public static byte[] decode(CharSequence text){
+        // Single pass, only lines with spaces need the final copy
+        byte[] bytes = new byte[text.length() / 2];
+        int length = decode(text, bytes, 0);
+        if (length < 0)
+            return null;
+        return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+    }
+}
@@ -0,0 +1,36 @@
+package org.quark.dr.ecu;
+
+import java.util.ArrayList;
+
+/*
+ * Class to decode a CAN frame (single or multi line)
+ * Hex string front-end of IsoTpCodec
+ */
+
+public class IsoTPDecode {
+    private final ArrayList<String> responses;
+
+    public IsoTPDecode(ArrayList<String> mess){
+        responses = mess;
+    }
+
+    public static boolean isHexadecimal(String text) {
+        return HexCodec.isHexadecimal(text);
+    }
+
+    public String decodeCan(){
+        ArrayList<byte[]> frames = new ArrayList<>(responses.size());
+        for (String line : responses){
+            byte[] frame = IsoTpCodec.parseFrame(line);
+            if (frame == null)
+                return "ERROR : NON HEXA";
+            frames.add(frame);
+        }
+
+        try {
+            return IsoTpCodec.formatFrame(IsoTpCodec.decode(frames));
+        } catch (IsoTpException e) {
+            return "ERROR : " + e.getMessage();
+        }
+    }
+}
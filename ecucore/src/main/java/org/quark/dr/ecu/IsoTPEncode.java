@@ -0,0 +1,40 @@
+package org.quark.dr.ecu;
+
+import java.util.ArrayList;
+
+/*
+ * Class to format a CAN message to single/multi line frame
+ * Hex string front-end of IsoTpCodec
+ */
+
+public class IsoTPEncode {
+    private final String mmessage;
+    public IsoTPEncode(String mess){
+        mmessage = mess;
+    }
+
+    public String getFormatted(){
+        ArrayList<String> raw_command = getFormattedArray();
+        StringBuilder ret = new StringBuilder();
+        for (String frame: raw_command) {
+            ret.append(frame);
+            ret.append("\n");
+        }
+        return ret.toString();
+    }
+
+    public ArrayList<String> getFormattedArray(){
+        ArrayList<String> raw_command = new ArrayList<>();
+        byte[] message = IsoTpCodec.parseFrame(mmessage);
+        if (message == null)
+            return raw_command;
+
+        try {
+            for (byte[] frame : IsoTpCodec.encode(message))
+                raw_command.add(IsoTpCodec.formatFrame(frame));
+        } catch (IsoTpException e) {
+            raw_command.clear();
+        }
+        return raw_command;
+    }
+}
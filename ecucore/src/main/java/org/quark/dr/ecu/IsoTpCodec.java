@@ -0,0 +1,221 @@
+package org.quark.dr.ecu;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * ISO 15765-2 (ISO-TP) framing working on raw bytes
+ * Frames are the 8 bytes (or less, no padding) CAN payloads, the PCI byte(s)
+ * included. Hex is only used at the transport edge (formatFrame/parseFrame).
+ * Messages longer than 4095 bytes use the 32 bits first frame escape.
+ * See IsoTpSender/IsoTpReceiver for the flow controlled exchange.
+ */
+public final class IsoTpCodec {
+    public static final int SINGLE_FRAME = 0x0;
+    public static final int FIRST_FRAME = 0x1;
+    public static final int CONSECUTIVE_FRAME = 0x2;
+    public static final int FLOW_CONTROL = 0x3;
+
+    public static final int FC_CONTINUE = 0x0;
+    public static final int FC_WAIT = 0x1;
+    public static final int FC_OVERFLOW = 0x2;
+
+    public static final int MAX_SINGLE_FRAME_LENGTH = 7;
+    public static final int MAX_SHORT_MESSAGE_LENGTH = 0xFFF;
+
+    private IsoTpCodec(){
+    }
+
+    public static int frameType(byte[] frame){
+        return (frame[0] >> 4) & 0x0F;
+    }
+
+    public static List<byte[]> encode(byte[] payload) throws IsoTpException {
+        return encode(ByteBuffer.wrap(payload));
+    }
+
+    /*
+     * Split the remaining bytes of payload into single or first +
+     * consecutive frames
+     */
+    public static List<byte[]> encode(ByteBuffer payload) throws IsoTpException {
+        int length = payload.remaining();
+        if (length == 0)
+            throw new IsoTpException(IsoTpException.Error.EMPTY_MESSAGE);
+
+        ArrayList<byte[]> frames = new ArrayList<>(1 + length / 7);
+        if (length <= MAX_SINGLE_FRAME_LENGTH){
+            byte[] frame = new byte[1 + length];
+            frame[0] = (byte)length;
+            payload.get(frame, 1, length);
+            frames.add(frame);
+            return frames;
+        }
+
+        byte[] first = new byte[8];
+        if (length <= MAX_SHORT_MESSAGE_LENGTH){
+            first[0] = (byte)((FIRST_FRAME << 4) | (length >> 8));
+            first[1] = (byte)(length & 0xFF);
+            payload.get(first, 2, 6);
+        } else {
+            // Escape sequence : 12 bits length set to 0, 32 bits length follows
+            first[0] = (byte)(FIRST_FRAME << 4);
+            first[2] = (byte)(length >>> 24);
+            first[3] = (byte)(length >>> 16);
+            first[4] = (byte)(length >>> 8);
+            first[5] = (byte)length;
+            payload.get(first, 6, 2);
+        }
+        frames.add(first);
+
+        int sequence = 1;
+        while (payload.hasRemaining()){
+            int chunk = Math.min(payload.remaining(), 7);
+            byte[] frame = new byte[1 + chunk];
+            frame[0] = (byte)((CONSECUTIVE_FRAME << 4) | (sequence & 0x0F));
+            payload.get(frame, 1, chunk);
+            frames.add(frame);
+            ++sequence;
+        }
+        return frames;
+    }
+
+    /*
+     * Reassemble a complete response, flow control frames must have been
+     * filtered out. The frames list is left untouched.
+     */
+    public static byte[] decode(List<byte[]> frames) throws IsoTpException {
+        if (frames.isEmpty())
+            throw new IsoTpException(IsoTpException.Error.NO_DATA);
+
+        byte[] first = frames.get(0);
+        if (frames.size() == 1){
+            if (first.length == 0 || frameType(first) != SINGLE_FRAME)
+                throw new IsoTpException(IsoTpException.Error.BAD_SINGLE_FRAME);
+            return decodeSingleFrame(first);
+        }
+
+        if (first.length < 2 || frameType(first) != FIRST_FRAME)
+            throw new IsoTpException(IsoTpException.Error.BAD_FIRST_FRAME);
+
+        byte[] payload = new byte[firstFrameLength(first)];
+        int position = copy(first, firstFrameHeaderLength(first), payload, 0);
+        int length = payload.length;
+
+        int sequence = 1;
+        for (int i = 1; i < frames.size(); ++i){
+            byte[] frame = frames.get(i);
+            if (frame.length == 0 || frameType(frame) != CONSECUTIVE_FRAME)
+                throw new IsoTpException(IsoTpException.Error.BAD_FRAME);
+            if ((frame[0] & 0x0F) != (sequence & 0x0F))
+                throw new IsoTpException(IsoTpException.Error.BAD_SEQUENCE);
+            ++sequence;
+            position += copy(frame, 1, payload, position);
+        }
+
+        if (position < length)
+            throw new IsoTpException(IsoTpException.Error.RESPONSE_TOO_SHORT,
+                    formatFrame(payload, 0, position));
+        return payload;
+    }
+
+    /*
+     * Payload of a single frame, the CAN-FD escape (length nibble set to
+     * 0, length in the second byte) is accepted
+     */
+    public static byte[] decodeSingleFrame(byte[] frame) throws IsoTpException {
+        int length = frame[0] & 0x0F;
+        int header = 1;
+        if (length == 0 && frame.length > 1){
+            length = frame[1] & 0xFF;
+            header = 2;
+        }
+        if (frame.length < length + header)
+            throw new IsoTpException(IsoTpException.Error.RESPONSE_TOO_SHORT,
+                    formatFrame(frame, header, frame.length - header));
+        byte[] payload = new byte[length];
+        System.arraycopy(frame, header, payload, 0, length);
+        return payload;
+    }
+
+    /*
+     * Message length announced by a first frame
+     */
+    public static int firstFrameLength(byte[] frame) throws IsoTpException {
+        int length = ((frame[0] & 0x0F) << 8) | (frame[1] & 0xFF);
+        if (length != 0)
+            return length;
+        if (frame.length < 6)
+            throw new IsoTpException(IsoTpException.Error.BAD_FIRST_FRAME);
+        long escaped = ((long)(frame[2] & 0xFF) << 24) | ((frame[3] & 0xFF) << 16)
+                | ((frame[4] & 0xFF) << 8) | (frame[5] & 0xFF);
+        if (escaped > Integer.MAX_VALUE - 8)
+            throw new IsoTpException(IsoTpException.Error.MESSAGE_TOO_LONG);
+        return (int)escaped;
+    }
+
+    public static int firstFrameHeaderLength(byte[] frame){
+        if ((frame[0] & 0x0F) == 0 && frame[1] == 0)
+            return 6;
+        return 2;
+    }
+
+    /*
+     * Flow control frame : status, block size (0 = no limit) and STmin
+     */
+    public static byte[] flowControl(int status, int blockSize, int stMin){
+        return new byte[]{(byte)((FLOW_CONTROL << 4) | status), (byte)blockSize, (byte)stMin};
+    }
+
+    public static int flowStatus(byte[] frame){
+        return frame[0] & 0x0F;
+    }
+
+    public static int flowBlockSize(byte[] frame){
+        return frame.length > 1 ? frame[1] & 0xFF : 0;
+    }
+
+    /*
+     * STmin in microseconds : 0x00-0x7F milliseconds, 0xF1-0xF9 100-900us
+     * Reserved values are handled as the maximum (127ms)
+     */
+    public static int flowSeparationTimeMicros(byte[] frame){
+        int stMin = frame.length > 2 ? frame[2] & 0xFF : 0;
+        if (stMin <= 0x7F)
+            return stMin * 1000;
+        if (stMin >= 0xF1 && stMin <= 0xF9)
+            return (stMin - 0xF0) * 100;
+        return 0x7F * 1000;
+    }
+
+    private static int copy(byte[] frame, int from, byte[] payload, int position){
+        int count = Math.min(frame.length - from, payload.length - position);
+        if (count <= 0)
+            return 0;
+        System.arraycopy(frame, from, payload, position, count);
+        return count;
+    }
+
+    /*
+     * Transport edge : ELM327 hex line of a frame
+     */
+    public static String formatFrame(byte[] frame){
+        return HexCodec.encode(frame);
+    }
+
+    public static String formatFrame(byte[] frame, int offset, int length){
+        return HexCodec.encode(frame, offset, length);
+    }
+
+    /*
+     * Transport edge : parse an ELM327 hex line, spaces are ignored
+     * Returns null if the line is not an even length hexadecimal string
+     */
+    public static byte[] parseFrame(CharSequence line){
+        byte[] frame = HexCodec.decode(line);
+        if (frame == null || frame.length == 0)
+            return null;
+        return frame;
+    }
+}
@@ -0,0 +1,52 @@
+package org.quark.dr.ecu;
+
+/*
+ * ISO-TP encoding/decoding error
+ * The message keeps the wording of the former "ERROR : ..." strings
+ */
+public class IsoTpException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public enum Error {
+        NO_DATA("NO DATA"),
+        NON_HEXA("NON HEXA"),
+        EMPTY_MESSAGE("EMPTY MESSAGE"),
+        MESSAGE_TOO_LONG("MESSAGE TOO LONG"),
+        BAD_SINGLE_FRAME("BAD CAN FORMAT (SINGLE LINE)"),
+        BAD_FIRST_FRAME("BAD CAN FORMAT (MULTILINE)"),
+        BAD_FRAME("BAD CAN FORMAT"),
+        BAD_SEQUENCE("BAD CFC"),
+        RESPONSE_TOO_SHORT("RESPONSE TOO SHORT"),
+        BAD_FLOW_CONTROL("BAD FLOW CONTROL"),
+        FLOW_CONTROL_OVERFLOW("FLOW CONTROL OVERFLOW"),
+        TOO_MANY_WAIT("TOO MANY FLOW CONTROL WAIT"),
+        TIMEOUT("TIMEOUT"),
+        ABORTED("ABORTED");
+
+        private final String m_text;
+
+        Error(String text){
+            m_text = text;
+        }
+
+        public String getText(){
+            return m_text;
+        }
+    }
+
+    private final Error m_error;
+
+    public IsoTpException(Error error){
+        super(error.getText());
+        m_error = error;
+    }
+
+    public IsoTpException(Error error, String detail){
+        super(error.getText() + " (" + detail + ")");
+        m_error = error;
+    }
+
+    public Error getError(){
+        return m_error;
+    }
+}
@@ -0,0 +1,19 @@
+package org.quark.dr.ecu;
+
+/*
+ * Raw CAN frame transport used by IsoTpSender and IsoTpReceiver
+ */
+public interface IsoTpLink {
+    /*
+     * Send one frame (PCI included)
+     * expectedFrames is the number of frames the peer is expected to send
+     * back before the next frame is sent : 0 if none, -1 if unknown.
+     * Adapters like the ELM327 use it to return as soon as possible.
+     */
+    void sendFrame(byte[] frame, int expectedFrames);
+
+    /*
+     * Next received frame, null if nothing arrived within timeoutMs
+     */
+    byte[] receiveFrame(long timeoutMs);
+}
@@ -0,0 +1,177 @@
+package org.quark.dr.ecu;
+
+/*
+ * Push style ISO-TP reassembler
+ * Frames are given as they arrive from the transport, possibly interleaved
+ * between several senders : one reception is tracked per CAN ID.
+ * push returns the message as soon as its last frame is received.
+ * Flow control frames are ignored, consecutive frames without a matching
+ * first frame too (monitoring a bus joined in the middle of a transfer).
+ */
+public class IsoTpReassembler {
+    public static final int DEFAULT_TIMEOUT = 1000;
+
+    private static class Reception {
+        byte[] payload;
+        int position;
+        int sequence;
+        long lastFrameTime;
+    }
+
+    // Few senders at the same time, linear search without boxing
+    private int[] m_ids = new int[4];
+    private Reception[] m_receptions = new Reception[4];
+    private int m_count;
+    private long m_timeoutNanos = DEFAULT_TIMEOUT * 1000000L;
+    private int m_maxMessageLength = IsoTpReceiver.DEFAULT_MAX_MESSAGE_LENGTH;
+
+    /*
+     * Unfinished receptions older than this are dropped
+     */
+    public void setTimeout(int timeoutMs){
+        m_timeoutNanos = timeoutMs * 1000000L;
+    }
+
+    public void setMaxMessageLength(int length){
+        m_maxMessageLength = length;
+    }
+
+    public byte[] push(int canId, byte[] frame) throws IsoTpException {
+        return push(canId, frame, 0, frame.length);
+    }
+
+    /*
+     * Feed one frame (PCI included) received from canId
+     * Returns the complete message or null if more frames are needed
+     */
+    public byte[] push(int canId, byte[] frame, int offset, int length) throws IsoTpException {
+        if (length == 0)
+            return null;
+
+        int pci = frame[offset] & 0xFF;
+        switch (pci >> 4){
+            case IsoTpCodec.SINGLE_FRAME: {
+                remove(canId);
+                int size = pci & 0x0F;
+                int header = 1;
+                if (size == 0 && length > 1){
+                    size = frame[offset + 1] & 0xFF;
+                    header = 2;
+                }
+                if (length < size + header)
+                    throw new IsoTpException(IsoTpException.Error.RESPONSE_TOO_SHORT);
+                byte[] payload = new byte[size];
+                System.arraycopy(frame, offset + header, payload, 0, size);
+                return payload;
+            }
+            case IsoTpCodec.FIRST_FRAME: {
+                remove(canId);
+                if (length < 2)
+                    throw new IsoTpException(IsoTpException.Error.BAD_FIRST_FRAME);
+                byte[] first = frame;
+                if (offset != 0 || length < frame.length){
+                    first = new byte[length];
+                    System.arraycopy(frame, offset, first, 0, length);
+                }
+                int size = IsoTpCodec.firstFrameLength(first);
+                if (size > m_maxMessageLength)
+                    throw new IsoTpException(IsoTpException.Error.MESSAGE_TOO_LONG);
+
+                Reception reception = new Reception();
+                reception.payload = new byte[size];
+                int header = IsoTpCodec.firstFrameHeaderLength(first);
+                reception.position = Math.min(length - header, size);
+                System.arraycopy(first, header, reception.payload, 0, reception.position);
+                reception.sequence = 1;
+                reception.lastFrameTime = System.nanoTime();
+                if (reception.position >= size)
+                    return reception.payload;
+                add(canId, reception);
+                return null;
+            }
+            case IsoTpCodec.CONSECUTIVE_FRAME: {
+                int index = indexOf(canId);
+                if (index < 0)
+                    return null;
+                Reception reception = m_receptions[index];
+                long now = System.nanoTime();
+                if (now - reception.lastFrameTime > m_timeoutNanos){
+                    removeAt(index);
+                    return null;
+                }
+                if ((pci & 0x0F) != (reception.sequence & 0x0F)){
+                    removeAt(index);
+                    throw new IsoTpException(IsoTpException.Error.BAD_SEQUENCE);
+                }
+                ++reception.sequence;
+                reception.lastFrameTime = now;
+
+                int count = Math.min(length - 1, reception.payload.length - reception.position);
+                System.arraycopy(frame, offset + 1, reception.payload, reception.position, count);
+                reception.position += count;
+                if (reception.position < reception.payload.length)
+                    return null;
+                removeAt(index);
+                return reception.payload;
+            }
+            default:
+                // Flow control
+                return null;
+        }
+    }
+
+    /*
+     * True if a multi frame message from canId is being received
+     */
+    public boolean isReceiving(int canId){
+        return indexOf(canId) >= 0;
+    }
+
+    public int getPendingCount(){
+        return m_count;
+    }
+
+    public void reset(){
+        for (int i = 0; i < m_count; ++i)
+            m_receptions[i] = null;
+        m_count = 0;
+    }
+
+    public void reset(int canId){
+        remove(canId);
+    }
+
+    private int indexOf(int canId){
+        for (int i = 0; i < m_count; ++i){
+            if (m_ids[i] == canId)
+                return i;
+        }
+        return -1;
+    }
+
+    private void add(int canId, Reception reception){
+        if (m_count == m_ids.length){
+            int[] ids = new int[m_count * 2];
+            Reception[] receptions = new Reception[m_count * 2];
+            System.arraycopy(m_ids, 0, ids, 0, m_count);
+            System.arraycopy(m_receptions, 0, receptions, 0, m_count);
+            m_ids = ids;
+            m_receptions = receptions;
+        }
+        m_ids[m_count] = canId;
+        m_receptions[m_count++] = reception;
+    }
+
+    private void remove(int canId){
+        int index = indexOf(canId);
+        if (index >= 0)
+            removeAt(index);
+    }
+
+    private void removeAt(int index){
+        --m_count;
+        m_ids[index] = m_ids[m_count];
+        m_receptions[index] = m_receptions[m_count];
+        m_receptions[m_count] = null;
+    }
+}
@@ -0,0 +1,100 @@
+package org.quark.dr.ecu;
+
+/*
+ * ISO 15765-2 receiver side : reassembles a message, sending the flow
+ * control frames (block size, STmin) to the sender
+ * Defaults (no block limit, no separation time) give the full bus speed.
+ */
+public class IsoTpReceiver {
+    // Time to wait for the first frame of the response
+    public static final int DEFAULT_RESPONSE_TIMEOUT = 2000;
+    // N_Cr : time to wait for a consecutive frame
+    public static final int DEFAULT_CONSECUTIVE_FRAME_TIMEOUT = 1000;
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+    private final IsoTpLink m_link;
+    private int m_blockSize = 0;
+    private int m_separationTime = 0;
+    private int m_responseTimeout = DEFAULT_RESPONSE_TIMEOUT;
+    private int m_consecutiveFrameTimeout = DEFAULT_CONSECUTIVE_FRAME_TIMEOUT;
+    private int m_maxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+
+    public IsoTpReceiver(IsoTpLink link){
+        m_link = link;
+    }
+
+    /*
+     * Block size and raw STmin byte sent in our flow control frames
+     */
+    public void setFlowControl(int blockSize, int separationTime){
+        m_blockSize = blockSize;
+        m_separationTime = separationTime;
+    }
+
+    public void setResponseTimeout(int timeoutMs){
+        m_responseTimeout = timeoutMs;
+    }
+
+    public void setConsecutiveFrameTimeout(int timeoutMs){
+        m_consecutiveFrameTimeout = timeoutMs;
+    }
+
+    /*
+     * Longer messages are refused with an OVERFLOW flow control
+     */
+    public void setMaxMessageLength(int length){
+        m_maxMessageLength = length;
+    }
+
+    public byte[] receive() throws IsoTpException {
+        byte[] first;
+        do {
+            first = m_link.receiveFrame(m_responseTimeout);
+            if (first == null)
+                throw new IsoTpException(IsoTpException.Error.NO_DATA);
+            // Stray flow control frames are not for us
+        } while (first.length == 0 || IsoTpCodec.frameType(first) == IsoTpCodec.FLOW_CONTROL);
+
+        int type = IsoTpCodec.frameType(first);
+        if (type == IsoTpCodec.SINGLE_FRAME)
+            return IsoTpCodec.decodeSingleFrame(first);
+        if (type != IsoTpCodec.FIRST_FRAME || first.length < 2)
+            throw new IsoTpException(IsoTpException.Error.BAD_FIRST_FRAME);
+
+        int length = IsoTpCodec.firstFrameLength(first);
+        if (length > m_maxMessageLength){
+            m_link.sendFrame(IsoTpCodec.flowControl(IsoTpCodec.FC_OVERFLOW, 0, 0), 0);
+            throw new IsoTpException(IsoTpException.Error.MESSAGE_TOO_LONG);
+        }
+
+        byte[] payload = new byte[length];
+        int header = IsoTpCodec.firstFrameHeaderLength(first);
+        int position = Math.min(first.length - header, length);
+        System.arraycopy(first, header, payload, 0, position);
+
+        int sequence = 1;
+        while (position < length){
+            int remainingFrames = (length - position + 6) / 7;
+            int blockFrames = m_blockSize == 0 ? remainingFrames : Math.min(m_blockSize, remainingFrames);
+            m_link.sendFrame(IsoTpCodec.flowControl(IsoTpCodec.FC_CONTINUE, m_blockSize, m_separationTime),
+                    blockFrames);
+
+            for (int i = 0; i < blockFrames && position < length; ++i){
+                byte[] frame = m_link.receiveFrame(m_consecutiveFrameTimeout);
+                if (frame == null)
+                    throw new IsoTpException(IsoTpException.Error.TIMEOUT,
+                            IsoTpCodec.formatFrame(payload, 0, position));
+                if (frame.length == 0 || IsoTpCodec.frameType(frame) != IsoTpCodec.CONSECUTIVE_FRAME)
+                    throw new IsoTpException(IsoTpException.Error.BAD_FRAME);
+                if ((frame[0] & 0x0F) != (sequence & 0x0F))
+                    throw new IsoTpException(IsoTpException.Error.BAD_SEQUENCE);
+                ++sequence;
+
+                int count = Math.min(frame.length - 1, length - position);
+                System.arraycopy(frame, 1, payload, position, count);
+                position += count;
+            }
+        }
+        return payload;
+    }
+}
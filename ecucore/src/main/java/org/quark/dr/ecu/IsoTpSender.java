@@ -0,0 +1,108 @@
+package org.quark.dr.ecu;
+
+import java.util.List;
+
+/*
+ * ISO 15765-2 sender side : sends a message, honouring the flow control
+ * (block size, STmin, WAIT and OVERFLOW) returned by the receiver
+ */
+public class IsoTpSender {
+    // N_Bs : time to wait for a flow control frame
+    public static final int DEFAULT_FLOW_CONTROL_TIMEOUT = 1000;
+    // N_WFTmax : maximum number of consecutive WAIT flow controls
+    public static final int DEFAULT_MAX_WAIT_FRAMES = 10;
+
+    private final IsoTpLink m_link;
+    private int m_flowControlTimeout = DEFAULT_FLOW_CONTROL_TIMEOUT;
+    private int m_maxWaitFrames = DEFAULT_MAX_WAIT_FRAMES;
+    private int m_expectedResponseFrames = 1;
+
+    public IsoTpSender(IsoTpLink link){
+        m_link = link;
+    }
+
+    public void setFlowControlTimeout(int timeoutMs){
+        m_flowControlTimeout = timeoutMs;
+    }
+
+    public void setMaxWaitFrames(int count){
+        m_maxWaitFrames = count;
+    }
+
+    /*
+     * Frames expected from the peer after the last frame of the message,
+     * 1 (the response single/first frame) by default, 0 if no response
+     */
+    public void setExpectedResponseFrames(int count){
+        m_expectedResponseFrames = count;
+    }
+
+    public void send(byte[] payload) throws IsoTpException {
+        List<byte[]> frames = IsoTpCodec.encode(payload);
+        int count = frames.size();
+        if (count == 1){
+            m_link.sendFrame(frames.get(0), m_expectedResponseFrames);
+            return;
+        }
+
+        // First frame, a flow control is expected
+        m_link.sendFrame(frames.get(0), 1);
+
+        int index = 1;
+        while (index < count){
+            byte[] flowControl = waitFlowControl();
+            int blockSize = IsoTpCodec.flowBlockSize(flowControl);
+            long separationNanos = IsoTpCodec.flowSeparationTimeMicros(flowControl) * 1000L;
+
+            long lastSend = 0;
+            for (int sent = 0; index < count && (blockSize == 0 || sent < blockSize); ++sent){
+                if (sent > 0 && separationNanos > 0)
+                    pause(lastSend + separationNanos - System.nanoTime());
+
+                boolean last = index == count - 1;
+                boolean endOfBlock = blockSize != 0 && sent == blockSize - 1;
+                int expected = last ? m_expectedResponseFrames : (endOfBlock ? 1 : 0);
+                m_link.sendFrame(frames.get(index++), expected);
+                // STmin runs from the end of the previous frame
+                lastSend = System.nanoTime();
+            }
+        }
+    }
+
+    private byte[] waitFlowControl() throws IsoTpException {
+        int waitFrames = 0;
+        while (true){
+            byte[] frame = m_link.receiveFrame(m_flowControlTimeout);
+            if (frame == null)
+                throw new IsoTpException(IsoTpException.Error.TIMEOUT);
+
+            // Anything else than a flow control is ignored at this stage
+            if (frame.length == 0 || IsoTpCodec.frameType(frame) != IsoTpCodec.FLOW_CONTROL)
+                continue;
+
+            switch (IsoTpCodec.flowStatus(frame)){
+                case IsoTpCodec.FC_CONTINUE:
+                    return frame;
+                case IsoTpCodec.FC_WAIT:
+                    if (++waitFrames > m_maxWaitFrames)
+                        throw new IsoTpException(IsoTpException.Error.TOO_MANY_WAIT);
+                    break;
+                case IsoTpCodec.FC_OVERFLOW:
+                    throw new IsoTpException(IsoTpException.Error.FLOW_CONTROL_OVERFLOW);
+                default:
+                    throw new IsoTpException(IsoTpException.Error.BAD_FLOW_CONTROL);
+            }
+        }
+    }
+
+    private static void pause(long nanos) throws IsoTpException {
+        if (nanos <= 0)
+            return;
+        try {
+            Thread.sleep(nanos / 1000000L, (int)(nanos % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IsoTpException(IsoTpException.Error.ABORTED);
+        }
+    }
+}
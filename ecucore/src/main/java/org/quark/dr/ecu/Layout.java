@@ -1,6 +1,5 @@
 package org.quark.dr.ecu;
 
-import android.util.Pair;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
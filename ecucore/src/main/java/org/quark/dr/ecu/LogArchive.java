@@ -0,0 +1,440 @@
+package org.quark.dr.ecu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Session log segments of a directory : the active log.txt is closed when
+ * it reaches the segment size or age, renamed log-<date>.txt and gzipped
+ * by a background thread. The oldest archives are deleted beyond the
+ * retention budget. log-index.txt lists the archives (name, first and
+ * last write, compressed size, ECU sessions) for the export.
+ * An export concatenates the newest archives within a byte budget and the
+ * gzipped active log, a concatenation of gzip members is a valid gzip
+ * file (zcat, gunzip).
+ */
+public class LogArchive {
+    public static final String ACTIVE_NAME = "log.txt";
+    public static final String INDEX_NAME = "log-index.txt";
+    public static final long DEFAULT_SEGMENT_BYTES = 4L << 20;
+    public static final long DEFAULT_SEGMENT_AGE = 24L * 3600 * 1000;
+    public static final long DEFAULT_RETENTION_BYTES = 64L << 20;
+    public static final long DEFAULT_EXPORT_BYTES = 32L << 20;
+    private static final String SESSION_LINE = "New session with ECU ";
+
+    public static class Segment {
+        public String name;
+        public long firstWrite, lastWrite;
+        public long bytes;
+        public List<String> ecus = new ArrayList<>();
+    }
+
+    private final File m_directory;
+    private long m_segmentBytes = DEFAULT_SEGMENT_BYTES;
+    private long m_segmentAge = DEFAULT_SEGMENT_AGE;
+    private long m_retentionBytes = DEFAULT_RETENTION_BYTES;
+    private final Object m_indexLock = new Object();
+    private Thread m_compressor;
+    private final ArrayList<Segment> m_toCompress = new ArrayList<>();
+    // Segment being compressed, a writer opened meanwhile sees it as a leftover
+    private String m_compressing;
+
+    public LogArchive(File directory){
+        m_directory = directory;
+    }
+
+    public void setSegmentBytes(long bytes){
+        m_segmentBytes = bytes;
+    }
+
+    public void setSegmentAge(long ageMs){
+        m_segmentAge = ageMs;
+    }
+
+    public void setRetentionBytes(long bytes){
+        m_retentionBytes = bytes;
+    }
+
+    public File getActiveFile(){
+        return new File(m_directory, ACTIVE_NAME);
+    }
+
+    /*
+     * Appends to the active log, rotated between two writes
+     * (SessionLogWriter writes whole lines)
+     */
+    public Writer openWriter() throws IOException {
+        return new RotatingWriter();
+    }
+
+    private class RotatingWriter extends Writer {
+        private Writer m_out;
+        private Segment m_segment;
+        private long m_size;
+
+        RotatingWriter() throws IOException {
+            compressLeftovers();
+            File active = getActiveFile();
+            long now = System.currentTimeMillis();
+            m_segment = new Segment();
+            m_segment.firstWrite = active.exists() ? Math.min(active.lastModified(), now) : now;
+            m_size = active.length();
+            // Former single log file, or left from an old session
+            if (m_size >= m_segmentBytes || (m_size > 0 && now - m_segment.firstWrite >= m_segmentAge))
+                rotate();
+            else
+                m_out = open();
+        }
+
+        private Writer open() throws IOException {
+            return new OutputStreamWriter(new FileOutputStream(getActiveFile(), true), "UTF-8");
+        }
+
+        private void rotate() throws IOException {
+            if (m_out != null)
+                m_out.close();
+            File active = getActiveFile();
+            long now = System.currentTimeMillis();
+            if (active.length() > 0){
+                m_segment.lastWrite = now;
+                String base = "log-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                        .format(new Date(m_segment.firstWrite));
+                m_segment.name = base + ".txt";
+                // Several segments closed in the same second
+                for (int i = 1; new File(m_directory, m_segment.name).exists()
+                        || new File(m_directory, m_segment.name + ".gz").exists(); ++i)
+                    m_segment.name = base + "-" + i + ".txt";
+                File closed = new File(m_directory, m_segment.name);
+                if (active.renameTo(closed))
+                    compress(m_segment);
+                else
+                    EcuLog.e("LogArchive", "ERROR : cannot rename " + active + " to " + closed);
+            }
+            m_segment = new Segment();
+            m_segment.firstWrite = now;
+            m_size = 0;
+            m_out = open();
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            if (m_size >= m_segmentBytes
+                    || (m_size > 0 && System.currentTimeMillis() - m_segment.firstWrite >= m_segmentAge))
+                rotate();
+            m_out.write(buffer, offset, length);
+            m_size += length;
+            findSessions(m_segment, buffer, offset, length);
+        }
+
+        @Override
+        public void write(String text) throws IOException {
+            write(text.toCharArray(), 0, text.length());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            m_out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_out.close();
+        }
+    }
+
+    /*
+     * ECU names of the "New session with ECU" lines
+     */
+    private static void findSessions(Segment segment, char[] buffer, int offset, int length){
+        int end = offset + length;
+        int start = offset;
+        while (start < end){
+            int lineEnd = start;
+            while (lineEnd < end && buffer[lineEnd] != '\n')
+                ++lineEnd;
+            if (lineEnd - start > SESSION_LINE.length() && startsWith(buffer, start, SESSION_LINE)){
+                String ecu = new String(buffer, start + SESSION_LINE.length(),
+                        lineEnd - start - SESSION_LINE.length()).trim();
+                if (!segment.ecus.contains(ecu))
+                    segment.ecus.add(ecu);
+            }
+            start = lineEnd + 1;
+        }
+    }
+
+    private static boolean startsWith(char[] buffer, int offset, String prefix){
+        for (int i = 0; i < prefix.length(); ++i){
+            if (buffer[offset + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Queues segment for the compressor thread
+     */
+    private void compress(Segment segment){
+        synchronized (m_toCompress){
+            if (segment.name.equals(m_compressing))
+                return;
+            for (Segment queued : m_toCompress)
+                if (queued.name.equals(segment.name))
+                    return;
+            m_toCompress.add(segment);
+            if (m_compressor != null)
+                return;
+            m_compressor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    compressPending();
+                }
+            }, "log-archive");
+            m_compressor.setDaemon(true);
+            m_compressor.start();
+        }
+    }
+
+    private void compressPending(){
+        while (true){
+            Segment segment;
+            synchronized (m_toCompress){
+                if (m_toCompress.isEmpty()){
+                    m_compressor = null;
+                    m_compressing = null;
+                    m_toCompress.notifyAll();
+                    return;
+                }
+                segment = m_toCompress.remove(0);
+                m_compressing = segment.name;
+            }
+            File source = new File(m_directory, segment.name);
+            File archive = new File(m_directory, segment.name + ".gz");
+            // Listed as a leftover while compressed
+            if (!source.exists())
+                continue;
+            try {
+                try (InputStream in = new FileInputStream(source);
+                     OutputStream out = new GZIPOutputStream(new FileOutputStream(archive), 65536)){
+                    byte[] buffer = new byte[65536];
+                    int count;
+                    while ((count = in.read(buffer)) > 0)
+                        out.write(buffer, 0, count);
+                }
+                if (!source.delete())
+                    EcuLog.e("LogArchive", "ERROR : cannot delete " + source);
+                segment.name = archive.getName();
+                segment.bytes = archive.length();
+                addToIndex(segment);
+            } catch (IOException e) {
+                e.printStackTrace();
+                archive.delete();
+            }
+        }
+    }
+
+    /*
+     * Segments closed but not compressed (application stopped meanwhile)
+     */
+    private void compressLeftovers(){
+        File[] files = m_directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files){
+            String name = file.getName();
+            if (name.startsWith("log-") && name.endsWith(".txt") && !name.equals(INDEX_NAME)){
+                Segment segment = new Segment();
+                segment.name = name;
+                segment.firstWrite = segment.lastWrite = file.lastModified();
+                compress(segment);
+            }
+        }
+    }
+
+    /*
+     * Waits for the background compression, tests and shutdown
+     */
+    public boolean awaitCompression(long timeoutMs){
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (m_toCompress){
+            while (m_compressor != null){
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    return false;
+                try {
+                    m_toCompress.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void addToIndex(Segment segment) throws IOException {
+        synchronized (m_indexLock){
+            List<Segment> segments = readIndex();
+            segments.add(segment);
+            // Retention budget, oldest first
+            long total = 0;
+            for (Segment s : segments)
+                total += s.bytes;
+            while (total > m_retentionBytes && segments.size() > 1){
+                Segment oldest = segments.remove(0);
+                total -= oldest.bytes;
+                File file = new File(m_directory, oldest.name);
+                if (file.exists() && !file.delete())
+                    EcuLog.e("LogArchive", "ERROR : cannot delete " + file);
+            }
+            writeIndex(segments);
+        }
+    }
+
+    /*
+     * Archived segments, oldest first
+     */
+    public List<Segment> getSegments(){
+        synchronized (m_indexLock){
+            try {
+                return readIndex();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new ArrayList<>();
+            }
+        }
+    }
+
+    private List<Segment> readIndex() throws IOException {
+        ArrayList<Segment> segments = new ArrayList<>();
+        File index = new File(m_directory, INDEX_NAME);
+        if (!index.exists())
+            return segments;
+        try (BufferedReader reader = new BufferedReader(new FileReader(index))){
+            String line;
+            while ((line = reader.readLine()) != null){
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 5)
+                    continue;
+                Segment segment = new Segment();
+                segment.name = fields[0];
+                try {
+                    segment.firstWrite = Long.parseLong(fields[1]);
+                    segment.lastWrite = Long.parseLong(fields[2]);
+                    segment.bytes = Long.parseLong(fields[3]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                for (String ecu : fields[4].split(","))
+                    if (!ecu.isEmpty())
+                        segment.ecus.add(ecu);
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    private void writeIndex(List<Segment> segments) throws IOException {
+        File index = new File(m_directory, INDEX_NAME);
+        File temporary = new File(m_directory, INDEX_NAME + ".tmp");
+        try (Writer writer = new FileWriter(temporary)){
+            for (Segment segment : segments){
+                writer.append(segment.name).append('\t').append(Long.toString(segment.firstWrite))
+                        .append('\t').append(Long.toString(segment.lastWrite))
+                        .append('\t').append(Long.toString(segment.bytes)).append('\t');
+                for (int i = 0; i < segment.ecus.size(); ++i){
+                    if (i > 0)
+                        writer.append(',');
+                    // Separators are not allowed in the names
+                    writer.append(segment.ecus.get(i).replace(',', ' ').replace('\t', ' '));
+                }
+                writer.append('\n');
+            }
+        }
+        if (!temporary.renameTo(index)){
+            // Some file systems do not replace on rename
+            index.delete();
+            if (!temporary.renameTo(index))
+                throw new IOException("Cannot write " + index);
+        }
+    }
+
+    /*
+     * Archives containing a session with ecu, oldest first
+     */
+    public List<Segment> findSegments(String ecu){
+        ArrayList<Segment> found = new ArrayList<>();
+        for (Segment segment : getSegments()){
+            if (segment.ecus.contains(ecu))
+                found.add(segment);
+        }
+        return found;
+    }
+
+    /*
+     * Writes a gzip file of the newest archives fitting in budget bytes and
+     * of the active log (flushed by the caller), returns its size
+     */
+    public long export(File destination, long budget) throws IOException {
+        List<Segment> segments = getSegments();
+        int first = segments.size();
+        long total = 0;
+        while (first > 0 && total + segments.get(first - 1).bytes <= budget)
+            total += segments.get(--first).bytes;
+
+        try (FileOutputStream out = new FileOutputStream(destination)){
+            FileChannel channel = out.getChannel();
+            for (int i = first; i < segments.size(); ++i){
+                File file = new File(m_directory, segments.get(i).name);
+                // Deleted by the retention meanwhile
+                if (!file.exists())
+                    continue;
+                try (FileInputStream in = new FileInputStream(file)){
+                    FileChannel source = in.getChannel();
+                    long size = source.size();
+                    long position = 0;
+                    while (position < size)
+                        position += source.transferTo(position, size - position, channel);
+                }
+            }
+            File active = getActiveFile();
+            if (active.length() > 0){
+                GZIPOutputStream gzip = new GZIPOutputStream(new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] buffer, int offset, int length) throws IOException {
+                        out.write(buffer, offset, length);
+                    }
+
+                    @Override
+                    public void close() {
+                        // The destination is closed by the caller
+                    }
+                }, 65536);
+                try (InputStream in = new FileInputStream(active)){
+                    byte[] buffer = new byte[65536];
+                    int count;
+                    while ((count = in.read(buffer)) > 0)
+                        gzip.write(buffer, 0, count);
+                }
+                gzip.finish();
+            }
+            return channel.position();
+        }
+    }
+}
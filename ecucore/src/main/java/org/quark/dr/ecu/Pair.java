@@ -0,0 +1,37 @@
+package org.quark.dr.ecu;
+
+/*
+ * Immutable pair, same fields as android.util.Pair
+ */
+public class Pair<F, S> {
+    public final F first;
+    public final S second;
+
+    public Pair(F first, S second){
+        this.first = first;
+        this.second = second;
+    }
+
+    public static <A, B> Pair<A, B> create(A a, B b){
+        return new Pair<>(a, b);
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (!(o instanceof Pair))
+            return false;
+        Pair<?, ?> p = (Pair<?, ?>)o;
+        return (first == null ? p.first == null : first.equals(p.first))
+                && (second == null ? p.second == null : second.equals(p.second));
+    }
+
+    @Override
+    public int hashCode(){
+        return (first == null ? 0 : first.hashCode()) ^ (second == null ? 0 : second.hashCode());
+    }
+
+    @Override
+    public String toString(){
+        return "Pair{" + first + " " + second + "}";
+    }
+}
@@ -0,0 +1,327 @@
+package org.quark.dr.ecu;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Session log (log.txt) written by a background thread, the ELM worker
+ * only copies its lines into a preallocated ring : storage speed does not
+ * change the request latency.
+ * The ring is a bounded lock free queue (a sequence per slot), several
+ * threads can log. The writer formats the records (timestamp, prefix,
+ * text) and writes them in batches, flushed after each batch or every
+ * FLUSH_INTERVAL.
+ * A text longer than the record length takes several consecutive slots
+ * (a multi-frame response, up to 4095 bytes), it is only truncated beyond
+ * the whole ring.
+ * Drop policy : a record is dropped when the ring is full (the newest,
+ * nothing blocks). The dropped records are reported in the log by the
+ * writer.
+ * Line format : "<prefix>[dd-MM-hh:mm:ss] <text>", or "<prefix><text>"
+ * without timestamp, as read by the log decoder.
+ */
+public class SessionLogWriter implements Runnable {
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int DEFAULT_RECORD_LENGTH = 1024;
+    public static final long FLUSH_INTERVAL = 200;
+    // Characters formatted before a write
+    private static final int BATCH_LENGTH = 8192;
+    private static final String TRUNCATED = "...";
+
+    private final Writer m_out;
+    private final int m_mask;
+    private final AtomicLongArray m_sequences;
+    private final long[] m_times;
+    private final String[] m_prefixes;
+    private final boolean[] m_stamped;
+    private final char[][] m_texts;
+    private final int[] m_lengths;
+    private final boolean[] m_cut;
+    // The text goes on in the next slot
+    private final boolean[] m_more;
+    private final AtomicLong m_tail = new AtomicLong();
+    private volatile long m_head;
+    private volatile long m_flushed;
+    private final AtomicLong m_dropped = new AtomicLong();
+    private final AtomicLong m_truncated = new AtomicLong();
+    private volatile long m_written;
+    private volatile long m_batches;
+    private volatile long m_writeErrors;
+    private final Object m_flushLock = new Object();
+    private volatile boolean m_running;
+    private volatile Thread m_thread;
+
+    // Writer thread only
+    private final StringBuilder m_batch = new StringBuilder(BATCH_LENGTH + DEFAULT_RECORD_LENGTH);
+    private final SimpleDateFormat m_dateFormat = new SimpleDateFormat("dd-MM-hh:mm:ss");
+    private final Date m_date = new Date();
+    private long m_stampSecond = -1;
+    private String m_stamp;
+    private long m_reportedDrops;
+
+    public SessionLogWriter(Writer out){
+        this(out, DEFAULT_CAPACITY, DEFAULT_RECORD_LENGTH);
+    }
+
+    /*
+     * capacity is rounded up to a power of two
+     */
+    public SessionLogWriter(Writer out, int capacity, int recordLength){
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        m_out = out;
+        m_mask = size - 1;
+        m_sequences = new AtomicLongArray(size);
+        m_times = new long[size];
+        m_prefixes = new String[size];
+        m_stamped = new boolean[size];
+        m_texts = new char[size][recordLength];
+        m_lengths = new int[size];
+        m_cut = new boolean[size];
+        m_more = new boolean[size];
+        for (int i = 0; i < size; ++i)
+            m_sequences.set(i, i);
+    }
+
+    public void start(){
+        m_running = true;
+        Thread thread = new Thread(this, "session-log");
+        thread.setDaemon(true);
+        m_thread = thread;
+        thread.start();
+    }
+
+    /*
+     * "<prefix>[timestamp] <text>"
+     */
+    public boolean log(String prefix, CharSequence text){
+        return add(prefix, true, text);
+    }
+
+    /*
+     * "<prefix><text>", no timestamp
+     */
+    public boolean logRaw(String prefix, CharSequence text){
+        return add(prefix, false, text);
+    }
+
+    /*
+     * False if the record was dropped (log full)
+     */
+    private boolean add(String prefix, boolean stamped, CharSequence text){
+        int recordLength = m_texts[0].length;
+        int length = text == null ? 0 : text.length();
+        boolean cut = length > recordLength * (m_mask + 1);
+        if (cut){
+            m_truncated.incrementAndGet();
+            length = recordLength * (m_mask + 1);
+        }
+        int count = Math.max(1, (length + recordLength - 1) / recordLength);
+
+        long position;
+        while (true){
+            position = m_tail.get();
+            // Slots are freed in order : the last one free, all are
+            long last = position + count - 1;
+            long available = m_sequences.get((int) last & m_mask) - last;
+            if (available < 0){
+                m_dropped.incrementAndGet();
+                return false;
+            }
+            if (available == 0 && m_sequences.get((int) position & m_mask) == position
+                    && m_tail.compareAndSet(position, position + count))
+                break;
+        }
+
+        long time = System.currentTimeMillis();
+        for (int i = 0, offset = 0; i < count; ++i, offset += recordLength){
+            int slot = (int) (position + i) & m_mask;
+            m_times[slot] = time;
+            m_prefixes[slot] = i == 0 ? prefix : null;
+            m_stamped[slot] = i == 0 && stamped;
+            int end = Math.min(length, offset + recordLength);
+            char[] buffer = m_texts[slot];
+            if (text instanceof String)
+                ((String) text).getChars(offset, end, buffer, 0);
+            else
+                for (int j = offset; j < end; ++j)
+                    buffer[j - offset] = text.charAt(j);
+            m_lengths[slot] = end - offset;
+            m_more[slot] = i < count - 1;
+            m_cut[slot] = cut && !m_more[slot];
+            m_sequences.set(slot, position + i + 1);
+        }
+
+        // Half full : no need to wait for the flush interval
+        Thread thread = m_thread;
+        if (thread != null && position + count - m_head >= (m_mask + 1) / 2)
+            LockSupport.unpark(thread);
+        return true;
+    }
+
+    @Override
+    public void run(){
+        while (true){
+            boolean running = m_running;
+            int count = drain();
+            if (count == 0 && m_head == m_flushed){
+                if (!running)
+                    break;
+                LockSupport.parkNanos(this, FLUSH_INTERVAL * 1000000L);
+            }
+        }
+    }
+
+    /*
+     * Writes the pending slots, returns their count
+     */
+    private int drain(){
+        int count = 0;
+        int records = 0;
+        long head = m_head;
+        long drops = m_dropped.get();
+        if (drops != m_reportedDrops){
+            appendStamp(System.currentTimeMillis());
+            m_batch.append("LOG : ").append(drops - m_reportedDrops).append(" records dropped\n");
+            m_reportedDrops = drops;
+        }
+        while (true){
+            int slot = (int) head & m_mask;
+            if (m_sequences.get(slot) != head + 1)
+                break;
+            int length = m_lengths[slot];
+            if (m_prefixes[slot] != null)
+                m_batch.append(m_prefixes[slot]);
+            if (m_stamped[slot])
+                appendStamp(m_times[slot]);
+            m_batch.append(m_texts[slot], 0, length);
+            if (m_cut[slot])
+                m_batch.append(TRUNCATED);
+            if (!m_more[slot]){
+                m_batch.append('\n');
+                ++records;
+            }
+            m_prefixes[slot] = null;
+            m_sequences.set(slot, head + m_mask + 1);
+            m_head = ++head;
+            ++count;
+            if (m_batch.length() >= BATCH_LENGTH)
+                write();
+        }
+        if (m_batch.length() > 0 || m_flushed != head){
+            write();
+            try {
+                m_out.flush();
+            } catch (IOException e) {
+                ++m_writeErrors;
+                e.printStackTrace();
+            }
+            m_written += records;
+            ++m_batches;
+            synchronized (m_flushLock){
+                m_flushed = head;
+                m_flushLock.notifyAll();
+            }
+        }
+        return count;
+    }
+
+    private void write(){
+        try {
+            m_out.append(m_batch);
+        } catch (IOException e) {
+            ++m_writeErrors;
+            e.printStackTrace();
+        }
+        m_batch.setLength(0);
+    }
+
+    private void appendStamp(long time){
+        long second = time / 1000;
+        if (second != m_stampSecond){
+            m_date.setTime(time);
+            m_stamp = "[" + m_dateFormat.format(m_date) + "] ";
+            m_stampSecond = second;
+        }
+        m_batch.append(m_stamp);
+    }
+
+    /*
+     * Waits until what was logged before is written and flushed
+     * False after timeoutMs
+     */
+    public boolean flush(long timeoutMs){
+        long target = m_tail.get();
+        Thread thread = m_thread;
+        if (thread == null)
+            return false;
+        LockSupport.unpark(thread);
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (m_flushLock){
+            while (m_flushed < target){
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || !thread.isAlive())
+                    return false;
+                try {
+                    m_flushLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Writes what is pending and closes the output
+     */
+    public void close(long timeoutMs){
+        Thread thread = m_thread;
+        m_running = false;
+        if (thread != null){
+            LockSupport.unpark(thread);
+            try {
+                thread.join(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            m_out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getWrittenCount(){
+        return m_written;
+    }
+
+    public long getDroppedCount(){
+        return m_dropped.get();
+    }
+
+    public long getTruncatedCount(){
+        return m_truncated.get();
+    }
+
+    public long getBatchCount(){
+        return m_batches;
+    }
+
+    public long getWriteErrorCount(){
+        return m_writeErrors;
+    }
+
+    /*
+     * Records waiting for the writer
+     */
+    public int getPendingCount(){
+        return (int) (m_tail.get() - m_head);
+    }
+}
@@ -0,0 +1,186 @@
+package org.quark.dr.ecu;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/*
+ * Binary recording of what the application exchanged with the adapter,
+ * for SessionReplay : the bytes sent, the bytes received, and when, from
+ * System.nanoTime (monotonic).
+ * Format : "ELMR", version, then one record per adapter call :
+ *   type (byte), start (varint, ns since the previous record start),
+ *   duration (varint, ns), [command], [reply]
+ * with command = length (varint) + bytes, reply = length + 1 (varint,
+ * 0 for no reply) + bytes. Strings are ISO-8859-1, as sent on the link.
+ * A write error stops the recording, the session goes on.
+ */
+public class SessionRecorder {
+    public static final byte[] MAGIC = {'E', 'L', 'M', 'R'};
+    public static final int VERSION = 1;
+    // writeRaw : command and its reply
+    public static final int EXCHANGE = 1;
+    // writeCommand : command only (pipelining, monitor)
+    public static final int WRITE = 2;
+    // readReply : reply, none after the timeout
+    public static final int READ = 3;
+    // readBytes : raw bytes (monitor)
+    public static final int BYTES = 4;
+    static final String CHARSET = "ISO-8859-1";
+    private static final int BUFFER_SIZE = 65536;
+
+    private OutputStream m_out;
+    private long m_previous;
+    private long m_records;
+    private long m_bytes;
+
+    public SessionRecorder(OutputStream out) throws IOException {
+        m_out = new BufferedOutputStream(out, BUFFER_SIZE);
+        m_out.write(MAGIC);
+        m_out.write(VERSION);
+        m_bytes = MAGIC.length + 1;
+    }
+
+    /*
+     * start and end : System.nanoTime before and after the call
+     */
+    public synchronized void exchange(String command, String reply, long start, long end){
+        if (begin(EXCHANGE, start, end)){
+            putString(command);
+            putReply(reply);
+        }
+    }
+
+    public synchronized void write(String command, long start, long end){
+        if (begin(WRITE, start, end))
+            putString(command);
+    }
+
+    public synchronized void read(String reply, long start, long end){
+        if (begin(READ, start, end))
+            putReply(reply);
+    }
+
+    public synchronized void readBytes(byte[] buffer, int count, long start, long end){
+        if (begin(BYTES, start, end)){
+            if (count < 0){
+                putVarint(0);
+            } else {
+                putVarint(count + 1);
+                put(buffer, count);
+            }
+        }
+    }
+
+    private boolean begin(int type, long start, long end){
+        if (m_out == null)
+            return false;
+        // Records are in call order, the first start is the reference
+        if (m_records == 0)
+            m_previous = start;
+        putByte(type);
+        putVarint(Math.max(0, start - m_previous));
+        putVarint(Math.max(0, end - start));
+        m_previous = Math.max(m_previous, start);
+        ++m_records;
+        return true;
+    }
+
+    private void putReply(String reply){
+        if (reply == null){
+            putVarint(0);
+            return;
+        }
+        byte[] bytes = getBytes(reply);
+        putVarint(bytes.length + 1);
+        put(bytes, bytes.length);
+    }
+
+    private void putString(String text){
+        byte[] bytes = getBytes(text == null ? "" : text);
+        putVarint(bytes.length);
+        put(bytes, bytes.length);
+    }
+
+    private static byte[] getBytes(String text){
+        try {
+            return text.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            return text.getBytes();
+        }
+    }
+
+    private void putVarint(long value){
+        while ((value & ~0x7FL) != 0){
+            putByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        putByte((int) value);
+    }
+
+    private void putByte(int value){
+        // Stopped by a previous error in this record
+        if (m_out == null)
+            return;
+        try {
+            m_out.write(value);
+            ++m_bytes;
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void put(byte[] buffer, int count){
+        if (m_out == null)
+            return;
+        try {
+            m_out.write(buffer, 0, count);
+            m_bytes += count;
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void failed(IOException e){
+        EcuLog.e("SessionRecorder", "ERROR : recording stopped", e);
+        try {
+            m_out.close();
+        } catch (IOException ignored) {
+        }
+        m_out = null;
+    }
+
+    public synchronized void flush(){
+        if (m_out == null)
+            return;
+        try {
+            m_out.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized void close(){
+        if (m_out == null)
+            return;
+        try {
+            m_out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        m_out = null;
+    }
+
+    public synchronized boolean isRecording(){
+        return m_out != null;
+    }
+
+    public synchronized long getRecordCount(){
+        return m_records;
+    }
+
+    public synchronized long getByteCount(){
+        return m_bytes;
+    }
+}
@@ -0,0 +1,264 @@
+package org.quark.dr.ecu;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Plays a SessionRecorder recording back as the adapter : each call takes
+ * the next recorded call of the same kind and command, and gets its reply.
+ * The application drives the pace, in real time a call lasts as long as
+ * when it was recorded (adapter and ECU response time), otherwise the
+ * replies come at once.
+ * The application may not send the very same commands (tester present,
+ * timeouts tuned on the response times...) : recorded calls it does not
+ * make are skipped, within LOOKAHEAD records. A command that was not
+ * recorded gets "OK" (AT), "?" (ST) or "NO DATA".
+ * Used by one thread.
+ */
+public class SessionReplay {
+    public static final int LOOKAHEAD = 256;
+
+    public static class Record {
+        public int type;
+        // ns since the first record
+        public long start;
+        public long duration;
+        public String command;
+        // Null : no reply (read timeout, link lost)
+        public byte[] reply;
+
+        public String getReply(){
+            return reply == null ? null : decode(reply, 0, reply.length);
+        }
+    }
+
+    private final List<Record> m_records;
+    private boolean m_realTime = true;
+    private int m_position;
+    private long m_skipped;
+    private long m_unmatched;
+    // Remainder of a BYTES record larger than the read buffer
+    private byte[] m_bytes;
+    private int m_bytesOffset;
+
+    public SessionReplay(List<Record> records){
+        m_records = records;
+    }
+
+    /*
+     * Reads a whole recording, a truncated last record is ignored
+     */
+    public static List<Record> read(InputStream input) throws IOException {
+        InputStream in = new BufferedInputStream(input, 65536);
+        byte[] magic = new byte[SessionRecorder.MAGIC.length];
+        readFully(in, magic);
+        if (!Arrays.equals(magic, SessionRecorder.MAGIC))
+            throw new IOException("Not a session recording");
+        int version = in.read();
+        if (version != SessionRecorder.VERSION)
+            throw new IOException("Unsupported session recording version " + version);
+
+        ArrayList<Record> records = new ArrayList<>();
+        long time = 0;
+        while (true){
+            int type = in.read();
+            if (type < 0)
+                break;
+            if (type < SessionRecorder.EXCHANGE || type > SessionRecorder.BYTES)
+                throw new IOException("Bad session record type " + type);
+            try {
+                Record record = new Record();
+                record.type = type;
+                time += readVarint(in);
+                record.start = time;
+                record.duration = readVarint(in);
+                if (type == SessionRecorder.EXCHANGE || type == SessionRecorder.WRITE){
+                    byte[] command = new byte[(int) readVarint(in)];
+                    readFully(in, command);
+                    record.command = decode(command, 0, command.length);
+                }
+                if (type != SessionRecorder.WRITE){
+                    int length = (int) readVarint(in);
+                    if (length > 0){
+                        record.reply = new byte[length - 1];
+                        readFully(in, record.reply);
+                    }
+                }
+                records.add(record);
+            } catch (EOFException e) {
+                // Recording interrupted
+                break;
+            }
+        }
+        return records;
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7){
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Bad varint");
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length){
+            int count = in.read(buffer, offset, buffer.length - offset);
+            if (count < 0)
+                throw new EOFException();
+            offset += count;
+        }
+    }
+
+    private static String decode(byte[] bytes, int offset, int length){
+        try {
+            return new String(bytes, offset, length, SessionRecorder.CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            return new String(bytes, offset, length);
+        }
+    }
+
+    /*
+     * False : as fast as possible
+     */
+    public void setRealTime(boolean realTime){
+        m_realTime = realTime;
+    }
+
+    /*
+     * writeRaw
+     */
+    public String exchange(String command){
+        Record record = next(SessionRecorder.EXCHANGE, command);
+        if (record == null)
+            return unmatched(command);
+        pause(record.duration);
+        String reply = record.getReply();
+        return reply == null ? "" : reply;
+    }
+
+    /*
+     * writeCommand
+     */
+    public void write(String command){
+        Record record = next(SessionRecorder.WRITE, command);
+        if (record == null)
+            ++m_unmatched;
+        else
+            pause(record.duration);
+    }
+
+    /*
+     * readReply, null as the adapter was silent
+     */
+    public String read(long timeoutMs){
+        Record record = next(SessionRecorder.READ, null);
+        if (record == null || record.reply == null){
+            pause(record == null ? timeoutMs * 1000000L : Math.min(record.duration, timeoutMs * 1000000L));
+            return null;
+        }
+        pause(record.duration);
+        return record.getReply();
+    }
+
+    /*
+     * readBytes, 0 after timeoutMs at the end of the recording
+     */
+    public int readBytes(byte[] buffer, long timeoutMs){
+        if (m_bytes == null){
+            Record record = next(SessionRecorder.BYTES, null);
+            if (record == null){
+                // Nothing recorded anymore : a silent bus
+                sleep(timeoutMs * 1000000L);
+                return 0;
+            }
+            pause(record.duration);
+            if (record.reply == null)
+                return -1;
+            m_bytes = record.reply;
+            m_bytesOffset = 0;
+        }
+        int count = Math.min(buffer.length, m_bytes.length - m_bytesOffset);
+        System.arraycopy(m_bytes, m_bytesOffset, buffer, 0, count);
+        m_bytesOffset += count;
+        if (m_bytesOffset == m_bytes.length)
+            m_bytes = null;
+        return count;
+    }
+
+    private Record next(int type, String command){
+        int end = Math.min(m_records.size(), m_position + LOOKAHEAD);
+        for (int i = m_position; i < end; ++i){
+            Record record = m_records.get(i);
+            if (record.type == type && (command == null || command.equals(record.command))){
+                m_skipped += i - m_position;
+                m_position = i + 1;
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private String unmatched(String command){
+        ++m_unmatched;
+        String c = command.replace(" ", "").toUpperCase();
+        if (c.startsWith("AT"))
+            return "OK";
+        if (c.startsWith("ST"))
+            return "?";
+        return "NO DATA";
+    }
+
+    private void pause(long nanos){
+        if (m_realTime)
+            sleep(nanos);
+    }
+
+    private static void sleep(long nanos){
+        if (nanos <= 0)
+            return;
+        try {
+            Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isFinished(){
+        return m_position >= m_records.size() && m_bytes == null;
+    }
+
+    public int getPosition(){
+        return m_position;
+    }
+
+    public int getRecordCount(){
+        return m_records.size();
+    }
+
+    /*
+     * Recorded calls the application did not make
+     */
+    public long getSkippedCount(){
+        return m_skipped;
+    }
+
+    /*
+     * Calls that were not recorded
+     */
+    public long getUnmatchedCount(){
+        return m_unmatched;
+    }
+}
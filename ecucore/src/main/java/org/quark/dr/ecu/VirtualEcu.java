@@ -0,0 +1,316 @@
+package org.quark.dr.ecu;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/*
+ * ECU simulated from its definition : a request matching the sentbytes
+ * of a definition request (the send data items are wildcards) gets the
+ * replybytes, followed by a value for each receive data item.
+ * Values are mid-range, or waves of the given period. Enums cycle through
+ * their list, ascii items hold their name. DTC lists (shiftbytescount) are
+ * empty.
+ * Negative responses on demand : a fixed NRC per request, response pending
+ * (7F xx 78) before the response, or a random NRC on any request.
+ */
+public class VirtualEcu {
+    public static final int NRC_SERVICE_NOT_SUPPORTED = 0x11;
+    public static final int NRC_CONDITIONS_NOT_CORRECT = 0x22;
+    public static final int NRC_REQUEST_OUT_OF_RANGE = 0x31;
+    public static final int NRC_RESPONSE_PENDING = 0x78;
+
+    private static class Entry {
+        final Ecu.EcuRequest request;
+        final byte[] sent;
+        // Bytes set by the send data items, anything matches
+        final boolean[] wildcards;
+        final int fixedCount;
+
+        Entry(Ecu.EcuRequest request, byte[] sent, boolean[] wildcards){
+            this.request = request;
+            this.sent = sent;
+            this.wildcards = wildcards;
+            int count = 0;
+            for (boolean wildcard : wildcards)
+                if (!wildcard)
+                    ++count;
+            fixedCount = count;
+        }
+
+        boolean matches(byte[] data){
+            if (data.length != sent.length)
+                return false;
+            for (int i = 0; i < sent.length; ++i)
+                if (!wildcards[i] && data[i] != sent[i])
+                    return false;
+            return true;
+        }
+    }
+
+    private final Ecu m_ecu;
+    private final ArrayList<Entry> m_entries = new ArrayList<>();
+    private final boolean[] m_services = new boolean[256];
+    private final HashMap<String, Integer> m_negativeResponses = new HashMap<>();
+    private final HashMap<String, Integer> m_pendingResponses = new HashMap<>();
+    private final long m_start = System.nanoTime();
+    private long m_period;
+    private double m_nrcRate;
+    private int m_nrc = NRC_CONDITIONS_NOT_CORRECT;
+    private Random m_random = new Random();
+    private long m_requestCount;
+    private long m_unknownCount;
+
+    public VirtualEcu(Ecu ecu){
+        m_ecu = ecu;
+        for (String name : ecu.getRequestNames()){
+            Ecu.EcuRequest request = ecu.getRequest(name);
+            if (request.sentbytes == null || request.sentbytes.isEmpty() || !HexCodec.isHexadecimal(request.sentbytes))
+                continue;
+            byte[] sent = HexCodec.decode(request.sentbytes);
+            if (sent == null || sent.length == 0)
+                continue;
+            boolean[] wildcards = new boolean[sent.length];
+            for (Map.Entry<String, Ecu.EcuDataItem> item : request.sendbyte_dataitems.entrySet()){
+                Ecu.EcuData data = ecu.getData(item.getKey());
+                if (data == null)
+                    continue;
+                int first = item.getValue().firstbyte - 1;
+                int count = (data.bitscount + item.getValue().bitoffset + 7) / 8;
+                for (int i = Math.max(first, 0); i < first + count && i < sent.length; ++i)
+                    wildcards[i] = true;
+            }
+            m_entries.add(new Entry(request, sent, wildcards));
+            m_services[sent[0] & 0xFF] = true;
+        }
+        // Most specific first, then by name for the same choice every run
+        Collections.sort(m_entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if (a.fixedCount != b.fixedCount)
+                    return b.fixedCount - a.fixedCount;
+                return a.request.name.compareTo(b.request.name);
+            }
+        });
+    }
+
+    public Ecu getEcu(){
+        return m_ecu;
+    }
+
+    /*
+     * Period of the values, 0 for constant values
+     */
+    public synchronized void setPeriod(long periodMs){
+        m_period = periodMs;
+    }
+
+    /*
+     * nrc 0 removes it
+     */
+    public synchronized void setNegativeResponse(String requestName, int nrc){
+        if (nrc == 0)
+            m_negativeResponses.remove(requestName);
+        else
+            m_negativeResponses.put(requestName, nrc);
+    }
+
+    /*
+     * count times 7F xx 78 before the response
+     */
+    public synchronized void setResponsePending(String requestName, int count){
+        if (count <= 0)
+            m_pendingResponses.remove(requestName);
+        else
+            m_pendingResponses.put(requestName, count);
+    }
+
+    /*
+     * Probability of nrc instead of the response (response pending : before
+     * the response)
+     */
+    public synchronized void setNegativeResponseRate(double rate, int nrc){
+        m_nrcRate = rate;
+        m_nrc = nrc;
+    }
+
+    public synchronized void setRandom(Random random){
+        m_random = random;
+    }
+
+    public synchronized long getRequestCount(){
+        return m_requestCount;
+    }
+
+    /*
+     * Requests matching no request of the definition
+     */
+    public synchronized long getUnknownCount(){
+        return m_unknownCount;
+    }
+
+    /*
+     * Name of the definition request matching data, null if none
+     */
+    public String findRequest(byte[] data){
+        Entry entry = find(data);
+        return entry == null ? null : entry.request.name;
+    }
+
+    private Entry find(byte[] data){
+        // The default bytes of a request first : requests may only differ by
+        // their send data items (30 01 00, 30 01 11)
+        for (Entry entry : m_entries)
+            if (Arrays.equals(entry.sent, data))
+                return entry;
+        for (Entry entry : m_entries)
+            if (entry.matches(data))
+                return entry;
+        return null;
+    }
+
+    public synchronized List<byte[]> respond(byte[] data){
+        return respond(data, (System.nanoTime() - m_start) / 1000000);
+    }
+
+    /*
+     * Messages sent back for data, in order, at timeMs on the value waves
+     */
+    public synchronized List<byte[]> respond(byte[] data, long timeMs){
+        ArrayList<byte[]> responses = new ArrayList<>();
+        if (data.length == 0)
+            return responses;
+        ++m_requestCount;
+        int service = data[0] & 0xFF;
+        Entry entry = find(data);
+        if (entry == null){
+            ++m_unknownCount;
+            if (service == 0x3E)
+                responses.add(new byte[] {0x7E, data.length > 1 ? data[1] : 0});
+            else
+                responses.add(negative(service, m_services[service] ? NRC_REQUEST_OUT_OF_RANGE : NRC_SERVICE_NOT_SUPPORTED));
+            return responses;
+        }
+
+        String name = entry.request.name;
+        Integer pending = m_pendingResponses.get(name);
+        for (int i = 0; pending != null && i < pending; ++i)
+            responses.add(negative(service, NRC_RESPONSE_PENDING));
+        Integer nrc = m_negativeResponses.get(name);
+        if (nrc == null && m_nrcRate > 0 && m_random.nextDouble() < m_nrcRate){
+            if (m_nrc == NRC_RESPONSE_PENDING)
+                responses.add(negative(service, NRC_RESPONSE_PENDING));
+            else
+                nrc = m_nrc;
+        }
+        responses.add(nrc != null ? negative(service, nrc) : buildResponse(entry, timeMs));
+        return responses;
+    }
+
+    private static byte[] negative(int service, int nrc){
+        return new byte[] {0x7F, (byte) service, (byte) nrc};
+    }
+
+    private byte[] buildResponse(Entry entry, long timeMs){
+        Ecu.EcuRequest request = entry.request;
+        byte[] reply = request.replybytes == null ? null : HexCodec.decode(request.replybytes);
+        if (reply == null || reply.length == 0)
+            reply = new byte[] {(byte) (entry.sent[0] + 0x40)};
+
+        // Sorted for the same layout whatever the map order
+        TreeMap<String, Ecu.EcuDataItem> items = new TreeMap<>(request.recvbyte_dataitems);
+        int length = Math.max(reply.length, request.minbytes);
+        for (Map.Entry<String, Ecu.EcuDataItem> item : items.entrySet()){
+            Ecu.EcuData data = m_ecu.getData(item.getKey());
+            if (data != null)
+                length = Math.max(length, item.getValue().firstbyte - 1 + (data.bitscount + item.getValue().bitoffset + 7) / 8);
+        }
+        byte[] response = Arrays.copyOf(reply, length);
+        if (request.shiftbytescount > 0)
+            return response;
+
+        for (Map.Entry<String, Ecu.EcuDataItem> item : items.entrySet()){
+            Ecu.EcuData data = m_ecu.getData(item.getKey());
+            Ecu.EcuDataItem dataItem = item.getValue();
+            // Items over the replybytes describe the service and identifier
+            if (data == null || data.bitscount <= 0 || dataItem.firstbyte - 1 < reply.length)
+                continue;
+            writeBits(response, dataItem, data.bitscount, value(data, timeMs));
+        }
+        return response;
+    }
+
+    /*
+     * Raw value of data, bitscount bits
+     */
+    private BigInteger value(Ecu.EcuData data, long timeMs){
+        int bits = data.bitscount;
+        // Each item has its own phase
+        double phase = (data.name.hashCode() & 0xFFFF) / 65536.;
+        double cycle = m_period > 0 ? (double) timeMs / m_period + phase : 0;
+
+        if (data.bytesascii){
+            int count = (bits + 7) / 8;
+            byte[] text = new byte[count];
+            for (int i = 0; i < count; ++i){
+                char c = i < data.name.length() ? data.name.charAt(i) : ' ';
+                text[i] = (byte) (c >= 0x20 && c < 0x7F ? c : '?');
+            }
+            return new BigInteger(1, text);
+        }
+
+        if (!data.lists.isEmpty()){
+            String[] names = data.lists.getNames();
+            int index = m_period > 0 ? (int) ((long) Math.floor(cycle * names.length) % names.length) : 0;
+            return BigInteger.valueOf(data.lists.getKey(names[index]) & 0xFFFFFFFFL);
+        }
+
+        if (bits > 62)
+            return BigInteger.ZERO;
+        long max = (1L << bits) - 1;
+        double level = m_period > 0 ? 0.5 + 0.25 * Math.sin(2 * Math.PI * cycle) : 0.5;
+        long raw = Math.round(level * max);
+        if (data.signed)
+            // Around zero
+            raw = (raw - max / 2) & max;
+        return BigInteger.valueOf(raw);
+    }
+
+    /*
+     * Same bit layout as EcuData.getHexValue
+     */
+    private static void writeBits(byte[] response, Ecu.EcuDataItem item, int bits, BigInteger value){
+        boolean littleEndian = "Little".equals(item.req_endian);
+        if (item.endian.equals("Little"))
+            littleEndian = true;
+        if (item.endian.equals("Big"))
+            littleEndian = false;
+
+        int start = item.firstbyte - 1;
+        int count = (bits + item.bitoffset + 7) / 8;
+        for (int i = 0; i < bits; ++i){
+            int index;
+            int position;
+            if (littleEndian){
+                // Bytes reversed, then the bits from startBit counted from the end
+                position = count * 8 - item.bitoffset - bits + i;
+                index = start + count - 1 - position / 8;
+            } else {
+                position = item.bitoffset + i;
+                index = start + position / 8;
+            }
+            int mask = 0x80 >> (position & 7);
+            if (value.testBit(bits - 1 - i))
+                response[index] |= mask;
+            else
+                response[index] &= ~mask;
+        }
+    }
+}
@@ -0,0 +1,1506 @@
+package org.quark.dr.ecu;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class ecuUnitTest {
+    @Test
+    public void test_ecu_little_endian(){
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("UCH_LE.json");
+        Ecu ecu = new Ecu(is);
+        HashMap<String, Object> hash = new HashMap<>();
+        byte[] uchTest = Ecu.hexStringToByteArray("61112110010104001400000000DCE9");
+        HashMap<String, String> hash2 = ecu.getRequestValues(uchTest, "Trame 11 : Etats des entrées", false);
+        Iterator<String> it = hash2.keySet().iterator();
+        for (;it.hasNext();){
+            String key = it.next();
+            System.out.println("??  " + key + " = " + hash2.get(key));
+            hash2.put(key, hash2.get(key));
+        }
+
+
+        hash.put("Code APV", "001122334455");
+        byte[] frame;
+        frame = ecu.setRequestValues("ACCEDER AU MODE APRES-VENTE", hash);
+        System.out.println("??  " + Ecu.byteArrayToHex(frame));
+    }
+
+    @Test
+    public void test_ecu_little_endian2(){
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("DDCR_-_BEB2_a_BEB4_-_v5.0.json");
+        Ecu ecu = new Ecu(is);
+        HashMap<String, Object> hash = new HashMap<>();
+        byte[] uchTest = Ecu.hexStringToByteArray("61A100000000940C0000840CAC30F7FFA00F43000000000A00000000");
+        HashMap<String, String> hash2 = ecu.getRequestValues(uchTest, "Frame 1 : parameters", false);
+        Iterator<String> it = hash2.keySet().iterator();
+        for (;it.hasNext();){
+            String key = it.next();
+            System.out.println("??  " + key + " = " + hash2.get(key));
+            hash2.put(key, hash2.get(key));
+        }
+
+    }
+
+    @Test
+    public void test_ecu() {
+        assertTrue(getClass().getResource("test.json") == null);
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("test.json");
+
+        Ecu ecu = new Ecu(is);
+        // ECU Methods check
+        byte[] testbyte = new byte[] {0x00, -1, 10};
+        byte[] ucttest = new byte[] {0x61, 0x0A, 0x16, 0x32, 0x32, 0x02, 0x58, 0x00, (byte)0xB4, 0x3C,
+                0x3C, 0x1E, 0x3C, 0x0A, 0x0A, 0x0A, 0x0A, 0x01, 0x2C, 0x5C, 0x61, 0x67, (byte)0xB5, (byte)0xBB,
+                (byte)0xC1, 0X0A};
+        // 3B 0A 16 32 32 02 58 00 B4 3C 3C 1E 3C 0A 0A 0A 0A 01 2C 5C 61 67 B5 BB C1 0A
+        byte[] ucttest2 = new byte[26];
+
+        BigInteger bi = new BigInteger("FF", 16);
+        BigInteger bi2 = new BigInteger("11111110", 2);
+
+        assertThat(ecu.hex8ToSigned(125), is(125));
+        assertThat(ecu.hex8ToSigned(254), is(-2));
+        assertThat(ecu.hex16ToSigned(63000), is(-2536));
+        assertThat(ecu.hex16ToSigned(6000), is(6000));
+        assertThat(ecu.padLeft("FFFF", 8, "0"), is("0000FFFF"));
+        assertThat(ecu.hexStringToByteArray("00FF0A"), is(testbyte));
+        assertThat(ecu.integerToBinaryString(1, 8), is ("00000001"));
+        assertThat(ecu.integerToBinaryString(254, 8), is ("11111110"));
+
+        assertThat(bi.intValue(), is(255));
+        assertThat(bi2.intValue(), is(254));
+
+        HashMap<String, String> hash = ecu.getRequestValues(ucttest, "ReadDataByLocalIdentifier: misc timings and values", false);
+        HashMap<String, Object> hash2 = new HashMap<>();
+        HashMap<String, Object> hash3 = new HashMap<>();
+
+        Iterator<String> it = hash.keySet().iterator();
+        for (;it.hasNext();){
+            String key = it.next();
+            System.out.println(">>>>>>> " + key + " = " + hash.get(key));
+            hash2.put(key, hash.get(key));
+        }
+        System.out.println("3B 0A 16 32 32 02 58 00 B4 3C 3C 1E 3C 0A 0A 0A 0A 01 2C 5C 61 67 B5 BB C1 0A");
+
+        byte[] frame = ecu.setRequestValues("WriteDataByLocalIdentifier: misc timings and val.", hash2);
+        for(byte c : frame) {
+            System.out.format("%02X ", c);
+        }
+        System.out.println();
+        hash3.put("VIN Data", "VF1000000000000");
+        hash3.put("VIN CRC", "AA BB");
+        frame = ecu.setRequestValues("WriteDataByLocalIdentifier: VIN", hash3);
+        for(byte c : frame) {
+            System.out.format("%02X ", c);
+        }
+        System.out.println();
+    }
+
+    @Test
+    public void test_layout() {
+        assertTrue(getClass().getResource("test.json.layout") == null);
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("test.json.layout");
+
+        Layout layout = new Layout(is);
+    }
+
+    @Test
+    public void test_isotp() throws Exception {
+        // Single frame
+        List<byte[]> frames = IsoTpCodec.encode(Ecu.hexStringToByteArray("2180"));
+        assertThat(frames.size(), is(1));
+        assertThat(IsoTpCodec.formatFrame(frames.get(0)), is("022180"));
+
+        // First frame + consecutive frames, sequence number wraps after 0xF
+        byte[] payload = new byte[130];
+        for (int i = 0; i < payload.length; ++i)
+            payload[i] = (byte)i;
+        frames = IsoTpCodec.encode(payload);
+        assertThat(frames.size(), is(1 + 18));
+        assertThat(IsoTpCodec.formatFrame(frames.get(0)), is("1082000102030405"));
+        assertThat(IsoTpCodec.formatFrame(frames.get(1)), is("21060708090A0B0C"));
+        assertThat(frames.get(15)[0] & 0xFF, is(0x2F));
+        assertThat(frames.get(16)[0] & 0xFF, is(0x20));
+        assertThat(frames.get(18).length, is(1 + 5));
+        assertArrayEquals(payload, IsoTpCodec.decode(frames));
+        assertThat(frames.size(), is(19));
+
+        // Over 4095 bytes, 32 bits length escape
+        byte[] longPayload = new byte[0x1000];
+        longPayload[0] = 0x36;
+        frames = IsoTpCodec.encode(longPayload);
+        assertThat(IsoTpCodec.formatFrame(frames.get(0)), is("1000000010003600"));
+        assertArrayEquals(longPayload, IsoTpCodec.decode(frames));
+
+        // Typed errors
+        List<byte[]> lost = new ArrayList<>(frames);
+        lost.remove(3);
+        try {
+            IsoTpCodec.decode(lost);
+            fail();
+        } catch (IsoTpException e) {
+            assertThat(e.getError(), is(IsoTpException.Error.BAD_SEQUENCE));
+        }
+        try {
+            IsoTpCodec.decode(frames.subList(0, 10));
+            fail();
+        } catch (IsoTpException e) {
+            assertThat(e.getError(), is(IsoTpException.Error.RESPONSE_TOO_SHORT));
+        }
+
+        // Hex front-ends
+        assertTrue(IsoTpCodec.parseFrame("03 7F 21 1") == null);
+        assertTrue(IsoTpCodec.parseFrame("NO DATA") == null);
+        ArrayList<String> lines = new IsoTPEncode("22 F1 90 AA BB CC DD EE").getFormattedArray();
+        assertThat(lines.size(), is(2));
+        assertThat(lines.get(0), is("100822F190AABBCC"));
+        assertThat(lines.get(1), is("21DDEE"));
+        assertThat(new IsoTPDecode(lines).decodeCan(), is("22F190AABBCCDDEE"));
+        assertThat(lines.size(), is(2));
+        ArrayList<String> bad = new ArrayList<>();
+        bad.add("037F2112");
+        bad.add("037F2112");
+        assertThat(new IsoTPDecode(bad).decodeCan(), is("ERROR : BAD CAN FORMAT (MULTILINE)"));
+    }
+
+    @Test
+    public void test_readDTC() {
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("acu.json");
+        Ecu ecu = new Ecu(is);
+        System.out.println("?? >> DTC TEST");
+        ecu.decodeDTC("ReadDTC", "5706903161900161901461900b61");
+    }
+
+    @Test
+    public void test_Ident(){
+        EcuDatabase db = new EcuDatabase();
+        EcuDatabase.EcuIdentifierNew idn = db.new EcuIdentifierNew();
+        idn.diag_version = "9";
+        idn.version = "F00A161";
+        idn.soft_version = "SW09.C.04-B031-11.2-F04-07";
+        idn.supplier = "B517";
+        idn.addr = 41;
+        try {
+            db.loadDatabase("/data/data/ecu.zip", "/data");
+        } catch (EcuDatabase.DatabaseException e){
+            e.printStackTrace();
+            return;
+        }
+        ArrayList<EcuDatabase.EcuInfo> infos = db.identifyNewEcu(idn);
+        for (EcuDatabase.EcuInfo info : infos)
+            System.out.println("?? " + info.ecuName + " " + info.exact_match);
+//        EcuDatabase.EcuInfo  info = db.identifyOldEcu(122, "61 80 82 00 44 66 27 44 32 31 33 82 00 38 71 38 00 A7 75 00 56 05 02 01 00 00");
+//        System.out.println("?? " + info.ecuName + " " + info.exact_match);
+    }
+
+    private String getResourceAsString(String name) throws Exception {
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream(name);
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = br.readLine()) != null) {
+            sb.append(line).append("\n");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void test_searchIndex() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        EcuDatabase db = new EcuDatabase();
+        EcuSearchIndex index = new EcuSearchIndex(db, dir.getAbsolutePath());
+        index.indexEcu("test.json", "Test ECU", getResourceAsString("test.json"),
+                getResourceAsString("test.json.layout"));
+
+        // Prefix query on a data item displayed in the "Settings" screen
+        List<EcuSearchIndex.SearchHit> hits = index.search("rollb", 20);
+        assertTrue(hits.size() > 0);
+        boolean found = false;
+        for (EcuSearchIndex.SearchHit hit : hits) {
+            System.out.println("?? " + hit);
+            if (hit.type == EcuSearchIndex.TYPE_DATA && hit.name.equals("Rollbar Present")) {
+                assertThat(hit.screen, is("Settings"));
+                assertThat(hit.ecuHref, is("test.json"));
+                found = true;
+            }
+        }
+        assertTrue(found);
+
+        // Multi token query, every token must match
+        hits = index.search("battery volt", 20);
+        assertTrue(hits.size() > 0);
+        assertThat(index.search("battery zzzz", 20).size(), is(0));
+
+        // Reload from disk
+        index.save();
+        EcuSearchIndex reloaded = new EcuSearchIndex(db, dir.getAbsolutePath());
+        assertTrue(reloaded.load());
+        assertThat(reloaded.getDocumentCount(), is(index.getDocumentCount()));
+        assertThat(reloaded.search("rollb", 20).size(), is(index.search("rollb", 20).size()));
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    @Test
+    public void test_definitionPool() throws Exception {
+        String[] files = {"UCH_LE.json", "DDCR_-_BEB2_a_BEB4_-_v5.0.json", "acu.json", "test.json"};
+        int copies = 10;
+        String[] jsons = new String[files.length];
+        for (int i = 0; i < files.length; ++i)
+            jsons[i] = getResourceAsString(files[i]);
+
+        // Pooled definitions must decode exactly like private ones
+        EcuDefinitionPool pool = new EcuDefinitionPool();
+        Ecu plain = new Ecu(jsons[0]);
+        Ecu pooled1 = new Ecu(jsons[0], pool);
+        Ecu pooled2 = new Ecu(jsons[0], pool);
+        byte[] uchTest = Ecu.hexStringToByteArray("61112110010104001400000000DCE9");
+        String request = "Trame 11 : Etats des entrées";
+        assertThat(pooled1.getRequestValues(uchTest, request, true),
+                is(plain.getRequestValues(uchTest, request, true)));
+        for (String key : plain.getRequestValues(uchTest, request, false).keySet())
+            assertTrue(pooled1.getData(key) == pooled2.getData(key));
+
+        // Heap report, every bundled definition loaded several times
+        ArrayList<Ecu> ecus = new ArrayList<>();
+        long base = usedHeap();
+        for (int c = 0; c < copies; ++c)
+            for (String json : jsons)
+                ecus.add(new Ecu(json));
+        long unpooled = usedHeap() - base;
+        ecus.clear();
+
+        pool = new EcuDefinitionPool();
+        base = usedHeap();
+        for (int c = 0; c < copies; ++c)
+            for (String json : jsons)
+                ecus.add(new Ecu(json, pool));
+        long withPool = usedHeap() - base;
+
+        System.out.println("?? " + ecus.size() + " ECUs, without pool : " + unpooled / 1024 + " KiB");
+        System.out.println("?? " + ecus.size() + " ECUs, with pool    : " + withPool / 1024 + " KiB");
+        System.out.println("?? pool : " + pool.getDefinitionCount() + " definitions ("
+                + pool.getSharedDefinitionCount() + " shared), " + pool.getListCount()
+                + " lists, " + pool.getStringCount() + " strings");
+        assertThat(pool.getSharedDefinitionCount() >= pool.getDefinitionCount() * (copies - 1), is(true));
+    }
+
+    @Test
+    public void test_dataList() {
+        assertTrue(EcuDataList.create(new int[0], new String[0], 0) == EcuDataList.EMPTY);
+        assertThat(EcuDataList.EMPTY.get(0) == null, is(true));
+
+        // Small range, dense storage
+        EcuDataList dense = EcuDataList.create(new int[]{2, 0, 1, 2},
+                new String[]{"Two", "Zero", "One", "Deux"}, 4);
+        assertThat(dense.size(), is(3));
+        assertThat(dense.get(0), is("Zero"));
+        assertThat(dense.get(2), is("Deux"));
+        assertTrue(dense.get(3) == null);
+        assertTrue(dense.get(-1) == null);
+        assertThat(dense.getKey("One"), is(1));
+        assertThat(dense.containsName("Two"), is(false));
+
+        // Wide range, sorted keys
+        EcuDataList sparse = EcuDataList.create(new int[]{0xFFFF, 5, -3},
+                new String[]{"Invalid", "Five", "Minus"}, 3);
+        assertThat(sparse.get(0xFFFF), is("Invalid"));
+        assertThat(sparse.get(-3), is("Minus"));
+        assertTrue(sparse.get(6) == null);
+        assertThat(sparse.getKey("Invalid"), is(0xFFFF));
+        assertThat(sparse.getNames().length, is(3));
+        assertThat(sparse.getNames()[0], is("Minus"));
+        assertThat(sparse, is(EcuDataList.create(new int[]{5, -3, 0xFFFF},
+                new String[]{"Five", "Minus", "Invalid"}, 3)));
+    }
+
+    @Test
+    public void test_fastIntEncoder() throws Exception {
+        String[] files = {"UCH_LE.json", "DDCR_-_BEB2_a_BEB4_-_v5.0.json", "acu.json", "test.json"};
+        int checked = 0;
+        for (String file : files) {
+            Ecu ecu = new Ecu(getResourceAsString(file));
+            for (String requestName : ecu.getRequestNames()) {
+                Ecu.EcuRequest request = ecu.getRequest(requestName);
+                if (request.sentbytes == null)
+                    continue;
+                for (String itemName : request.sendbyte_dataitems.keySet()) {
+                    Ecu.EcuData data = ecu.getData(itemName);
+                    if (data == null || data.lists.isEmpty())
+                        continue;
+                    for (String name : data.lists.getNames()) {
+                        int key = data.lists.getKey(name);
+                        byte[] slow = data.setValue(Integer.toHexString(key),
+                                Ecu.hexStringToByteArray(request.sentbytes),
+                                request.sendbyte_dataitems.get(itemName));
+                        byte[] fast = data.setIntValue(key,
+                                Ecu.hexStringToByteArray(request.sentbytes),
+                                request.sendbyte_dataitems.get(itemName));
+                        assertThat(Ecu.byteArrayToHex(fast), is(Ecu.byteArrayToHex(slow)));
+                        ++checked;
+                    }
+                }
+            }
+        }
+        System.out.println("?? fast encoder checked on " + checked + " values");
+        assertTrue(checked > 0);
+
+        // Lazily discovered SDS requests, built with the fast encoder
+        Ecu ecu = new Ecu(getResourceAsString("test.json"));
+        HashMap<String, String> sds = ecu.getSdsrequests();
+        assertTrue(sds == ecu.getSdsrequests());
+        for (String name : sds.keySet())
+            System.out.println("?? SDS " + name + " : " + sds.get(name));
+        assertTrue(ecu.getDefaultSDS() != null);
+    }
+
+    /*
+     * Scripted ISO-TP peer : every frame sent to it goes through the
+     * script, which queues the frames it answers
+     */
+    private interface PeerScript {
+        void onFrame(byte[] frame, List<byte[]> replies);
+    }
+
+    private static class ScriptedPeer implements IsoTpLink {
+        final PeerScript script;
+        final ArrayDeque<byte[]> replies = new ArrayDeque<>();
+        final List<byte[]> sent = new ArrayList<>();
+        final List<Long> sentTimes = new ArrayList<>();
+        final List<Integer> expected = new ArrayList<>();
+
+        ScriptedPeer(PeerScript script) {
+            this.script = script;
+        }
+
+        @Override
+        public void sendFrame(byte[] frame, int expectedFrames) {
+            sent.add(frame);
+            sentTimes.add(System.nanoTime());
+            expected.add(expectedFrames);
+            List<byte[]> out = new ArrayList<>();
+            script.onFrame(frame, out);
+            replies.addAll(out);
+        }
+
+        @Override
+        public byte[] receiveFrame(long timeoutMs) {
+            return replies.poll();
+        }
+    }
+
+    private static byte[] testPayload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; ++i)
+            payload[i] = (byte)(i * 7 + 3);
+        return payload;
+    }
+
+    @Test
+    public void test_isotpSender() throws Exception {
+        // 5000 bytes (32 bits escape), one WAIT, then blocks of 8 frames, STmin 500us
+        final byte[] payload = testPayload(5000);
+        final int[] consecutive = {0};
+        ScriptedPeer peer = new ScriptedPeer((frame, replies) -> {
+            int type = IsoTpCodec.frameType(frame);
+            if (type == IsoTpCodec.FIRST_FRAME) {
+                replies.add(IsoTpCodec.flowControl(IsoTpCodec.FC_WAIT, 0, 0));
+                replies.add(IsoTpCodec.flowControl(IsoTpCodec.FC_CONTINUE, 8, 0xF5));
+            } else if (type == IsoTpCodec.CONSECUTIVE_FRAME) {
+                if (++consecutive[0] % 8 == 0)
+                    replies.add(IsoTpCodec.flowControl(IsoTpCodec.FC_CONTINUE, 8, 0xF5));
+            }
+        });
+        new IsoTpSender(peer).send(payload);
+
+        assertArrayEquals(payload, IsoTpCodec.decode(peer.sent));
+        assertThat(peer.sent.size(), is(1 + (5000 - 2 + 6) / 7));
+        for (int i = 2; i < peer.sent.size(); ++i) {
+            boolean blockStart = (i - 1) % 8 == 0;
+            boolean last = i == peer.sent.size() - 1;
+            if (!blockStart)
+                assertTrue(peer.sentTimes.get(i) - peer.sentTimes.get(i - 1) >= 500000L);
+            assertThat(peer.expected.get(i), is(last || i % 8 == 0 ? 1 : 0));
+        }
+
+        // Receiver refusing the message
+        ScriptedPeer overflow = new ScriptedPeer((frame, replies) ->
+                replies.add(IsoTpCodec.flowControl(IsoTpCodec.FC_OVERFLOW, 0, 0)));
+        try {
+            new IsoTpSender(overflow).send(payload);
+            fail();
+        } catch (IsoTpException e) {
+            assertThat(e.getError(), is(IsoTpException.Error.FLOW_CONTROL_OVERFLOW));
+        }
+
+        // Receiver waiting forever
+        ScriptedPeer waiting = new ScriptedPeer((frame, replies) -> {
+            for (int i = 0; i < 20; ++i)
+                replies.add(IsoTpCodec.flowControl(IsoTpCodec.FC_WAIT, 0, 0));
+        });
+        try {
+            new IsoTpSender(waiting).send(payload);
+            fail();
+        } catch (IsoTpException e) {
+            assertThat(e.getError(), is(IsoTpException.Error.TOO_MANY_WAIT));
+        }
+
+        // No flow control at all
+        try {
+            new IsoTpSender(new ScriptedPeer((frame, replies) -> { })).send(payload);
+            fail();
+        } catch (IsoTpException e) {
+            assertThat(e.getError(), is(IsoTpException.Error.TIMEOUT));
+        }
+    }
+
+    @Test
+    public void test_isotpReceiver() throws Exception {
+        // ECU answering a 5000 bytes ReadMemoryByAddress, as many frames as allowed by the FC
+        final byte[] payload = testPayload(5000);
+        final List<byte[]> ecuFrames = IsoTpCodec.encode(payload);
+        final int[] next = {1};
+        final int[] flowControls = {0};
+        ScriptedPeer peer = new ScriptedPeer((frame, replies) -> {
+            assertThat(IsoTpCodec.frameType(frame), is(IsoTpCodec.FLOW_CONTROL));
+            assertThat(IsoTpCodec.flowStatus(frame), is(IsoTpCodec.FC_CONTINUE));
+            ++flowControls[0];
+            int blockSize = IsoTpCodec.flowBlockSize(frame);
+            for (int i = 0; (blockSize == 0 || i < blockSize) && next[0] < ecuFrames.size(); ++i)
+                replies.add(ecuFrames.get(next[0]++));
+        });
+        peer.replies.add(ecuFrames.get(0));
+        IsoTpReceiver receiver = new IsoTpReceiver(peer);
+        receiver.setFlowControl(15, 0);
+        assertArrayEquals(payload, receiver.receive());
+        assertThat(flowControls[0], is((ecuFrames.size() - 1 + 14) / 15));
+        assertThat(peer.expected.get(0), is(15));
+
+        // Full speed : a single flow control
+        next[0] = 1;
+        flowControls[0] = 0;
+        peer.replies.add(ecuFrames.get(0));
+        assertArrayEquals(payload, new IsoTpReceiver(peer).receive());
+        assertThat(flowControls[0], is(1));
+
+        // Single frame response
+        peer.replies.add(Ecu.hexStringToByteArray("0462F19001"));
+        assertThat(IsoTpCodec.formatFrame(new IsoTpReceiver(peer).receive()), is("62F19001"));
+
+        // Message longer than accepted
+        ScriptedPeer tooLong = new ScriptedPeer((frame, replies) ->
+                assertThat(IsoTpCodec.flowStatus(frame), is(IsoTpCodec.FC_OVERFLOW)));
+        tooLong.replies.add(ecuFrames.get(0));
+        receiver = new IsoTpReceiver(tooLong);
+        receiver.setMaxMessageLength(4095);
+        try {
+            receiver.receive();
+            fail();
+        } catch (IsoTpException e) {
+            assertThat(e.getError(), is(IsoTpException.Error.MESSAGE_TOO_LONG));
+            assertThat(tooLong.sent.size(), is(1));
+        }
+
+        // Lost consecutive frame
+        ScriptedPeer lossy = new ScriptedPeer((frame, replies) -> {
+            replies.add(ecuFrames.get(1));
+            replies.add(ecuFrames.get(3));
+        });
+        lossy.replies.add(ecuFrames.get(0));
+        try {
+            new IsoTpReceiver(lossy).receive();
+            fail();
+        } catch (IsoTpException e) {
+            assertThat(e.getError(), is(IsoTpException.Error.BAD_SEQUENCE));
+        }
+
+        // ECU stopping in the middle of the message
+        ScriptedPeer silent = new ScriptedPeer((frame, replies) -> replies.add(ecuFrames.get(1)));
+        silent.replies.add(ecuFrames.get(0));
+        try {
+            new IsoTpReceiver(silent).receive();
+            fail();
+        } catch (IsoTpException e) {
+            assertThat(e.getError(), is(IsoTpException.Error.TIMEOUT));
+        }
+    }
+
+    @Test
+    public void test_isotpReassembler() throws Exception {
+        // Two ECUs answering at the same time, frames interleaved
+        byte[] payloadA = testPayload(300);
+        byte[] payloadB = testPayload(20);
+        List<byte[]> framesA = IsoTpCodec.encode(payloadA);
+        List<byte[]> framesB = IsoTpCodec.encode(payloadB);
+        IsoTpReassembler reassembler = new IsoTpReassembler();
+
+        // Consecutive frame of a transfer started before we listened
+        assertTrue(reassembler.push(0x7E8, framesA.get(5)) == null);
+        // Flow control sent by the tester
+        assertTrue(reassembler.push(0x7E0, IsoTpCodec.flowControl(IsoTpCodec.FC_CONTINUE, 0, 0)) == null);
+
+        byte[] completeA = null;
+        byte[] completeB = null;
+        int b = 0;
+        for (int a = 0; a < framesA.size(); ++a) {
+            byte[] result = reassembler.push(0x7E8, framesA.get(a));
+            if (a < framesA.size() - 1)
+                assertTrue(result == null);
+            else
+                completeA = result;
+            if (b < framesB.size()) {
+                result = reassembler.push(0x7EC, framesB.get(b++));
+                if (result != null) {
+                    assertThat(b, is(framesB.size()));
+                    completeB = result;
+                }
+            }
+        }
+        assertArrayEquals(payloadA, completeA);
+        assertArrayEquals(payloadB, completeB);
+        assertThat(reassembler.getPendingCount(), is(0));
+
+        // Single frame, also from an offset in a larger buffer
+        byte[] buffer = Ecu.hexStringToByteArray("AABB0362F190CC");
+        assertThat(IsoTpCodec.formatFrame(reassembler.push(0x7E8, buffer, 2, 4)), is("62F190"));
+
+        // Lost frame, the reception is dropped
+        reassembler.push(0x7E8, framesA.get(0));
+        reassembler.push(0x7E8, framesA.get(1));
+        try {
+            reassembler.push(0x7E8, framesA.get(3));
+            fail();
+        } catch (IsoTpException e) {
+            assertThat(e.getError(), is(IsoTpException.Error.BAD_SEQUENCE));
+        }
+        assertThat(reassembler.isReceiving(0x7E8), is(false));
+
+        // Stale reception
+        reassembler.setTimeout(1);
+        reassembler.push(0x7E8, framesA.get(0));
+        Thread.sleep(5);
+        assertTrue(reassembler.push(0x7E8, framesA.get(1)) == null);
+        assertThat(reassembler.isReceiving(0x7E8), is(false));
+    }
+
+    /*
+     * Former implementations, kept as the reference of the hex codec benchmark
+     */
+    private static String legacyByteArrayToHex(byte[] a) {
+        StringBuilder sb = new StringBuilder(a.length * 2);
+        for (byte b : a)
+            sb.append(String.format("%02x", b));
+        return sb.toString().toUpperCase();
+    }
+
+    private static byte[] legacyHexStringToByteArray(String s) {
+        s = s.replace(" ", "");
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0, j = 0; i < len; i += 2, ++j) {
+            data[j] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+                    + Character.digit(s.charAt(i + 1), 16));
+        }
+        return data;
+    }
+
+    private static boolean legacyIsHexadecimal(String text) {
+        char[] hexDigits = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+                'a', 'b', 'c', 'd', 'e', 'f', 'A', 'B', 'C', 'D', 'E', 'F'};
+        for (char symbol : text.toCharArray()) {
+            boolean found = false;
+            for (char hexDigit : hexDigits) {
+                if (symbol == hexDigit) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void test_hexCodec() {
+        byte[] all = new byte[256];
+        for (int i = 0; i < 256; ++i)
+            all[i] = (byte) i;
+        String hex = HexCodec.encode(all);
+        assertThat(hex, is(legacyByteArrayToHex(all)));
+        assertArrayEquals(all, HexCodec.decode(hex));
+        assertArrayEquals(all, HexCodec.decode(hex.toLowerCase()));
+        assertArrayEquals(Ecu.hexStringToByteArray("61 80 0A"), legacyHexStringToByteArray("61 80 0A"));
+        assertTrue(HexCodec.decode("618") == null);
+        assertTrue(HexCodec.decode("61 8G") == null);
+        assertThat(HexCodec.decodedLength("61 80 0A"), is(3));
+        assertThat(HexCodec.decodedLength("6 180"), is(-1));
+        assertTrue(HexCodec.decode("6 180") == null);
+        assertThat(HexCodec.isHexadecimal("037F2178"), is(true));
+        assertThat(HexCodec.isHexadecimal("NO DATA"), is(false));
+        assertThat(HexCodec.isHexadecimal("03 7F"), is(false));
+        assertThat(Ecu.stringToHex("AB\u00e9"), is("4142E9"));
+
+        byte[] out = new byte[8];
+        assertThat(HexCodec.decode("10 14 62 F1 90 56 46 31", out, 0), is(8));
+        assertThat(out[7], is((byte) 0x31));
+        char[] chars = new char[16];
+        assertThat(HexCodec.encode(out, 0, 8, chars, 0), is(16));
+        assertThat(new String(chars), is("101462F190564631"));
+    }
+
+    @Test
+    public void test_hexCodecBenchmark() {
+        // Typical ELM line and response sizes
+        byte[] frame = Ecu.hexStringToByteArray("101462F190564631");
+        byte[] response = testPayload(64);
+        String line = HexCodec.encode(frame);
+        String responseHex = HexCodec.encode(response);
+        int iterations = 20000;
+        long sink = 0;
+
+        for (int round = 0; round < 3; ++round) {
+            // First rounds are the warm-up
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; ++i)
+                sink += legacyByteArrayToHex(response).length();
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; ++i)
+                sink += HexCodec.encode(response).length();
+            long t2 = System.nanoTime();
+            for (int i = 0; i < iterations; ++i)
+                sink += legacyHexStringToByteArray(responseHex)[i & 63];
+            long t3 = System.nanoTime();
+            for (int i = 0; i < iterations; ++i)
+                sink += HexCodec.decode(responseHex)[i & 63];
+            long t4 = System.nanoTime();
+            for (int i = 0; i < iterations; ++i)
+                sink += legacyIsHexadecimal(line) ? i : 0;
+            long t5 = System.nanoTime();
+            for (int i = 0; i < iterations; ++i)
+                sink += HexCodec.isHexadecimal(line) ? i : 0;
+            long t6 = System.nanoTime();
+
+            if (round == 2) {
+                System.out.println("?? encode 64 bytes   : legacy " + (t1 - t0) / iterations
+                        + " ns, HexCodec " + (t2 - t1) / iterations + " ns");
+                System.out.println("?? decode 64 bytes   : legacy " + (t3 - t2) / iterations
+                        + " ns, HexCodec " + (t4 - t3) / iterations + " ns");
+                System.out.println("?? validate ELM line : legacy " + (t5 - t4) / iterations
+                        + " ns, HexCodec " + (t6 - t5) / iterations + " ns");
+            }
+        }
+        assertTrue(sink != 0);
+    }
+
+    @Test
+    public void test_elmCommandQueue() throws Exception {
+        final ElmCommandQueue queue = new ElmCommandQueue();
+        queue.add("AT Z");
+        queue.add("2180");
+        assertThat(queue.size(), is(2));
+        assertThat(queue.poll(0), is("AT Z"));
+        assertThat(queue.poll(), is("2180"));
+        assertTrue(queue.poll() == null);
+
+        // Timeout
+        long start = System.nanoTime();
+        assertTrue(queue.poll(30) == null);
+        assertTrue(System.nanoTime() - start >= 25000000L);
+
+        // The waiting worker starts as soon as a command is queued
+        final long[] queuedAt = new long[1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queuedAt[0] = System.nanoTime();
+                queue.add("2181");
+            }
+        });
+        producer.start();
+        assertThat(queue.poll(5000), is("2181"));
+        long latency = System.nanoTime() - queuedAt[0];
+        producer.join();
+        System.out.println("?? Queue wake up latency : " + latency / 1000 + " us");
+        assertTrue(latency < 5000000L);
+
+        // Stop request
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.wakeUp();
+            }
+        });
+        start = System.nanoTime();
+        stopper.start();
+        assertTrue(queue.poll(5000) == null);
+        assertTrue(System.nanoTime() - start < 2000000000L);
+        stopper.join();
+
+        queue.add("2182");
+        queue.clear();
+        assertThat(queue.isEmpty(), is(true));
+    }
+
+    @Test
+    public void test_elmCommandLanes() throws Exception {
+        ElmCommandQueue queue = new ElmCommandQueue();
+        assertThat(ElmCommandQueue.defaultLane("AT SH 7E0"), is(ElmCommandQueue.LANE_CONFIGURATION));
+        assertThat(ElmCommandQueue.defaultLane("STPBR 500000"), is(ElmCommandQueue.LANE_CONFIGURATION));
+        assertThat(ElmCommandQueue.defaultLane("2180"), is(ElmCommandQueue.LANE_POLLING));
+
+        // A button press goes before a screen of display requests
+        for (int i = 0; i < 20; ++i)
+            queue.add("21" + (10 + i), ElmCommandQueue.LANE_POLLING);
+        assertThat(queue.poll(), is("2110"));
+        queue.add("DELAY:100", ElmCommandQueue.LANE_INTERACTIVE);
+        queue.add("3B01", ElmCommandQueue.LANE_INTERACTIVE);
+        assertThat(queue.size(ElmCommandQueue.LANE_INTERACTIVE), is(2));
+        assertThat(queue.poll(), is("DELAY:100"));
+        assertThat(queue.poll(), is("3B01"));
+        assertThat(queue.poll(), is("2111"));
+        queue.clear(ElmCommandQueue.LANE_POLLING);
+        assertThat(queue.isEmpty(), is(true));
+
+        // Configuration is a barrier : older requests before, newer after
+        queue.add("2180");
+        queue.add("AT SH 745");
+        queue.add("2181");
+        queue.add("3B02", ElmCommandQueue.LANE_INTERACTIVE);
+        assertThat(queue.poll(), is("2180"));
+        assertThat(queue.poll(), is("AT SH 745"));
+        assertThat(queue.poll(), is("3B02"));
+        assertThat(queue.poll(), is("2181"));
+
+        // Background is served after MAX_SKIPS polling requests
+        queue.add("22F190", ElmCommandQueue.LANE_BACKGROUND);
+        for (int i = 0; i < 3 * ElmCommandQueue.MAX_SKIPS; ++i)
+            queue.add(String.format("21%02X", i), ElmCommandQueue.LANE_POLLING);
+        int position = 0;
+        while (!queue.poll().equals("22F190"))
+            ++position;
+        assertThat(position, is(ElmCommandQueue.MAX_SKIPS));
+
+        // But never before an interactive command
+        queue.clear();
+        queue.add("22F190", ElmCommandQueue.LANE_BACKGROUND);
+        for (int i = 0; i < ElmCommandQueue.MAX_SKIPS; ++i)
+            queue.add(String.format("21%02X", i), ElmCommandQueue.LANE_POLLING);
+        for (int i = 0; i < ElmCommandQueue.MAX_SKIPS; ++i)
+            queue.poll();
+        queue.add("3B03", ElmCommandQueue.LANE_INTERACTIVE);
+        assertThat(queue.poll(), is("3B03"));
+        assertThat(queue.poll(), is("22F190"));
+        assertTrue(queue.poll() == null);
+    }
+
+    @Test
+    public void test_elmCommandCoalescing() throws Exception {
+        assertTrue(ElmCommandQueue.isCoalescable("2180"));
+        assertTrue(ElmCommandQueue.isCoalescable("22F190"));
+        assertFalse(ElmCommandQueue.isCoalescable("10C0"));
+        assertFalse(ElmCommandQueue.isCoalescable("2E010203"));
+        assertFalse(ElmCommandQueue.isCoalescable("3101FF"));
+        assertFalse(ElmCommandQueue.isCoalescable("2701"));
+        assertFalse(ElmCommandQueue.isCoalescable("DELAY:100"));
+        assertFalse(ElmCommandQueue.isCoalescable("AT Z"));
+
+        // Two refreshes of the same screen
+        ElmCommandQueue queue = new ElmCommandQueue();
+        for (int refresh = 0; refresh < 2; ++refresh){
+            queue.add("10C0", ElmCommandQueue.LANE_POLLING);
+            queue.add("2180", ElmCommandQueue.LANE_POLLING);
+            queue.add("3B01", ElmCommandQueue.LANE_POLLING);
+            queue.add("2181", ElmCommandQueue.LANE_POLLING);
+        }
+        // Session control and writes change the ECU state, the reads after
+        // them are not merged with the ones before
+        assertThat(queue.size(), is(8));
+        assertThat(queue.getCoalescedCount(), is(0L));
+        for (int refresh = 0; refresh < 2; ++refresh){
+            assertThat(queue.poll(), is("10C0"));
+            assertThat(queue.poll(), is("2180"));
+            assertThat(queue.poll(), is("3B01"));
+            assertThat(queue.poll(), is("2181"));
+        }
+        assertTrue(queue.poll() == null);
+
+        // Reads only : merged with the pending ones
+        queue.add("2180", ElmCommandQueue.LANE_POLLING);
+        queue.add("2181", ElmCommandQueue.LANE_POLLING);
+        assertFalse(queue.add("2180", ElmCommandQueue.LANE_POLLING));
+        assertFalse(queue.add("2181", ElmCommandQueue.LANE_POLLING));
+        assertThat(queue.poll(), is("2180"));
+        // Sent, queued again
+        assertTrue(queue.add("2180", ElmCommandQueue.LANE_POLLING));
+        // A write in another lane is a barrier too
+        queue.add("2E010203", ElmCommandQueue.LANE_INTERACTIVE);
+        assertTrue(queue.add("2181", ElmCommandQueue.LANE_POLLING));
+        assertThat(queue.getCoalescedCount(), is(2L));
+        queue.clear();
+
+        // Not merged across a header change or across lanes
+        queue.add("2180", ElmCommandQueue.LANE_POLLING);
+        queue.add("AT SH 745");
+        assertTrue(queue.add("2180", ElmCommandQueue.LANE_POLLING));
+        assertTrue(queue.add("2180", ElmCommandQueue.LANE_INTERACTIVE));
+        assertFalse(queue.add("2180", ElmCommandQueue.LANE_INTERACTIVE));
+        assertThat(queue.size(), is(4));
+        queue.clear();
+        assertTrue(queue.add("2180", ElmCommandQueue.LANE_POLLING));
+
+        // An AT command queued in another lane (clear DTC timeout) is a barrier too
+        queue.add("AT ST FF", ElmCommandQueue.LANE_INTERACTIVE);
+        assertTrue(queue.add("2180", ElmCommandQueue.LANE_POLLING));
+        queue.add("AT ST 00", ElmCommandQueue.LANE_INTERACTIVE);
+        assertTrue(queue.add("2180", ElmCommandQueue.LANE_POLLING));
+        assertFalse(queue.add("2180", ElmCommandQueue.LANE_POLLING));
+        assertThat(queue.size(), is(5));
+        queue.clear();
+    }
+
+    /*
+     * ELM answering with echo, drops every dropEvery-th pipelined command
+     */
+    private static class FakeElm implements ElmPipeline.Link {
+        final ArrayDeque<String> replies = new ArrayDeque<>();
+        int dropEvery;
+        int writes;
+        int exchanges;
+
+        static String reply(String command){
+            return command + "\n" + (command.equals("STI") ? "STN1110 v4.2.3" : "OK") + "\n";
+        }
+
+        @Override
+        public String exchange(String command){
+            ++exchanges;
+            return reply(command);
+        }
+
+        @Override
+        public void write(String command){
+            if (dropEvery > 0 && ++writes % dropEvery == 0)
+                return;
+            replies.add(reply(command));
+        }
+
+        @Override
+        public String read(long timeoutMs){
+            return replies.poll();
+        }
+    }
+
+    @Test
+    public void test_elmPipeline(){
+        assertTrue(ElmPipeline.isPipelinable("AT SH 7E0"));
+        assertTrue(ElmPipeline.isPipelinable("ATFCSD300000"));
+        assertTrue(ElmPipeline.isPipelinable("STP 53"));
+        assertFalse(ElmPipeline.isPipelinable("AT Z"));
+        assertFalse(ElmPipeline.isPipelinable("AT WS"));
+        assertFalse(ElmPipeline.isPipelinable("AT MA"));
+        assertFalse(ElmPipeline.isPipelinable("STPX h:7E0, d:2180"));
+        assertFalse(ElmPipeline.isPipelinable("2180"));
+        assertTrue(ElmPipeline.isPipelineCapable("STN1110 v4.2.3"));
+        assertFalse(ElmPipeline.isPipelineCapable("?"));
+
+        List<String> commands = new ArrayList<>();
+        String[] init = {"AT E1", "AT S0", "AT H0", "AT L0", "AT AL", "AT CAF0", "AT SH 7E0",
+                "AT CRA 7E8", "AT FC SH 7E0", "AT FC SD 30 00 00", "AT FC SM 1", "AT SP 6"};
+        for (String command : init)
+            commands.add(command);
+
+        // Stop and wait by default
+        FakeElm elm = new FakeElm();
+        ElmPipeline pipeline = new ElmPipeline(elm);
+        pipeline.exchange(commands);
+        assertThat(elm.exchanges, is(init.length));
+
+        // Back to back, replies in order
+        elm = new FakeElm();
+        pipeline = new ElmPipeline(elm);
+        pipeline.setDepth(ElmPipeline.DEFAULT_DEPTH);
+        String[] replies = pipeline.exchange(commands);
+        assertThat(elm.exchanges, is(0));
+        for (int i = 0; i < init.length; ++i)
+            assertThat(replies[i], is(FakeElm.reply(init[i])));
+
+        // A clone dropping input : stop and wait from the lost command on
+        elm = new FakeElm();
+        elm.dropEvery = 5;
+        pipeline = new ElmPipeline(elm);
+        pipeline.setDepth(ElmPipeline.DEFAULT_DEPTH);
+        pipeline.setReadTimeout(10);
+        replies = pipeline.exchange(commands);
+        for (int i = 0; i < init.length; ++i)
+            assertThat(replies[i], is(FakeElm.reply(init[i])));
+        assertThat(pipeline.isPipelining(), is(false));
+        assertThat(pipeline.getFallbackCount(), is(1));
+        assertThat(elm.exchanges, is(init.length - 4));
+
+        // Out of step replies are refused
+        assertFalse(ElmPipeline.isValidReply("AT H0", "AT S0\nOK\n"));
+        assertFalse(ElmPipeline.isValidReply("AT H0", "?\n"));
+        assertTrue(ElmPipeline.isValidReply("AT H0", "OK\n"));
+        assertTrue(ElmPipeline.isValidReply("STI", "STI\nSTN1110 v4.2.3\n"));
+    }
+
+    @Test
+    public void test_ecuLatencyTracker(){
+        EcuLatencyTracker tracker = new EcuLatencyTracker();
+        int ceiling = 0x32;
+        assertThat(tracker.getTimeout(ceiling), is(ceiling));
+        assertThat(tracker.getPercentile(99), is(-1));
+
+        // ECU answering in 10 to 29 ms
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < EcuLatencyTracker.MIN_SAMPLES - 1; ++i)
+            tracker.recordResponse(10 + random.nextInt(20));
+        assertThat(tracker.getTimeout(ceiling), is(ceiling));
+        for (int i = 0; i < 200; ++i)
+            tracker.recordResponse(10 + random.nextInt(20));
+        assertThat(tracker.getSampleCount(), is(EcuLatencyTracker.WINDOW));
+        assertThat(tracker.getPercentile(99), is(32));
+        // 32 * 1.5 + 16 ms
+        assertThat(tracker.getTimeout(ceiling), is(16));
+
+        // Quick backoff on NO DATA, bounded by the configured timeout
+        tracker.recordTimeout();
+        assertThat(tracker.getTimeout(ceiling), is(32));
+        tracker.recordTimeout();
+        assertThat(tracker.getTimeout(ceiling), is(ceiling));
+        // Slowly restored
+        for (int i = 0; i < 8; ++i)
+            tracker.recordResponse(20);
+        assertThat(tracker.getTimeout(ceiling), is(32));
+        for (int i = 0; i < 8; ++i)
+            tracker.recordResponse(20);
+        assertThat(tracker.getTimeout(ceiling), is(16));
+        // Retry answered in time : a lost frame, no backoff
+        tracker.recordRetryResponse(20, 16);
+        assertThat(tracker.getTimeout(ceiling), is(16));
+        // Answered after the tuned timeout : slow ECU
+        tracker.recordRetryResponse(70, 16);
+        assertThat(tracker.getTimeout(ceiling), is(ceiling));
+        for (int i = 0; i < 8; ++i)
+            tracker.recordResponse(20);
+
+        // Slow ECU : the window follows it
+        for (int i = 0; i < EcuLatencyTracker.WINDOW; ++i)
+            tracker.recordResponse(120);
+        assertThat(tracker.getTimeout(0xFF), is(51));
+        // A bit faster : same value, the adapter is not reconfigured
+        for (int i = 0; i < EcuLatencyTracker.WINDOW; ++i)
+            tracker.recordResponse(100);
+        assertThat(tracker.getTimeout(0xFF), is(51));
+        for (int i = 0; i < EcuLatencyTracker.WINDOW; ++i)
+            tracker.recordResponse(60);
+        assertThat(tracker.getTimeout(0xFF), is(28));
+        // Never above the configured timeout
+        assertThat(tracker.getTimeout(0x10), is(0x10));
+    }
+
+    private static int configure(ElmState state, String[] commands){
+        int sent = 0;
+        for (String command : commands){
+            if (state.isRedundant(command))
+                continue;
+            state.update(command, command.startsWith("AT Z") ? "ELM327 v1.5" : "OK");
+            ++sent;
+        }
+        return sent;
+    }
+
+    @Test
+    public void test_elmState() {
+        assertThat(ElmState.parseSetting("ATSH7E0"), is(new String[] {"SH", "7E0"}));
+        assertThat(ElmState.parseSetting("AT FC SH 7E0"), is(new String[] {"FCSH", "7E0"}));
+        assertThat(ElmState.parseSetting("AT ST 00"), is(new String[] {"ST", "32"}));
+        assertThat(ElmState.parseSetting("AT D1"), is(new String[] {"D", "1"}));
+        assertThat(ElmState.parseSetting("STPBR 500000"), is(new String[] {"STPBR", "500000"}));
+        assertThat(ElmState.parseSetting("AT SI") == null, is(true));
+        assertThat(ElmState.parseSetting("AT D") == null, is(true));
+        assertThat(ElmState.parseSetting("STPX h:7E0, d:0210C0") == null, is(true));
+        assertThat(ElmState.parseSetting("2180") == null, is(true));
+
+        ElmState state = new ElmState();
+        assertThat(state.isRedundant("AT SH 7E0"), is(false));
+        state.update("AT SH 7E0", "AT SH 7E0\nOK");
+        assertThat(state.isRedundant("ATSH7E0"), is(true));
+        assertThat(state.isRedundant("AT SH 7E1"), is(false));
+        // Refused : unknown again
+        state.update("AT SH 7E1", "?");
+        assertThat(state.getValue("SH") == null, is(true));
+
+        // Switching between two CAN ECUs
+        String[] elm = {"AT Z"};
+        String[] ecu1 = {"AT E1", "AT S0", "AT H0", "AT L0", "AT AL", "AT CAF0", "AT SH 7E0",
+                "AT CRA 7E8", "AT FC SH 7E0", "AT FC SD 30 00 00", "AT FC SM 1", "AT SP 6"};
+        String[] ecu2 = {"AT E1", "AT S0", "AT H0", "AT L0", "AT AL", "AT CAF0", "AT SH 745",
+                "AT CRA 765", "AT FC SH 745", "AT FC SD 30 00 00", "AT FC SM 1", "AT SP 6"};
+        assertThat(configure(state, elm), is(1));
+        assertThat(state.isReset(), is(true));
+        assertThat(state.getValue("ST"), is("32"));
+        assertThat(configure(state, ecu1), is(ecu1.length));
+        assertThat(configure(state, elm), is(0));
+        assertThat(configure(state, ecu2), is(3));
+        assertThat(configure(state, ecu1), is(3));
+        System.out.println("?? ECU switch : 3 commands instead of " + (ecu1.length + 1));
+
+        // Adapter reset behind our back : everything sent again
+        state.checkResponse("61 80 00");
+        assertThat(configure(state, ecu2), is(3));
+        state.checkResponse("LV RESET");
+        assertThat(state.isReset(), is(false));
+        assertThat(configure(state, elm), is(1));
+        assertThat(configure(state, ecu2), is(ecu2.length));
+        state.update("STI", "STN1110 v4.2.0");
+        assertThat(state.isReset(), is(true));
+        state.invalidate();
+        assertThat(state.getValue("SH") == null, is(true));
+    }
+
+    @Test
+    public void test_canBroadcastCollector() {
+        // Tester present to 7DF, headers on : three ECUs, one multi frame
+        String reply = "02 3E 00\n"
+                + "7E8 02 7E 00\n"
+                + "76D 10 0A 7E 00 01 02 03 04\n"
+                + "7ED 03 7F 3E 78\n"
+                + "76D 21 05 06 07 08\n"
+                + "7ED 02 7E 00\n"
+                + "7EC 10 20 59 02 FF 01 02 03\n";
+        CanBroadcastCollector collector = new CanBroadcastCollector(false);
+        collector.pushReply("023E00", reply);
+        Map<Integer, byte[]> responses = collector.getResponses();
+        assertThat(responses.size(), is(3));
+        assertThat(IsoTpCodec.formatFrame(responses.get(0x7E8)), is("7E00"));
+        assertThat(IsoTpCodec.formatFrame(responses.get(0x76D)), is("7E000102030405060708"));
+        // Response pending replaced by the final response
+        assertThat(IsoTpCodec.formatFrame(responses.get(0x7ED)), is("7E00"));
+        // No flow control from the adapter to this one
+        assertThat(collector.getErrors().get(0x7EC), is("RESPONSE TOO SHORT"));
+
+        // 29 bits, spaces off, adapter message
+        collector = new CanBroadcastCollector(true);
+        collector.pushReply("023E00", "18DAF17A027E00\n18DAF1A2037F3E11\nCAN ERROR\n");
+        assertThat(collector.getResponses().keySet().toArray(), is(new Object[] {0x18DAF17A, 0x18DAF1A2}));
+        assertThat(IsoTpCodec.formatFrame(collector.getResponses().get(0x18DAF1A2)), is("7F3E11"));
+        assertThat(collector.getAdapterErrors(), is("CAN ERROR"));
+        collector.reset();
+        collector.pushReply("023E00", "NO DATA");
+        assertThat(collector.getResponses().isEmpty(), is(true));
+        assertThat(collector.getErrors().isEmpty(), is(true));
+        assertThat(collector.getAdapterErrors(), is("NO DATA"));
+    }
+
+    @Test
+    public void test_canMonitor() {
+        CanFrameRing ring = new CanFrameRing(4);
+        final long[] published = new long[3];
+        ring.addListener(new CanFrameRing.Listener() {
+            @Override
+            public void onFrames(CanFrameRing r, long first, long end) {
+                ++published[0];
+                published[1] = first;
+                published[2] = end;
+            }
+        });
+
+        ElmMonitorParser parser = new ElmMonitorParser(ring, false);
+        byte[] bytes = "AT MA\r7E8 02 10 C0\r5D1 00 00 00 00 00 00 00 00\rBUFFER FULL\r7E0 03 22 F1 90\r>"
+                .getBytes();
+        // Lines cut between two reads
+        assertThat(parser.feed(bytes, 0, 10, 1000), is(false));
+        assertThat(parser.feed(bytes, 10, bytes.length - 10, 1010), is(true));
+        ring.publish();
+        assertThat(parser.getFrameCount(), is(3L));
+        // Echo and BUFFER FULL
+        assertThat(parser.getErrorCount(), is(2L));
+        assertThat(ring.getEnd(), is(3L));
+        assertThat(ring.getId(0), is(0x7E8));
+        assertThat(ring.getDlc(0), is(3));
+        assertThat(ring.getByte(0, 2), is(0xC0));
+        assertThat(ring.getTimestamp(0), is(1010L));
+        assertThat(ring.getDlc(1), is(8));
+        StringBuilder line = new StringBuilder();
+        ring.appendFrame(2, line);
+        assertThat(line.toString(), is("1010 7E0 4 0322F190"));
+        assertThat(published[0], is(1L));
+        assertThat(published[2], is(3L));
+
+        // Oldest frames overwritten, 29 bits without spaces
+        parser = new ElmMonitorParser(ring, true);
+        bytes = "18DAF17A023E00\n18DAF17A037F3E\n18DB33F1\n".getBytes();
+        parser.feed(bytes, 0, bytes.length, 2000);
+        ring.publish();
+        // ID alone is a frame without data
+        assertThat(parser.getFrameCount(), is(3L));
+        assertThat(parser.getErrorCount(), is(0L));
+        assertThat(ring.getEnd(), is(6L));
+        assertThat(ring.getFirst(), is(2L));
+        assertThat(ring.isAvailable(1), is(false));
+        assertThat(ring.isAvailable(5), is(true));
+        assertThat(ring.getId(4), is(0x18DAF17A));
+        assertThat(ring.getDlc(5), is(0));
+        byte[] data = new byte[CanFrameRing.MAX_DLC];
+        assertThat(ring.getData(4, data, 0), is(3));
+        assertThat(data[1], is((byte) 0x7F));
+        line.setLength(0);
+        ring.appendFrame(4, line);
+        assertThat(line.toString(), is("2000 18DAF17A 3 037F3E"));
+        assertThat(published[1], is(3L));
+        assertThat(published[2], is(6L));
+        // Adding a frame does not write the slot of the oldest available one
+        int oldest = ring.getId(2);
+        ring.add(3000, 0x123, data, 0, 0);
+        assertThat(ring.getId(2), is(oldest));
+        assertThat(ring.isAvailable(2), is(false));
+        assertThat(ring.getId(6), is(0x123));
+
+        // Monitor filters replace the receive address filter
+        ElmState state = new ElmState();
+        state.update("AT CRA 7E8", "OK");
+        state.update("AT CF 7E8", "OK");
+        state.update("AT CM 7FF", "OK");
+        assertThat(state.getValue("CRA") == null, is(true));
+        assertThat(state.getValue("CF"), is("7E8"));
+        assertThat(state.isRedundant("AT CRA 7E8"), is(false));
+        state.update("AT CRA 7E8", "OK");
+        assertThat(state.getValue("CM") == null, is(true));
+    }
+
+    /*
+     * Storage blocked until released
+     */
+    private static class StalledWriter extends java.io.StringWriter {
+        final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch stalled = new java.util.concurrent.CountDownLatch(1);
+
+        @Override
+        public void write(String str) {
+            stalled.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.write(str);
+        }
+    }
+
+    @Test
+    public void test_sessionLogWriter() throws Exception {
+        java.io.StringWriter out = new java.io.StringWriter();
+        SessionLogWriter log = new SessionLogWriter(out, 8, 16);
+        log.start();
+        log.logRaw("New session with ECU ", "UCH");
+        log.log("CAN SENT: ", "2180");
+        log.log("CAN RECV: ", "6180000102030405060708090A0B0C0D");
+        assertThat(log.flush(2000), is(true));
+        String[] lines = out.toString().split("\n");
+        assertThat(lines.length, is(3));
+        assertThat(lines[0], is("New session with ECU UCH"));
+        assertTrue(lines[1].matches("CAN SENT: \\[\\d\\d-\\d\\d-\\d\\d:\\d\\d:\\d\\d\\] 2180"));
+        // Longer than the record length : two slots, one line
+        assertTrue(lines[2].matches("CAN RECV: \\[[^\\]]*\\] 6180000102030405060708090A0B0C0D"));
+        assertThat(log.getTruncatedCount(), is(0L));
+        assertThat(log.getWrittenCount(), is(3L));
+
+        // Truncated to the whole ring only
+        StringBuilder response = new StringBuilder();
+        for (int i = 0; i < 100; ++i)
+            response.append(String.format("%02X", i));
+        assertTrue(log.log("CAN RECV: ", response));
+        // It took the whole ring
+        assertThat(log.flush(2000), is(true));
+        assertTrue(log.log("CAN SENT: ", "2181"));
+        assertThat(log.flush(2000), is(true));
+        lines = out.toString().split("\n");
+        assertThat(lines.length, is(5));
+        assertTrue(lines[4].endsWith("] 2181"));
+        assertTrue(lines[4].endsWith("] 2181"));
+        assertThat(log.getTruncatedCount(), is(1L));
+        assertThat(log.getWrittenCount(), is(5L));
+        log.close(1000);
+
+        // Storage stalled : logging does not wait, the overflow is dropped
+        StalledWriter stalled = new StalledWriter();
+        log = new SessionLogWriter(stalled, 8, 64);
+        log.start();
+        // The writer blocked on the first record, the ring is empty
+        log.log("CAN SENT: ", "2180");
+        // Wakes the writer up
+        log.flush(0);
+        assertThat(stalled.stalled.await(2, java.util.concurrent.TimeUnit.SECONDS), is(true));
+        long start = System.nanoTime();
+        int accepted = 0;
+        for (int i = 0; i < 100; ++i) {
+            if (log.log("CAN SENT: ", "21" + i))
+                ++accepted;
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("?? 100 records logged in " + elapsed / 1000 + " us with a stalled storage, "
+                + log.getDroppedCount() + " dropped");
+        assertTrue(elapsed < 500000000L);
+        assertThat(log.getDroppedCount(), is(100L - accepted));
+        assertThat(accepted, is(8));
+        assertThat(log.flush(100), is(false));
+        stalled.release.countDown();
+        // Room again once the accepted records are written
+        assertThat(log.flush(2000), is(true));
+        assertTrue(log.log("CAN SENT: ", "2181"));
+        assertThat(log.flush(2000), is(true));
+        String written = stalled.toString();
+        // Reported by one or several batches
+        long reported = 0;
+        java.util.regex.Matcher drops = java.util.regex.Pattern.compile("LOG : (\\d+) records dropped").matcher(written);
+        while (drops.find())
+            reported += Long.parseLong(drops.group(1));
+        assertThat(reported, is(100L - accepted));
+        assertTrue(written.endsWith("] 2181\n"));
+        assertThat(log.getWrittenCount(), is(accepted + 2L));
+        log.close(1000);
+    }
+
+    @Test
+    public void test_logArchive() throws Exception {
+        File directory = java.nio.file.Files.createTempDirectory("logarchive").toFile();
+        LogArchive archive = new LogArchive(directory);
+        archive.setSegmentBytes(256);
+        java.io.Writer writer = archive.openWriter();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 40; ++i) {
+            String line = i % 10 == 0 ? "New session with ECU ECU" + i / 10 : "CAN SENT: [01-01-00:00:00] 21" + i;
+            writer.write(line + "\n");
+            expected.append(line).append('\n');
+        }
+        assertThat(archive.awaitCompression(5000), is(true));
+
+        List<LogArchive.Segment> segments = archive.getSegments();
+        assertTrue(segments.size() >= 4);
+        for (LogArchive.Segment segment : segments) {
+            assertTrue(segment.name.endsWith(".txt.gz"));
+            assertThat(new File(directory, segment.name).length(), is(segment.bytes));
+        }
+        assertThat(archive.findSegments("ECU0").size(), is(1));
+        assertThat(archive.findSegments("ECU0").get(0).name, is(segments.get(0).name));
+        assertThat(archive.findSegments("ECU9").size(), is(0));
+        // Nothing left uncompressed
+        for (String name : directory.list())
+            assertTrue(name.equals(LogArchive.ACTIVE_NAME) || name.equals(LogArchive.INDEX_NAME) || name.endsWith(".gz"));
+
+        // Export : archives and active log, in order
+        File export = new File(directory, "export.gz");
+        writer.flush();
+        assertThat(archive.export(export, LogArchive.DEFAULT_EXPORT_BYTES), is(export.length()));
+        assertThat(readGzip(export), is(expected.toString()));
+
+        // Budget : the newest archive and the active log only
+        archive.export(export, segments.get(segments.size() - 1).bytes);
+        String newest = readGzip(export);
+        assertTrue(newest.length() < expected.length());
+        assertTrue(expected.toString().endsWith("\n" + newest));
+
+        // Retention : the oldest archives are deleted
+        long retention = segments.get(segments.size() - 1).bytes * 2;
+        archive.setRetentionBytes(retention);
+        for (int i = 0; i < 20; ++i)
+            writer.write("CAN RECV: [01-01-00:00:00] 6180" + i + "\n");
+        writer.close();
+        assertThat(archive.awaitCompression(5000), is(true));
+        segments = archive.getSegments();
+        long archived = 0;
+        for (LogArchive.Segment segment : segments)
+            archived += segment.bytes;
+        assertTrue(archived <= retention);
+        assertThat(archive.findSegments("ECU0").size(), is(0));
+        assertThat(directory.list().length, is(segments.size() + 3));
+        System.out.println("?? " + segments.size() + " archived segments kept, " + archived + " bytes");
+
+        // A leftover seen by two writers is compressed once
+        archive.setRetentionBytes(LogArchive.DEFAULT_RETENTION_BYTES);
+        java.nio.file.Files.write(new File(directory, "log-20000101-000000.txt").toPath(),
+                "CAN SENT: [01-01-00:00:00] 2180\n".getBytes("UTF-8"));
+        archive.openWriter().close();
+        archive.openWriter().close();
+        assertThat(archive.awaitCompression(5000), is(true));
+        int leftovers = 0;
+        for (LogArchive.Segment segment : archive.getSegments())
+            if (segment.name.equals("log-20000101-000000.txt.gz"))
+                ++leftovers;
+        assertThat(leftovers, is(1));
+
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void test_sessionReplay() throws Exception {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(out);
+        long t = System.nanoTime();
+        long ms = 1000000L;
+        recorder.exchange("AT Z", "\nELM327 v1.5\n", t, t + 500 * ms);
+        recorder.exchange("013E", "", t + 600 * ms, t + 620 * ms);
+        recorder.exchange("2180", "61 80 01 02\n", t + 700 * ms, t + 740 * ms);
+        recorder.write("2181", t + 800 * ms, t + 800 * ms);
+        recorder.read("61 81 03\n", t + 800 * ms, t + 830 * ms);
+        recorder.read(null, t + 900 * ms, t + 1000 * ms);
+        byte[] frames = "7E8 02 10 C0\r7E8 03 7F 10 12\r".getBytes("ISO-8859-1");
+        recorder.readBytes(frames, frames.length, t + 1000 * ms, t + 1050 * ms);
+        recorder.close();
+        assertThat(recorder.getRecordCount(), is(7L));
+        assertThat((long) out.size(), is(recorder.getByteCount()));
+        System.out.println("?? 7 records in " + out.size() + " bytes");
+
+        List<SessionReplay.Record> records = SessionReplay.read(new java.io.ByteArrayInputStream(out.toByteArray()));
+        assertThat(records.size(), is(7));
+        assertThat(records.get(0).command, is("AT Z"));
+        assertThat(records.get(0).duration, is(500 * ms));
+        assertThat(records.get(2).start, is(700 * ms));
+        assertThat(records.get(2).getReply(), is("61 80 01 02\n"));
+        assertTrue(records.get(5).reply == null);
+
+        // As fast as possible, the tester present was not sent this time
+        SessionReplay replay = new SessionReplay(records);
+        replay.setRealTime(false);
+        long start = System.nanoTime();
+        assertThat(replay.exchange("AT Z"), is("\nELM327 v1.5\n"));
+        assertThat(replay.exchange("2180"), is("61 80 01 02\n"));
+        assertThat(replay.getSkippedCount(), is(1L));
+        assertThat(replay.exchange("AT ST 10"), is("OK"));
+        assertThat(replay.exchange("2182"), is("NO DATA"));
+        assertThat(replay.getUnmatchedCount(), is(2L));
+        replay.write("2181");
+        assertThat(replay.read(100), is("61 81 03\n"));
+        assertTrue(replay.read(100) == null);
+        byte[] buffer = new byte[16];
+        assertThat(replay.readBytes(buffer, 100), is(16));
+        assertThat(replay.readBytes(buffer, 100), is(frames.length - 16));
+        assertThat(new String(buffer, 0, frames.length - 16, "ISO-8859-1"), is(" 03 7F 10 12\r"));
+        assertTrue(replay.isFinished());
+        assertTrue(System.nanoTime() - start < 100 * ms);
+
+        // Real time : the recorded response times
+        replay = new SessionReplay(records);
+        start = System.nanoTime();
+        replay.exchange("2180");
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= 40 * ms && elapsed < 400 * ms);
+
+        // Interrupted recording : the last record is dropped
+        byte[] truncated = java.util.Arrays.copyOf(out.toByteArray(), out.size() - 3);
+        assertThat(SessionReplay.read(new java.io.ByteArrayInputStream(truncated)).size(), is(6));
+    }
+
+    @Test
+    public void test_virtualEcu(){
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("acu.json");
+        Ecu ecu = new Ecu(is);
+        VirtualEcu virtualEcu = new VirtualEcu(ecu);
+
+        // Every request of the definition gets a response its data items decode
+        for (String name : ecu.getRequestNames()){
+            Ecu.EcuRequest request = ecu.getRequest(name);
+            byte[] response = virtualEcu.respond(HexCodec.decode(request.sentbytes), 0).get(0);
+            assertTrue(name, response.length >= request.minbytes);
+            if (request.replybytes != null)
+                assertTrue(name, Ecu.byteArrayToHex(response).startsWith(request.replybytes));
+            if (request.shiftbytescount == 0)
+                ecu.getRequestValues(response, name, true);
+        }
+        assertThat(virtualEcu.getUnknownCount(), is(0L));
+
+        // Send data items are wildcards
+        assertThat(virtualEcu.findRequest(HexCodec.decode("3B0701")), is("Sélection du mode d'inhibition airbags"));
+        assertThat(Ecu.byteArrayToHex(virtualEcu.respond(HexCodec.decode("3B0701"), 0).get(0)), is("7B07"));
+        assertThat(Ecu.byteArrayToHex(virtualEcu.respond(HexCodec.decode("21FE"), 0).get(0)), is("7F2131"));
+        assertThat(Ecu.byteArrayToHex(virtualEcu.respond(HexCodec.decode("1A80"), 0).get(0)), is("7F1A11"));
+        assertThat(virtualEcu.getUnknownCount(), is(2L));
+
+        // Constant values, unless a period is given
+        byte[] first = virtualEcu.respond(HexCodec.decode("2106"), 0).get(0);
+        assertThat(virtualEcu.respond(HexCodec.decode("2106"), 2500).get(0), is(first));
+        virtualEcu.setPeriod(10000);
+        byte[] later = virtualEcu.respond(HexCodec.decode("2106"), 2500).get(0);
+        assertThat(later.length, is(first.length));
+        assertFalse(Ecu.byteArrayToHex(later).equals(Ecu.byteArrayToHex(first)));
+        HashMap<String, String> values = ecu.getRequestValues(later, "Valeurs mesurées sur les capteurs et divers", true);
+        System.out.println("?? " + values);
+
+        // Negative responses
+        virtualEcu.setResponsePending("Identification du système", 2);
+        List<byte[]> responses = virtualEcu.respond(HexCodec.decode("2180"), 0);
+        assertThat(responses.size(), is(3));
+        assertThat(Ecu.byteArrayToHex(responses.get(1)), is("7F2178"));
+        assertTrue(Ecu.byteArrayToHex(responses.get(2)).startsWith("6180"));
+        virtualEcu.setNegativeResponse("Identification du système", VirtualEcu.NRC_CONDITIONS_NOT_CORRECT);
+        responses = virtualEcu.respond(HexCodec.decode("2180"), 0);
+        assertThat(Ecu.byteArrayToHex(responses.get(2)), is("7F2122"));
+        virtualEcu.setResponsePending("Identification du système", 0);
+        virtualEcu.setNegativeResponse("Identification du système", 0);
+        assertThat(virtualEcu.respond(HexCodec.decode("2180"), 0).size(), is(1));
+
+        virtualEcu.setRandom(new java.util.Random(1));
+        virtualEcu.setNegativeResponseRate(0.5, VirtualEcu.NRC_CONDITIONS_NOT_CORRECT);
+        int negatives = 0;
+        for (int i = 0; i < 1000; ++i)
+            if ((virtualEcu.respond(HexCodec.decode("2102"), 0).get(0)[0] & 0xFF) == 0x7F)
+                ++negatives;
+        assertTrue(negatives > 400 && negatives < 600);
+    }
+
+    private static String readGzip(File file) throws java.io.IOException {
+        StringBuilder text = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new java.util.zip.GZIPInputStream(new java.io.FileInputStream(file)), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                text.append(line).append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,18 @@
+package org.quark.dr.elmemulator;
+
+import org.quark.dr.ecu.Pair;
+
+import java.util.List;
+
+/*
+ * The ECUs behind the emulated adapter
+ */
+public interface EcuResponder {
+    /*
+     * Responses to request (whole message, no PCI) sent to header : CAN ID,
+     * or target address on K-line. Response header (CAN ID, or ECU address)
+     * and message, in the order sent : an ECU may answer several times
+     * (response pending). Empty if no ECU answers.
+     */
+    List<Pair<Integer, byte[]>> respond(int header, byte[] request);
+}
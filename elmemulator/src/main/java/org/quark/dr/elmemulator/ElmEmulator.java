@@ -0,0 +1,348 @@
+package org.quark.dr.elmemulator;
+
+import org.quark.dr.ecu.Ecu;
+import org.quark.dr.ecu.EcuDefinitionPool;
+import org.quark.dr.ecu.VirtualEcu;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * ELM327 WiFi adapter emulator : TCP server on the ElmWifi port, one
+ * ElmInterpreter per connection.
+ *   ./gradlew :elmemulator:installDist
+ *   elmemulator/build/install/elmemulator/bin/elmemulator -l 20 -j 10 -x 0.01
+ *   elmemulator/build/install/elmemulator/bin/elmemulator -l 20 -e acu.json -w 10000
+ * Link behaviour on top of the interpreter timing : prompt sent after an
+ * extra delay, reply lines written one by one (several TCP segments).
+ * Like an ELM327, input received during a bus request aborts it
+ * ("STOPPED"), an STN buffers it.
+ */
+public class ElmEmulator {
+    public static final int DEFAULT_PORT = 35000;
+
+    private final EcuResponder m_responder;
+    private int m_port = DEFAULT_PORT;
+    private long m_latency;
+    private long m_jitter;
+    private double m_lossRate;
+    private long m_promptDelay;
+    private boolean m_splitWrites;
+    private boolean m_stn;
+    private long m_seed = System.nanoTime();
+    private ServerSocket m_server;
+    private Thread m_thread;
+    private volatile boolean m_running;
+    private volatile long m_connections;
+    private final ArrayList<Socket> m_clients = new ArrayList<>();
+
+    public ElmEmulator(EcuResponder responder){
+        m_responder = responder;
+    }
+
+    /*
+     * 0 : any free port, see getPort
+     */
+    public void setPort(int port){
+        m_port = port;
+    }
+
+    public void setLatency(long latencyMs, long jitterMs){
+        m_latency = latencyMs;
+        m_jitter = jitterMs;
+    }
+
+    public void setLossRate(double lossRate){
+        m_lossRate = lossRate;
+    }
+
+    public void setPromptDelay(long delayMs){
+        m_promptDelay = delayMs;
+    }
+
+    public void setSplitWrites(boolean split){
+        m_splitWrites = split;
+    }
+
+    public void setStn(boolean stn){
+        m_stn = stn;
+    }
+
+    /*
+     * Same jitter and losses from run to run
+     */
+    public void setSeed(long seed){
+        m_seed = seed;
+    }
+
+    public void start() throws IOException {
+        m_server = new ServerSocket();
+        m_server.setReuseAddress(true);
+        m_server.bind(new InetSocketAddress(m_port));
+        m_running = true;
+        m_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "elm-emulator");
+        m_thread.start();
+    }
+
+    public int getPort(){
+        return m_server == null ? m_port : m_server.getLocalPort();
+    }
+
+    public long getConnectionCount(){
+        return m_connections;
+    }
+
+    public void stop(){
+        m_running = false;
+        try {
+            if (m_server != null)
+                m_server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (m_clients){
+            for (Socket client : m_clients){
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+            m_clients.clear();
+        }
+        if (m_thread != null){
+            try {
+                m_thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void accept(){
+        while (m_running){
+            final Socket socket;
+            try {
+                socket = m_server.accept();
+            } catch (IOException e) {
+                if (m_running)
+                    e.printStackTrace();
+                break;
+            }
+            synchronized (m_clients){
+                m_clients.add(socket);
+            }
+            final long connection = ++m_connections;
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket, connection);
+                }
+            }, "elm-emulator-" + connection);
+            client.setDaemon(true);
+            client.start();
+        }
+    }
+
+    private void serve(Socket socket, long connection){
+        ElmInterpreter interpreter = new ElmInterpreter(m_responder, new Random(m_seed + connection));
+        interpreter.setStn(m_stn);
+        interpreter.setLatency(m_latency, m_jitter);
+        interpreter.setLossRate(m_lossRate);
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            StringBuilder line = new StringBuilder();
+            int c;
+            while (m_running && (c = in.read()) >= 0){
+                if (c == '\n' || c == 0)
+                    continue;
+                if (c != '\r'){
+                    line.append((char) c);
+                    continue;
+                }
+                String command = line.toString();
+                line.setLength(0);
+                boolean echo = interpreter.isEcho();
+                List<String> reply = interpreter.execute(command);
+                String eol = interpreter.isLinefeeds() ? "\r\n" : "\r";
+                if (echo)
+                    write(out, command + eol);
+                sleep(interpreter.getDelay());
+                if (!m_stn && interpreter.getDelay() > 0 && in.available() > 0){
+                    reply.clear();
+                    reply.add("STOPPED");
+                }
+                StringBuilder text = new StringBuilder();
+                for (String replyLine : reply){
+                    text.append(replyLine).append(eol);
+                    if (m_splitWrites){
+                        write(out, text.toString());
+                        text.setLength(0);
+                    }
+                }
+                if (m_promptDelay > 0){
+                    write(out, text.toString());
+                    text.setLength(0);
+                    sleep(m_promptDelay);
+                }
+                text.append(eol).append('>');
+                write(out, text.toString());
+            }
+        } catch (SocketException e) {
+            // Client gone
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (m_clients){
+                m_clients.remove(socket);
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        if (text.isEmpty())
+            return;
+        out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static void sleep(long ms){
+        if (ms <= 0)
+            return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void usage(){
+        System.err.println("Usage : elmemulator [-p port] [-l latency] [-j jitter] [-x loss rate] [-P prompt delay]"
+                + " [-s] [--stn] [-n data length] [-a request:response]... [-r seed]"
+                + " [-e ecu.json]... [-w period] [-N rate:nrc]");
+        System.err.println("  -p  TCP port, " + DEFAULT_PORT + " by default (ElmWifi)");
+        System.err.println("  -l  ECU response time (ms), -j up to jitter ms more");
+        System.err.println("  -x  probability of a request lost on the bus (NO DATA), 0 to 1");
+        System.err.println("  -P  delay before the prompt (ms), -s one TCP write per reply line");
+        System.err.println("  --stn  STN11xx adapter (STI, STP, buffered input)");
+        System.err.println("  -n  data bytes of the read services responses");
+        System.err.println("  -a  ECU CAN headers, 745:765. Others answer at request + 8");
+        System.err.println("  -e  ECU definition answering at its addresses, values of its data items");
+        System.err.println("  -w  period of the definition values (ms), constant by default");
+        System.err.println("  -N  probability of a negative response (hex NRC, 78 : response pending), 0.1:22");
+    }
+
+    /*
+     * The definitions of the -e ECUs share their data items through pool
+     */
+    private static VirtualEcu loadEcu(String path, EcuDefinitionPool pool){
+        try (FileInputStream is = new FileInputStream(path)) {
+            Ecu ecu = new Ecu(is, pool);
+            if (ecu.getProtocol() == null){
+                System.err.println("ERROR : bad ECU definition " + path);
+                return null;
+            }
+            return new VirtualEcu(ecu);
+        } catch (IOException e) {
+            System.err.println("ERROR : " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static void main(String[] args){
+        GenericResponder responder = new GenericResponder(GenericResponder.DEFAULT_DATA_LENGTH);
+        VirtualEcuResponder virtualEcus = new VirtualEcuResponder(responder);
+        ElmEmulator emulator = new ElmEmulator(virtualEcus);
+        ArrayList<VirtualEcu> ecus = new ArrayList<>();
+        EcuDefinitionPool pool = new EcuDefinitionPool();
+        long latency = 0;
+        long jitter = 0;
+        long period = 0;
+        double nrcRate = 0;
+        int nrc = VirtualEcu.NRC_CONDITIONS_NOT_CORRECT;
+        try {
+            for (int i = 0; i < args.length; ++i){
+                String arg = args[i];
+                boolean hasValue = i + 1 < args.length;
+                if (arg.equals("-p") && hasValue){
+                    emulator.setPort(Integer.parseInt(args[++i]));
+                } else if (arg.equals("-l") && hasValue){
+                    latency = Long.parseLong(args[++i]);
+                } else if (arg.equals("-j") && hasValue){
+                    jitter = Long.parseLong(args[++i]);
+                } else if (arg.equals("-x") && hasValue){
+                    emulator.setLossRate(Double.parseDouble(args[++i]));
+                } else if (arg.equals("-P") && hasValue){
+                    emulator.setPromptDelay(Long.parseLong(args[++i]));
+                } else if (arg.equals("-s")){
+                    emulator.setSplitWrites(true);
+                } else if (arg.equals("--stn")){
+                    emulator.setStn(true);
+                } else if (arg.equals("-n") && hasValue){
+                    responder.setDataLength(Integer.parseInt(args[++i]));
+                } else if (arg.equals("-a") && hasValue){
+                    String[] headers = args[++i].split(":");
+                    if (headers.length != 2)
+                        throw new IllegalArgumentException(args[i]);
+                    responder.addEcu(Integer.parseInt(headers[0], 16), Integer.parseInt(headers[1], 16));
+                } else if (arg.equals("-r") && hasValue){
+                    emulator.setSeed(Long.parseLong(args[++i]));
+                } else if (arg.equals("-e") && hasValue){
+                    VirtualEcu ecu = loadEcu(args[++i], pool);
+                    if (ecu == null)
+                        System.exit(2);
+                    ecus.add(ecu);
+                } else if (arg.equals("-w") && hasValue){
+                    period = Long.parseLong(args[++i]);
+                } else if (arg.equals("-N") && hasValue){
+                    String[] values = args[++i].split(":");
+                    if (values.length != 2)
+                        throw new IllegalArgumentException(args[i]);
+                    nrcRate = Double.parseDouble(values[0]);
+                    nrc = Integer.parseInt(values[1], 16);
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            usage();
+            System.exit(1);
+        }
+        emulator.setLatency(latency, jitter);
+        for (VirtualEcu ecu : ecus){
+            ecu.setPeriod(period);
+            ecu.setNegativeResponseRate(nrcRate, nrc);
+            if (!virtualEcus.addEcu(ecu))
+                System.err.println("ERROR : no address for " + ecu.getEcu().getName());
+        }
+
+        try {
+            emulator.start();
+        } catch (IOException e) {
+            System.err.println("ERROR : " + e.getMessage());
+            System.exit(2);
+        }
+        System.err.println("ELM327 emulator listening on port " + emulator.getPort());
+    }
+}
@@ -0,0 +1,612 @@
+package org.quark.dr.elmemulator;
+
+import org.quark.dr.ecu.HexCodec;
+import org.quark.dr.ecu.IsoTpCodec;
+import org.quark.dr.ecu.IsoTpException;
+import org.quark.dr.ecu.IsoTpReassembler;
+import org.quark.dr.ecu.Pair;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * ELM327 (and STN11xx with setStn) command interpreter : the AT subset the
+ * application sends, CAN (ISO 15765) and K-line (ISO 9141, KWP2000)
+ * requests answered by an EcuResponder.
+ * execute returns the reply lines (no echo, no prompt) and getDelay how
+ * long the adapter takes to give them, as an ELM327 would :
+ *   - latency + jitter : ECU response time, losses give NO DATA
+ *   - NO DATA after the AT ST timeout
+ *   - AT AT 0 waits the whole AT ST timeout after the last frame, unless
+ *     the number of frames is given after the request ("0322F1901")
+ * CAN formatting : CAF0 shows the raw frames (PCI included), CAF1 the
+ * message. With CFC0 (no automatic flow control) only the first frame of
+ * a long response is shown, the rest after the tester flow control frame.
+ * Monitor commands (AT MA, STMA...) are not emulated.
+ */
+public class ElmInterpreter {
+    public static final String VERSION = "ELM327 v1.5";
+    public static final String STN_VERSION = "STN1110 v4.2.0";
+    public static final int DEFAULT_TIMEOUT = 0x32;
+
+    private final EcuResponder m_responder;
+    private final Random m_random;
+    private final IsoTpReassembler m_reassembler = new IsoTpReassembler();
+    private boolean m_stn;
+    private long m_latency;
+    private long m_jitter;
+    private double m_lossRate;
+
+    // Adapter settings
+    private boolean m_echo, m_spaces, m_headers, m_linefeeds, m_dlc;
+    private boolean m_caf, m_cfc, m_responses;
+    private int m_protocol;
+    private boolean m_stnProtocol;
+    private String m_header;
+    private int m_priority;
+    private String m_receiveAddress;
+    private int m_filter, m_mask;
+    private boolean m_filterSet;
+    private int m_timeout;
+    private int m_adaptive;
+    private String m_lastCommand = "";
+
+    // Long response waiting for the tester flow control (CFC0)
+    private final ArrayDeque<byte[]> m_pendingFrames = new ArrayDeque<>();
+    private int m_pendingHeader;
+    private long m_delay;
+    private long m_requestCount;
+    private long m_losses;
+
+    public ElmInterpreter(EcuResponder responder){
+        this(responder, new Random());
+    }
+
+    /*
+     * random : seeded for reproducible jitter and losses
+     */
+    public ElmInterpreter(EcuResponder responder, Random random){
+        m_responder = responder;
+        m_random = random;
+        reset();
+    }
+
+    public void setStn(boolean stn){
+        m_stn = stn;
+    }
+
+    /*
+     * ECU response time, plus 0 to jitterMs
+     */
+    public void setLatency(long latencyMs, long jitterMs){
+        m_latency = latencyMs;
+        m_jitter = jitterMs;
+    }
+
+    /*
+     * Probability that a request or its response is lost on the bus
+     */
+    public void setLossRate(double lossRate){
+        m_lossRate = lossRate;
+    }
+
+    private void reset(){
+        m_echo = true;
+        m_spaces = true;
+        m_headers = false;
+        m_linefeeds = false;
+        m_dlc = false;
+        m_caf = true;
+        m_cfc = true;
+        m_responses = true;
+        m_protocol = 0;
+        m_stnProtocol = false;
+        m_header = null;
+        m_priority = 0x18;
+        m_receiveAddress = null;
+        m_filterSet = false;
+        m_timeout = DEFAULT_TIMEOUT;
+        m_adaptive = 1;
+        m_pendingFrames.clear();
+        m_reassembler.reset();
+    }
+
+    public boolean isEcho(){
+        return m_echo;
+    }
+
+    public boolean isLinefeeds(){
+        return m_linefeeds;
+    }
+
+    /*
+     * Time the adapter took for the last command, ms
+     */
+    public long getDelay(){
+        return m_delay;
+    }
+
+    public long getRequestCount(){
+        return m_requestCount;
+    }
+
+    public long getLossCount(){
+        return m_losses;
+    }
+
+    public List<String> execute(String line){
+        String command = line.replace(" ", "").toUpperCase();
+        // A lone carriage return repeats the last command
+        if (command.isEmpty())
+            command = m_lastCommand;
+        else
+            m_lastCommand = command;
+        m_delay = 0;
+
+        ArrayList<String> reply = new ArrayList<>();
+        if (command.isEmpty())
+            return reply;
+        if (command.startsWith("AT"))
+            executeAt(command.substring(2), reply);
+        else if (command.startsWith("ST"))
+            executeStn(command.substring(2), reply);
+        else if (HexCodec.digit(command.charAt(0)) >= 0 && isHex(command))
+            executeRequest(command, reply);
+        else
+            reply.add("?");
+        return reply;
+    }
+
+    private static boolean isHex(String text){
+        for (int i = 0; i < text.length(); ++i){
+            if (HexCodec.digit(text.charAt(i)) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void executeAt(String c, List<String> reply){
+        String ok = "OK";
+        if (c.equals("Z") || c.equals("WS")){
+            reset();
+            reply.add("");
+            reply.add(VERSION);
+        } else if (c.equals("D")){
+            reset();
+            reply.add(ok);
+        } else if (c.equals("I")){
+            reply.add(VERSION);
+        } else if (c.equals("@1")){
+            reply.add("OBDII to RS232 Interpreter");
+        } else if (c.equals("RV")){
+            reply.add("12.6V");
+        } else if (c.equals("DPN")){
+            reply.add(Integer.toHexString(m_protocol).toUpperCase());
+        } else if (c.equals("DP")){
+            reply.add(protocolName());
+        } else if (c.equals("AL") || c.equals("NL") || c.equals("PC") || c.equals("BD")){
+            reply.add(ok);
+        } else if (c.equals("AR")){
+            m_receiveAddress = null;
+            m_filterSet = false;
+            reply.add(ok);
+        } else if (c.equals("SI") || c.equals("FI")){
+            reply.add(isKLine() ? "BUS INIT: ...OK" : "?");
+        } else if (c.startsWith("CAF") && isFlag(c, 3)){
+            m_caf = c.endsWith("1");
+            reply.add(ok);
+        } else if (c.startsWith("CFC") && isFlag(c, 3)){
+            m_cfc = c.endsWith("1");
+            reply.add(ok);
+        } else if (c.startsWith("CRA")){
+            String address = c.substring(3);
+            if (address.isEmpty()){
+                m_receiveAddress = null;
+            } else if ((address.length() == 3 || address.length() == 8) && address.matches("[0-9A-FX]+")){
+                m_receiveAddress = address;
+                m_filterSet = false;
+            } else {
+                reply.add("?");
+                return;
+            }
+            reply.add(ok);
+        } else if (c.startsWith("CF") || c.startsWith("CM")){
+            String value = c.substring(2);
+            if (!isHex(value) || (value.length() != 3 && value.length() != 8)){
+                reply.add("?");
+                return;
+            }
+            if (!m_filterSet){
+                // Filter alone : every bit compared
+                m_filter = 0;
+                m_mask = 0xFFFFFFFF;
+            }
+            if (c.startsWith("CF"))
+                m_filter = (int) Long.parseLong(value, 16);
+            else
+                m_mask = (int) Long.parseLong(value, 16);
+            m_filterSet = true;
+            m_receiveAddress = null;
+            reply.add(ok);
+        } else if (c.startsWith("CP") && isHexValue(c.substring(2), 2)){
+            m_priority = Integer.parseInt(c.substring(2), 16);
+            reply.add(ok);
+        } else if (c.startsWith("FCSH") || c.startsWith("FCSD") || c.startsWith("FCSM")){
+            // The emulated ECUs take any flow control
+            reply.add(isHex(c.substring(4)) && c.length() > 4 ? ok : "?");
+        } else if (c.startsWith("SH")){
+            String header = c.substring(2);
+            if (!isHex(header) || (header.length() != 3 && header.length() != 6 && header.length() != 8)){
+                reply.add("?");
+                return;
+            }
+            if (header.length() == 8){
+                m_priority = Integer.parseInt(header.substring(0, 2), 16);
+                header = header.substring(2);
+            }
+            m_header = header;
+            reply.add(ok);
+        } else if ((c.startsWith("SP") || c.startsWith("TP")) && c.length() >= 3){
+            String protocol = c.substring(2);
+            if (protocol.startsWith("A"))
+                protocol = protocol.substring(1);
+            if (protocol.length() != 1 || HexCodec.digit(protocol.charAt(0)) < 0){
+                reply.add("?");
+                return;
+            }
+            m_protocol = HexCodec.digit(protocol.charAt(0));
+            m_stnProtocol = false;
+            reply.add(ok);
+        } else if (c.startsWith("ST") && isHexValue(c.substring(2), 2)){
+            int timeout = Integer.parseInt(c.substring(2), 16);
+            m_timeout = timeout == 0 ? DEFAULT_TIMEOUT : timeout;
+            reply.add(ok);
+        } else if (c.startsWith("AT") && c.length() == 3 && "012".indexOf(c.charAt(2)) >= 0){
+            m_adaptive = c.charAt(2) - '0';
+            reply.add(ok);
+        } else if (c.startsWith("IIA") || c.startsWith("SW") || c.startsWith("WM") || c.startsWith("IB")){
+            reply.add(ok);
+        } else if (c.startsWith("KW") && isFlag(c, 2)){
+            reply.add(ok);
+        } else if (c.length() == 2 && "ESHLRD".indexOf(c.charAt(0)) >= 0 && isFlag(c, 1)){
+            boolean on = c.charAt(1) == '1';
+            switch (c.charAt(0)){
+                case 'E': m_echo = on; break;
+                case 'S': m_spaces = on; break;
+                case 'H': m_headers = on; break;
+                case 'L': m_linefeeds = on; break;
+                case 'R': m_responses = on; break;
+                default: m_dlc = on;
+            }
+            reply.add(ok);
+        } else {
+            reply.add("?");
+        }
+    }
+
+    private static boolean isFlag(String c, int index){
+        return c.length() == index + 1 && (c.charAt(index) == '0' || c.charAt(index) == '1');
+    }
+
+    private static boolean isHexValue(String value, int maxDigits){
+        return !value.isEmpty() && value.length() <= maxDigits && isHex(value);
+    }
+
+    private void executeStn(String c, List<String> reply){
+        if (!m_stn){
+            reply.add("?");
+            return;
+        }
+        if (c.equals("I")){
+            reply.add(STN_VERSION);
+        } else if (c.equals("DI")){
+            reply.add("OBDLink");
+        } else if (c.startsWith("PBR") && c.length() > 3){
+            reply.add("OK");
+        } else if (c.startsWith("P") && c.length() > 1 && c.substring(1).matches("\\d+")){
+            // STN CAN protocols (33, 53...), 11 or 29 bits from the header
+            m_stnProtocol = true;
+            m_protocol = 6;
+            reply.add("OK");
+        } else if (c.startsWith("FCP") || c.startsWith("FAP") || c.startsWith("FAB") || c.startsWith("FAC")){
+            reply.add("OK");
+        } else {
+            reply.add("?");
+        }
+    }
+
+    private boolean isKLine(){
+        return m_protocol >= 3 && m_protocol <= 5;
+    }
+
+    private boolean isExtended(){
+        if (m_protocol == 7 || m_protocol == 9)
+            return true;
+        if (m_protocol == 6 || m_protocol == 8)
+            return m_stnProtocol && m_header != null && m_header.length() == 6;
+        // Automatic : the header tells
+        return m_header != null && m_header.length() == 6;
+    }
+
+    private String protocolName(){
+        switch (m_protocol){
+            case 0: return "AUTO";
+            case 3: return "ISO 9141-2";
+            case 4: return "ISO 14230-4 (KWP 5BAUD)";
+            case 5: return "ISO 14230-4 (KWP FAST)";
+            case 6: return "ISO 15765-4 (CAN 11/500)";
+            case 7: return "ISO 15765-4 (CAN 29/500)";
+            case 8: return "ISO 15765-4 (CAN 11/250)";
+            case 9: return "ISO 15765-4 (CAN 29/250)";
+            default: return "USER";
+        }
+    }
+
+    private long timeoutMs(){
+        return m_timeout * 4L;
+    }
+
+    private long responseTime(){
+        return m_latency + (m_jitter > 0 ? (long) (m_random.nextDouble() * m_jitter) : 0);
+    }
+
+    private void executeRequest(String command, List<String> reply){
+        // Odd length : the number of frames to wait for
+        int expected = 0;
+        if ((command.length() & 1) != 0){
+            expected = HexCodec.digit(command.charAt(command.length() - 1));
+            command = command.substring(0, command.length() - 1);
+        }
+        byte[] data = HexCodec.decode(command);
+        if (data == null || data.length == 0){
+            reply.add("?");
+            return;
+        }
+        ++m_requestCount;
+        if (isKLine())
+            executeKLine(data, expected, reply);
+        else
+            executeCan(data, expected, reply);
+    }
+
+    private void executeCan(byte[] data, int expected, List<String> reply){
+        boolean extended = isExtended();
+        int header = requestHeader(extended);
+        byte[] request;
+        ArrayList<byte[]> frames = new ArrayList<>();
+        int responseHeader = 0;
+        boolean lost = m_random.nextDouble() < m_lossRate;
+        if (lost)
+            ++m_losses;
+
+        if (m_caf){
+            if (data.length > IsoTpCodec.MAX_SINGLE_FRAME_LENGTH){
+                reply.add("?");
+                return;
+            }
+            request = data;
+        } else {
+            if (data.length > 8){
+                reply.add("?");
+                return;
+            }
+            int type = IsoTpCodec.frameType(data);
+            if (type == IsoTpCodec.FLOW_CONTROL){
+                // Tester flow control : the next block of the pending response
+                int blockSize = IsoTpCodec.flowBlockSize(data);
+                while (!m_pendingFrames.isEmpty() && (blockSize == 0 || frames.size() < blockSize))
+                    frames.add(m_pendingFrames.poll());
+                responseHeader = m_pendingHeader;
+                request = null;
+            } else {
+                try {
+                    request = m_reassembler.push(header, data);
+                } catch (IsoTpException e) {
+                    reply.add("CAN ERROR");
+                    return;
+                }
+                if (request == null && type == IsoTpCodec.FIRST_FRAME && !lost){
+                    // The ECU flow control, no limit
+                    frames.add(IsoTpCodec.flowControl(IsoTpCodec.FC_CONTINUE, 0, 0));
+                    responseHeader = GenericResponder.responseHeader(header);
+                }
+            }
+        }
+
+        int messages = 0;
+        if (request != null && !lost){
+            for (Pair<Integer, byte[]> response : m_responder.respond(header, request)){
+                if (!accept(response.first, extended))
+                    continue;
+                ++messages;
+                List<byte[]> encoded;
+                try {
+                    encoded = IsoTpCodec.encode(response.second);
+                } catch (IsoTpException e) {
+                    continue;
+                }
+                if (frames.isEmpty())
+                    responseHeader = response.first;
+                if (!m_cfc && encoded.size() > 1){
+                    // The ECU waits for the tester flow control
+                    m_pendingFrames.clear();
+                    m_pendingFrames.addAll(encoded.subList(1, encoded.size()));
+                    m_pendingHeader = response.first;
+                    encoded = encoded.subList(0, 1);
+                }
+                if (m_caf && !m_headers)
+                    formatMessage(response.second, encoded.size() > 1, reply);
+                else
+                    for (byte[] frame : encoded)
+                        reply.add(formatFrame(response.first, frame, extended));
+                frames.addAll(encoded);
+            }
+        } else {
+            for (byte[] frame : frames)
+                reply.add(formatFrame(responseHeader, frame, extended));
+        }
+
+        if (!m_responses){
+            reply.clear();
+            m_delay = 0;
+            return;
+        }
+        if (frames.isEmpty()){
+            reply.clear();
+            reply.add("NO DATA");
+            m_delay = m_latency + timeoutMs();
+            return;
+        }
+        if (expected > 0)
+            while (reply.size() > expected)
+                reply.remove(reply.size() - 1);
+        m_delay = responseTime() + laterMessagesTime(messages) + waitAfterResponse(expected);
+    }
+
+    /*
+     * The ECU answers again after its response time (response pending)
+     */
+    private long laterMessagesTime(int messages){
+        return messages > 1 ? (messages - 1) * m_latency : 0;
+    }
+
+    /*
+     * Without a frame count, the adapter waits for more responses
+     */
+    private long waitAfterResponse(int expected){
+        if (expected > 0)
+            return 0;
+        if (m_adaptive == 0)
+            return timeoutMs();
+        // Adaptive timing : about the response time
+        return Math.min(m_latency, timeoutMs());
+    }
+
+    private int requestHeader(boolean extended){
+        if (m_header == null)
+            return extended ? 0x18DB33F1 : 0x7DF;
+        int header = Integer.parseInt(m_header, 16);
+        if (extended)
+            return (m_priority << 24) | (header & 0xFFFFFF);
+        return header & 0x7FF;
+    }
+
+    private boolean accept(int id, boolean extended){
+        if (m_receiveAddress != null){
+            String text = String.format(extended ? "%08X" : "%03X", id);
+            if (text.length() != m_receiveAddress.length())
+                return false;
+            for (int i = 0; i < text.length(); ++i){
+                char c = m_receiveAddress.charAt(i);
+                if (c != 'X' && c != text.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+        if (m_filterSet)
+            return (id & m_mask) == (m_filter & m_mask);
+        return true;
+    }
+
+    private String formatFrame(int id, byte[] frame, boolean extended){
+        StringBuilder line = new StringBuilder();
+        if (m_headers){
+            String header = String.format(extended ? "%08X" : "%03X", id);
+            if (extended && m_spaces)
+                header = header.substring(0, 2) + " " + header.substring(2, 4) + " "
+                        + header.substring(4, 6) + " " + header.substring(6);
+            line.append(header);
+            if (m_spaces)
+                line.append(' ');
+            if (m_dlc){
+                line.append(frame.length);
+                if (m_spaces)
+                    line.append(' ');
+            }
+        }
+        appendBytes(line, frame, 0, frame.length);
+        return line.toString();
+    }
+
+    /*
+     * CAF1 without headers : "62 F1 90" or "014" "0: 62 F1 90 ..." "1: ..."
+     */
+    private void formatMessage(byte[] message, boolean multiFrame, List<String> reply){
+        if (!multiFrame){
+            StringBuilder line = new StringBuilder();
+            appendBytes(line, message, 0, message.length);
+            reply.add(line.toString());
+            return;
+        }
+        reply.add(String.format("%03X", message.length));
+        int offset = 0;
+        for (int index = 0; offset < message.length; ++index){
+            int count = Math.min(message.length - offset, index == 0 ? 6 : 7);
+            StringBuilder line = new StringBuilder();
+            line.append(Integer.toHexString(index & 0xF).toUpperCase()).append(':');
+            if (m_spaces)
+                line.append(' ');
+            appendBytes(line, message, offset, count);
+            reply.add(line.toString());
+            offset += count;
+        }
+    }
+
+    private void appendBytes(StringBuilder line, byte[] bytes, int offset, int count){
+        for (int i = 0; i < count; ++i){
+            if (i > 0 && m_spaces)
+                line.append(' ');
+            HexCodec.append(line, bytes[offset + i]);
+        }
+    }
+
+    /*
+     * Header : format, target, source (AT SH 81 7A F1), checksum last
+     */
+    private void executeKLine(byte[] data, int expected, List<String> reply){
+        int target = 0x33;
+        int source = 0xF1;
+        if (m_header != null && m_header.length() == 6){
+            target = Integer.parseInt(m_header.substring(2, 4), 16);
+            source = Integer.parseInt(m_header.substring(4, 6), 16);
+        }
+        boolean lost = m_random.nextDouble() < m_lossRate;
+        if (lost)
+            ++m_losses;
+        if (!m_responses){
+            m_delay = 0;
+            return;
+        }
+        int messages = 0;
+        if (!lost){
+            for (Pair<Integer, byte[]> response : m_responder.respond(target, data)){
+                ++messages;
+                byte[] message = response.second;
+                StringBuilder line = new StringBuilder();
+                if (m_headers && message.length < 0x40){
+                    byte[] frame = new byte[message.length + 4];
+                    frame[0] = (byte) (0x80 | message.length);
+                    frame[1] = (byte) source;
+                    frame[2] = (byte) (int) response.first;
+                    System.arraycopy(message, 0, frame, 3, message.length);
+                    int checksum = 0;
+                    for (int i = 0; i < frame.length - 1; ++i)
+                        checksum += frame[i] & 0xFF;
+                    frame[frame.length - 1] = (byte) checksum;
+                    appendBytes(line, frame, 0, frame.length);
+                } else {
+                    appendBytes(line, message, 0, message.length);
+                }
+                reply.add(line.toString());
+            }
+        }
+        if (reply.isEmpty()){
+            reply.add("NO DATA");
+            m_delay = m_latency + timeoutMs();
+            return;
+        }
+        m_delay = responseTime() + laterMessagesTime(messages) + waitAfterResponse(expected);
+    }
+}
@@ -0,0 +1,99 @@
+package org.quark.dr.elmemulator;
+
+import org.quark.dr.ecu.Pair;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Any ECU : positive responses to the usual diagnostic services, the read
+ * services return dataLength bytes of a counter pattern (multi-frame above
+ * 5 bytes). Every other service is rejected (7F xx 11).
+ * Physical requests are answered by the addressed ECU, at the header
+ * given by addEcu (Renault pairs like 745/765), otherwise by the OBD rule
+ * (7E0 -> 7E8, 18DA10F1 -> 18DAF110). Functional ones (7DF, 18DB33F1)
+ * by 7E8 / 18DAF110.
+ */
+public class GenericResponder implements EcuResponder {
+    public static final int DEFAULT_DATA_LENGTH = 32;
+
+    private int m_dataLength;
+    private final HashMap<Integer, Integer> m_ecus = new HashMap<>();
+
+    public GenericResponder(){
+        this(DEFAULT_DATA_LENGTH);
+    }
+
+    public GenericResponder(int dataLength){
+        m_dataLength = dataLength;
+    }
+
+    public void setDataLength(int dataLength){
+        m_dataLength = dataLength;
+    }
+
+    public void addEcu(int requestHeader, int responseHeader){
+        m_ecus.put(requestHeader, responseHeader);
+    }
+
+    @Override
+    public List<Pair<Integer, byte[]>> respond(int header, byte[] request){
+        ArrayList<Pair<Integer, byte[]>> responses = new ArrayList<>();
+        if (request.length == 0)
+            return responses;
+        int service = request[0] & 0xFF;
+        byte[] response;
+        switch (service){
+            case 0x10: case 0x11: case 0x3E: case 0x27: case 0x28: case 0x85:
+                response = positive(request, Math.min(request.length, 2), 0);
+                break;
+            case 0x14:
+                response = new byte[] {0x54};
+                break;
+            case 0x21:
+                response = positive(request, Math.min(request.length, 2), m_dataLength);
+                break;
+            case 0x22:
+                response = positive(request, Math.min(request.length, 3), m_dataLength);
+                break;
+            case 0x19:
+                response = new byte[] {0x59, request.length > 1 ? request[1] : 0x02, (byte) 0xFF};
+                break;
+            default:
+                response = new byte[] {0x7F, (byte) service, 0x11};
+        }
+        Integer ecu = m_ecus.get(header);
+        responses.add(Pair.create(ecu != null ? ecu : responseHeader(header), response));
+        return responses;
+    }
+
+    /*
+     * Service + 0x40, the request parameters, then the pattern
+     */
+    private static byte[] positive(byte[] request, int echo, int length){
+        byte[] response = new byte[echo + length];
+        System.arraycopy(request, 0, response, 0, echo);
+        response[0] = (byte) (request[0] + 0x40);
+        for (int i = 0; i < length; ++i)
+            response[echo + i] = (byte) i;
+        return response;
+    }
+
+    /*
+     * Header of the ECU answering a request to header
+     */
+    public static int responseHeader(int header){
+        if (header == 0x7DF)
+            return 0x7E8;
+        if (header == 0x18DB33F1)
+            return 0x18DAF110;
+        if (header > 0x7FF)
+            // 18 DA <target> <source> -> 18 DA <source> <target>
+            return (header & 0xFFFF0000) | ((header & 0xFF) << 8) | ((header >> 8) & 0xFF);
+        if (header >= 0x100)
+            return header + 8;
+        // K-line : the ECU address
+        return header;
+    }
+}
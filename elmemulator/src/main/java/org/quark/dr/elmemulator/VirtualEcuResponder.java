@@ -0,0 +1,64 @@
+package org.quark.dr.elmemulator;
+
+import org.quark.dr.ecu.Ecu;
+import org.quark.dr.ecu.Pair;
+import org.quark.dr.ecu.VirtualEcu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * ECUs simulated from their definitions (VirtualEcu), at the addresses of
+ * the definitions : CAN send_id / recv_id, K-line funcaddr.
+ * Requests to other headers go to the fallback responder, if any.
+ */
+public class VirtualEcuResponder implements EcuResponder {
+    private final HashMap<Integer, Pair<Integer, VirtualEcu>> m_ecus = new HashMap<>();
+    private final EcuResponder m_fallback;
+
+    public VirtualEcuResponder(){
+        this(null);
+    }
+
+    public VirtualEcuResponder(EcuResponder fallback){
+        m_fallback = fallback;
+    }
+
+    /*
+     * Returns false if the definition has no address
+     */
+    public boolean addEcu(VirtualEcu virtualEcu){
+        Ecu ecu = virtualEcu.getEcu();
+        try {
+            if ("CAN".equals(ecu.getProtocol())){
+                addEcu(Integer.parseInt(ecu.getTxId(), 16), Integer.parseInt(ecu.getRxId(), 16), virtualEcu);
+                return true;
+            }
+            if (ecu.getFunctionnalAddress() != null){
+                int address = Integer.parseInt(ecu.getFunctionnalAddress(), 16);
+                addEcu(address, address, virtualEcu);
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    public void addEcu(int requestHeader, int responseHeader, VirtualEcu virtualEcu){
+        m_ecus.put(requestHeader, Pair.create(responseHeader, virtualEcu));
+    }
+
+    @Override
+    public List<Pair<Integer, byte[]>> respond(int header, byte[] request){
+        Pair<Integer, VirtualEcu> ecu = m_ecus.get(header);
+        if (ecu == null)
+            return m_fallback != null ? m_fallback.respond(header, request) : new ArrayList<Pair<Integer, byte[]>>();
+
+        ArrayList<Pair<Integer, byte[]>> responses = new ArrayList<>();
+        for (byte[] response : ecu.second.respond(request))
+            responses.add(Pair.create(ecu.first, response));
+        return responses;
+    }
+}
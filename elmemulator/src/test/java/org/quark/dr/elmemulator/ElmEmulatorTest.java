@@ -0,0 +1,364 @@
+package org.quark.dr.elmemulator;
+
+import org.junit.Test;
+import org.quark.dr.ecu.Ecu;
+import org.quark.dr.ecu.EcuLatencyTracker;
+import org.quark.dr.ecu.ElmSocket;
+import org.quark.dr.ecu.HexCodec;
+import org.quark.dr.ecu.IsoTPDecode;
+import org.quark.dr.ecu.IsoTPEncode;
+import org.quark.dr.ecu.VirtualEcu;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class ElmEmulatorTest {
+    // Reply timeout of the socket tests
+    private static final long TIMEOUT = 4000;
+
+    /*
+     * ElmWifi connection, ElmSocket exchanges
+     */
+    private static ElmSocket connect(int port) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1", port), 6000);
+        return new ElmSocket(socket);
+    }
+
+    private static String join(List<String> lines){
+        StringBuilder text = new StringBuilder();
+        for (String line : lines)
+            text.append(line).append('|');
+        return text.toString();
+    }
+
+    @Test
+    public void test_interpreterCan(){
+        ElmInterpreter elm = new ElmInterpreter(new GenericResponder(8), new Random(1));
+        assertThat(join(elm.execute("AT Z")), is("|ELM327 v1.5|"));
+        assertThat(join(elm.execute("STI")), is("?|"));
+        assertThat(join(elm.execute("AT E1")), is("OK|"));
+        assertThat(join(elm.execute("AT SP 6")), is("OK|"));
+        assertThat(join(elm.execute("AT SH 7E0")), is("OK|"));
+        assertThat(join(elm.execute("AT CRA 7E8")), is("OK|"));
+        assertThat(join(elm.execute("AT ZZ")), is("?|"));
+
+        // CAF1 : the message, ISO-TP done by the adapter
+        assertThat(join(elm.execute("1003")), is("50 03|"));
+        assertThat(join(elm.execute("2180")), is("00A|0: 61 80 00 01 02 03|1: 04 05 06 07|"));
+
+        // CAF0 : raw frames, the application does the ISO-TP
+        elm.execute("AT CAF0");
+        elm.execute("AT S0");
+        assertThat(join(elm.execute("022180")), is("100A618000010203|2104050607|"));
+        elm.execute("AT H1");
+        assertThat(join(elm.execute("023E00")), is("7E8027E00|"));
+        elm.execute("AT H0");
+
+        // Multi-frame request : the ECU flow control, then the response
+        assertThat(join(elm.execute("100B3BA001020304")), is("300000|"));
+        assertThat(join(elm.execute("2105060708090A")), is("037F3B11|"));
+
+        // CFC0 : the rest of a long response after the tester flow control
+        elm.execute("AT CFC0");
+        assertThat(join(elm.execute("0221801")), is("100A618000010203|"));
+        assertThat(join(elm.execute("300F001")), is("2104050607|"));
+        elm.execute("AT CFC1");
+
+        // Receive filter
+        elm.execute("AT CRA 7E9");
+        assertThat(join(elm.execute("022180")), is("NO DATA|"));
+        assertThat(elm.getDelay(), is(ElmInterpreter.DEFAULT_TIMEOUT * 4L));
+        elm.execute("AT CRA 7EX");
+        assertThat(join(elm.execute("023E00")), is("027E00|"));
+        elm.execute("AT AR");
+
+        // Responses off
+        elm.execute("AT R0");
+        assertThat(join(elm.execute("023E00")), is(""));
+        elm.execute("AT R1");
+
+        // Timing : AT AT 0 waits the whole timeout, unless the frame count is given
+        elm.setLatency(10, 0);
+        elm.execute("AT ST 19");
+        elm.execute("AT AT 0");
+        elm.execute("023E00");
+        assertThat(elm.getDelay(), is(10L + 0x19 * 4));
+        elm.execute("023E001");
+        assertThat(elm.getDelay(), is(10L));
+        elm.execute("AT AT 1");
+        elm.execute("023E00");
+        assertThat(elm.getDelay(), is(20L));
+
+        // Lone CR : the last command again
+        assertThat(join(elm.execute("")), is("027E00|"));
+
+        // Losses
+        elm.setLossRate(1.0);
+        assertThat(join(elm.execute("023E00")), is("NO DATA|"));
+        assertThat(elm.getLossCount(), is(1L));
+
+        // 29 bits
+        elm.setLossRate(0);
+        elm.execute("AT SP 7");
+        elm.execute("AT CP 18");
+        elm.execute("AT SH DA10F1");
+        elm.execute("AT CRA 18DAF110");
+        elm.execute("AT H1");
+        elm.execute("AT S1");
+        assertThat(join(elm.execute("02 10 C0")), is("18 DA F1 10 02 50 C0|"));
+    }
+
+    @Test
+    public void test_interpreterStnAndKLine(){
+        ElmInterpreter elm = new ElmInterpreter(new GenericResponder(4), new Random(1));
+        elm.setStn(true);
+        assertThat(join(elm.execute("STI")), is(ElmInterpreter.STN_VERSION + "|"));
+        assertThat(join(elm.execute("STP 53")), is("OK|"));
+        assertThat(join(elm.execute("STPBR 500000")), is("OK|"));
+
+        elm.execute("AT SP 5");
+        elm.execute("AT SH 81 7A F1");
+        assertThat(join(elm.execute("AT FI")), is("BUS INIT: ...OK|"));
+        assertThat(join(elm.execute("2180")), is("61 80 00 01 02 03|"));
+        elm.execute("AT H1");
+        // Format, tester, ECU, message, checksum
+        assertThat(join(elm.execute("2180")), is("86 F1 7A 61 80 00 01 02 03 D8|"));
+    }
+
+    @Test
+    public void test_emulatorSocket() throws Exception {
+        ElmEmulator emulator = new ElmEmulator(new GenericResponder(32));
+        emulator.setPort(0);
+        emulator.setLatency(2, 2);
+        emulator.setSeed(1);
+        emulator.setSplitWrites(true);
+        emulator.start();
+        try {
+            ElmSocket client = connect(emulator.getPort());
+            // Echo on after reset
+            assertThat(client.exchange("AT Z", TIMEOUT), is("AT Z\n\nELM327 v1.5\n\n"));
+            for (String command : new String[] {"AT E1", "AT S0", "AT H0", "AT L0", "AT AL", "AT CAF0",
+                    "AT SH 7E0", "AT CRA 7E8", "AT FC SH 7E0", "AT FC SD 30 00 00", "AT FC SM 1", "AT SP 6"})
+                assertTrue(client.exchange(command, TIMEOUT).contains("OK"));
+
+            // Echoed command, then the frames
+            String reply = client.exchange("0322F190", TIMEOUT);
+            assertTrue(reply.startsWith("0322F190\n1023"));
+            assertThat(reply.split("\n").length, is(7));
+
+            // Bus request rate of the link
+            int count = 200;
+            long start = System.nanoTime();
+            for (int i = 0; i < count; ++i)
+                assertTrue(client.exchange("023E00", TIMEOUT).contains("027E00"));
+            long elapsed = System.nanoTime() - start;
+            System.out.println("?? " + count + " requests in " + elapsed / 1000000 + " ms, "
+                    + count * 1000000000L / elapsed + " requests/s");
+            assertTrue(elapsed >= count * 2000000L);
+
+            // An ELM stops a bus request when input arrives meanwhile
+            client.writeCommand("023E00");
+            client.writeCommand("023E00");
+            assertTrue(client.read(TIMEOUT).contains("STOPPED"));
+            assertTrue(client.read(TIMEOUT).contains("027E00"));
+            client.close();
+        } finally {
+            emulator.stop();
+        }
+
+        // An STN buffers it
+        emulator = new ElmEmulator(new GenericResponder());
+        emulator.setPort(0);
+        emulator.setLatency(5, 0);
+        emulator.setStn(true);
+        emulator.setPromptDelay(1);
+        emulator.start();
+        try {
+            ElmSocket client = connect(emulator.getPort());
+            client.exchange("AT E0", TIMEOUT);
+            client.exchange("AT CAF0", TIMEOUT);
+            client.writeCommand("023E00");
+            client.writeCommand("021003");
+            assertThat(client.read(TIMEOUT), is("02 7E 00\n\n"));
+            assertThat(client.read(TIMEOUT), is("02 50 03\n\n"));
+            client.close();
+            assertThat(emulator.getConnectionCount(), is(1L));
+        } finally {
+            emulator.stop();
+        }
+    }
+
+    private VirtualEcu loadAcu(){
+        return new VirtualEcu(new Ecu(getClass().getClassLoader().getResourceAsStream("acu.json")));
+    }
+
+    @Test
+    public void test_virtualEcu(){
+        VirtualEcu acu = loadAcu();
+        VirtualEcuResponder responder = new VirtualEcuResponder(new GenericResponder(2));
+        assertTrue(responder.addEcu(acu));
+        ElmInterpreter elm = new ElmInterpreter(responder, new Random(1));
+        elm.setLatency(10, 0);
+        elm.execute("AT SP 6");
+        elm.execute("AT SH 752");
+        elm.execute("AT CRA 772");
+
+        assertThat(join(elm.execute("3B0701")), is("7B 07|"));
+        assertThat(join(elm.execute("21B0")), is("61 B0 80 00 00|"));
+        // Response pending, the response after another response time
+        acu.setResponsePending("Lecture de la date de la dernière interv APV", 1);
+        assertThat(join(elm.execute("21B01")), is("7F 21 78|"));
+        assertThat(join(elm.execute("21B02")), is("7F 21 78|61 B0 80 00 00|"));
+        assertThat(elm.getDelay(), is(20L));
+        acu.setNegativeResponse("Lecture de la date de la dernière interv APV", VirtualEcu.NRC_CONDITIONS_NOT_CORRECT);
+        assertThat(join(elm.execute("21B02")), is("7F 21 78|7F 21 22|"));
+
+        // Other ECUs : the fallback
+        elm.execute("AT SH 7E0");
+        elm.execute("AT CRA 7E8");
+        assertThat(join(elm.execute("2180")), is("61 80 00 01|"));
+    }
+
+    @Test
+    public void test_virtualEcuScreen() throws Exception {
+        VirtualEcu acu = loadAcu();
+        acu.setPeriod(1000);
+        Ecu ecu = acu.getEcu();
+        VirtualEcuResponder responder = new VirtualEcuResponder();
+        responder.addEcu(acu);
+        ElmEmulator emulator = new ElmEmulator(responder);
+        emulator.setPort(0);
+        emulator.setLatency(2, 0);
+        emulator.start();
+
+        // The read requests of the definition, as a screen would send them
+        ArrayList<String> screen = new ArrayList<>();
+        for (String name : ecu.getRequestNames()){
+            Ecu.EcuRequest request = ecu.getRequest(name);
+            if (request.sentbytes.startsWith("21") && request.replybytes != null && request.shiftbytescount == 0
+                    && !request.recvbyte_dataitems.isEmpty())
+                screen.add(name);
+        }
+        java.util.Collections.sort(screen);
+
+        try {
+            ElmSocket client = connect(emulator.getPort());
+            // ElmBase.initCan
+            for (String command : new String[] {"AT Z", "AT E1", "AT S0", "AT H0", "AT L0", "AT AL", "AT CAF0",
+                    "AT SH " + ecu.getTxId(), "AT CRA " + ecu.getRxId(), "AT FC SH " + ecu.getTxId(),
+                    "AT FC SD 30 00 00", "AT FC SM 1", "AT SP 6"})
+                client.exchange(command, TIMEOUT);
+
+            int rounds = 5;
+            int values = 0;
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; ++round){
+                for (String name : screen){
+                    Ecu.EcuRequest request = ecu.getRequest(name);
+                    String frame = new IsoTPEncode(request.sentbytes).getFormattedArray().get(0);
+                    String[] lines = client.exchange(frame, TIMEOUT).split("\n");
+                    ArrayList<String> frames = new ArrayList<>();
+                    // Echo first
+                    for (int i = 1; i < lines.length; ++i)
+                        if (!lines[i].isEmpty())
+                            frames.add(lines[i]);
+                    String response = new IsoTPDecode(frames).decodeCan();
+                    assertTrue(name + " " + response, response.startsWith(request.replybytes));
+                    values += ecu.getRequestValues(HexCodec.decode(response), name, true).size();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            client.close();
+            System.out.println("?? " + screen.size() + " requests, " + values / rounds + " values a screen, "
+                    + rounds * 1000000000L / elapsed + " screens/s");
+            assertThat(acu.getUnknownCount(), is(0L));
+            assertThat(acu.getRequestCount(), is((long) rounds * screen.size()));
+        } finally {
+            emulator.stop();
+        }
+    }
+
+    /*
+     * Time (ms) and NO DATA count of count reads with the configured
+     * timeout (tracker null), or the tuned one and the retry of
+     * ElmBase.sendRequest. AT ST only sent when it changes.
+     */
+    private static long[] readLoop(ElmSocket client, EcuLatencyTracker tracker, int ceiling, int count)
+            throws IOException {
+        String setting = null;
+        long noData = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i){
+            int timeout = tracker != null ? tracker.getTimeout(ceiling) : ceiling;
+            int tuned = timeout;
+            for (int attempt = 0; ; ++attempt){
+                String command = String.format("AT ST %02X", timeout);
+                if (!command.equals(setting)){
+                    client.exchange(command, TIMEOUT);
+                    setting = command;
+                }
+                long requestStart = System.nanoTime();
+                boolean timedOut = client.exchange("022180", TIMEOUT).contains("NO DATA");
+                long elapsed = (System.nanoTime() - requestStart) / 1000000;
+                if (timedOut && tracker != null && attempt == 0 && timeout < ceiling){
+                    timeout = ceiling;
+                    continue;
+                }
+                if (timedOut)
+                    ++noData;
+                if (tracker != null){
+                    if (timedOut)
+                        tracker.recordTimeout();
+                    else if (attempt > 0)
+                        tracker.recordRetryResponse(elapsed, tuned);
+                    else
+                        tracker.recordResponse(elapsed);
+                }
+                break;
+            }
+        }
+        return new long[] {(System.nanoTime() - start) / 1000000, noData};
+    }
+
+    @Test
+    public void test_tunedTimeout() throws Exception {
+        ElmEmulator emulator = new ElmEmulator(new GenericResponder(4));
+        emulator.setPort(0);
+        emulator.setLatency(10, 5);
+        emulator.setLossRate(0.1);
+        emulator.setSeed(3);
+        emulator.start();
+        try {
+            ElmSocket client = connect(emulator.getPort());
+            // ElmBase.initCan, adaptive timing left on (AT AT 1 after the reset)
+            for (String command : new String[] {"AT Z", "AT E1", "AT S0", "AT H0", "AT L0", "AT AL", "AT CAF0",
+                    "AT SH 7E0", "AT CRA 7E8", "AT FC SH 7E0", "AT FC SD 30 00 00", "AT FC SM 1", "AT SP 6"})
+                client.exchange(command, TIMEOUT);
+
+            int ceiling = 0x32;
+            int count = 150;
+            long[] baseline = readLoop(client, null, ceiling, count);
+            EcuLatencyTracker tracker = new EcuLatencyTracker();
+            // Learning, then measured
+            readLoop(client, tracker, ceiling, EcuLatencyTracker.MIN_SAMPLES);
+            long[] tuned = readLoop(client, tracker, ceiling, count);
+            client.close();
+            System.out.println("?? " + count + " reads, 10 % lost : " + baseline[0] + " ms and " + baseline[1]
+                    + " NO DATA with AT ST " + Integer.toHexString(ceiling) + " AT AT 1, " + tuned[0] + " ms and "
+                    + tuned[1] + " NO DATA with AT ST " + Integer.toHexString(tracker.getTimeout(ceiling)) + " AT AT 1");
+            assertTrue(tracker.getTimeout(ceiling) < ceiling);
+            assertTrue(tuned[1] < baseline[1]);
+        } finally {
+            emulator.stop();
+        }
+    }
+}
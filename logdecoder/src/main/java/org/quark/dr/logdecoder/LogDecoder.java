@@ -0,0 +1,236 @@
+package org.quark.dr.logdecoder;
+
+import org.quark.dr.ecu.Ecu;
+import org.quark.dr.ecu.ZipFileSystem;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Command line decoder of ELM log files
+ * Every log file is decoded by a worker to a temporary part, the parts are
+ * then concatenated in the order of the files, so the output does not
+ * depend on the number of threads. With an output directory, the parts
+ * are the result : no copy, best for gigabytes of logs.
+ */
+public class LogDecoder {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private String m_zipPath;
+    private String m_definition;
+    private String m_output;
+    private int m_threads = Runtime.getRuntime().availableProcessors();
+    private final List<File> m_inputs = new ArrayList<>();
+
+    private static void usage(){
+        System.err.println("Usage : logdecoder [-z ecu.zip] -e <ecu definition> [-o output.csv] [-j threads]"
+                + " <log file or directory>...");
+        System.err.println("  -e  ECU definition, entry of ecu.zip with -z or JSON file");
+        System.err.println("  -o  CSV output, stdout by default. For a directory, one CSV per log file");
+        System.err.println("  -j  decoding threads, number of CPUs by default");
+        System.err.println("Directories are scanned for *.txt, *.log and *.gz files");
+    }
+
+    public static void main(String[] args){
+        LogDecoder decoder = new LogDecoder();
+        if (!decoder.parseArguments(args)){
+            usage();
+            System.exit(1);
+        }
+        try {
+            LogFileDecoder.Stats stats = decoder.run();
+            System.err.println(stats);
+        } catch (Exception e) {
+            System.err.println("ERROR : " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    boolean parseArguments(String[] args){
+        for (int i = 0; i < args.length; ++i){
+            String arg = args[i];
+            boolean hasValue = i + 1 < args.length;
+            if (arg.equals("-z") && hasValue){
+                m_zipPath = args[++i];
+            } else if (arg.equals("-e") && hasValue){
+                m_definition = args[++i];
+            } else if (arg.equals("-o") && hasValue){
+                m_output = args[++i];
+            } else if (arg.equals("-j") && hasValue){
+                try {
+                    m_threads = Math.max(1, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else if (arg.startsWith("-")){
+                return false;
+            } else {
+                m_inputs.add(new File(arg));
+            }
+        }
+        return m_definition != null && !m_inputs.isEmpty();
+    }
+
+    LogFileDecoder.Stats run() throws Exception {
+        long start = System.nanoTime();
+        Ecu ecu = loadEcu();
+        final LogFileDecoder.RequestTable table = new LogFileDecoder.RequestTable(ecu);
+
+        List<File> files = new ArrayList<>();
+        for (File input : m_inputs)
+            collectLogFiles(input, files);
+        if (files.isEmpty())
+            throw new IOException("No log file found");
+
+        File outputDirectory = m_output != null && new File(m_output).isDirectory() ? new File(m_output) : null;
+        // Parts next to the output, on the same disk
+        File partsParent = m_output == null || outputDirectory != null ? null
+                : new File(m_output).getAbsoluteFile().getParentFile();
+        final File partsDirectory = outputDirectory != null ? outputDirectory
+                : partsParent == null ? Files.createTempDirectory("logdecoder").toFile()
+                : Files.createTempDirectory(partsParent.toPath(), "logdecoder").toFile();
+        final boolean withHeader = outputDirectory != null;
+        final LogFileDecoder.Stats total = new LogFileDecoder.Stats();
+        final ThreadLocal<LogFileDecoder> decoders = new ThreadLocal<LogFileDecoder>() {
+            @Override
+            protected LogFileDecoder initialValue(){
+                return new LogFileDecoder(table);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(m_threads, files.size()));
+        List<Future<File>> parts = new ArrayList<>();
+        HashSet<String> names = new HashSet<>();
+        try {
+            for (int i = 0; i < files.size(); ++i){
+                final File file = files.get(i);
+                String name = outputDirectory == null ? i + ".csv" : file.getName() + ".csv";
+                if (!names.add(name))
+                    name = file.getName() + "_" + i + ".csv";
+                final File part = new File(partsDirectory, name);
+                parts.add(executor.submit(() -> {
+                    try (BufferedReader reader = openLog(file);
+                         Writer out = new BufferedWriter(new OutputStreamWriter(
+                                 new FileOutputStream(part), StandardCharsets.UTF_8), BUFFER_SIZE)){
+                        if (withHeader)
+                            out.write(LogFileDecoder.CSV_HEADER);
+                        total.add(decoders.get().decode(file.getPath(), reader, out));
+                    }
+                    return part;
+                }));
+            }
+
+            if (outputDirectory != null){
+                // One CSV per log file, nothing to merge
+                for (Future<File> future : parts)
+                    future.get();
+            } else if (m_output != null){
+                try (FileChannel out = new FileOutputStream(m_output).getChannel()){
+                    out.write(ByteBuffer.wrap(LogFileDecoder.CSV_HEADER.getBytes(StandardCharsets.UTF_8)));
+                    for (Future<File> future : parts){
+                        File part = future.get();
+                        try (FileChannel in = new FileInputStream(part).getChannel()){
+                            long position = 0;
+                            long size = in.size();
+                            while (position < size)
+                                position += in.transferTo(position, size - position, out);
+                        }
+                        part.delete();
+                    }
+                }
+            } else {
+                System.out.write(LogFileDecoder.CSV_HEADER.getBytes(StandardCharsets.UTF_8));
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (Future<File> future : parts){
+                    File part = future.get();
+                    try (InputStream is = new FileInputStream(part)){
+                        int count;
+                        while ((count = is.read(buffer)) > 0)
+                            System.out.write(buffer, 0, count);
+                    }
+                    part.delete();
+                }
+                System.out.flush();
+            }
+        } finally {
+            executor.shutdownNow();
+            if (outputDirectory == null){
+                File[] left = partsDirectory.listFiles();
+                if (left != null){
+                    for (File file : left)
+                        file.delete();
+                }
+                partsDirectory.delete();
+            }
+        }
+
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        long bytes = 0;
+        for (File file : files)
+            bytes += file.length();
+        System.err.println(files.size() + " file(s), " + bytes / 1024 + " KiB decoded in " + elapsed + " ms with "
+                + m_threads + " thread(s), " + table.size() + " known requests");
+        return total;
+    }
+
+    private Ecu loadEcu() throws IOException {
+        String json;
+        if (m_zipPath != null){
+            ZipFileSystem zipFileSystem = new ZipFileSystem(m_zipPath, System.getProperty("java.io.tmpdir"));
+            zipFileSystem.getZipEntries();
+            if (!zipFileSystem.fileExists(m_definition))
+                throw new IOException(m_definition + " not found in " + m_zipPath);
+            json = zipFileSystem.getZipFile(m_definition);
+        } else {
+            json = new String(Files.readAllBytes(new File(m_definition).toPath()), StandardCharsets.UTF_8);
+        }
+        return new Ecu(json);
+    }
+
+    static void collectLogFiles(File input, List<File> files){
+        if (input.isFile()){
+            files.add(input);
+            return;
+        }
+        File[] children = input.listFiles();
+        if (children == null)
+            return;
+        List<File> sorted = new ArrayList<>();
+        Collections.addAll(sorted, children);
+        Collections.sort(sorted);
+        for (File child : sorted){
+            String name = child.getName();
+            if (child.isDirectory())
+                collectLogFiles(child, files);
+            else if (name.endsWith(".txt") || name.endsWith(".log") || name.endsWith(".gz"))
+                files.add(child);
+        }
+    }
+
+    static BufferedReader openLog(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        if (file.getName().endsWith(".gz"))
+            is = new GZIPInputStream(is, 1 << 16);
+        return new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,240 @@
+package org.quark.dr.logdecoder;
+
+import org.quark.dr.ecu.Ecu;
+import org.quark.dr.ecu.HexCodec;
+import org.quark.dr.ecu.Pair;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Decodes the exchanges of one ELM log file (see ElmBase) :
+ *   New session with ECU <name>
+ *   CAN SENT: [dd-MM-hh:mm:ss] 2111
+ *   CAN RECV: [dd-MM-hh:mm:ss] 61112110010104001400000000DCE9
+ * (also "CAN CFC" and "ISO" exchanges)
+ * A request is recognized by its sent bytes, each value of its response
+ * gives one CSV row : file,line,time,ecu,request,data,value,unit
+ * The Ecu is only read, one instance is shared by all the decoders. The
+ * decoded rows of the last response of each request are cached, ECU
+ * screens poll the same values again and again.
+ */
+public class LogFileDecoder {
+    public static final String CSV_HEADER = "file,line,time,ecu,request,data,value,unit\n";
+
+    public static class Stats {
+        public long lines;
+        public long exchanges;
+        public long decoded;
+        public long rows;
+        public long unknownRequests;
+        public long errors;
+        public long negativeResponses;
+        public long decodeErrors;
+
+        public synchronized void add(Stats other){
+            lines += other.lines;
+            exchanges += other.exchanges;
+            decoded += other.decoded;
+            rows += other.rows;
+            unknownRequests += other.unknownRequests;
+            errors += other.errors;
+            negativeResponses += other.negativeResponses;
+            decodeErrors += other.decodeErrors;
+        }
+
+        @Override
+        public String toString(){
+            return "lines " + lines + ", exchanges " + exchanges + ", decoded " + decoded
+                    + ", rows " + rows + ", unknown requests " + unknownRequests
+                    + ", errors " + errors + ", negative responses " + negativeResponses
+                    + ", decode errors " + decodeErrors;
+        }
+    }
+
+    /*
+     * Requests of the ECU indexed by their sent bytes
+     */
+    public static class RequestTable {
+        final Ecu m_ecu;
+        private final HashMap<String, Ecu.EcuRequest> m_requests = new HashMap<>();
+
+        public RequestTable(Ecu ecu){
+            m_ecu = ecu;
+            List<String> names = new ArrayList<>(ecu.getRequestNames());
+            // Same sent bytes : the first name wins, whatever the map order
+            Collections.sort(names);
+            for (String name : names){
+                Ecu.EcuRequest request = ecu.getRequest(name);
+                if (request.sentbytes == null || request.recvbyte_dataitems.isEmpty())
+                    continue;
+                String key = normalize(request.sentbytes);
+                if (!m_requests.containsKey(key))
+                    m_requests.put(key, request);
+            }
+        }
+
+        Ecu.EcuRequest get(String sentHex){
+            return m_requests.get(sentHex);
+        }
+
+        public int size(){
+            return m_requests.size();
+        }
+    }
+
+    private static class CachedResponse {
+        String response;
+        // "request,data,value,unit\n" rows, the line prefix is added on write
+        String[] rows;
+    }
+
+    private final RequestTable m_table;
+    private final HashMap<String, CachedResponse> m_cache = new HashMap<>();
+    private final StringBuilder m_line = new StringBuilder(256);
+
+    public LogFileDecoder(RequestTable table){
+        m_table = table;
+    }
+
+    /*
+     * Decodes reader to out, fileName is written in the first column
+     */
+    public Stats decode(String fileName, BufferedReader reader, Writer out) throws IOException {
+        Stats stats = new Stats();
+        String file = csv(fileName);
+        String ecuName = "";
+        String sent = null;
+        String line;
+        long lineNumber = 0;
+
+        while ((line = reader.readLine()) != null){
+            ++lineNumber;
+            if (line.startsWith("New session with ECU ")){
+                ecuName = csv(line.substring(21).trim());
+                sent = null;
+                continue;
+            }
+            int colon = line.indexOf(": ");
+            if (colon < 0)
+                continue;
+            boolean isSent = line.regionMatches(colon - 4, "SENT", 0, 4);
+            boolean isReceived = !isSent && line.regionMatches(colon - 4, "RECV", 0, 4);
+            if (!isSent && !isReceived)
+                continue;
+
+            String time = "";
+            int start = colon + 2;
+            if (start < line.length() && line.charAt(start) == '['){
+                int end = line.indexOf(']', start);
+                if (end > 0){
+                    time = line.substring(start + 1, end);
+                    start = end + 1;
+                }
+            }
+            String payload = line.substring(start).trim();
+
+            if (isSent){
+                sent = normalize(payload);
+                continue;
+            }
+            if (sent == null)
+                continue;
+            ++stats.exchanges;
+            String request = sent;
+            sent = null;
+
+            if (payload.startsWith("ERROR")){
+                ++stats.errors;
+                continue;
+            }
+            String response = normalize(payload);
+            if (response.startsWith("7F")){
+                ++stats.negativeResponses;
+                continue;
+            }
+            Ecu.EcuRequest ecuRequest = m_table.get(request);
+            if (ecuRequest == null){
+                ++stats.unknownRequests;
+                continue;
+            }
+            String[] rows = decodeResponse(ecuRequest, response);
+            if (rows == null){
+                ++stats.decodeErrors;
+                continue;
+            }
+            ++stats.decoded;
+            for (String row : rows){
+                m_line.setLength(0);
+                m_line.append(file).append(',').append(lineNumber).append(',').append(time)
+                        .append(',').append(ecuName).append(',').append(row);
+                out.append(m_line);
+            }
+            stats.rows += rows.length;
+        }
+        stats.lines = lineNumber;
+        return stats;
+    }
+
+    private String[] decodeResponse(Ecu.EcuRequest request, String response){
+        CachedResponse cached = m_cache.get(request.name);
+        if (cached != null && cached.response.equals(response))
+            return cached.rows;
+
+        if (request.replybytes != null && !response.startsWith(normalize(request.replybytes)))
+            return null;
+        byte[] bytes = HexCodec.decode(response);
+        if (bytes == null || bytes.length < request.minbytes)
+            return null;
+
+        HashMap<String, Pair<String, String>> values;
+        try {
+            values = m_table.m_ecu.getRequestValuesWithUnit(bytes, request.name);
+        } catch (Exception e) {
+            // Truncated or unexpected response
+            return null;
+        }
+        List<String> names = new ArrayList<>(values.keySet());
+        Collections.sort(names);
+        String requestName = csv(request.name);
+        String[] rows = new String[names.size()];
+        for (int i = 0; i < rows.length; ++i){
+            Pair<String, String> value = values.get(names.get(i));
+            rows[i] = requestName + "," + csv(names.get(i)) + "," + csv(value.first) + ","
+                    + csv(value.second == null ? "" : value.second) + "\n";
+        }
+
+        if (cached == null){
+            cached = new CachedResponse();
+            m_cache.put(request.name, cached);
+        }
+        cached.response = response;
+        cached.rows = rows;
+        return rows;
+    }
+
+    static String normalize(String hex){
+        if (hex.indexOf(' ') >= 0)
+            hex = hex.replace(" ", "");
+        return hex.toUpperCase();
+    }
+
+    /*
+     * RFC 4180 field
+     */
+    static String csv(String field){
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; ++i){
+            char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote)
+            return field;
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,107 @@
+package org.quark.dr.logdecoder;
+
+import org.junit.Test;
+import org.quark.dr.ecu.Ecu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class LogDecoderTest {
+    private static final String LOG =
+            "[18-10-09:12:33:01]  Log file created\n" +
+            "New session with ECU UCH 84/85_V3\n" +
+            "CAN SENT: [18-10-09:12:33:02] 10C0\n" +
+            "CAN RECV: [18-10-09:12:33:02] 50C0\n" +
+            "CAN SENT: [18-10-09:12:33:03] 2111\n" +
+            "CAN RECV: [18-10-09:12:33:03] 61112110010104001400000000DCE9\n" +
+            "CAN SENT: [18-10-09:12:33:04] 2111\n" +
+            "CAN RECV: [18-10-09:12:33:04] 61112110010104001400000000DCE9\n" +
+            "CAN SENT: [18-10-09:12:33:05] 2111\n" +
+            "CAN RECV: [18-10-09:12:33:05] ERROR : NO DATA\n" +
+            "CAN SENT: [18-10-09:12:33:06] 21 11\n" +
+            "CAN RECV: [18-10-09:12:33:06] 7F 21 12\n" +
+            "CAN SENT: [18-10-09:12:33:07] 2111\n" +
+            "CAN RECV: [18-10-09:12:33:07] 611121\n";
+
+    private static Ecu loadUch(){
+        InputStream is = LogDecoderTest.class.getClassLoader().getResourceAsStream("UCH_LE.json");
+        return new Ecu(is);
+    }
+
+    @Test
+    public void test_decodeLog() throws Exception {
+        LogFileDecoder.RequestTable table = new LogFileDecoder.RequestTable(loadUch());
+        StringWriter out = new StringWriter();
+        LogFileDecoder.Stats stats = new LogFileDecoder(table).decode("log.txt",
+                new BufferedReader(new StringReader(LOG)), out);
+
+        assertThat(stats.exchanges, is(6L));
+        assertThat(stats.decoded, is(2L));
+        assertThat(stats.errors, is(1L));
+        assertThat(stats.negativeResponses, is(1L));
+        // Too short for the 15 bytes of the request
+        assertThat(stats.decodeErrors, is(1L));
+        assertThat(stats.unknownRequests, is(1L));
+
+        String[] rows = out.toString().split("\n");
+        assertThat((long)rows.length, is(stats.rows));
+        assertThat(rows.length % 2, is(0));
+        assertTrue(rows[0].startsWith("log.txt,6,18-10-09:12:33:03,UCH 84/85_V3,Trame 11 : Etats des entrées,"));
+        // Second response comes from the cache, same values
+        assertThat(rows[rows.length / 2].substring(rows[0].indexOf("Trame")), is(rows[0].substring(rows[0].indexOf("Trame"))));
+    }
+
+    @Test
+    public void test_csv(){
+        assertThat(LogFileDecoder.csv("Coolant"), is("Coolant"));
+        assertThat(LogFileDecoder.csv("a,b"), is("\"a,b\""));
+        assertThat(LogFileDecoder.csv("12\" rim"), is("\"12\"\" rim\""));
+    }
+
+    @Test
+    public void test_parallelFiles() throws Exception {
+        File directory = Files.createTempDirectory("logdecodertest").toFile();
+        File definition = new File(directory, "UCH_LE.json");
+        try (InputStream is = getClass().getClassLoader().getResourceAsStream("UCH_LE.json")){
+            Files.copy(is, definition.toPath());
+        }
+        File logs = new File(directory, "logs");
+        logs.mkdirs();
+        for (int i = 0; i < 6; ++i){
+            String name = "log" + i + (i % 2 == 0 ? ".txt" : ".txt.gz");
+            FileOutputStream fos = new FileOutputStream(new File(logs, name));
+            Writer writer = new OutputStreamWriter(i % 2 == 0 ? fos : new GZIPOutputStream(fos), StandardCharsets.UTF_8);
+            for (int j = 0; j < 200; ++j)
+                writer.write(LOG);
+            writer.close();
+        }
+
+        File single = new File(directory, "single.csv");
+        File parallel = new File(directory, "parallel.csv");
+        LogDecoder decoder = new LogDecoder();
+        assertTrue(decoder.parseArguments(new String[] {"-e", definition.getPath(), "-j", "1",
+                "-o", single.getPath(), logs.getPath()}));
+        LogFileDecoder.Stats stats = decoder.run();
+        assertThat(stats.decoded, is(6 * 200 * 2L));
+
+        decoder = new LogDecoder();
+        assertTrue(decoder.parseArguments(new String[] {"-e", definition.getPath(), "-j", "4",
+                "-o", parallel.getPath(), logs.getPath()}));
+        decoder.run();
+        assertArrayEquals(Files.readAllBytes(single.toPath()), Files.readAllBytes(parallel.toPath()));
+
+        assertFalse(new LogDecoder().parseArguments(new String[] {logs.getPath()}));
+    }
+}
@@ -16,14 +16,13 @@
 
 package org.quark.dr.usbserial.util;
 
+import org.quark.dr.ecu.HexCodec;
+
 /**
- * Clone of Android's HexDump class, for use in debugging. Cosmetic changes
- * only.
+ * Clone of Android's HexDump class, for use in debugging. Hex conversions
+ * are delegated to {@link HexCodec}.
  */
 public class HexDump {
-    private final static char[] HEX_DIGITS = {
-            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
-    };
 
     public static String dumpHexString(byte[] array) {
         return dumpHexString(array, 0, array.length);
@@ -57,8 +56,7 @@ public class HexDump {
 
             byte b = array[i];
             result.append(" ");
-            result.append(HEX_DIGITS[(b >>> 4) & 0x0F]);
-            result.append(HEX_DIGITS[b & 0x0F]);
+            HexCodec.append(result, b);
 
             line[lineIndex++] = b;
         }
@@ -91,16 +89,7 @@ public class HexDump {
     }
 
     public static String toHexString(byte[] array, int offset, int length) {
-        char[] buf = new char[length * 2];
-
-        int bufIndex = 0;
-        for (int i = offset; i < offset + length; i++) {
-            byte b = array[i];
-            buf[bufIndex++] = HEX_DIGITS[(b >>> 4) & 0x0F];
-            buf[bufIndex++] = HEX_DIGITS[b & 0x0F];
-        }
-
-        return new String(buf);
+        return HexCodec.encode(array, offset, length);
     }
 
     public static String toHexString(int i) {
@@ -137,26 +126,10 @@ public class HexDump {
         return array;
     }
 
-    private static int toByte(char c) {
-        if (c >= '0' && c <= '9')
-            return (c - '0');
-        if (c >= 'A' && c <= 'F')
-            return (c - 'A' + 10);
-        if (c >= 'a' && c <= 'f')
-            return (c - 'a' + 10);
-
-        throw new RuntimeException("Invalid hex char '" + c + "'");
-    }
-
     public static byte[] hexStringToByteArray(String hexString) {
-        int length = hexString.length();
-        byte[] buffer = new byte[length / 2];
-
-        for (int i = 0; i < length; i += 2) {
-            buffer[i / 2] = (byte) ((toByte(hexString.charAt(i)) << 4) | toByte(hexString
-                    .charAt(i + 1)));
-        }
-
+        byte[] buffer = HexCodec.decode(hexString);
+        if (buffer == null)
+            throw new RuntimeException("Invalid hex string '" + hexString + "'");
         return buffer;
     }
 }